@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.maanova.configuration.MaanovaApplicationConfigurationManager;
+import org.jax.maanova.fit.FitMaanovaCommand;
+import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.test.TestExecutionBackend;
+import org.jax.maanova.test.TestModelCommandBuilder;
+import org.jax.r.RUtilities;
+import org.jax.r.jriutilities.RInterface;
+import org.jax.r.jriutilities.SilentRCommand;
+import org.rosuda.JRI.REXP;
+
+/**
+ * A persistent cache of fit and test results so that running the same
+ * fitmaanova or matest against the same data again (which happens all the
+ * time while iterating on contrasts) restores the earlier result instead
+ * of recalculating it. Results are keyed by a hash of the canonical
+ * model or test specification along with an MD5 digest of the
+ * experiment's serialized R object, so renaming the experiment or the result doesn't matter but
+ * changing the data does. A test is only cached if its fit came through
+ * the cache since that's how we know what the fit was calculated from.
+ * Tests that permute in R/maanova are never cached because they draw
+ * from R's random number stream, so running them again is expected to
+ * give different permutations. The Java engine's permutations are seeded
+ * so they can be cached. The serialized form can change between R
+ * versions, which only means that results cached under an older R
+ * are missed rather than reused.
+ * Each result is saved as an RData file in the
+ * {@link MaanovaApplicationConfigurationManager#getResultCacheDirectory()
+ * cache directory} and the least recently used files are deleted once
+ * the cache goes over its disk budget.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class AnalysisResultCache
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            AnalysisResultCache.class.getName());
+    
+    /**
+     * the disk budget unless told otherwise (1 GB)
+     */
+    public static final long DEFAULT_DISK_BUDGET_BYTES = 1024L * 1024L * 1024L;
+    
+    /**
+     * the R attribute that we tag cached results with so that results
+     * calculated from them can be keyed too
+     */
+    private static final String CACHE_KEY_ATTRIBUTE = "jmaanova.cachekey";
+    
+    private static final String ENTRY_FILE_SUFFIX = ".RData";
+    
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    
+    /**
+     * least recently used first
+     */
+    private static final Comparator<File> LEAST_RECENTLY_USED_ORDER =
+        new Comparator<File>()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public int compare(File file1, File file2)
+            {
+                long lastUsed1 = file1.lastModified();
+                long lastUsed2 = file2.lastModified();
+                return lastUsed1 < lastUsed2 ? -1 : (lastUsed1 == lastUsed2 ? 0 : 1);
+            }
+        };
+    
+    private static final AnalysisResultCache instance = new AnalysisResultCache(
+            MaanovaApplicationConfigurationManager.getInstance().getResultCacheDirectory());
+    
+    private final File directory;
+    
+    private volatile boolean enabled = true;
+    
+    private volatile long diskBudgetBytes = DEFAULT_DISK_BUDGET_BYTES;
+    
+    /**
+     * guards the members below and the cache directory
+     */
+    private final Object lock = new Object();
+    
+    /**
+     * Getter for the shared instance
+     * @return
+     *          the instance
+     */
+    public static AnalysisResultCache getInstance()
+    {
+        return AnalysisResultCache.instance;
+    }
+    
+    /**
+     * Constructor
+     * @param directory
+     *          the directory that cached results are saved in
+     */
+    private AnalysisResultCache(File directory)
+    {
+        this.directory = directory;
+    }
+    
+    /**
+     * Determine if results are being cached
+     * @return
+     *          true if the cache is enabled
+     */
+    public boolean isEnabled()
+    {
+        return this.enabled;
+    }
+    
+    /**
+     * Turn caching on or off. Turning caching off doesn't delete anything
+     * @param enabled
+     *          true to enable the cache
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * Getter for the most disk space that cached results can use
+     * @return
+     *          the disk budget in bytes
+     */
+    public long getDiskBudgetBytes()
+    {
+        return this.diskBudgetBytes;
+    }
+    
+    /**
+     * Setter for the most disk space that cached results can use. Least
+     * recently used results are deleted right away if the cache is over
+     * the new budget
+     * @param diskBudgetBytes
+     *          the disk budget in bytes
+     */
+    public void setDiskBudgetBytes(long diskBudgetBytes)
+    {
+        this.diskBudgetBytes = diskBudgetBytes;
+        synchronized(this.lock)
+        {
+            this.evictNoLock();
+        }
+    }
+    
+    /**
+     * Get the cache key for the given fit
+     * @param rInterface
+     *          the R interface that the experiment lives in
+     * @param fitCommand
+     *          the fit
+     * @return
+     *          the key or null if the fit can't be cached (because caching
+     *          is off or because there's no experiment or result name)
+     */
+    public String getFitKey(RInterface rInterface, FitMaanovaCommand fitCommand)
+    {
+        MicroarrayExperiment experiment = fitCommand.getMicroarrayExperiment();
+        String fitAssignee = fitCommand.getFitAssigneeIdentifier();
+        if(!this.enabled || experiment == null ||
+           fitAssignee == null || fitAssignee.trim().length() == 0)
+        {
+            return null;
+        }
+        
+        String contentHash = this.getContentHash(rInterface, experiment);
+        if(contentHash == null)
+        {
+            return null;
+        }
+        else
+        {
+            return toHexDigest(
+                    "fit\n" +
+                    fitCommand.getModelSpecification() + "\n" +
+                    contentHash);
+        }
+    }
+    
+    /**
+     * Get the cache key for the given test
+     * @param rInterface
+     *          the R interface that the experiment and fit live in
+     * @param experiment
+     *          the experiment being tested
+     * @param commandBuilder
+     *          the test
+     * @return
+     *          the key or null if the test can't be cached (because caching
+     *          is off, because there's no result name, because R/maanova
+     *          does the permutations or because the fit didn't come
+     *          through the cache)
+     */
+    public String getTestKey(
+            RInterface rInterface,
+            MicroarrayExperiment experiment,
+            TestModelCommandBuilder commandBuilder)
+    {
+        String fitResultParameter = commandBuilder.getFitResultParameter();
+        String testResultName = commandBuilder.getTestResultDataName();
+        if(!this.enabled || experiment == null || fitResultParameter == null ||
+           testResultName == null || testResultName.trim().length() == 0)
+        {
+            return null;
+        }
+        
+        if(commandBuilder.getPermutationCount() >= 2 &&
+           commandBuilder.getBackend() != TestExecutionBackend.JAVA_PERMUTATIONS)
+        {
+            return null;
+        }
+        
+        REXP fitKeyExpr = rInterface.evaluateCommand(new SilentRCommand(
+                "local({cacheKey <- attr(" + fitResultParameter + ", " +
+                RUtilities.javaStringToRString(CACHE_KEY_ATTRIBUTE) +
+                "); if(is.character(cacheKey)) cacheKey[1] else \"\"})"));
+        String fitKey = fitKeyExpr == null ? null : fitKeyExpr.asString();
+        if(fitKey == null || fitKey.length() == 0)
+        {
+            return null;
+        }
+        
+        String contentHash = this.getContentHash(rInterface, experiment);
+        if(contentHash == null)
+        {
+            return null;
+        }
+        else
+        {
+            return toHexDigest(
+                    "test\n" +
+                    commandBuilder.getTestSpecification() + "\n" +
+                    fitKey + "\n" +
+                    contentHash);
+        }
+    }
+    
+    /**
+     * Restore a cached result
+     * @param rInterface
+     *          the R interface to restore the result into
+     * @param key
+     *          the result's key
+     * @param identifier
+     *          the identifier to assign the result to
+     * @return
+     *          true if the result was in the cache and has been restored
+     */
+    public boolean restore(RInterface rInterface, String key, String identifier)
+    {
+        File entryFile = this.getEntryFile(key);
+        synchronized(this.lock)
+        {
+            if(!entryFile.isFile())
+            {
+                return false;
+            }
+            
+            // touch the file so that it's the most recently used
+            entryFile.setLastModified(System.currentTimeMillis());
+        }
+        
+        try
+        {
+            rInterface.insertComment(
+                    "the following result was restored from the J/maanova " +
+                    "result cache rather than being recalculated");
+            rInterface.evaluateCommandNoReturn(
+                    identifier + " <- local({cacheEnv <- new.env(); " +
+                    "get(load(" + toRFileString(entryFile) +
+                    ", envir=cacheEnv)[1], envir=cacheEnv)})");
+            return true;
+        }
+        catch(Exception ex)
+        {
+            LOG.log(Level.WARNING,
+                    "failed to restore cached result: " + identifier,
+                    ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Add a result to the cache. Failing to cache a result isn't fatal so
+     * errors are logged rather than thrown
+     * @param rInterface
+     *          the R interface that the result is in
+     * @param key
+     *          the result's key
+     * @param identifier
+     *          the result's identifier
+     */
+    public void store(RInterface rInterface, String key, String identifier)
+    {
+        File entryFile = this.getEntryFile(key);
+        File partialFile = new File(
+                this.directory,
+                entryFile.getName() + PARTIAL_FILE_SUFFIX);
+        try
+        {
+            synchronized(this.lock)
+            {
+                if(!this.directory.isDirectory() && !this.directory.mkdirs())
+                {
+                    LOG.warning(
+                            "failed to create result cache directory: " +
+                            this.directory.getAbsolutePath());
+                    return;
+                }
+            }
+            
+            // the tag goes along with the result so that results
+            // calculated from a restored result can be keyed too
+            rInterface.evaluateCommand(new SilentRCommand(
+                    "attr(" + identifier + ", " +
+                    RUtilities.javaStringToRString(CACHE_KEY_ATTRIBUTE) + ") <- " +
+                    RUtilities.javaStringToRString(key)));
+            rInterface.evaluateCommand(new SilentRCommand(
+                    "local({cachedResult <- " + identifier +
+                    "; save(cachedResult, file=" + toRFileString(partialFile) +
+                    ")})"));
+            
+            synchronized(this.lock)
+            {
+                if(entryFile.exists() && !entryFile.delete())
+                {
+                    LOG.warning(
+                            "failed to replace cached result: " +
+                            entryFile.getAbsolutePath());
+                }
+                else if(!partialFile.renameTo(entryFile))
+                {
+                    LOG.warning(
+                            "failed to rename cached result: " +
+                            partialFile.getAbsolutePath());
+                }
+                
+                this.evictNoLock();
+            }
+        }
+        catch(Exception ex)
+        {
+            LOG.log(Level.WARNING,
+                    "failed to cache result: " + identifier,
+                    ex);
+        }
+        finally
+        {
+            if(partialFile.exists() && !partialFile.delete())
+            {
+                LOG.warning(
+                        "failed to delete partial cache file: " +
+                        partialFile.getAbsolutePath());
+            }
+        }
+    }
+    
+    /**
+     * Delete least recently used results until we're within the disk
+     * budget
+     */
+    private void evictNoLock()
+    {
+        File[] entryFiles = this.directory.listFiles(new FileFilter()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public boolean accept(File file)
+            {
+                return file.isFile() && file.getName().endsWith(ENTRY_FILE_SUFFIX);
+            }
+        });
+        if(entryFiles == null)
+        {
+            return;
+        }
+        
+        long totalBytes = 0L;
+        for(File entryFile: entryFiles)
+        {
+            totalBytes += entryFile.length();
+        }
+        
+        long diskBudgetBytes = this.diskBudgetBytes;
+        if(totalBytes > diskBudgetBytes)
+        {
+            Arrays.sort(entryFiles, LEAST_RECENTLY_USED_ORDER);
+            for(int i = 0; i < entryFiles.length && totalBytes > diskBudgetBytes; i++)
+            {
+                long entryBytes = entryFiles[i].length();
+                if(entryFiles[i].delete())
+                {
+                    totalBytes -= entryBytes;
+                }
+                else
+                {
+                    LOG.warning(
+                            "failed to evict cached result: " +
+                            entryFiles[i].getAbsolutePath());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the hash of the experiment's contents. This is an MD5 digest of
+     * the serialized experiment object which is calculated in R so that
+     * none of the data needs to come over to Java
+     * @return
+     *          the hash or null if we can't calculate one
+     */
+    private String getContentHash(
+            RInterface rInterface,
+            MicroarrayExperiment experiment)
+    {
+        REXP digestExpr = rInterface.evaluateCommand(new SilentRCommand(
+                "local({" +
+                "serialFile <- tempfile(); " +
+                "on.exit(unlink(serialFile)); " +
+                "con <- file(serialFile, \"wb\"); " +
+                "serialize(" + experiment.getAccessorExpressionString() + ", con); " +
+                "close(con); " +
+                "digest <- unname(tools::md5sum(serialFile)); " +
+                "if(is.na(digest)) \"\" else digest" +
+                "})"));
+        String contentHash = digestExpr == null ? null : digestExpr.asString();
+        if(contentHash == null || contentHash.length() == 0)
+        {
+            LOG.warning(
+                    "can't hash " + experiment.getAccessorExpressionString() +
+                    " so results won't be cached");
+            return null;
+        }
+        
+        return contentHash;
+    }
+    
+    private File getEntryFile(String key)
+    {
+        return new File(this.directory, key + ENTRY_FILE_SUFFIX);
+    }
+    
+    private static String toHexDigest(String text)
+    {
+        try
+        {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return toHexString(md5.digest(text.getBytes("UTF-8")));
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            return Integer.toHexString(text.hashCode());
+        }
+        catch(UnsupportedEncodingException ex)
+        {
+            return Integer.toHexString(text.hashCode());
+        }
+    }
+    
+    private static String toHexString(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder();
+        for(byte currByte: bytes)
+        {
+            hex.append(Integer.toHexString((currByte & 0xFF) | 0x100).substring(1));
+        }
+        return hex.toString();
+    }
+    
+    private static String toRFileString(File file)
+    {
+        return RUtilities.javaStringToRString(
+                file.getAbsolutePath().replace('\\', '/'));
+    }
+}
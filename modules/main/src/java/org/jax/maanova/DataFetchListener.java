@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova;
+
+/**
+ * Listener for the results of a {@link DataFetchService} request. The
+ * listener functions are always called from the AWT thread and are never
+ * called for a request that has been cancelled or superseded.
+ * @param <T>   the type of data that was fetched
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public interface DataFetchListener<T>
+{
+    /**
+     * Called when the data is ready
+     * @param data
+     *          the data
+     */
+    public void dataFetched(T data);
+    
+    /**
+     * Called if fetching the data failed
+     * @param cause
+     *          the exception that was thrown by the fetch
+     */
+    public void dataFetchFailed(Exception cause);
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import org.jax.util.concurrent.SimpleLongRunningTask;
+
+/**
+ * A shared service that GUI panels use to pull data out of R without
+ * blocking the AWT thread. Fetches are run one at a time on a single
+ * background thread since calls into R are serialized anyway.
+ * <p>
+ * Every fetch is made on behalf of an owner (usually the panel asking)
+ * and is identified by a key:
+ * <ul>
+ * <li>a new fetch supersedes any earlier fetch from the same owner.
+ *     The earlier listener will never be called and if nothing else is
+ *     waiting on the earlier fetch it is dropped before it reaches R</li>
+ * <li>a fetch whose key equals the key of a fetch that is still queued
+ *     or running is coalesced with it so that R is only asked once.
+ *     Fetches with equal keys must produce the same type of data</li>
+ * </ul>
+ * Results are delivered to a {@link DataFetchListener} on the AWT
+ * thread. The service is also a long running task so the application's
+ * task progress panel shows when fetches are outstanding.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class DataFetchService extends SimpleLongRunningTask
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            DataFetchService.class.getName());
+    
+    private static final DataFetchService instance = new DataFetchService();
+    
+    private final ExecutorService executor =
+        Executors.newSingleThreadExecutor();
+    
+    /**
+     * guards all of the members below
+     */
+    private final Object lock = new Object();
+    
+    private final Map<Object, Fetch> queuedFetches =
+        new HashMap<Object, Fetch>();
+    
+    private final Map<Object, Delivery<?>> ownerDeliveries =
+        new HashMap<Object, Delivery<?>>();
+    
+    private int submittedFetchCount = 0;
+    
+    private int finishedFetchCount = 0;
+    
+    private boolean progressTracked = false;
+    
+    /**
+     * Getter for the shared instance
+     * @return
+     *          the instance
+     */
+    public static DataFetchService getInstance()
+    {
+        return DataFetchService.instance;
+    }
+    
+    /**
+     * Constructor
+     */
+    private DataFetchService()
+    {
+        this.setTotalWorkUnits(0);
+        this.setWorkUnitsCompleted(0);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTaskName()
+    {
+        return "Fetching Data From R";
+    }
+    
+    /**
+     * Fetch data in the background. This should be called from the AWT
+     * thread
+     * @param <T>
+     *          the type of data being fetched
+     * @param owner
+     *          the owner of this fetch. Any earlier fetch from the same
+     *          owner is cancelled
+     * @param key
+     *          identifies the data being fetched. Should implement equals
+     *          and hashCode
+     * @param fetcher
+     *          does the actual fetching. This is called from the
+     *          background thread
+     * @param listener
+     *          the listener that gets the result on the AWT thread
+     */
+    public <T> void fetch(
+            Object owner,
+            Object key,
+            Callable<? extends T> fetcher,
+            DataFetchListener<? super T> listener)
+    {
+        boolean trackProgress;
+        synchronized(this.lock)
+        {
+            this.cancelNoLock(owner);
+            
+            Fetch fetch = this.queuedFetches.get(key);
+            if(fetch == null)
+            {
+                fetch = new Fetch(key, fetcher);
+                this.queuedFetches.put(key, fetch);
+                this.fetchSubmittedNoLock();
+                this.executor.execute(fetch);
+            }
+            else
+            {
+                LOG.fine("coalescing fetch for: " + key);
+            }
+            
+            Delivery<T> delivery = new Delivery<T>(owner, listener);
+            fetch.deliveries.add(delivery);
+            this.ownerDeliveries.put(owner, delivery);
+            
+            trackProgress = !this.progressTracked;
+            this.progressTracked = true;
+        }
+        
+        if(trackProgress)
+        {
+            Maanova.getInstance().getApplicationFrame().getTaskProgressPanel().addTaskToTrack(
+                    this);
+        }
+    }
+    
+    /**
+     * Cancel the outstanding fetch for the given owner if there is one.
+     * Panels should call this when they go away
+     * @param owner
+     *          the owner
+     */
+    public void cancel(Object owner)
+    {
+        synchronized(this.lock)
+        {
+            this.cancelNoLock(owner);
+        }
+    }
+    
+    private void cancelNoLock(Object owner)
+    {
+        Delivery<?> delivery = this.ownerDeliveries.remove(owner);
+        if(delivery != null)
+        {
+            delivery.cancelled = true;
+        }
+    }
+    
+    private void fetchSubmittedNoLock()
+    {
+        // start counting from scratch each time that we go idle
+        if(this.submittedFetchCount == this.finishedFetchCount)
+        {
+            this.submittedFetchCount = 0;
+            this.finishedFetchCount = 0;
+        }
+        this.submittedFetchCount++;
+        this.setTotalWorkUnits(this.submittedFetchCount);
+        this.setWorkUnitsCompleted(this.finishedFetchCount);
+    }
+    
+    private void fetchFinishedNoLock(Fetch fetch)
+    {
+        if(this.queuedFetches.get(fetch.key) == fetch)
+        {
+            this.queuedFetches.remove(fetch.key);
+        }
+        this.finishedFetchCount++;
+        this.setWorkUnitsCompleted(this.finishedFetchCount);
+    }
+    
+    /**
+     * A single trip to R which may be shared by several deliveries
+     */
+    private class Fetch implements Runnable
+    {
+        private final Object key;
+        
+        private final Callable<?> fetcher;
+        
+        /**
+         * guarded by the service lock
+         */
+        private final List<Delivery<?>> deliveries = new ArrayList<Delivery<?>>();
+        
+        public Fetch(Object key, Callable<?> fetcher)
+        {
+            this.key = key;
+            this.fetcher = fetcher;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public void run()
+        {
+            synchronized(DataFetchService.this.lock)
+            {
+                if(!this.isWantedNoLock())
+                {
+                    LOG.fine("skipping superseded fetch for: " + this.key);
+                    DataFetchService.this.fetchFinishedNoLock(this);
+                    return;
+                }
+            }
+            
+            Object data = null;
+            Exception failure = null;
+            try
+            {
+                data = this.fetcher.call();
+            }
+            catch(Exception ex)
+            {
+                failure = ex;
+            }
+            
+            List<Delivery<?>> finishedDeliveries;
+            synchronized(DataFetchService.this.lock)
+            {
+                DataFetchService.this.fetchFinishedNoLock(this);
+                finishedDeliveries = new ArrayList<Delivery<?>>(this.deliveries);
+            }
+            
+            for(Delivery<?> delivery: finishedDeliveries)
+            {
+                delivery.deliverLater(data, failure);
+            }
+        }
+        
+        private boolean isWantedNoLock()
+        {
+            for(Delivery<?> delivery: this.deliveries)
+            {
+                if(!delivery.cancelled)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Gets the result of a fetch to one listener
+     */
+    private class Delivery<T>
+    {
+        private final Object owner;
+        
+        private final DataFetchListener<? super T> listener;
+        
+        /**
+         * guarded by the service lock
+         */
+        private boolean cancelled = false;
+        
+        public Delivery(Object owner, DataFetchListener<? super T> listener)
+        {
+            this.owner = owner;
+            this.listener = listener;
+        }
+        
+        /**
+         * Hand the result to our listener on the AWT thread
+         * @param data
+         *          the fetched data
+         * @param failure
+         *          the failure or null if the fetch worked
+         */
+        public void deliverLater(final Object data, final Exception failure)
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public void run()
+                {
+                    Delivery.this.deliver(data, failure);
+                }
+            });
+        }
+        
+        @SuppressWarnings("unchecked")
+        private void deliver(Object data, Exception failure)
+        {
+            synchronized(DataFetchService.this.lock)
+            {
+                // the owner may have moved on while we were waiting for
+                // the AWT thread
+                if(this.cancelled)
+                {
+                    return;
+                }
+                DataFetchService.this.ownerDeliveries.remove(this.owner);
+            }
+            
+            if(failure == null)
+            {
+                this.listener.dataFetched((T)data);
+            }
+            else
+            {
+                this.listener.dataFetchFailed(failure);
+            }
+        }
+    }
+}
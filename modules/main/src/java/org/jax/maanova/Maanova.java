@@ -100,9 +100,7 @@ public class Maanova
     private Maanova()
     {
         RInterface rInterface = RInterfaceFactory.getRInterfaceInstance();
-        this.dependencies = new RPackageDependency[] {
-                new BioconductorPackageDependency(rInterface, "maanova", "1.16.0"),
-                new BioconductorPackageDependency(rInterface, "affy", "1.22.0")};
+        this.dependencies = Maanova.createPackageDependencies(rInterface);
         
         this.initializeHelp();
         this.desktop = new Desktop();
@@ -159,6 +157,21 @@ public class Maanova
         ToolTipManager.sharedInstance().setDismissDelay(Integer.MAX_VALUE);
     }
     
+    /**
+     * Create the R package dependencies that J/maanova needs
+     * @param rInterface
+     *          the R interface that the packages are loaded into
+     * @return
+     *          the dependencies
+     */
+    public static RPackageDependency[] createPackageDependencies(
+            RInterface rInterface)
+    {
+        return new RPackageDependency[] {
+                new BioconductorPackageDependency(rInterface, "maanova", "1.16.0"),
+                new BioconductorPackageDependency(rInterface, "affy", "1.22.0")};
+    }
+    
     private void initializeHelp()
     {
         try
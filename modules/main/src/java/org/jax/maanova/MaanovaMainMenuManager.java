@@ -39,6 +39,7 @@ import org.jax.maanova.configuration.MaanovaApplicationConfigurationManager;
 import org.jax.maanova.fit.FitMaanovaResult;
 import org.jax.maanova.fit.gui.FitMaanovaAction;
 import org.jax.maanova.fit.gui.ResidualPlotAction;
+import org.jax.maanova.job.gui.ShowAnalysisJobsAction;
 import org.jax.maanova.madata.MicroarrayExperiment;
 import org.jax.maanova.madata.gui.ArrayScatterPlotAction;
 import org.jax.maanova.madata.gui.ExportDataAction;
@@ -262,6 +263,9 @@ public class MaanovaMainMenuManager
         analysisMenu.add(this.maanovaTestAction);
         analysisMenu.add(this.testsToShowMenu);
         analysisMenu.add(this.testsToPlotMenu);
+        analysisMenu.addSeparator();
+        
+        analysisMenu.add(new ShowAnalysisJobsAction());
         
         this.menuBar.add(analysisMenu);
         
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jax.r.RCommand;
+
+/**
+ * Describes a long running R command that can be evaluated by an
+ * {@link RWorkerPool} worker process instead of the interactive R session.
+ * The job names the objects that the command reads from the interactive
+ * session and the single object that it assigns, which is all that gets
+ * shipped between the two.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class RWorkerJob
+{
+    private final RCommand command;
+    
+    private final String[] requiredPackages;
+    
+    private final String[] inputIdentifiers;
+    
+    private final String resultIdentifier;
+    
+    private final ConcurrentLinkedQueue<RWorkerOutputListener> outputListeners =
+        new ConcurrentLinkedQueue<RWorkerOutputListener>();
+    
+    /**
+     * Constructor
+     * @param command
+     *          the command that the worker evaluates. This should assign
+     *          its result to resultIdentifier
+     * @param requiredPackages
+     *          the R packages that the worker must load before evaluating
+     *          the command
+     * @param inputIdentifiers
+     *          the identifiers of the interactive session objects that the
+     *          command reads. These are copied into the worker
+     * @param resultIdentifier
+     *          the identifier that the command assigns. This object is
+     *          copied back into the interactive session
+     */
+    public RWorkerJob(
+            RCommand command,
+            String[] requiredPackages,
+            String[] inputIdentifiers,
+            String resultIdentifier)
+    {
+        this.command = command;
+        this.requiredPackages = requiredPackages;
+        this.inputIdentifiers = inputIdentifiers;
+        this.resultIdentifier = resultIdentifier;
+    }
+    
+    /**
+     * Getter for the command that the worker evaluates
+     * @return the command
+     */
+    public RCommand getCommand()
+    {
+        return this.command;
+    }
+    
+    /**
+     * Getter for the R packages that the worker must load
+     * @return the required packages
+     */
+    public String[] getRequiredPackages()
+    {
+        return this.requiredPackages;
+    }
+    
+    /**
+     * Getter for the identifiers of the objects that are copied into the
+     * worker
+     * @return the input identifiers
+     */
+    public String[] getInputIdentifiers()
+    {
+        return this.inputIdentifiers;
+    }
+    
+    /**
+     * Getter for the identifier of the object that is copied back into
+     * the interactive session
+     * @return the result identifier
+     */
+    public String getResultIdentifier()
+    {
+        return this.resultIdentifier;
+    }
+    
+    /**
+     * Add a listener that is notified of the worker's console output
+     * @param outputListener
+     *          the listener to add
+     */
+    public void addOutputListener(RWorkerOutputListener outputListener)
+    {
+        this.outputListeners.add(outputListener);
+    }
+    
+    /**
+     * Remove the given output listener
+     * @param outputListener
+     *          the listener to remove
+     */
+    public void removeOutputListener(RWorkerOutputListener outputListener)
+    {
+        this.outputListeners.remove(outputListener);
+    }
+    
+    /**
+     * Notify the output listeners of a line of worker output
+     * @param line
+     *          the line
+     */
+    void fireOutputLineRead(String line)
+    {
+        Iterator<RWorkerOutputListener> listenerIter =
+            this.outputListeners.iterator();
+        while(listenerIter.hasNext())
+        {
+            listenerIter.next().outputLineRead(this, line);
+        }
+    }
+    
+    /**
+     * Get the identifier of the top level object that the given accessor
+     * expression reads from. This is what needs to be shipped to a worker
+     * for the expression to work there
+     * @param accessorExpression
+     *          the accessor expression (eg: "mydata" or "mydata$data")
+     * @return
+     *          the top level identifier
+     */
+    public static String getRootIdentifier(String accessorExpression)
+    {
+        String expression = accessorExpression.trim();
+        for(int i = 0; i < expression.length(); i++)
+        {
+            char currChar = expression.charAt(i);
+            if(currChar == '$' || currChar == '[' || currChar == '@')
+            {
+                return expression.substring(0, i);
+            }
+        }
+        
+        return expression;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return this.resultIdentifier;
+    }
+}
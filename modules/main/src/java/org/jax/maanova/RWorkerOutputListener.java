@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova;
+
+import java.util.EventListener;
+
+/**
+ * Interface that should be implemented by classes that want to see the
+ * console output of an {@link RWorkerJob} as the worker process prints it.
+ * Listener functions are called from the pool's worker threads.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public interface RWorkerOutputListener extends EventListener
+{
+    /**
+     * Called for every line that the worker prints
+     * @param job
+     *          the job that the worker is running
+     * @param line
+     *          the line of output
+     */
+    public void outputLineRead(RWorkerJob job, String line);
+}
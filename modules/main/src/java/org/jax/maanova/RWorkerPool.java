@@ -0,0 +1,568 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova;
+
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.r.RUtilities;
+import org.jax.r.jriutilities.RInterface;
+import org.jax.r.jriutilities.RInterfaceFactory;
+import org.jax.r.jriutilities.SilentRCommand;
+import org.jax.util.concurrent.SimpleLongRunningTask;
+
+/**
+ * A pool of local R worker processes that run long jobs (fits, tests,
+ * RMA) alongside the interactive R session so that the interactive session
+ * stays free for plots and table lookups and so that several jobs can run
+ * at once. For each job:
+ * <ol>
+ * <li>the job's input objects are saved out of the interactive session</li>
+ * <li>a fresh Rscript process loads the inputs, evaluates the job's
+ *     command in the interactive session's working directory and saves
+ *     the result</li>
+ * <li>the result is loaded back into the interactive session</li>
+ * </ol>
+ * Only the save and load steps go through the interactive session. A new
+ * process is started for every job so that nothing leaks from one job to
+ * the next, which also means that a job can be
+ * {@link #cancel(RWorkerJob) canceled} by killing its process. The pool is also a long running task so the application's
+ * task progress panel shows when jobs are outstanding.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class RWorkerPool extends SimpleLongRunningTask
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            RWorkerPool.class.getName());
+    
+    /**
+     * every worker holds its own copy of the experiment data so we put a
+     * ceiling on how many run at once
+     */
+    private static final int MAX_WORKER_COUNT = 16;
+    
+    /**
+     * how many lines of worker output we hold on to for error messages
+     */
+    private static final int ERROR_OUTPUT_LINE_COUNT = 10;
+    
+    private static final RWorkerPool instance = new RWorkerPool();
+    
+    private final File rscriptExecutable;
+    
+    private final int workerCount;
+    
+    private final ExecutorService executor;
+    
+    /**
+     * guards all of the members below
+     */
+    private final Object lock = new Object();
+    
+    private int submittedJobCount = 0;
+    
+    private int finishedJobCount = 0;
+    
+    private boolean progressTracked = false;
+    
+    /**
+     * jobs that are queued or running
+     */
+    private final Set<RWorkerJob> activeJobs = new HashSet<RWorkerJob>();
+    
+    private final Set<RWorkerJob> canceledJobs = new HashSet<RWorkerJob>();
+    
+    private final Map<RWorkerJob, Process> runningProcesses =
+        new HashMap<RWorkerJob, Process>();
+    
+    /**
+     * Getter for the shared instance
+     * @return
+     *          the instance
+     */
+    public static RWorkerPool getInstance()
+    {
+        return RWorkerPool.instance;
+    }
+    
+    /**
+     * Constructor
+     */
+    private RWorkerPool()
+    {
+        this.rscriptExecutable = findRscriptExecutable();
+        this.workerCount = Math.min(
+                MAX_WORKER_COUNT,
+                Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        this.executor = Executors.newFixedThreadPool(this.workerCount);
+        this.setTotalWorkUnits(0);
+        this.setWorkUnitsCompleted(0);
+        
+        if(this.rscriptExecutable == null)
+        {
+            LOG.info("could not find Rscript. R worker processes are disabled");
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTaskName()
+    {
+        return "Running R Worker Processes";
+    }
+    
+    /**
+     * Determine if worker processes can be used. They can't if we aren't
+     * able to find an Rscript executable
+     * @return
+     *          true if jobs can be submitted
+     */
+    public boolean isAvailable()
+    {
+        return this.rscriptExecutable != null;
+    }
+    
+    /**
+     * Getter for the number of jobs that can run at once
+     * @return
+     *          the worker count
+     */
+    public int getWorkerCount()
+    {
+        return this.workerCount;
+    }
+    
+    /**
+     * Submit a job to the pool
+     * @param job
+     *          the job
+     * @return
+     *          the future for the job. When the future is done the job's
+     *          result is in the interactive session
+     * @throws IllegalStateException
+     *          if the pool isn't {@link #isAvailable() available}
+     */
+    public Future<Void> submit(final RWorkerJob job) throws IllegalStateException
+    {
+        if(!this.isAvailable())
+        {
+            throw new IllegalStateException(
+                    "R worker processes are not available");
+        }
+        
+        boolean trackProgress;
+        Future<Void> future;
+        synchronized(this.lock)
+        {
+            this.jobSubmittedNoLock();
+            this.activeJobs.add(job);
+            future = this.executor.submit(new Callable<Void>()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public Void call() throws Exception
+                {
+                    try
+                    {
+                        RWorkerPool.this.runJob(job);
+                        return null;
+                    }
+                    finally
+                    {
+                        synchronized(RWorkerPool.this.lock)
+                        {
+                            RWorkerPool.this.activeJobs.remove(job);
+                            RWorkerPool.this.canceledJobs.remove(job);
+                            RWorkerPool.this.jobFinishedNoLock();
+                        }
+                    }
+                }
+            });
+            
+            trackProgress = !this.progressTracked;
+            this.progressTracked = true;
+        }
+        
+        // there's no application frame to show progress in when we're
+        // running headless
+        if(trackProgress && !GraphicsEnvironment.isHeadless())
+        {
+            Maanova.getInstance().getApplicationFrame().getTaskProgressPanel().addTaskToTrack(
+                    this);
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Cancel a job that was {@link #submit(RWorkerJob) submitted}. If the
+     * job's worker process is already running it is killed, otherwise the
+     * job is dropped when its turn comes. Either way the job's future
+     * fails with a {@link CancellationException} and nothing is loaded
+     * into the interactive session. Canceling a job that has already
+     * finished does nothing
+     * @param job
+     *          the job to cancel
+     */
+    public void cancel(RWorkerJob job)
+    {
+        Process process;
+        synchronized(this.lock)
+        {
+            if(!this.activeJobs.contains(job))
+            {
+                return;
+            }
+            this.canceledJobs.add(job);
+            process = this.runningProcesses.get(job);
+        }
+        
+        if(process != null)
+        {
+            process.destroy();
+        }
+    }
+    
+    /**
+     * Run the given job in a worker and wait for its result to land in
+     * the interactive session
+     * @param job
+     *          the job
+     * @throws IOException
+     *          if the job fails
+     * @throws InterruptedException
+     *          if we're interrupted while waiting
+     */
+    public void evaluate(RWorkerJob job) throws IOException, InterruptedException
+    {
+        waitForJob(this.submit(job));
+    }
+    
+    /**
+     * Wait for a job that was {@link #submit(RWorkerJob) submitted}
+     * @param future
+     *          the job's future
+     * @throws IOException
+     *          if the job fails
+     * @throws InterruptedException
+     *          if we're interrupted while waiting
+     * @throws CancellationException
+     *          if the job is {@link #cancel(RWorkerJob) canceled}
+     */
+    public static void waitForJob(Future<Void> future)
+    throws IOException, InterruptedException, CancellationException
+    {
+        try
+        {
+            future.get();
+        }
+        catch(ExecutionException ex)
+        {
+            if(ex.getCause() instanceof IOException)
+            {
+                throw (IOException)ex.getCause();
+            }
+            else if(ex.getCause() instanceof CancellationException)
+            {
+                throw (CancellationException)ex.getCause();
+            }
+            
+            LOG.log(Level.SEVERE,
+                    "R worker job failed",
+                    ex.getCause());
+            throw new IOException("R worker job failed: " + ex.getCause().getMessage());
+        }
+    }
+    
+    private void jobSubmittedNoLock()
+    {
+        // start counting from scratch each time that we go idle
+        if(this.submittedJobCount == this.finishedJobCount)
+        {
+            this.submittedJobCount = 0;
+            this.finishedJobCount = 0;
+        }
+        this.submittedJobCount++;
+        this.setTotalWorkUnits(this.submittedJobCount);
+        this.setWorkUnitsCompleted(this.finishedJobCount);
+    }
+    
+    private void jobFinishedNoLock()
+    {
+        this.finishedJobCount++;
+        this.setWorkUnitsCompleted(this.finishedJobCount);
+    }
+    
+    /**
+     * Ship the job to a new worker process and bring its result back
+     */
+    private void runJob(RWorkerJob job) throws IOException, InterruptedException
+    {
+        this.checkCanceled(job);
+        RInterface rInterface = RInterfaceFactory.getRInterfaceInstance();
+        
+        File workDirectory = File.createTempFile("rworker", "");
+        if(!workDirectory.delete() || !workDirectory.mkdir())
+        {
+            throw new IOException(
+                    "failed to create temporary directory: " +
+                    workDirectory.getAbsolutePath());
+        }
+        
+        try
+        {
+            File inputFile = new File(workDirectory, "input.RData");
+            File outputFile = new File(workDirectory, "output.RData");
+            File scriptFile = new File(workDirectory, "job.R");
+            
+            String[] inputIdentifiers = job.getInputIdentifiers();
+            if(inputIdentifiers.length > 0)
+            {
+                rInterface.evaluateCommand(new SilentRCommand(
+                        "save(list=" +
+                        RUtilities.stringArrayToRVector(inputIdentifiers) +
+                        ", file=" + toRFileString(inputFile) + ")"));
+            }
+            String workingDirectory = rInterface.evaluateCommand(
+                    new SilentRCommand("getwd()")).asString();
+            
+            // the worker has to find packages in the same libraries as the
+            // interactive session even if they were added at run time
+            String[] libraryPaths = rInterface.evaluateCommand(
+                    new SilentRCommand(".libPaths()")).asStringArray();
+            
+            PrintWriter script = new PrintWriter(new FileWriter(scriptFile));
+            try
+            {
+                script.println(".libPaths(" +
+                        RUtilities.stringArrayToRVector(libraryPaths) + ")");
+                for(String requiredPackage: job.getRequiredPackages())
+                {
+                    script.println("library(" + requiredPackage + ")");
+                }
+                script.println("setwd(" +
+                        RUtilities.javaStringToRString(workingDirectory) + ")");
+                if(inputIdentifiers.length > 0)
+                {
+                    script.println("load(" + toRFileString(inputFile) + ")");
+                }
+                script.println(job.getCommand().getCommandText());
+                script.println("save(list=" +
+                        RUtilities.javaStringToRString(job.getResultIdentifier()) +
+                        ", file=" + toRFileString(outputFile) + ")");
+            }
+            finally
+            {
+                script.close();
+            }
+            
+            this.runWorkerProcess(job, scriptFile);
+            this.checkCanceled(job);
+            
+            rInterface.insertComment(
+                    "the following result was calculated by a J/maanova " +
+                    "R worker process using the command:");
+            rInterface.insertComment(job.getCommand().getCommandText());
+            rInterface.evaluateCommandNoReturn(
+                    "load(" + toRFileString(outputFile) + ", envir=.GlobalEnv)");
+        }
+        finally
+        {
+            for(File file: workDirectory.listFiles())
+            {
+                deleteTempFile(file);
+            }
+            deleteTempFile(workDirectory);
+        }
+    }
+    
+    /**
+     * Run Rscript on the given script and wait for it to exit. We don't
+     * use --vanilla because the worker should see the same environment
+     * and profile settings as the interactive session
+     */
+    private void runWorkerProcess(RWorkerJob job, File scriptFile)
+    throws IOException, InterruptedException
+    {
+        ProcessBuilder processBuilder = new ProcessBuilder(
+                this.rscriptExecutable.getAbsolutePath(),
+                "--no-save",
+                "--no-restore",
+                scriptFile.getAbsolutePath());
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        boolean canceled;
+        synchronized(this.lock)
+        {
+            canceled = this.canceledJobs.contains(job);
+            this.runningProcesses.put(job, process);
+        }
+        
+        try
+        {
+            if(canceled)
+            {
+                process.destroy();
+            }
+            
+            // we have to drain the output or the worker can block on a
+            // full pipe. we only keep the tail for error reporting
+            LinkedList<String> lastLines = new LinkedList<String>();
+            BufferedReader output = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()));
+            try
+            {
+                String line;
+                while((line = output.readLine()) != null)
+                {
+                    if(LOG.isLoggable(Level.FINE))
+                    {
+                        LOG.fine(job + ": " + line);
+                    }
+                    job.fireOutputLineRead(line);
+                    
+                    lastLines.add(line);
+                    if(lastLines.size() > ERROR_OUTPUT_LINE_COUNT)
+                    {
+                        lastLines.removeFirst();
+                    }
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+            
+            int exitValue = process.waitFor();
+            this.checkCanceled(job);
+            if(exitValue != 0)
+            {
+                StringBuilder message = new StringBuilder(
+                        "R worker process failed while calculating " + job +
+                        " (exit value " + exitValue + ")");
+                for(String lastLine: lastLines)
+                {
+                    message.append('\n');
+                    message.append(lastLine);
+                }
+                throw new IOException(message.toString());
+            }
+        }
+        finally
+        {
+            synchronized(this.lock)
+            {
+                this.runningProcesses.remove(job);
+            }
+            process.destroy();
+        }
+    }
+    
+    /**
+     * Bail out if the given job has been canceled
+     */
+    private void checkCanceled(RWorkerJob job) throws CancellationException
+    {
+        synchronized(this.lock)
+        {
+            if(this.canceledJobs.contains(job))
+            {
+                throw new CancellationException(
+                        "R worker job canceled: " + job);
+            }
+        }
+    }
+    
+    /**
+     * Look for Rscript under R_HOME (which has to be set for JRI anyway)
+     * and then on the PATH
+     * @return
+     *          the executable or null if we can't find one
+     */
+    private static File findRscriptExecutable()
+    {
+        boolean isWindows =
+            System.getProperty("os.name").toLowerCase().startsWith("windows");
+        String executableName = isWindows ? "Rscript.exe" : "Rscript";
+        
+        String rHome = System.getenv("R_HOME");
+        if(rHome != null)
+        {
+            File executable = new File(new File(rHome, "bin"), executableName);
+            if(executable.isFile())
+            {
+                return executable;
+            }
+        }
+        
+        String path = System.getenv("PATH");
+        if(path != null)
+        {
+            for(String directory: path.split(File.pathSeparator))
+            {
+                File executable = new File(directory, executableName);
+                if(executable.isFile())
+                {
+                    return executable;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    private static String toRFileString(File file)
+    {
+        return RUtilities.javaStringToRString(
+                file.getAbsolutePath().replace('\\', '/'));
+    }
+    
+    private static void deleteTempFile(File file)
+    {
+        if(!file.delete())
+        {
+            LOG.warning(
+                    "failed to delete temporary R worker file: " +
+                    file.getAbsolutePath());
+        }
+    }
+}
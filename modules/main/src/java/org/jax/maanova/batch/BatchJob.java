@@ -0,0 +1,772 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.batch;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.jax.maanova.RWorkerPool;
+import org.jax.maanova.fit.FitExecutionBackend;
+import org.jax.maanova.fit.FitMaanovaCommand;
+import org.jax.maanova.fit.InteractivePredictor;
+import org.jax.maanova.fit.MixedModelSolutionMethod;
+import org.jax.maanova.madata.ArrayType;
+import org.jax.maanova.madata.ReadMicroarrayDataCommandBuilder;
+import org.jax.maanova.madata.ReplicateSummaryMethod;
+import org.jax.maanova.test.TestExecutionBackend;
+import org.jax.maanova.test.TestModelCommandBuilder;
+import org.jax.maanova.test.TestType;
+import org.jax.maanova.test.TestModelCommandBuilder.FStatisticToCalculate;
+import org.jax.maanova.test.TestModelCommandBuilder.ShuffleMethod;
+import org.jax.r.RSyntaxException;
+import org.jax.r.RUtilities;
+
+/**
+ * A declarative description of a read &rarr; fit &rarr; test &rarr; export
+ * pipeline that is read from a job file in {@link Properties} format. The
+ * job file settings are turned into the same command builders that the
+ * wizards use. Relative file names are taken to be relative to the
+ * directory that the job file is in. A job file looks like:
+ * <pre>
+ * experiment.name = kidney
+ * read.dataFile = kidney.txt
+ * read.designFile = kidneydesign.txt
+ * read.arrayType = TWO_COLOR
+ * read.intensityColumn = 5
+ * export.data = kidney-data.csv
+ * export.workspace = kidney.RData
+ *
+ * fits = full
+ * fit.full.formula = Array + Dye + Spot + Sample
+ * fit.full.random = Array, Spot
+ *
+ * tests = sample
+ * test.sample.fit = full
+ * test.sample.type = F_TEST
+ * test.sample.terms = Sample
+ * test.sample.contrast = 1 -1 0; 0 1 -1
+ * test.sample.permutations = 1000
+ * test.sample.export = sample-test.csv
+ * </pre>
+ * The other read settings are {@code header}, {@code spotFlag},
+ * {@code replicates}, {@code replicateSummary}, {@code log2},
+ * {@code matchDataToDesign}, {@code probeIdColumn}, {@code metarowColumn},
+ * {@code metacolumnColumn}, {@code rowColumn} and {@code columnColumn}.
+ * Fits can also set {@code covariate}, {@code method},
+ * {@code subtractColumnMeans} and {@code backend}. Tests can also set
+ * {@code levels}, {@code method}, {@code fStatistic}, {@code shuffle},
+ * {@code critical}, {@code poolPValues}, {@code seed} and {@code backend}.
+ * Enumerated settings take the Java enum constant names.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BatchJob
+{
+    private static final String LIST_SEPARATOR_REGEX = ",";
+    
+    private static final String FORMULA_TERM_SEPARATOR_REGEX = "[+,]";
+    
+    private static final String INTERACTION_SEPARATOR_REGEX = ":";
+    
+    private static final String MATRIX_ROW_SEPARATOR_REGEX = ";";
+    
+    private static final String MATRIX_COLUMN_SEPARATOR_REGEX = "[\\s,]+";
+    
+    private final File jobFile;
+    
+    private final Properties properties;
+    
+    private final String experimentIdentifier;
+    
+    private final ReadMicroarrayDataCommandBuilder readCommandBuilder;
+    
+    private final File dataExportFile;
+    
+    private final File workspaceExportFile;
+    
+    private final List<FitStage> fitStages;
+    
+    private final List<TestStage> testStages;
+    
+    /**
+     * A fit in the pipeline
+     */
+    public static class FitStage
+    {
+        private final String name;
+        
+        private final FitMaanovaCommand fitCommand;
+        
+        private FitStage(String name, FitMaanovaCommand fitCommand)
+        {
+            this.name = name;
+            this.fitCommand = fitCommand;
+        }
+        
+        /**
+         * Getter for the name that the job file uses for this fit
+         * @return the name
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+        
+        /**
+         * Getter for the fit command. The microarray experiment has to be
+         * set on the command before it is used
+         * @return the fit command
+         */
+        public FitMaanovaCommand getFitCommand()
+        {
+            return this.fitCommand;
+        }
+    }
+    
+    /**
+     * A test in the pipeline
+     */
+    public static class TestStage
+    {
+        private final String name;
+        
+        private final FitStage fitStage;
+        
+        private final TestModelCommandBuilder commandBuilder;
+        
+        private final File exportFile;
+        
+        private TestStage(
+                String name,
+                FitStage fitStage,
+                TestModelCommandBuilder commandBuilder,
+                File exportFile)
+        {
+            this.name = name;
+            this.fitStage = fitStage;
+            this.commandBuilder = commandBuilder;
+            this.exportFile = exportFile;
+        }
+        
+        /**
+         * Getter for the name that the job file uses for this test
+         * @return the name
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+        
+        /**
+         * Getter for the fit that this test is run against
+         * @return the fit stage
+         */
+        public FitStage getFitStage()
+        {
+            return this.fitStage;
+        }
+        
+        /**
+         * Getter for the test command builder
+         * @return the command builder
+         */
+        public TestModelCommandBuilder getCommandBuilder()
+        {
+            return this.commandBuilder;
+        }
+        
+        /**
+         * Getter for the CSV file that the test results are exported to
+         * @return the export file or null if the results aren't exported
+         */
+        public File getExportFile()
+        {
+            return this.exportFile;
+        }
+    }
+    
+    /**
+     * Constructor
+     * @param jobFile
+     *          the job file to read
+     * @throws IOException
+     *          if the job file can't be read or has a bad setting in it
+     */
+    public BatchJob(File jobFile) throws IOException
+    {
+        this.jobFile = jobFile;
+        this.properties = new Properties();
+        InputStream in = new BufferedInputStream(new FileInputStream(jobFile));
+        try
+        {
+            this.properties.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        this.experimentIdentifier = this.toRIdentifier(
+                "experiment.name",
+                this.getRequiredValue("experiment.name"));
+        this.readCommandBuilder = this.createReadCommandBuilder();
+        this.dataExportFile = this.getFile("export.data");
+        this.workspaceExportFile = this.getFile("export.workspace");
+        
+        Map<String, FitStage> fitStageMap = new HashMap<String, FitStage>();
+        List<FitStage> fitStages = new ArrayList<FitStage>();
+        for(String fitName: this.getList("fits"))
+        {
+            FitStage fitStage = new FitStage(fitName, this.createFitCommand(fitName));
+            fitStageMap.put(fitName, fitStage);
+            fitStages.add(fitStage);
+        }
+        this.fitStages = Collections.unmodifiableList(fitStages);
+        
+        List<TestStage> testStages = new ArrayList<TestStage>();
+        for(String testName: this.getList("tests"))
+        {
+            String prefix = "test." + testName + ".";
+            String fitName = this.getRequiredValue(prefix + "fit");
+            FitStage fitStage = fitStageMap.get(fitName);
+            if(fitStage == null)
+            {
+                throw this.badValue(prefix + "fit", "no fit is named " + fitName);
+            }
+            
+            testStages.add(new TestStage(
+                    testName,
+                    fitStage,
+                    this.createTestCommandBuilder(testName, fitStage),
+                    this.getFile(prefix + "export")));
+        }
+        this.testStages = Collections.unmodifiableList(testStages);
+    }
+    
+    /**
+     * Getter for the job file
+     * @return the job file
+     */
+    public File getJobFile()
+    {
+        return this.jobFile;
+    }
+    
+    /**
+     * Getter for the R identifier that the experiment is read into
+     * @return the experiment identifier
+     */
+    public String getExperimentIdentifier()
+    {
+        return this.experimentIdentifier;
+    }
+    
+    /**
+     * Getter for the read.madata command builder
+     * @return the command builder
+     */
+    public ReadMicroarrayDataCommandBuilder getReadCommandBuilder()
+    {
+        return this.readCommandBuilder;
+    }
+    
+    /**
+     * Getter for the CSV file that the experiment data is exported to
+     * @return the file or null if the data isn't exported
+     */
+    public File getDataExportFile()
+    {
+        return this.dataExportFile;
+    }
+    
+    /**
+     * Getter for the file that the R objects that the pipeline creates
+     * are saved to
+     * @return the file or null if the objects aren't saved
+     */
+    public File getWorkspaceExportFile()
+    {
+        return this.workspaceExportFile;
+    }
+    
+    /**
+     * Getter for the fits in the order that the job file lists them
+     * @return the fits
+     */
+    public List<FitStage> getFitStages()
+    {
+        return this.fitStages;
+    }
+    
+    /**
+     * Getter for the tests in the order that the job file lists them
+     * @return the tests
+     */
+    public List<TestStage> getTestStages()
+    {
+        return this.testStages;
+    }
+    
+    private ReadMicroarrayDataCommandBuilder createReadCommandBuilder()
+    throws IOException
+    {
+        ReadMicroarrayDataCommandBuilder builder =
+            new ReadMicroarrayDataCommandBuilder();
+        builder.setMicroarrayDataName(this.experimentIdentifier);
+        builder.setDataFileName(
+                this.getRequiredFile("read.dataFile").getAbsolutePath());
+        builder.setDesignFileName(
+                this.getRequiredFile("read.designFile").getAbsolutePath());
+        builder.setArrayType(this.getEnum(
+                "read.arrayType",
+                ArrayType.class,
+                builder.getArrayType()));
+        builder.setFilesIncludeHeader(this.getBoolean(
+                "read.header",
+                builder.getFilesIncludeHeader()));
+        builder.setFilesIncludeSpotFlag(this.getBoolean(
+                "read.spotFlag",
+                builder.getFilesIncludeSpotFlag()));
+        builder.setNumberOfReplicates(this.getInt(
+                "read.replicates",
+                builder.getNumberOfReplicates()));
+        builder.setReplicateSummaryMethod(this.getEnum(
+                "read.replicateSummary",
+                ReplicateSummaryMethod.class,
+                builder.getReplicateSummaryMethod()));
+        builder.setLogTwoTransformData(this.getBoolean(
+                "read.log2",
+                builder.getLogTwoTransformData()));
+        builder.setMatchDataToDesign(this.getBoolean(
+                "read.matchDataToDesign",
+                builder.getMatchDataToDesign()));
+        builder.setIntensityColumn(this.getInt(
+                "read.intensityColumn",
+                builder.getIntensityColumn()));
+        
+        // leaving out the probe ID or metarow/metacolumn settings means
+        // that the data doesn't have those columns
+        builder.setProbeIdColumnValid(
+                this.getValue("read.probeIdColumn") != null);
+        builder.setProbeIdColumn(this.getInt(
+                "read.probeIdColumn",
+                builder.getProbeIdColumn()));
+        builder.setMetarowAndMetacolumnValid(
+                this.getValue("read.metarowColumn") != null);
+        builder.setMetarowColumn(this.getInt(
+                "read.metarowColumn",
+                builder.getMetarowColumn()));
+        builder.setMetacolumnColumn(this.getInt(
+                "read.metacolumnColumn",
+                builder.getMetacolumnColumn()));
+        builder.setRowColumn(this.getInt(
+                "read.rowColumn",
+                builder.getRowColumn()));
+        builder.setColumnColumn(this.getInt(
+                "read.columnColumn",
+                builder.getColumnColumn()));
+        
+        return builder;
+    }
+    
+    private FitMaanovaCommand createFitCommand(String fitName) throws IOException
+    {
+        String prefix = "fit." + fitName + ".";
+        FitMaanovaCommand fitCommand = new FitMaanovaCommand();
+        
+        // same naming as the fit wizard uses
+        fitCommand.setFitAssigneeIdentifier(
+                this.experimentIdentifier + "." +
+                this.toRIdentifier("fits", fitName));
+        
+        InteractivePredictor[] formula = this.getPredictors(prefix + "formula");
+        if(formula.length == 0)
+        {
+            throw this.badValue(
+                    prefix + "formula",
+                    "a fit needs at least one predictor");
+        }
+        fitCommand.setFormula(formula);
+        fitCommand.setRandomPredictors(this.getPredictors(prefix + "random"));
+        fitCommand.setCovariatePredictors(this.getPredictors(prefix + "covariate"));
+        fitCommand.setMethod(this.getEnum(
+                prefix + "method",
+                MixedModelSolutionMethod.class,
+                fitCommand.getMethod()));
+        fitCommand.setSubtractColumnMeans(this.getBoolean(
+                prefix + "subtractColumnMeans",
+                fitCommand.getSubtractColumnMeans()));
+        
+        // independent fits only run in parallel in worker processes so we
+        // use them unless we're told otherwise
+        FitExecutionBackend defaultBackend =
+            RWorkerPool.getInstance().isAvailable() ?
+                    FitExecutionBackend.R_WORKER_PROCESS :
+                    FitExecutionBackend.R_MAANOVA;
+        FitExecutionBackend backend = this.getEnum(
+                prefix + "backend",
+                FitExecutionBackend.class,
+                defaultBackend);
+        if(!backend.supportsModel(fitCommand))
+        {
+            throw this.badValue(
+                    prefix + "backend",
+                    "the " + backend + " fit engine does not support this model");
+        }
+        fitCommand.setBackend(backend);
+        
+        return fitCommand;
+    }
+    
+    private TestModelCommandBuilder createTestCommandBuilder(
+            String testName,
+            FitStage fitStage) throws IOException
+    {
+        String prefix = "test." + testName + ".";
+        TestModelCommandBuilder builder = new TestModelCommandBuilder();
+        
+        // same naming as the test wizard uses
+        builder.setTestResultDataName(
+                this.experimentIdentifier + "." +
+                this.toRIdentifier("tests", testName));
+        builder.setMadataParameter(this.experimentIdentifier);
+        builder.setFitResultParameter(
+                fitStage.getFitCommand().getFitAssigneeIdentifier());
+        
+        TestType testType = this.getEnum(prefix + "type", TestType.class, null);
+        if(testType == null)
+        {
+            throw this.badValue(prefix + "type", "a test type is required");
+        }
+        builder.setTestType(testType);
+        
+        String[] terms = this.getList(prefix + "terms");
+        if(terms.length == 0)
+        {
+            throw this.badValue(prefix + "terms", "at least one term is required");
+        }
+        builder.setTermsToTest(terms);
+        
+        String[] levels = this.getList(prefix + "levels");
+        if(levels.length > 0)
+        {
+            builder.setLevelsToTest(levels);
+        }
+        
+        Number[][] contrast = this.getMatrix(prefix + "contrast");
+        if(testType == TestType.T_TEST)
+        {
+            builder.setTTestContrastMatrix(contrast);
+        }
+        else
+        {
+            builder.setFTestContrastMatrix(contrast);
+        }
+        
+        builder.setMixedModelSolutionMethod(this.getEnum(
+                prefix + "method",
+                MixedModelSolutionMethod.class,
+                fitStage.getFitCommand().getMethod()));
+        builder.setFStatisticToCalculate(this.getEnum(
+                prefix + "fStatistic",
+                FStatisticToCalculate.class,
+                builder.getFStatisticToCalculate()));
+        builder.setShuffleMethod(this.getEnum(
+                prefix + "shuffle",
+                ShuffleMethod.class,
+                builder.getShuffleMethod()));
+        
+        // unlike the builder we default to no permutations
+        builder.setPermutationCount(this.getInt(prefix + "permutations", 1));
+        String critical = this.getValue(prefix + "critical");
+        if(critical != null)
+        {
+            builder.setCriticalThreshold(this.parseDouble(prefix + "critical", critical));
+        }
+        builder.setPoolPValues(this.getBoolean(
+                prefix + "poolPValues",
+                builder.getPoolPValues()));
+        String seed = this.getValue(prefix + "seed");
+        if(seed != null)
+        {
+            try
+            {
+                builder.setPermutationSeed(Long.parseLong(seed));
+            }
+            catch(NumberFormatException ex)
+            {
+                throw this.badValue(prefix + "seed", "expected an integer");
+            }
+        }
+        builder.setVerbose(false);
+        
+        TestExecutionBackend defaultBackend =
+            RWorkerPool.getInstance().isAvailable() ?
+                    TestExecutionBackend.R_WORKER_PROCESS :
+                    TestExecutionBackend.R_MAANOVA;
+        TestExecutionBackend backend = this.getEnum(
+                prefix + "backend",
+                TestExecutionBackend.class,
+                defaultBackend);
+        builder.setBackend(backend);
+        if(builder.getPermutationCount() >= 2 && !backend.supportsTest(builder))
+        {
+            throw this.badValue(
+                    prefix + "backend",
+                    "the " + backend + " permutation engine does not " +
+                    "support this test");
+        }
+        
+        return builder;
+    }
+    
+    private String getValue(String key)
+    {
+        String value = this.properties.getProperty(key);
+        if(value == null)
+        {
+            return null;
+        }
+        else
+        {
+            value = value.trim();
+            return value.length() == 0 ? null : value;
+        }
+    }
+    
+    private String getRequiredValue(String key) throws IOException
+    {
+        String value = this.getValue(key);
+        if(value == null)
+        {
+            throw this.badValue(key, "a value is required");
+        }
+        return value;
+    }
+    
+    private String[] getList(String key)
+    {
+        String value = this.getValue(key);
+        if(value == null)
+        {
+            return new String[0];
+        }
+        
+        List<String> items = new ArrayList<String>();
+        for(String item: value.split(LIST_SEPARATOR_REGEX))
+        {
+            item = item.trim();
+            if(item.length() > 0)
+            {
+                items.add(item);
+            }
+        }
+        return items.toArray(new String[items.size()]);
+    }
+    
+    private File getFile(String key)
+    {
+        String value = this.getValue(key);
+        if(value == null)
+        {
+            return null;
+        }
+        
+        File file = new File(value);
+        if(!file.isAbsolute())
+        {
+            file = new File(this.jobFile.getAbsoluteFile().getParentFile(), value);
+        }
+        return file;
+    }
+    
+    private File getRequiredFile(String key) throws IOException
+    {
+        this.getRequiredValue(key);
+        File file = this.getFile(key);
+        if(!file.isFile())
+        {
+            throw this.badValue(key, "no such file: " + file.getAbsolutePath());
+        }
+        return file;
+    }
+    
+    private boolean getBoolean(String key, boolean defaultValue) throws IOException
+    {
+        String value = this.getValue(key);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+        else if(value.equalsIgnoreCase("true"))
+        {
+            return true;
+        }
+        else if(value.equalsIgnoreCase("false"))
+        {
+            return false;
+        }
+        else
+        {
+            throw this.badValue(key, "expected true or false");
+        }
+    }
+    
+    private int getInt(String key, int defaultValue) throws IOException
+    {
+        String value = this.getValue(key);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+        
+        try
+        {
+            return Integer.parseInt(value);
+        }
+        catch(NumberFormatException ex)
+        {
+            throw this.badValue(key, "expected an integer");
+        }
+    }
+    
+    private double parseDouble(String key, String value) throws IOException
+    {
+        try
+        {
+            return Double.parseDouble(value);
+        }
+        catch(NumberFormatException ex)
+        {
+            throw this.badValue(key, "expected a number");
+        }
+    }
+    
+    private <E extends Enum<E>> E getEnum(
+            String key,
+            Class<E> enumClass,
+            E defaultValue) throws IOException
+    {
+        String value = this.getValue(key);
+        if(value == null)
+        {
+            return defaultValue;
+        }
+        
+        StringBuilder names = new StringBuilder();
+        for(E constant: enumClass.getEnumConstants())
+        {
+            if(constant.name().equalsIgnoreCase(value))
+            {
+                return constant;
+            }
+            
+            if(names.length() > 0)
+            {
+                names.append(", ");
+            }
+            names.append(constant.name());
+        }
+        
+        throw this.badValue(key, "expected one of: " + names);
+    }
+    
+    private InteractivePredictor[] getPredictors(String key)
+    {
+        String value = this.getValue(key);
+        if(value == null)
+        {
+            return new InteractivePredictor[0];
+        }
+        
+        if(value.startsWith("~"))
+        {
+            value = value.substring(1);
+        }
+        
+        List<InteractivePredictor> predictors = new ArrayList<InteractivePredictor>();
+        for(String predictor: value.split(FORMULA_TERM_SEPARATOR_REGEX))
+        {
+            predictor = predictor.trim();
+            if(predictor.length() > 0)
+            {
+                String[] terms = predictor.split(INTERACTION_SEPARATOR_REGEX);
+                for(int i = 0; i < terms.length; i++)
+                {
+                    terms[i] = terms[i].trim();
+                }
+                predictors.add(new InteractivePredictor(terms));
+            }
+        }
+        return predictors.toArray(new InteractivePredictor[predictors.size()]);
+    }
+    
+    private Number[][] getMatrix(String key) throws IOException
+    {
+        String value = this.getValue(key);
+        if(value == null)
+        {
+            return null;
+        }
+        
+        String[] rows = value.split(MATRIX_ROW_SEPARATOR_REGEX);
+        Number[][] matrix = new Number[rows.length][];
+        for(int row = 0; row < rows.length; row++)
+        {
+            String[] cells = rows[row].trim().split(MATRIX_COLUMN_SEPARATOR_REGEX);
+            if(row > 0 && cells.length != matrix[0].length)
+            {
+                throw this.badValue(key, "every row needs the same number of columns");
+            }
+            
+            matrix[row] = new Number[cells.length];
+            for(int col = 0; col < cells.length; col++)
+            {
+                matrix[row][col] = Double.valueOf(this.parseDouble(key, cells[col]));
+            }
+        }
+        return matrix;
+    }
+    
+    private String toRIdentifier(String key, String name) throws IOException
+    {
+        try
+        {
+            return RUtilities.fromReadableNameToRIdentifier(name);
+        }
+        catch(RSyntaxException ex)
+        {
+            throw this.badValue(key, ex.getMessage());
+        }
+    }
+    
+    private IOException badValue(String key, String problem)
+    {
+        return new IOException(
+                this.jobFile.getName() + ": bad setting for " + key + ": " +
+                problem);
+    }
+}
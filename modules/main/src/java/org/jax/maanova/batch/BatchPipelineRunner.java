@@ -0,0 +1,635 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.batch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.maanova.AnalysisResultCache;
+import org.jax.maanova.Maanova;
+import org.jax.maanova.RWorkerPool;
+import org.jax.maanova.fit.BlockedFitEngine;
+import org.jax.maanova.fit.FitExecutionBackend;
+import org.jax.maanova.fit.FitMaanovaCommand;
+import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.madata.ReadMicroarrayDataCommandBuilder;
+import org.jax.maanova.madata.TabDelimitedMicroarrayDataImporter;
+import org.jax.maanova.madata.gui.ExportDataTask;
+import org.jax.maanova.test.MaanovaTestResult;
+import org.jax.maanova.test.MaanovaTestStatisticSubtype;
+import org.jax.maanova.test.MaanovaTestStatisticType;
+import org.jax.maanova.test.MaanovaTestStatistics;
+import org.jax.maanova.test.PermutationTestEngine;
+import org.jax.maanova.test.StatisticColumn;
+import org.jax.maanova.test.TestExecutionBackend;
+import org.jax.maanova.test.TestModelCommandBuilder;
+import org.jax.maanova.test.gui.FoldChangeStatisticItem;
+import org.jax.maanova.test.gui.StatisticItem;
+import org.jax.maanova.test.gui.TestStatisticItem;
+import org.jax.r.RUtilities;
+import org.jax.r.jriutilities.RInterface;
+import org.jax.r.jriutilities.RInterfaceFactory;
+import org.jax.r.jriutilities.RPackageDependency;
+import org.jax.r.jriutilities.RPackageDependency.PackageStatus;
+import org.jax.util.io.CommonFlatFileFormat;
+import org.jax.util.io.FlatFileWriter;
+
+/**
+ * Runs {@link BatchJob} pipelines without any GUI so that experiments can
+ * be reprocessed on compute nodes. Neither {@link Maanova} nor the
+ * application frame are ever created. Every stage of a job runs on its own
+ * thread as soon as the stages that it depends on are done:
+ * <ul>
+ * <li>the data is read first</li>
+ * <li>the data export and all of the fits only depend on the data</li>
+ * <li>each test depends on its fit and exports its own results</li>
+ * <li>the workspace export waits for everything else</li>
+ * </ul>
+ * Since the interactive R session only evaluates one command at a time,
+ * stages only really run side by side when they're done by the Java
+ * engines or in {@link RWorkerPool} processes, which is what fits and
+ * tests default to when Rscript can be found. A failed stage fails
+ * everything that depends on it but doesn't stop independent stages.
+ * <p>
+ * Like {@code org.jax.maanova.Maanova} this has to be started in a JVM
+ * that can load JRI, so {@code java.library.path} must include the JRI
+ * natives and {@code R_HOME} must be set. The arguments are one or more
+ * job files which are run one after the other. The exit status is 0 if
+ * every job worked and 1 if any job had a failed stage.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class BatchPipelineRunner
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            BatchPipelineRunner.class.getName());
+    
+    /**
+     * what we write for missing values. this is what R shows
+     */
+    private static final String MISSING_VALUE_STRING = "NA";
+    
+    private final RInterface rInterface;
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the pipelines run against. The
+     *          J/maanova R packages must already be loaded
+     */
+    public BatchPipelineRunner(RInterface rInterface)
+    {
+        this.rInterface = rInterface;
+    }
+    
+    /**
+     * Run the given job and wait for it to finish
+     * @param job
+     *          the job
+     * @return
+     *          true if every stage worked. Failures are logged
+     * @throws InterruptedException
+     *          if we're interrupted while waiting for the stages
+     */
+    public boolean run(final BatchJob job) throws InterruptedException
+    {
+        LOG.info("starting batch job: " + job.getJobFile().getAbsolutePath());
+        
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try
+        {
+            final MicroarrayExperiment experiment = new MicroarrayExperiment(
+                    this.rInterface,
+                    job.getExperimentIdentifier());
+            List<Stage> stages = new ArrayList<Stage>();
+            
+            final Stage readStage = new Stage("read data")
+            {
+                @Override
+                protected void runStage() throws Exception
+                {
+                    BatchPipelineRunner.this.readData(job.getReadCommandBuilder());
+                }
+            };
+            stages.add(readStage);
+            
+            final File dataExportFile = job.getDataExportFile();
+            if(dataExportFile != null)
+            {
+                stages.add(new Stage("export data", readStage)
+                {
+                    @Override
+                    protected void runStage() throws Exception
+                    {
+                        BatchPipelineRunner.this.exportData(
+                                experiment,
+                                dataExportFile);
+                    }
+                });
+            }
+            
+            Map<BatchJob.FitStage, Stage> fitStages =
+                new HashMap<BatchJob.FitStage, Stage>();
+            for(final BatchJob.FitStage fitStage: job.getFitStages())
+            {
+                fitStage.getFitCommand().setMicroarrayExperiment(experiment);
+                Stage stage = new Stage("fit " + fitStage.getName(), readStage)
+                {
+                    @Override
+                    protected void runStage() throws Exception
+                    {
+                        BatchPipelineRunner.this.fit(fitStage.getFitCommand());
+                    }
+                };
+                fitStages.put(fitStage, stage);
+                stages.add(stage);
+            }
+            
+            for(final BatchJob.TestStage testStage: job.getTestStages())
+            {
+                stages.add(new Stage(
+                        "test " + testStage.getName(),
+                        fitStages.get(testStage.getFitStage()))
+                {
+                    @Override
+                    protected void runStage() throws Exception
+                    {
+                        BatchPipelineRunner.this.test(
+                                experiment,
+                                testStage.getCommandBuilder(),
+                                testStage.getExportFile());
+                    }
+                });
+            }
+            
+            final File workspaceExportFile = job.getWorkspaceExportFile();
+            if(workspaceExportFile != null)
+            {
+                stages.add(new Stage(
+                        "export workspace",
+                        stages.toArray(new Stage[stages.size()]))
+                {
+                    @Override
+                    protected void runStage() throws Exception
+                    {
+                        BatchPipelineRunner.this.exportWorkspace(
+                                job.getExperimentIdentifier(),
+                                workspaceExportFile);
+                    }
+                });
+            }
+            
+            for(Stage stage: stages)
+            {
+                stage.start(executor);
+            }
+            
+            boolean allStagesWorked = true;
+            for(Stage stage: stages)
+            {
+                Throwable failure = stage.waitForFailure();
+                if(failure != null)
+                {
+                    LOG.log(Level.SEVERE,
+                            "batch stage failed: " + stage.name,
+                            failure);
+                    allStagesWorked = false;
+                }
+            }
+            
+            LOG.info("finished batch job: " + job.getJobFile().getAbsolutePath() +
+                    (allStagesWorked ? "" : " (with failures)"));
+            return allStagesWorked;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Read the microarray data the same way that the read data dialog does
+     */
+    private void readData(ReadMicroarrayDataCommandBuilder commandBuilder)
+    throws IOException
+    {
+        if(TabDelimitedMicroarrayDataImporter.canImport(commandBuilder))
+        {
+            try
+            {
+                new TabDelimitedMicroarrayDataImporter(
+                        this.rInterface,
+                        commandBuilder).importData();
+                return;
+            }
+            catch(IOException ex)
+            {
+                LOG.log(Level.WARNING,
+                        "could not parse the data file in Java. " +
+                        "letting read.madata read it instead",
+                        ex);
+            }
+            catch(OutOfMemoryError ex)
+            {
+                LOG.log(Level.WARNING,
+                        "ran out of memory parsing the data file in Java. " +
+                        "letting read.madata read it instead",
+                        ex);
+            }
+        }
+        
+        this.rInterface.evaluateCommand(commandBuilder.getCommand());
+    }
+    
+    /**
+     * Run a fit on the engine that the fit command asks for
+     */
+    private void fit(FitMaanovaCommand fitCommand)
+    throws IOException, InterruptedException
+    {
+        AnalysisResultCache resultCache = AnalysisResultCache.getInstance();
+        String cacheKey = resultCache.getFitKey(this.rInterface, fitCommand);
+        String fitAssignee = fitCommand.getFitAssigneeIdentifier();
+        if(cacheKey != null && resultCache.restore(this.rInterface, cacheKey, fitAssignee))
+        {
+            return;
+        }
+        
+        BlockedFitEngine fitEngine = fitCommand.getBackend().createFitEngine(
+                this.rInterface,
+                fitCommand);
+        if(fitEngine != null)
+        {
+            fitEngine.fit();
+        }
+        else if(fitCommand.getBackend() == FitExecutionBackend.R_WORKER_PROCESS)
+        {
+            RWorkerPool.getInstance().evaluate(fitCommand.createWorkerJob());
+        }
+        else
+        {
+            this.rInterface.evaluateCommand(fitCommand);
+        }
+        
+        if(cacheKey != null)
+        {
+            resultCache.store(this.rInterface, cacheKey, fitAssignee);
+        }
+    }
+    
+    /**
+     * Run a test on the engine that the command builder asks for and
+     * export the results if there's a file to export them to
+     */
+    private void test(
+            MicroarrayExperiment experiment,
+            TestModelCommandBuilder commandBuilder,
+            File exportFile) throws IOException, InterruptedException
+    {
+        AnalysisResultCache resultCache = AnalysisResultCache.getInstance();
+        String cacheKey = resultCache.getTestKey(
+                this.rInterface,
+                experiment,
+                commandBuilder);
+        String testResultName = commandBuilder.getTestResultDataName().trim();
+        if(cacheKey == null || !resultCache.restore(this.rInterface, cacheKey, testResultName))
+        {
+            boolean permuting = commandBuilder.getPermutationCount() >= 2;
+            TestExecutionBackend backend = commandBuilder.getBackend();
+            if(permuting && backend == TestExecutionBackend.JAVA_PERMUTATIONS)
+            {
+                PermutationTestEngine permutationEngine = new PermutationTestEngine(
+                        this.rInterface,
+                        experiment,
+                        commandBuilder);
+                if(permutationEngine.isFitSupported())
+                {
+                    permutationEngine.test();
+                }
+                else
+                {
+                    LOG.info("the Java permutation engine doesn't support " +
+                            "the fit so R/maanova is doing the permutations " +
+                            "for: " + testResultName);
+                    this.rInterface.evaluateCommand(commandBuilder.getCommand());
+                    
+                    // R's permutations aren't repeatable
+                    cacheKey = null;
+                }
+            }
+            else if(permuting && backend == TestExecutionBackend.R_WORKER_PROCESS)
+            {
+                RWorkerPool.getInstance().evaluate(commandBuilder.createWorkerJob());
+            }
+            else
+            {
+                this.rInterface.evaluateCommand(commandBuilder.getCommand());
+            }
+            
+            if(cacheKey != null)
+            {
+                resultCache.store(this.rInterface, cacheKey, testResultName);
+            }
+        }
+        
+        if(exportFile != null)
+        {
+            this.exportTestResult(
+                    new MaanovaTestResult(
+                            experiment,
+                            commandBuilder.getTestResultDataName()),
+                    exportFile);
+        }
+    }
+    
+    /**
+     * Export the experiment data using the same format as the export data
+     * action
+     */
+    private void exportData(MicroarrayExperiment experiment, File exportFile)
+    throws IOException
+    {
+        new ExportDataTask(
+                experiment,
+                ExportDataTask.createHeaderRow(experiment),
+                exportFile).export();
+    }
+    
+    /**
+     * Export every statistic that the test result has for every contrast
+     * in the test. The columns are the same as the test results table shows
+     * when no columns are hidden
+     */
+    private void exportTestResult(MaanovaTestResult testResult, File exportFile)
+    throws IOException
+    {
+        List<StatisticItem> statistics = new ArrayList<StatisticItem>();
+        statistics.add(new FoldChangeStatisticItem());
+        for(MaanovaTestStatisticType currType: MaanovaTestStatisticType.values())
+        {
+            MaanovaTestStatistics currStats = testResult.getStatistics(currType);
+            for(MaanovaTestStatisticSubtype currSubtype: MaanovaTestStatisticSubtype.values())
+            {
+                if(currStats.hasTestStatistic(currSubtype))
+                {
+                    statistics.add(new TestStatisticItem(currType, currSubtype));
+                }
+            }
+        }
+        
+        int contrastCount = testResult.getStatistics(
+                MaanovaTestStatisticType.F_STAT).getContrastCount();
+        List<String> header = new ArrayList<String>();
+        List<StatisticColumn> columns = new ArrayList<StatisticColumn>();
+        header.add("ProbesetID");
+        for(int contrastIndex = 0; contrastIndex < contrastCount; contrastIndex++)
+        {
+            for(StatisticItem statistic: statistics)
+            {
+                StatisticColumn column = testResult.getStatisticColumn(
+                        statistic,
+                        contrastIndex);
+                if(column != null)
+                {
+                    header.add(contrastCount == 1 ?
+                            statistic.toString() :
+                            statistic + " (Test " + (contrastIndex + 1) + ")");
+                    columns.add(column);
+                }
+            }
+        }
+        
+        String[] probesetIds = testResult.getProbesetIds();
+        FlatFileWriter writer = new FlatFileWriter(
+                new BufferedWriter(new FileWriter(exportFile)),
+                CommonFlatFileFormat.CSV_UNIX);
+        try
+        {
+            String[] row = header.toArray(new String[header.size()]);
+            writer.writeRow(row);
+            for(int probesetIndex = 0; probesetIndex < probesetIds.length; probesetIndex++)
+            {
+                row[0] = probesetIds[probesetIndex];
+                for(int col = 0; col < columns.size(); col++)
+                {
+                    StatisticColumn column = columns.get(col);
+                    row[col + 1] = column.isMissing(probesetIndex) ?
+                            MISSING_VALUE_STRING :
+                            Double.toString(column.getValue(probesetIndex));
+                }
+                writer.writeRow(row);
+            }
+            writer.flush();
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Save the experiment and everything derived from it (the fits and
+     * tests are named experiment.xxx) to an RData file
+     */
+    private void exportWorkspace(String experimentIdentifier, File exportFile)
+    {
+        String prefix = experimentIdentifier + ".";
+        this.rInterface.evaluateCommandNoReturn(
+                "local({objs <- ls(envir=.GlobalEnv); " +
+                "save(list=c(" + RUtilities.javaStringToRString(experimentIdentifier) +
+                ", objs[substr(objs, 1, " + prefix.length() + ") == " +
+                RUtilities.javaStringToRString(prefix) + "]), file=" +
+                RUtilities.javaStringToRString(
+                        exportFile.getAbsolutePath().replace('\\', '/')) +
+                ", envir=.GlobalEnv)})");
+    }
+    
+    /**
+     * A pipeline stage that runs as soon as the stages it depends on are
+     * done
+     */
+    private abstract static class Stage
+    {
+        private final String name;
+        
+        private final Stage[] dependencies;
+        
+        private volatile Future<Void> future = null;
+        
+        public Stage(String name, Stage... dependencies)
+        {
+            this.name = name;
+            this.dependencies = dependencies;
+        }
+        
+        /**
+         * Start this stage. The stages that this one depends on must
+         * already be started
+         * @param executor
+         *          the executor to run the stage on
+         */
+        public void start(ExecutorService executor)
+        {
+            this.future = executor.submit(new Callable<Void>()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public Void call() throws Exception
+                {
+                    for(Stage dependency: Stage.this.dependencies)
+                    {
+                        if(dependency.waitForFailure() != null)
+                        {
+                            throw new IOException(
+                                    "skipped because " + dependency.name +
+                                    " failed");
+                        }
+                    }
+                    
+                    LOG.info("starting stage: " + Stage.this.name);
+                    Stage.this.runStage();
+                    LOG.info("finished stage: " + Stage.this.name);
+                    return null;
+                }
+            });
+        }
+        
+        /**
+         * Do the work for this stage
+         * @throws Exception
+         *          if the stage fails
+         */
+        protected abstract void runStage() throws Exception;
+        
+        /**
+         * Wait for this stage to finish
+         * @return
+         *          null if the stage worked, otherwise the reason that it
+         *          failed
+         * @throws InterruptedException
+         *          if we're interrupted while waiting
+         */
+        public Throwable waitForFailure() throws InterruptedException
+        {
+            try
+            {
+                this.future.get();
+                return null;
+            }
+            catch(ExecutionException ex)
+            {
+                return ex.getCause();
+            }
+        }
+    }
+    
+    /**
+     * The entry point for running batch jobs
+     * @param args
+     *          the job files to run
+     */
+    public static void main(String[] args)
+    {
+        if(args.length == 0)
+        {
+            System.err.println(
+                    "usage: java " + BatchPipelineRunner.class.getName() +
+                    " job-file...");
+            System.exit(1);
+        }
+        
+        // make sure that nothing tries to put up a window
+        System.setProperty("java.awt.headless", "true");
+        
+        int failedJobCount = 0;
+        try
+        {
+            RInterface rInterface = RInterfaceFactory.getRInterfaceInstance();
+            for(RPackageDependency dependency:
+                Maanova.createPackageDependencies(rInterface))
+            {
+                dependency.showVersionInfo();
+                if(dependency.getPackageStatus() != PackageStatus.PACKAGE_OK)
+                {
+                    throw new IOException(
+                            "R package " + dependency.getPackageName() + " " +
+                            dependency.getMinimumVersion() + " or greater " +
+                            "is required");
+                }
+                dependency.loadPackage();
+            }
+            
+            BatchPipelineRunner runner = new BatchPipelineRunner(rInterface);
+            for(String jobFileName: args)
+            {
+                boolean jobWorked;
+                try
+                {
+                    jobWorked = runner.run(new BatchJob(new File(jobFileName)));
+                }
+                catch(IOException ex)
+                {
+                    LOG.log(Level.SEVERE,
+                            "failed to read batch job: " + jobFileName,
+                            ex);
+                    jobWorked = false;
+                }
+                
+                if(!jobWorked)
+                {
+                    failedJobCount++;
+                }
+            }
+        }
+        catch(Exception ex)
+        {
+            LOG.log(Level.SEVERE,
+                    "batch run failed",
+                    ex);
+            System.exit(1);
+        }
+        
+        if(failedJobCount > 0)
+        {
+            LOG.severe(failedJobCount + " of " + args.length +
+                    " batch jobs failed");
+            System.exit(1);
+        }
+        else
+        {
+            System.exit(0);
+        }
+    }
+}
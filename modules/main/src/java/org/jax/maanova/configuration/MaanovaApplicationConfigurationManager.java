@@ -59,6 +59,18 @@ public class MaanovaApplicationConfigurationManager extends RApplicationConfigur
      */
     private static final String SAMPLE_DATA_DIR_NAME = "sample-data";
     
+    /**
+     * the config-path-relative dir name where partially completed fits
+     * are checkpointed
+     */
+    private static final String FIT_CHECKPOINT_DIR_NAME = "fit-checkpoints";
+    
+    /**
+     * the config-path-relative dir name where fit and test results are
+     * cached
+     */
+    private static final String RESULT_CACHE_DIR_NAME = "result-cache";
+    
     /**
      * our logger
      */
@@ -165,6 +177,58 @@ public class MaanovaApplicationConfigurationManager extends RApplicationConfigur
         return startingMicroarrayDataDir;
     }
     
+    /**
+     * Get the directory that the Java fit engines use to checkpoint
+     * partially completed fits. If the configuration directory can't be
+     * found we fall back on the temp directory.
+     * @return
+     *          the checkpoint directory (which may not exist yet)
+     */
+    public File getFitCheckpointDirectory()
+    {
+        return this.getWorkingDirectory(FIT_CHECKPOINT_DIR_NAME);
+    }
+    
+    /**
+     * Get the directory that previously calculated fit and test results
+     * are cached in. If the configuration directory can't be found we fall
+     * back on the temp directory.
+     * @return
+     *          the result cache directory (which may not exist yet)
+     */
+    public File getResultCacheDirectory()
+    {
+        return this.getWorkingDirectory(RESULT_CACHE_DIR_NAME);
+    }
+    
+    /**
+     * Get the given directory under the configuration directory or under
+     * the temp directory if the configuration directory can't be found
+     * @param dirName
+     *          the name of the directory
+     * @return
+     *          the directory (which may not exist yet)
+     */
+    private File getWorkingDirectory(String dirName)
+    {
+        File baseDir;
+        try
+        {
+            ConfigurationUtilities configUtil = new ConfigurationUtilities();
+            baseDir = configUtil.getBaseDirectory();
+        }
+        catch(Exception ex)
+        {
+            LOG.log(Level.WARNING,
+                    "failed to get the configuration directory. using " +
+                    "the temp directory for " + dirName,
+                    ex);
+            baseDir = new File(System.getProperty("java.io.tmpdir"));
+        }
+        
+        return new File(baseDir, dirName);
+    }
+    
     /**
      * Convenience function for getting (and initializing if needed) the
      * JAXB data directory.
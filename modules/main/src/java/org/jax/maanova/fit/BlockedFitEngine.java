@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.maanova.configuration.MaanovaApplicationConfigurationManager;
+import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.madata.MicroarrayExperimentDesign;
+import org.jax.r.RCommandParameter;
+import org.jax.r.RMethodInvocationCommand;
+import org.jax.r.RUtilities;
+import org.jax.r.jriutilities.RInterface;
+import org.jax.r.jriutilities.SilentRCommand;
+import org.jax.util.concurrent.SimpleLongRunningTask;
+import org.rosuda.JRI.REXP;
+
+/**
+ * Base class for the pure Java alternatives to R/maanova's fitmaanova(...).
+ * The data is pulled out of R a block of probesets at a time and each block
+ * is fit on a pool of worker threads. Completed blocks are checkpointed to
+ * disk (see {@link FitCheckpoint}) so that an interrupted fit resumes where
+ * it left off. Once every block is done the yhat and S2 values are streamed
+ * back to R through a temporary binary file where they are packaged up as
+ * a "maanova" object.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public abstract class BlockedFitEngine
+extends SimpleLongRunningTask
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            BlockedFitEngine.class.getName());
+    
+    /**
+     * the number of probeset rows that we pull out of R at a time and
+     * hand to a worker thread
+     */
+    private static final int ROWS_PER_BLOCK = 2000;
+    
+    private final RInterface rInterface;
+    
+    private final FitMaanovaCommand fitCommand;
+    
+    private final int threadCount;
+    
+    private volatile boolean canceled = false;
+    
+    /**
+     * Fits a single probeset at a time. Fitters are only ever used from
+     * one thread so they're free to cache whatever they like
+     */
+    protected interface ProbesetFitter
+    {
+        /**
+         * Fit a single probeset
+         * @param values
+         *          the probeset values (one per design row). Missing values
+         *          are NaN
+         * @param fittedValues
+         *          the array that the fitted values (yhat) are written to
+         * @param varianceComponents
+         *          the array that the variance components (S2) are
+         *          written to
+         */
+        public void fit(
+                double[] values,
+                double[] fittedValues,
+                double[] varianceComponents);
+    }
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the data comes from and that the
+     *          result is assigned in
+     * @param fitCommand
+     *          the fit command describing the model
+     * @param threadCount
+     *          the number of worker threads to fit with
+     */
+    protected BlockedFitEngine(
+            RInterface rInterface,
+            FitMaanovaCommand fitCommand,
+            int threadCount)
+    {
+        this.rInterface = rInterface;
+        this.fitCommand = fitCommand;
+        this.threadCount = Math.max(1, threadCount);
+    }
+    
+    /**
+     * Getter for the fit command that this engine is carrying out
+     * @return
+     *          the fit command
+     */
+    public FitMaanovaCommand getFitCommand()
+    {
+        return this.fitCommand;
+    }
+    
+    /**
+     * Cancel the fit. Blocks that are already done stay in the checkpoint
+     * so running the same fit again picks up where this one stopped
+     */
+    public void cancel()
+    {
+        this.canceled = true;
+    }
+    
+    /**
+     * Determine if the fit has been canceled
+     * @return
+     *          true if {@link #cancel()} has been called
+     */
+    public boolean isCanceled()
+    {
+        return this.canceled;
+    }
+    
+    /**
+     * Determine if this engine is able to fit the command's model
+     * @return
+     *          true if the model is supported
+     */
+    protected abstract boolean isModelSupported();
+    
+    /**
+     * Do all of the work that can be shared between probesets. This is
+     * called once before any probesets are fit
+     * @param designFactors
+     *          the design factor names
+     * @param designData
+     *          the design table (one row per data column)
+     * @throws IllegalArgumentException
+     *          if the model doesn't fit the design
+     */
+    protected abstract void prepare(
+            String[] designFactors,
+            String[][] designData) throws IllegalArgumentException;
+    
+    /**
+     * Create a new fitter. This is called once per block
+     * @return
+     *          the fitter
+     */
+    protected abstract ProbesetFitter createProbesetFitter();
+    
+    /**
+     * Getter for the names of the variance components that this engine
+     * estimates
+     * @return
+     *          the names or null if we only estimate the error variance
+     *          (in which case S2 is a vector rather than a matrix)
+     */
+    protected abstract String[] getVarianceComponentNames();
+    
+    /**
+     * Perform the fit and assign the result in R. This blocks until the
+     * fit is done
+     * @throws IOException
+     *          if we fail to write the results out for R
+     * @throws IllegalArgumentException
+     *          if the model isn't supported or doesn't match the design
+     * @throws CancellationException
+     *          if the fit is canceled before every block is done
+     */
+    public void fit()
+    throws IOException, IllegalArgumentException, CancellationException
+    {
+        if(!this.isModelSupported())
+        {
+            throw new IllegalArgumentException(
+                    "The selected fit engine does not support this model");
+        }
+        
+        MicroarrayExperiment experiment =
+            this.fitCommand.getMicroarrayExperiment();
+        String fitAssignee = this.fitCommand.getFitAssigneeIdentifier();
+        if(experiment == null || fitAssignee == null || fitAssignee.length() == 0)
+        {
+            throw new IllegalArgumentException(
+                    "The Java fit engines need an experiment and a result name");
+        }
+        
+        MicroarrayExperimentDesign design = experiment.getDesign();
+        String[][] designData = design.getDesignData();
+        this.prepare(design.getDesignFactors(), designData);
+        
+        int geneCount = experiment.getGeneCount();
+        int colCount = designData.length;
+        String[] componentNames = this.getVarianceComponentNames();
+        int componentCount = componentNames == null ? 1 : componentNames.length;
+        this.setTotalWorkUnits(geneCount);
+        this.setWorkUnitsCompleted(0);
+        
+        double[] columnMeans = null;
+        if(this.fitCommand.getSubtractColumnMeans())
+        {
+            REXP columnMeansExpr = this.rInterface.evaluateCommand(new SilentRCommand(
+                    "colMeans(" + experiment.getAccessorExpressionString() +
+                    "$data, na.rm=TRUE)"));
+            columnMeans = columnMeansExpr.asDoubleArray();
+        }
+        
+        FitCheckpoint checkpoint = new FitCheckpoint(
+                this.getCheckpointDirectory(experiment, geneCount, colCount),
+                colCount,
+                componentCount);
+        this.fitBlocks(
+                experiment,
+                checkpoint,
+                columnMeans,
+                geneCount,
+                colCount,
+                componentCount);
+        
+        File resultFile = File.createTempFile("fit", ".bin");
+        try
+        {
+            this.writeResultFile(checkpoint, geneCount, resultFile);
+            this.assignResult(
+                    experiment,
+                    fitAssignee,
+                    geneCount,
+                    colCount,
+                    componentNames,
+                    resultFile);
+            checkpoint.delete();
+        }
+        finally
+        {
+            if(!resultFile.delete())
+            {
+                LOG.warning(
+                        "failed to delete temporary fit file: " +
+                        resultFile.getAbsolutePath());
+            }
+            this.setWorkUnitsCompleted(this.getTotalWorkUnits());
+        }
+    }
+    
+    /**
+     * Fit every block that isn't already in the checkpoint
+     */
+    private void fitBlocks(
+            MicroarrayExperiment experiment,
+            FitCheckpoint checkpoint,
+            double[] columnMeans,
+            int geneCount,
+            int colCount,
+            int componentCount) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(this.threadCount);
+        try
+        {
+            // we only let a few blocks get ahead of the workers so that
+            // memory use stays bounded
+            int maxBlocksInFlight = this.threadCount * 2;
+            LinkedList<Future<Integer>> pendingBlocks =
+                new LinkedList<Future<Integer>>();
+            int resumedRowCount = 0;
+            for(int blockStart = 0; blockStart < geneCount; blockStart += ROWS_PER_BLOCK)
+            {
+                if(this.canceled)
+                {
+                    throw new CancellationException("fit canceled");
+                }
+                
+                int blockEnd = Math.min(blockStart + ROWS_PER_BLOCK, geneCount);
+                if(checkpoint.hasBlock(blockStart, blockEnd - blockStart))
+                {
+                    resumedRowCount += blockEnd - blockStart;
+                    this.setWorkUnitsCompleted(
+                            this.getWorkUnitsCompleted() + blockEnd - blockStart);
+                    continue;
+                }
+                
+                double[] block = experiment.getDataRowBlock(blockStart, blockEnd);
+                if(block.length != (blockEnd - blockStart) * colCount)
+                {
+                    throw new IllegalArgumentException(
+                            "The experiment data does not have one column " +
+                            "per row of the design");
+                }
+                
+                pendingBlocks.add(executor.submit(new FitBlockTask(
+                        checkpoint,
+                        columnMeans,
+                        block,
+                        blockStart,
+                        blockEnd,
+                        colCount,
+                        componentCount)));
+                while(pendingBlocks.size() >= maxBlocksInFlight)
+                {
+                    this.waitForBlock(pendingBlocks.removeFirst());
+                }
+            }
+            
+            while(!pendingBlocks.isEmpty())
+            {
+                this.waitForBlock(pendingBlocks.removeFirst());
+            }
+            
+            if(resumedRowCount > 0)
+            {
+                LOG.info(
+                        "resumed fit from checkpoint. " + resumedRowCount +
+                        " probesets were already fit");
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    private void waitForBlock(Future<Integer> pendingBlock) throws IOException
+    {
+        int rowCount;
+        try
+        {
+            rowCount = pendingBlock.get();
+        }
+        catch(InterruptedException ex)
+        {
+            throw new IOException("interrupted while waiting for fit: " + ex.getMessage());
+        }
+        catch(ExecutionException ex)
+        {
+            LOG.log(Level.SEVERE,
+                    "fit worker failed",
+                    ex.getCause());
+            throw new IOException("fit failed: " + ex.getCause().getMessage());
+        }
+        
+        this.setWorkUnitsCompleted(this.getWorkUnitsCompleted() + rowCount);
+    }
+    
+    /**
+     * Pull the checkpointed blocks together into a single file laid out
+     * the way that {@link #assignResult} reads it: all of the yhat rows
+     * followed by all of the S2 rows
+     */
+    private void writeResultFile(
+            FitCheckpoint checkpoint,
+            int geneCount,
+            File resultFile) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(resultFile)));
+        try
+        {
+            for(int blockStart = 0; blockStart < geneCount; blockStart += ROWS_PER_BLOCK)
+            {
+                int blockEnd = Math.min(blockStart + ROWS_PER_BLOCK, geneCount);
+                checkpoint.copyYHats(blockStart, blockEnd - blockStart, out);
+            }
+            for(int blockStart = 0; blockStart < geneCount; blockStart += ROWS_PER_BLOCK)
+            {
+                int blockEnd = Math.min(blockStart + ROWS_PER_BLOCK, geneCount);
+                checkpoint.copyVarianceComponents(blockStart, blockEnd - blockStart, out);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Read the fit values back into R and package them up in the same
+     * shape that fitmaanova(...) uses
+     */
+    private void assignResult(
+            MicroarrayExperiment experiment,
+            String fitAssignee,
+            int geneCount,
+            int colCount,
+            String[] componentNames,
+            File resultFile)
+    {
+        String madata = experiment.getAccessorExpressionString();
+        String fileString = RUtilities.javaStringToRString(
+                resultFile.getAbsolutePath().replace('\\', '/'));
+        
+        RMethodInvocationCommand makeModelCommand = new RMethodInvocationCommand(
+                "makeModel",
+                new RCommandParameter("data", madata),
+                new RCommandParameter(
+                        "formula",
+                        InteractivePredictor.toRFormulaString(this.fitCommand.getFormula())),
+                new RCommandParameter(
+                        "random",
+                        toRFormulaStringOrOne(this.fitCommand.getRandomPredictors())),
+                new RCommandParameter(
+                        "covariate",
+                        toRFormulaStringOrOne(this.fitCommand.getCovariatePredictors())));
+        
+        StringBuilder assignment = new StringBuilder();
+        assignment.append(fitAssignee);
+        assignment.append(" <- local({");
+        assignment.append("con <- file(" + fileString + ", \"rb\"); ");
+        assignment.append("yhat <- matrix(readBin(con, \"double\", n=" +
+                ((long)geneCount * colCount) + ", endian=\"big\"), nrow=" +
+                geneCount + ", ncol=" + colCount + ", byrow=TRUE); ");
+        if(componentNames == null)
+        {
+            assignment.append("S2 <- readBin(con, \"double\", n=" + geneCount +
+                    ", endian=\"big\"); ");
+        }
+        else
+        {
+            assignment.append("S2 <- matrix(readBin(con, \"double\", n=" +
+                    ((long)geneCount * componentNames.length) +
+                    ", endian=\"big\"), nrow=" + geneCount + ", ncol=" +
+                    componentNames.length + ", byrow=TRUE); ");
+        }
+        assignment.append("close(con); ");
+        assignment.append("fit <- list(yhat=yhat, S2=S2, probeid=" + madata +
+                "$probeid, model=" + makeModelCommand.getCommandText() +
+                ", subCol=" +
+                RUtilities.javaBooleanToRBoolean(this.fitCommand.getSubtractColumnMeans()) +
+                "); ");
+        
+        if(componentNames != null)
+        {
+            assignment.append("fit$S2.level <- c(");
+            for(int i = 0; i < componentNames.length; i++)
+            {
+                if(i >= 1)
+                {
+                    assignment.append(", ");
+                }
+                assignment.append(RUtilities.javaStringToRString(componentNames[i]));
+            }
+            assignment.append("); ");
+        }
+        
+        // level vectors for each of the simple factors
+        for(InteractivePredictor predictor: this.fitCommand.getFormula())
+        {
+            if(predictor.isSingleTerm() && !this.isCovariate(predictor))
+            {
+                String term = predictor.getTerm();
+                assignment.append("fit[[" +
+                        RUtilities.javaStringToRString(term + ".level") +
+                        "]] <- levels(factor(" + madata + "$design[[" +
+                        RUtilities.javaStringToRString(term) + "]])); ");
+            }
+        }
+        assignment.append("class(fit) <- \"maanova\"; fit})");
+        
+        this.rInterface.insertComment(
+                "the following fit was calculated with J/maanova's " +
+                this.fitCommand.getBackend() + " fit engine");
+        this.rInterface.evaluateCommandNoReturn(assignment.toString());
+    }
+    
+    /**
+     * Get the checkpoint directory for this fit. The directory name is
+     * made from a digest of everything that affects the fit result so a
+     * checkpoint is only ever resumed by an identical fit
+     */
+    private File getCheckpointDirectory(
+            MicroarrayExperiment experiment,
+            int geneCount,
+            int colCount)
+    {
+        // a cheap fingerprint of the data so that we don't resume a
+        // checkpoint made from different data under the same name
+        REXP dataSumExpr = this.rInterface.evaluateCommand(new SilentRCommand(
+                "sum(as.numeric(" + experiment.getAccessorExpressionString() +
+                "$data), na.rm=TRUE)"));
+        
+        String fitSignature =
+            this.getClass().getName() + "\n" +
+            this.fitCommand.getCommandText() + "\n" +
+            geneCount + "x" + colCount + "\n" +
+            Double.doubleToLongBits(dataSumExpr.asDouble()) + "\n" +
+            ROWS_PER_BLOCK;
+        
+        String digest;
+        try
+        {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digestBytes = md5.digest(fitSignature.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for(byte digestByte: digestBytes)
+            {
+                hex.append(Integer.toHexString((digestByte & 0xFF) | 0x100).substring(1));
+            }
+            digest = hex.toString();
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            digest = Integer.toHexString(fitSignature.hashCode());
+        }
+        catch(UnsupportedEncodingException ex)
+        {
+            digest = Integer.toHexString(fitSignature.hashCode());
+        }
+        
+        return new File(
+                MaanovaApplicationConfigurationManager.getInstance().getFitCheckpointDirectory(),
+                digest);
+    }
+    
+    private boolean isCovariate(InteractivePredictor predictor)
+    {
+        InteractivePredictor[] covariates =
+            this.fitCommand.getCovariatePredictors();
+        if(covariates != null)
+        {
+            for(InteractivePredictor covariate: covariates)
+            {
+                if(covariate.equals(predictor))
+                {
+                    return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    private static String toRFormulaStringOrOne(InteractivePredictor[] predictors)
+    {
+        if(predictors == null || predictors.length == 0)
+        {
+            return "~1";
+        }
+        else
+        {
+            return InteractivePredictor.toRFormulaString(predictors);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTaskName()
+    {
+        return "Fitting " + this.fitCommand.getFitAssigneeIdentifier();
+    }
+    
+    /**
+     * Fits a single block of probesets and checkpoints the result
+     */
+    private class FitBlockTask implements Callable<Integer>
+    {
+        private final FitCheckpoint checkpoint;
+        
+        private final double[] columnMeans;
+        
+        private final double[] block;
+        
+        private final int blockStart;
+        
+        private final int blockEnd;
+        
+        private final int colCount;
+        
+        private final int componentCount;
+        
+        /**
+         * Constructor
+         * @param checkpoint
+         *          the checkpoint that we write the block to
+         * @param columnMeans
+         *          the column means to subtract or null
+         * @param block
+         *          the column-major data block
+         * @param blockStart
+         *          the index of the 1st probeset in the block
+         * @param blockEnd
+         *          the index after the last probeset in the block
+         * @param colCount
+         *          the number of data columns
+         * @param componentCount
+         *          the number of variance components
+         */
+        public FitBlockTask(
+                FitCheckpoint checkpoint,
+                double[] columnMeans,
+                double[] block,
+                int blockStart,
+                int blockEnd,
+                int colCount,
+                int componentCount)
+        {
+            this.checkpoint = checkpoint;
+            this.columnMeans = columnMeans;
+            this.block = block;
+            this.blockStart = blockStart;
+            this.blockEnd = blockEnd;
+            this.colCount = colCount;
+            this.componentCount = componentCount;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public Integer call() throws IOException
+        {
+            int blockRowCount = this.blockEnd - this.blockStart;
+            int colCount = this.colCount;
+            double[] yHats = new double[blockRowCount * colCount];
+            double[] varianceComponents = new double[blockRowCount * this.componentCount];
+            double[] values = new double[colCount];
+            double[] fittedValues = new double[colCount];
+            double[] rowComponents = new double[this.componentCount];
+            ProbesetFitter fitter = BlockedFitEngine.this.createProbesetFitter();
+            
+            for(int blockRow = 0; blockRow < blockRowCount; blockRow++)
+            {
+                // transpose the row out of the column-major block
+                for(int col = 0; col < colCount; col++)
+                {
+                    double value = this.block[col * blockRowCount + blockRow];
+                    if(this.columnMeans != null)
+                    {
+                        value -= this.columnMeans[col];
+                    }
+                    values[col] = value;
+                }
+                
+                fitter.fit(values, fittedValues, rowComponents);
+                System.arraycopy(
+                        fittedValues,
+                        0,
+                        yHats,
+                        blockRow * colCount,
+                        colCount);
+                System.arraycopy(
+                        rowComponents,
+                        0,
+                        varianceComponents,
+                        blockRow * this.componentCount,
+                        this.componentCount);
+            }
+            
+            this.checkpoint.writeBlock(this.blockStart, yHats, varianceComponents);
+            return blockRowCount;
+        }
+    }
+}
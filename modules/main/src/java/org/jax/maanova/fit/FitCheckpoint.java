@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * On-disk checkpoint for a fit that is carried out in blocks of probesets.
+ * Every completed block is written to its own file so that a fit that
+ * crashes (or is killed) can pick up again from the last completed block
+ * the next time that the same fit is run against the same data.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class FitCheckpoint
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            FitCheckpoint.class.getName());
+    
+    private static final String BLOCK_FILE_PREFIX = "block-";
+    
+    private static final String BLOCK_FILE_SUFFIX = ".bin";
+    
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    
+    /**
+     * the header is the block start, row count, column count and
+     * variance component count
+     */
+    private static final int HEADER_BYTE_COUNT = 4 * 4;
+    
+    private final File directory;
+    
+    private final int colCount;
+    
+    private final int componentCount;
+    
+    /**
+     * Constructor
+     * @param directory
+     *          the directory that holds the checkpoint. This directory
+     *          should be unique to the fit (model, data and engine)
+     *          that is being checkpointed
+     * @param colCount
+     *          the number of data columns in each probeset row
+     * @param componentCount
+     *          the number of variance components that we store for each
+     *          probeset
+     */
+    public FitCheckpoint(File directory, int colCount, int componentCount)
+    {
+        this.directory = directory;
+        this.colCount = colCount;
+        this.componentCount = componentCount;
+    }
+    
+    /**
+     * Getter for the checkpoint directory
+     * @return
+     *          the directory
+     */
+    public File getDirectory()
+    {
+        return this.directory;
+    }
+    
+    /**
+     * Determine if the given block has already been completed
+     * @param blockStart
+     *          the index of the 1st probeset in the block
+     * @param blockRowCount
+     *          the number of probesets in the block
+     * @return
+     *          true if the block is in the checkpoint
+     */
+    public boolean hasBlock(int blockStart, int blockRowCount)
+    {
+        File blockFile = this.getBlockFile(blockStart);
+        if(!blockFile.isFile() ||
+           blockFile.length() != this.getBlockFileLength(blockRowCount))
+        {
+            return false;
+        }
+        
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(blockFile)));
+            try
+            {
+                return
+                    in.readInt() == blockStart &&
+                    in.readInt() == blockRowCount &&
+                    in.readInt() == this.colCount &&
+                    in.readInt() == this.componentCount;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException ex)
+        {
+            LOG.warning(
+                    "ignoring unreadable checkpoint block " +
+                    blockFile.getAbsolutePath() + ": " + ex.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Write a completed block to the checkpoint. The block is written to
+     * a partial file first and then renamed so that a crash part way
+     * through a write can't leave a corrupt block behind. This can be
+     * called concurrently for different blocks.
+     * @param blockStart
+     *          the index of the 1st probeset in the block
+     * @param yHats
+     *          the row-major fitted values for the block
+     * @param varianceComponents
+     *          the row-major variance components for the block
+     * @throws IOException
+     *          if the write fails
+     */
+    public void writeBlock(
+            int blockStart,
+            double[] yHats,
+            double[] varianceComponents) throws IOException
+    {
+        int blockRowCount = varianceComponents.length / this.componentCount;
+        if(!this.directory.isDirectory() && !this.directory.mkdirs() &&
+           !this.directory.isDirectory())
+        {
+            throw new IOException(
+                    "failed to create checkpoint directory " +
+                    this.directory.getAbsolutePath());
+        }
+        
+        File blockFile = this.getBlockFile(blockStart);
+        File partialFile = new File(
+                this.directory,
+                blockFile.getName() + PARTIAL_FILE_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(partialFile)));
+        try
+        {
+            out.writeInt(blockStart);
+            out.writeInt(blockRowCount);
+            out.writeInt(this.colCount);
+            out.writeInt(this.componentCount);
+            for(double yHat: yHats)
+            {
+                out.writeDouble(yHat);
+            }
+            for(double component: varianceComponents)
+            {
+                out.writeDouble(component);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        
+        if(!partialFile.renameTo(blockFile))
+        {
+            // renameTo won't replace an existing file on every platform
+            blockFile.delete();
+            if(!partialFile.renameTo(blockFile))
+            {
+                throw new IOException(
+                        "failed to move checkpoint block into place: " +
+                        blockFile.getAbsolutePath());
+            }
+        }
+    }
+    
+    /**
+     * Copy the fitted values for the given block to the output stream
+     * @param blockStart
+     *          the index of the 1st probeset in the block
+     * @param blockRowCount
+     *          the number of probesets in the block
+     * @param out
+     *          the stream to copy to
+     * @throws IOException
+     *          if the copy fails
+     */
+    public void copyYHats(
+            int blockStart,
+            int blockRowCount,
+            DataOutputStream out) throws IOException
+    {
+        this.copyBlockSection(
+                blockStart,
+                HEADER_BYTE_COUNT,
+                8L * blockRowCount * this.colCount,
+                out);
+    }
+    
+    /**
+     * Copy the variance components for the given block to the output stream
+     * @param blockStart
+     *          the index of the 1st probeset in the block
+     * @param blockRowCount
+     *          the number of probesets in the block
+     * @param out
+     *          the stream to copy to
+     * @throws IOException
+     *          if the copy fails
+     */
+    public void copyVarianceComponents(
+            int blockStart,
+            int blockRowCount,
+            DataOutputStream out) throws IOException
+    {
+        this.copyBlockSection(
+                blockStart,
+                HEADER_BYTE_COUNT + 8L * blockRowCount * this.colCount,
+                8L * blockRowCount * this.componentCount,
+                out);
+    }
+    
+    private void copyBlockSection(
+            int blockStart,
+            long offset,
+            long byteCount,
+            DataOutputStream out) throws IOException
+    {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(
+                this.getBlockFile(blockStart)));
+        try
+        {
+            long skipped = 0;
+            while(skipped < offset)
+            {
+                long currSkip = in.skip(offset - skipped);
+                if(currSkip <= 0)
+                {
+                    throw new IOException("unexpected end of checkpoint block");
+                }
+                skipped += currSkip;
+            }
+            
+            byte[] buffer = new byte[8192];
+            long remaining = byteCount;
+            while(remaining > 0)
+            {
+                int readCount = in.read(
+                        buffer,
+                        0,
+                        (int)Math.min(buffer.length, remaining));
+                if(readCount < 0)
+                {
+                    throw new IOException("unexpected end of checkpoint block");
+                }
+                out.write(buffer, 0, readCount);
+                remaining -= readCount;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     * Delete the checkpoint. This should be called once the fit result
+     * has made it into R
+     */
+    public void delete()
+    {
+        File[] files = this.directory.listFiles();
+        if(files != null)
+        {
+            for(File file: files)
+            {
+                if(!file.delete())
+                {
+                    LOG.warning(
+                            "failed to delete checkpoint file " +
+                            file.getAbsolutePath());
+                }
+            }
+        }
+        
+        if(this.directory.exists() && !this.directory.delete())
+        {
+            LOG.warning(
+                    "failed to delete checkpoint directory " +
+                    this.directory.getAbsolutePath());
+        }
+    }
+    
+    private File getBlockFile(int blockStart)
+    {
+        return new File(
+                this.directory,
+                BLOCK_FILE_PREFIX + blockStart + BLOCK_FILE_SUFFIX);
+    }
+    
+    private long getBlockFileLength(int blockRowCount)
+    {
+        return
+            HEADER_BYTE_COUNT +
+            8L * blockRowCount * (this.colCount + this.componentCount);
+    }
+}
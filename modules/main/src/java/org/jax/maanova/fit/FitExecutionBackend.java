@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+import org.jax.maanova.RWorkerPool;
+import org.jax.r.jriutilities.RInterface;
+
+/**
+ * The different engines that can be used to carry out a fit
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public enum FitExecutionBackend
+{
+    /**
+     * evaluate R/maanova's fitmaanova(...) function in R
+     */
+    R_MAANOVA
+    {
+        @Override
+        public boolean supportsModel(FitMaanovaCommand fitCommand)
+        {
+            return true;
+        }
+        
+        @Override
+        public BlockedFitEngine createFitEngine(
+                RInterface rInterface,
+                FitMaanovaCommand fitCommand)
+        {
+            return null;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "R/maanova";
+        }
+    },
+    
+    /**
+     * evaluate R/maanova's fitmaanova(...) function in one of the
+     * {@link RWorkerPool} processes so that several fits can run at once
+     */
+    R_WORKER_PROCESS
+    {
+        @Override
+        public boolean supportsModel(FitMaanovaCommand fitCommand)
+        {
+            return RWorkerPool.getInstance().isAvailable();
+        }
+        
+        @Override
+        public BlockedFitEngine createFitEngine(
+                RInterface rInterface,
+                FitMaanovaCommand fitCommand)
+        {
+            return null;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "R/maanova (Separate R Process)";
+        }
+    },
+    
+    /**
+     * use the multi-threaded {@link FixedEffectsFitEngine}
+     */
+    JAVA_FIXED_EFFECTS
+    {
+        @Override
+        public boolean supportsModel(FitMaanovaCommand fitCommand)
+        {
+            return FixedEffectsFitEngine.isModelSupported(fitCommand);
+        }
+        
+        @Override
+        public BlockedFitEngine createFitEngine(
+                RInterface rInterface,
+                FitMaanovaCommand fitCommand)
+        {
+            return new FixedEffectsFitEngine(rInterface, fitCommand);
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "Multi-Threaded Java (Fixed Effects Only)";
+        }
+    },
+    
+    /**
+     * use the multi-threaded {@link MixedModelFitEngine}
+     */
+    JAVA_MIXED_MODEL
+    {
+        @Override
+        public boolean supportsModel(FitMaanovaCommand fitCommand)
+        {
+            return MixedModelFitEngine.isModelSupported(fitCommand);
+        }
+        
+        @Override
+        public BlockedFitEngine createFitEngine(
+                RInterface rInterface,
+                FitMaanovaCommand fitCommand)
+        {
+            return new MixedModelFitEngine(rInterface, fitCommand);
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "Multi-Threaded Java (Mixed Models)";
+        }
+    };
+    
+    /**
+     * Determine if this backend is able to fit the model described by the
+     * given command
+     * @param fitCommand
+     *          the command
+     * @return
+     *          true if the model can be fit with this backend
+     */
+    public abstract boolean supportsModel(FitMaanovaCommand fitCommand);
+    
+    /**
+     * Create the engine that carries out the fit for this backend
+     * @param rInterface
+     *          the R interface that the fit is done against
+     * @param fitCommand
+     *          the command
+     * @return
+     *          the engine or null if the fit should be evaluated in R
+     */
+    public abstract BlockedFitEngine createFitEngine(
+            RInterface rInterface,
+            FitMaanovaCommand fitCommand);
+}
@@ -20,6 +20,8 @@ package org.jax.maanova.fit;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.jax.maanova.RWorkerJob;
+import org.jax.maanova.RWorkerPool;
 import org.jax.maanova.madata.MicroarrayExperiment;
 import org.jax.r.RAssignmentCommand;
 import org.jax.r.RCommand;
@@ -51,6 +53,8 @@ public class FitMaanovaCommand implements RCommand
     
     private volatile boolean subtractColumnMeans = false;
     
+    private volatile FitExecutionBackend backend = FitExecutionBackend.R_MAANOVA;
+    
     /**
      * Getter for the formula used by this fit
      * @return the formula
@@ -94,7 +98,7 @@ public class FitMaanovaCommand implements RCommand
      */
     public String getCommandText()
     {
-        List<RCommandParameter> commandParameters = this.getCommandParameters();
+        List<RCommandParameter> commandParameters = this.getCommandParameters(true);
         RMethodInvocationCommand fitMaanovaMethodInvocation =
             new RMethodInvocationCommand(
                     FIT_MAANOVA_METHOD_NAME,
@@ -237,13 +241,79 @@ public class FitMaanovaCommand implements RCommand
         this.subtractColumnMeans = subtractColumnMeans;
     }
 
+    /**
+     * Getter for the backend that should carry out this fit
+     * @return
+     *          the backend
+     */
+    public FitExecutionBackend getBackend()
+    {
+        return this.backend;
+    }
+    
+    /**
+     * Setter for the backend that should carry out this fit. Note that the
+     * command text is the same no matter which backend is used so that
+     * it always shows the equivalent R/maanova call
+     * @param backend
+     *          the backend
+     */
+    public void setBackend(FitExecutionBackend backend)
+    {
+        this.backend = backend;
+    }
+    
+    /**
+     * Create the job that ships this fit to an {@link RWorkerPool} worker
+     * process
+     * @return
+     *          the job
+     */
+    public RWorkerJob createWorkerJob()
+    {
+        return new RWorkerJob(
+                this,
+                new String[] {"maanova"},
+                new String[] {RWorkerJob.getRootIdentifier(
+                        this.microarrayExperiment.getAccessorExpressionString())},
+                this.fitAssigneeIdentifier);
+    }
+    
+    /**
+     * Get a canonical description of the model that this command fits.
+     * This leaves out the experiment, the result name and anything else
+     * that doesn't change the fit so that two commands with the same
+     * specification give the same result when they're applied to the same
+     * data. The R/maanova backends are treated as one since they run the
+     * same code
+     * @return
+     *          the model specification
+     */
+    public String getModelSpecification()
+    {
+        FitExecutionBackend backend = this.backend;
+        if(backend == FitExecutionBackend.R_WORKER_PROCESS)
+        {
+            backend = FitExecutionBackend.R_MAANOVA;
+        }
+        
+        RMethodInvocationCommand fitMaanovaMethodInvocation =
+            new RMethodInvocationCommand(
+                    FIT_MAANOVA_METHOD_NAME,
+                    this.getCommandParameters(false));
+        return fitMaanovaMethodInvocation.getCommandText() + "\n" +
+               backend.name();
+    }
+    
     /**
      * Getter for the command parameter list given this command's current
      * property settings
+     * @param includeInputs
+     *          if false the madata and verbose parameters are left out
      * @return
      *          the command parameters
      */
-    private List<RCommandParameter> getCommandParameters()
+    private List<RCommandParameter> getCommandParameters(boolean includeInputs)
     {
         List<RCommandParameter> commandParameters =
             new ArrayList<RCommandParameter>();
@@ -256,7 +326,7 @@ public class FitMaanovaCommand implements RCommand
 
         // madata
         MicroarrayExperiment microarrayExperiment = this.microarrayExperiment;
-        if(microarrayExperiment != null)
+        if(includeInputs && microarrayExperiment != null)
         {
             commandParameters.add(new RCommandParameter(
                     "madata",
@@ -300,9 +370,12 @@ public class FitMaanovaCommand implements RCommand
         }
         
         // verbose
-        commandParameters.add(new RCommandParameter(
-                "verbose",
-                RUtilities.javaBooleanToRBoolean(this.printVerboseOutput)));
+        if(includeInputs)
+        {
+            commandParameters.add(new RCommandParameter(
+                    "verbose",
+                    RUtilities.javaBooleanToRBoolean(this.printVerboseOutput)));
+        }
         
         // subCol
         commandParameters.add(new RCommandParameter(
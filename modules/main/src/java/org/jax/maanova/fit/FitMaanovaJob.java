@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+import java.awt.GraphicsEnvironment;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jax.maanova.AnalysisResultCache;
+import org.jax.maanova.Maanova;
+import org.jax.maanova.RWorkerJob;
+import org.jax.maanova.RWorkerOutputListener;
+import org.jax.maanova.RWorkerPool;
+import org.jax.maanova.job.AnalysisJob;
+import org.jax.maanova.job.AnalysisJobPriority;
+import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.project.MaanovaProjectManager;
+import org.jax.r.jriutilities.RInterface;
+
+/**
+ * An {@link AnalysisJob} that carries out a {@link FitMaanovaCommand}
+ * using whichever {@link FitExecutionBackend} the command asks for. Fits
+ * that run in a Java engine or in an R worker process can be canceled
+ * and report their progress. Fits in the interactive R session can only
+ * be canceled while they're queued
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class FitMaanovaJob extends AnalysisJob
+{
+    /**
+     * matches the lines that fitmaanova(...) prints in verbose mode to say
+     * how many genes it has gotten through
+     */
+    private static final Pattern GENE_PROGRESS_PATTERN = Pattern.compile(
+            "gene number\\D*(\\d+)",
+            Pattern.CASE_INSENSITIVE);
+    
+    private final RInterface rInterface;
+    
+    private final FitMaanovaCommand fitCommand;
+    
+    private volatile BlockedFitEngine fitEngine = null;
+    
+    private volatile RWorkerJob workerJob = null;
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface to fit against
+     * @param fitCommand
+     *          the fit to do
+     * @param priority
+     *          the priority to queue the fit with
+     */
+    public FitMaanovaJob(
+            RInterface rInterface,
+            FitMaanovaCommand fitCommand,
+            AnalysisJobPriority priority)
+    {
+        super("Fit " + fitCommand.getFitAssigneeIdentifier(), priority);
+        this.rInterface = rInterface;
+        this.fitCommand = fitCommand;
+    }
+    
+    /**
+     * Getter for the fit that this job does
+     * @return
+     *          the fit command
+     */
+    public FitMaanovaCommand getFitCommand()
+    {
+        return this.fitCommand;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelableWhileRunning()
+    {
+        return this.fitCommand.getBackend() != FitExecutionBackend.R_MAANOVA;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRunInWorkerProcess()
+    {
+        return this.fitCommand.getBackend() == FitExecutionBackend.R_WORKER_PROCESS;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void cancelExecution()
+    {
+        BlockedFitEngine fitEngine = this.fitEngine;
+        if(fitEngine != null)
+        {
+            fitEngine.cancel();
+        }
+        
+        RWorkerJob workerJob = this.workerJob;
+        if(workerJob != null)
+        {
+            RWorkerPool.getInstance().cancel(workerJob);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void execute() throws Exception
+    {
+        // there's no need to fit at all if we already have the result
+        AnalysisResultCache resultCache = AnalysisResultCache.getInstance();
+        String cacheKey = resultCache.getFitKey(this.rInterface, this.fitCommand);
+        if(cacheKey == null || !resultCache.restore(
+                this.rInterface,
+                cacheKey,
+                this.fitCommand.getFitAssigneeIdentifier()))
+        {
+            this.fit();
+            if(cacheKey != null)
+            {
+                resultCache.store(
+                        this.rInterface,
+                        cacheKey,
+                        this.fitCommand.getFitAssigneeIdentifier());
+            }
+        }
+        
+        MaanovaProjectManager projectManager = MaanovaProjectManager.getInstance();
+        projectManager.notifyActiveProjectModified();
+        projectManager.refreshProjectDataStructures();
+    }
+    
+    private void fit() throws Exception
+    {
+        FitMaanovaCommand fitCommand = this.fitCommand;
+        BlockedFitEngine fitEngine = fitCommand.getBackend().createFitEngine(
+                this.rInterface,
+                fitCommand);
+        if(fitEngine != null)
+        {
+            this.fitEngine = fitEngine;
+            this.trackProgressOf(fitEngine);
+            if(this.isCanceled())
+            {
+                fitEngine.cancel();
+            }
+            
+            // there's no application frame to show progress in when we're
+            // running headless
+            if(!GraphicsEnvironment.isHeadless())
+            {
+                Maanova.getInstance().getApplicationFrame().getTaskProgressPanel().addTaskToTrack(
+                        fitEngine,
+                        true);
+            }
+            fitEngine.fit();
+        }
+        else if(fitCommand.getBackend() == FitExecutionBackend.R_WORKER_PROCESS)
+        {
+            RWorkerJob workerJob = fitCommand.createWorkerJob();
+            MicroarrayExperiment experiment = fitCommand.getMicroarrayExperiment();
+            if(fitCommand.getPrintVerboseOutput() && experiment != null)
+            {
+                final int geneCount = experiment.getGeneCount();
+                this.setProgress(0, geneCount);
+                workerJob.addOutputListener(new RWorkerOutputListener()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    public void outputLineRead(RWorkerJob job, String line)
+                    {
+                        Matcher matcher = GENE_PROGRESS_PATTERN.matcher(line);
+                        if(matcher.find())
+                        {
+                            FitMaanovaJob.this.setProgress(
+                                    Math.min(
+                                            geneCount,
+                                            Integer.parseInt(matcher.group(1))),
+                                    geneCount);
+                        }
+                    }
+                });
+            }
+            
+            this.workerJob = workerJob;
+            RWorkerPool workerPool = RWorkerPool.getInstance();
+            if(this.isCanceled())
+            {
+                workerPool.cancel(workerJob);
+            }
+            RWorkerPool.waitForJob(workerPool.submit(workerJob));
+        }
+        else
+        {
+            this.rInterface.evaluateCommand(fitCommand);
+        }
+    }
+}
@@ -24,6 +24,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.madata.ProbesetDictionary;
+import org.jax.maanova.project.LazyRObjectRegistry;
 import org.jax.r.RCommandParameter;
 import org.jax.r.RMethodInvocationCommand;
 import org.jax.r.RSyntaxException;
@@ -65,6 +67,11 @@ public class FitMaanovaResult extends RObject
     
     private final MicroarrayExperiment parentExperiment;
     
+    /**
+     * lazily pulled out of R. Guarded by this
+     */
+    private ProbesetDictionary probesetDictionary = null;
+    
     /**
      * Constructor
      * @param parentExperiment
@@ -177,11 +184,28 @@ public class FitMaanovaResult extends RObject
      */
     public String[] getProbesetIds()
     {
-        SilentRCommand probesetIdsCommand = new SilentRCommand(
-                this.probesetIdAccessor());
-        REXP probesetIdsExpr = this.getRInterface().evaluateCommand(
-                probesetIdsCommand);
-        return probesetIdsExpr.asStringArray();
+        return this.getProbesetDictionary().getProbesetIds();
+    }
+    
+    /**
+     * Get the dictionary of this fit's probeset IDs. This is shared with
+     * the parent experiment as long as the IDs are the same
+     * @return
+     *          the dictionary
+     */
+    public synchronized ProbesetDictionary getProbesetDictionary()
+    {
+        if(this.probesetDictionary == null)
+        {
+            SilentRCommand probesetIdsCommand = new SilentRCommand(
+                    this.probesetIdAccessor());
+            REXP probesetIdsExpr = this.getRInterface().evaluateCommand(
+                    probesetIdsCommand);
+            this.probesetDictionary = this.parentExperiment.internProbesetIds(
+                    probesetIdsExpr.asStringArray());
+        }
+        
+        return this.probesetDictionary;
     }
     
     /**
@@ -192,13 +216,7 @@ public class FitMaanovaResult extends RObject
      */
     public String getProbesetId(int probesetIndex)
     {
-        SilentRCommand probesetIdCommand = new SilentRCommand(
-                RUtilities.indexExpression(
-                        this.probesetIdAccessor(),
-                        probesetIndex));
-        REXP probesetIdsExpr = this.getRInterface().evaluateCommand(
-                probesetIdCommand);
-        return probesetIdsExpr.asString();
+        return this.getProbesetDictionary().getProbesetId(probesetIndex);
     }
     
     private String probesetIdAccessor()
@@ -213,7 +231,8 @@ public class FitMaanovaResult extends RObject
     }
     
     /**
-     * Get all of the top-level R objects whose class is {@value #R_CLASS_STRING}
+     * Get all of the top-level R objects whose class is {@value #R_CLASS_STRING}.
+     * This doesn't read objects from a lazily loaded project into R
      * @param rInterface
      *          the R interface to extract the objects from
      * @return
@@ -221,7 +240,7 @@ public class FitMaanovaResult extends RObject
      */
     public static List<RObject> getAllFitRObjects(RInterface rInterface)
     {
-        List<RObject> fitIdentifiers = JRIUtilityFunctions.getTopLevelObjectsOfType(
+        List<RObject> fitIdentifiers = LazyRObjectRegistry.getTopLevelObjectsOfType(
                 rInterface,
                 R_CLASS_STRING);
         
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jax.r.jriutilities.RInterface;
+
+/**
+ * A pure Java alternative to R/maanova's fitmaanova(...) for models that
+ * only have fixed effects. Every probeset shares the same design matrix
+ * so the least squares projection is worked out once and then applied to
+ * each probeset in parallel across all of the available processors.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class FixedEffectsFitEngine extends BlockedFitEngine
+{
+    private volatile ModelDesignMatrix designMatrix = null;
+    
+    private volatile LeastSquaresProjector completeProjector = null;
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the data comes from and that the
+     *          result is assigned in
+     * @param fitCommand
+     *          the fit command describing the model (see
+     *          {@link #isModelSupported(FitMaanovaCommand)})
+     */
+    public FixedEffectsFitEngine(
+            RInterface rInterface,
+            FitMaanovaCommand fitCommand)
+    {
+        this(rInterface,
+             fitCommand,
+             Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the data comes from and that the
+     *          result is assigned in
+     * @param fitCommand
+     *          the fit command describing the model (see
+     *          {@link #isModelSupported(FitMaanovaCommand)})
+     * @param threadCount
+     *          the number of worker threads to fit with
+     */
+    public FixedEffectsFitEngine(
+            RInterface rInterface,
+            FitMaanovaCommand fitCommand,
+            int threadCount)
+    {
+        super(rInterface, fitCommand, threadCount);
+    }
+    
+    /**
+     * Determine if the model described by the given command can be fit
+     * by this engine
+     * @param fitCommand
+     *          the command
+     * @return
+     *          true if the model has no random terms
+     */
+    public static boolean isModelSupported(FitMaanovaCommand fitCommand)
+    {
+        InteractivePredictor[] randomPredictors =
+            fitCommand.getRandomPredictors();
+        return randomPredictors == null || randomPredictors.length == 0;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isModelSupported()
+    {
+        return isModelSupported(this.getFitCommand());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void prepare(String[] designFactors, String[][] designData)
+    {
+        InteractivePredictor[] covariates =
+            this.getFitCommand().getCovariatePredictors();
+        if(covariates == null)
+        {
+            covariates = new InteractivePredictor[0];
+        }
+        this.designMatrix = ModelDesignMatrix.create(
+                designFactors,
+                designData,
+                this.getFitCommand().getFormula(),
+                covariates);
+        this.completeProjector = new LeastSquaresProjector(
+                this.designMatrix.getMatrix(),
+                null);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ProbesetFitter createProbesetFitter()
+    {
+        return new LeastSquaresFitter(this.designMatrix, this.completeProjector);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String[] getVarianceComponentNames()
+    {
+        return null;
+    }
+    
+    /**
+     * Fits probesets by least squares. Probesets with missing values get
+     * a projector that only uses their observed values. Those projectors
+     * are cached by missing value pattern but only for the most recently
+     * used patterns since each projector holds an n x m matrix and data
+     * with scattered NAs can have a different pattern for almost every
+     * probeset.
+     */
+    private static class LeastSquaresFitter implements ProbesetFitter
+    {
+        /**
+         * the most missing value patterns that we hold projectors for
+         */
+        private static final int MAX_CACHED_PROJECTORS = 32;
+        
+        private final ModelDesignMatrix designMatrix;
+        
+        private final LeastSquaresProjector completeProjector;
+        
+        /**
+         * we hold the projectors in access order so the eldest entry is
+         * the least recently used one
+         */
+        private final Map<BitSet, LeastSquaresProjector> partialProjectors =
+            new LinkedHashMap<BitSet, LeastSquaresProjector>(16, 0.75F, true)
+            {
+                /**
+                 * every {@link java.io.Serializable} is supposed to have one of these
+                 */
+                private static final long serialVersionUID = 4186538429771720153L;
+                
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<BitSet, LeastSquaresProjector> eldest)
+                {
+                    return this.size() > MAX_CACHED_PROJECTORS;
+                }
+            };
+        
+        /**
+         * Constructor
+         * @param designMatrix
+         *          the design matrix
+         * @param completeProjector
+         *          the projector to use when there are no missing values
+         */
+        public LeastSquaresFitter(
+                ModelDesignMatrix designMatrix,
+                LeastSquaresProjector completeProjector)
+        {
+            this.designMatrix = designMatrix;
+            this.completeProjector = completeProjector;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public void fit(
+                double[] values,
+                double[] fittedValues,
+                double[] varianceComponents)
+        {
+            int colCount = values.length;
+            BitSet missing = null;
+            for(int col = 0; col < colCount; col++)
+            {
+                if(Double.isNaN(values[col]))
+                {
+                    if(missing == null)
+                    {
+                        missing = new BitSet(colCount);
+                    }
+                    missing.set(col);
+                }
+            }
+            
+            LeastSquaresProjector projector;
+            if(missing == null)
+            {
+                projector = this.completeProjector;
+            }
+            else
+            {
+                projector = this.partialProjectors.get(missing);
+                if(projector == null)
+                {
+                    boolean[] observed = new boolean[colCount];
+                    for(int col = 0; col < colCount; col++)
+                    {
+                        observed[col] = !missing.get(col);
+                    }
+                    projector = new LeastSquaresProjector(
+                            this.designMatrix.getMatrix(),
+                            observed);
+                    this.partialProjectors.put(missing, projector);
+                }
+            }
+            
+            double rss = projector.fit(values, fittedValues);
+            int df = projector.getResidualDegreesOfFreedom();
+            varianceComponents[0] = df > 0 ? rss / df : Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+/**
+ * Least squares projection for a fixed design matrix. All of the matrix
+ * work is done up front in the constructor so that projecting a
+ * probeset's values only costs one matrix-vector product. Instances are
+ * immutable and can be shared between threads.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class LeastSquaresProjector
+{
+    private final int[] observedRows;
+    
+    private final int rank;
+    
+    /**
+     * maps the observed values to fitted values for every row. this is
+     * rowCount x observedRows.length
+     */
+    private final double[][] projection;
+    
+    /**
+     * Constructor
+     * @param designMatrix
+     *          the row-major design matrix
+     * @param observed
+     *          the rows that are observed or null if they all are. Only
+     *          observed rows are used for the fit but fitted values are
+     *          calculated for every row
+     */
+    public LeastSquaresProjector(double[][] designMatrix, boolean[] observed)
+    {
+        int rowCount = designMatrix.length;
+        int colCount = rowCount == 0 ? 0 : designMatrix[0].length;
+        
+        int observedCount = 0;
+        for(int row = 0; row < rowCount; row++)
+        {
+            if(observed == null || observed[row])
+            {
+                observedCount++;
+            }
+        }
+        this.observedRows = new int[observedCount];
+        for(int row = 0, i = 0; row < rowCount; row++)
+        {
+            if(observed == null || observed[row])
+            {
+                this.observedRows[i++] = row;
+            }
+        }
+        
+        // use Gram-Schmidt over the observed rows to find a set of linearly
+        // independent columns
+        double[][] observedColumns = new double[colCount][observedCount];
+        for(int col = 0; col < colCount; col++)
+        {
+            for(int i = 0; i < observedCount; i++)
+            {
+                observedColumns[col][i] = designMatrix[this.observedRows[i]][col];
+            }
+        }
+        int[] independentCols = new int[colCount];
+        double[][] basis = LinearAlgebra.gramSchmidt(
+                observedColumns,
+                independentCols);
+        int rank = basis.length;
+        this.rank = rank;
+        
+        // the independent columns span the same space as the orthonormal
+        // basis so the fitted values for the observed rows are Q Q' y. To
+        // get fitted values for unobserved rows too we need the coefficients
+        // b = (Xs' Xs)^-1 Xs' y which we get by solving R b = Q' y where
+        // Q R = Xs
+        double[][] r = new double[rank][rank];
+        for(int i = 0; i < rank; i++)
+        {
+            double[] xCol = observedColumns[independentCols[i]];
+            for(int b = 0; b <= i; b++)
+            {
+                r[b][i] = LinearAlgebra.dot(basis[b], xCol);
+            }
+        }
+        
+        // coefficientMap = R^-1 Q' which is rank x observedCount
+        double[][] coefficientMap = new double[rank][observedCount];
+        for(int j = 0; j < observedCount; j++)
+        {
+            for(int i = rank - 1; i >= 0; i--)
+            {
+                double sum = basis[i][j];
+                for(int k = i + 1; k < rank; k++)
+                {
+                    sum -= r[i][k] * coefficientMap[k][j];
+                }
+                coefficientMap[i][j] = sum / r[i][i];
+            }
+        }
+        
+        this.projection = new double[rowCount][observedCount];
+        for(int row = 0; row < rowCount; row++)
+        {
+            double[] projectionRow = this.projection[row];
+            for(int i = 0; i < rank; i++)
+            {
+                double x = designMatrix[row][independentCols[i]];
+                if(x != 0.0)
+                {
+                    double[] coefficientRow = coefficientMap[i];
+                    for(int j = 0; j < observedCount; j++)
+                    {
+                        projectionRow[j] += x * coefficientRow[j];
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Getter for the rank of the observed part of the design matrix
+     * @return
+     *          the rank
+     */
+    public int getRank()
+    {
+        return this.rank;
+    }
+    
+    /**
+     * Getter for the residual degrees of freedom
+     * @return
+     *          the degrees of freedom
+     */
+    public int getResidualDegreesOfFreedom()
+    {
+        return this.observedRows.length - this.rank;
+    }
+    
+    /**
+     * Fit the given values
+     * @param values
+     *          the values for a single probeset (one per design row).
+     *          Only the observed rows are read
+     * @param fittedValues
+     *          the array that the fitted values are written to (one per
+     *          design row)
+     * @return
+     *          the residual sum of squares over the observed rows
+     */
+    public double fit(double[] values, double[] fittedValues)
+    {
+        int[] observedRows = this.observedRows;
+        for(int row = 0; row < fittedValues.length; row++)
+        {
+            double[] projectionRow = this.projection[row];
+            double sum = 0.0;
+            for(int j = 0; j < observedRows.length; j++)
+            {
+                sum += projectionRow[j] * values[observedRows[j]];
+            }
+            fittedValues[row] = sum;
+        }
+        
+        double rss = 0.0;
+        for(int j = 0; j < observedRows.length; j++)
+        {
+            double residual =
+                values[observedRows[j]] - fittedValues[observedRows[j]];
+            rss += residual * residual;
+        }
+        
+        return rss;
+    }
+}
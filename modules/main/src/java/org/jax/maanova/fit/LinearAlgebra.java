@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+/**
+ * The small set of dense linear algebra routines that the Java fit engines
+ * need. The matrices involved are only as big as the number of arrays in
+ * an experiment so simple textbook algorithms are good enough here.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+final class LinearAlgebra
+{
+    /**
+     * columns whose norm drops below this fraction of their original norm
+     * after orthogonalization are treated as linearly dependent
+     */
+    static final double RANK_TOLERANCE = 1e-9;
+    
+    private static final int MAX_JACOBI_SWEEPS = 100;
+    
+    /**
+     * private constructor. this is a static utility class
+     */
+    private LinearAlgebra()
+    {
+    }
+    
+    /**
+     * Orthonormalize the given vectors using (modified) Gram-Schmidt
+     * skipping any vectors that are linearly dependent on the ones that
+     * came before them
+     * @param vectors
+     *          the vectors to orthonormalize (these aren't modified)
+     * @param independentIndicesOut
+     *          if not null the indices of the independent vectors are
+     *          written here
+     * @return
+     *          the orthonormal basis (one array per basis vector)
+     */
+    static double[][] gramSchmidt(double[][] vectors, int[] independentIndicesOut)
+    {
+        double[][] basis = new double[vectors.length][];
+        int rank = 0;
+        for(int vecIndex = 0; vecIndex < vectors.length; vecIndex++)
+        {
+            double[] v = vectors[vecIndex].clone();
+            double originalNorm = norm(v);
+            if(originalNorm == 0.0)
+            {
+                continue;
+            }
+            
+            for(int b = 0; b < rank; b++)
+            {
+                double dot = dot(basis[b], v);
+                double[] basisVec = basis[b];
+                for(int i = 0; i < v.length; i++)
+                {
+                    v[i] -= dot * basisVec[i];
+                }
+            }
+            
+            double remainingNorm = norm(v);
+            if(remainingNorm > RANK_TOLERANCE * originalNorm)
+            {
+                for(int i = 0; i < v.length; i++)
+                {
+                    v[i] /= remainingNorm;
+                }
+                if(independentIndicesOut != null)
+                {
+                    independentIndicesOut[rank] = vecIndex;
+                }
+                basis[rank] = v;
+                rank++;
+            }
+        }
+        
+        double[][] trimmedBasis = new double[rank][];
+        System.arraycopy(basis, 0, trimmedBasis, 0, rank);
+        return trimmedBasis;
+    }
+    
+    /**
+     * Get an orthonormal basis for the orthogonal complement of the space
+     * spanned by the given orthonormal basis
+     * @param basis
+     *          the orthonormal basis vectors (each of length n)
+     * @param n
+     *          the dimension of the full space
+     * @return
+     *          the n - basis.length complement vectors
+     */
+    static double[][] orthogonalComplement(double[][] basis, int n)
+    {
+        // run Gram-Schmidt over the basis followed by the standard basis
+        // vectors. everything that survives after the given basis spans the
+        // complement
+        double[][] vectors = new double[basis.length + n][];
+        System.arraycopy(basis, 0, vectors, 0, basis.length);
+        for(int i = 0; i < n; i++)
+        {
+            vectors[basis.length + i] = new double[n];
+            vectors[basis.length + i][i] = 1.0;
+        }
+        
+        double[][] fullBasis = gramSchmidt(vectors, null);
+        double[][] complement = new double[fullBasis.length - basis.length][];
+        System.arraycopy(
+                fullBasis,
+                basis.length,
+                complement,
+                0,
+                complement.length);
+        return complement;
+    }
+    
+    /**
+     * Cholesky decomposition of a symmetric positive definite matrix
+     * @param a
+     *          the matrix (not modified)
+     * @return
+     *          the lower triangular factor or null if the matrix isn't
+     *          positive definite
+     */
+    static double[][] cholesky(double[][] a)
+    {
+        int n = a.length;
+        double[][] l = new double[n][n];
+        for(int i = 0; i < n; i++)
+        {
+            double[] li = l[i];
+            for(int j = 0; j <= i; j++)
+            {
+                double[] lj = l[j];
+                double sum = a[i][j];
+                for(int k = 0; k < j; k++)
+                {
+                    sum -= li[k] * lj[k];
+                }
+                
+                if(i == j)
+                {
+                    if(sum <= 0.0 || Double.isNaN(sum))
+                    {
+                        return null;
+                    }
+                    li[i] = Math.sqrt(sum);
+                }
+                else
+                {
+                    li[j] = sum / lj[j];
+                }
+            }
+        }
+        
+        return l;
+    }
+    
+    /**
+     * Solve L L' x = b for x
+     * @param l
+     *          the cholesky factor
+     * @param b
+     *          the right hand side (not modified)
+     * @return
+     *          x
+     */
+    static double[] choleskySolve(double[][] l, double[] b)
+    {
+        int n = l.length;
+        double[] x = b.clone();
+        
+        // forward substitution: L z = b
+        for(int i = 0; i < n; i++)
+        {
+            double sum = x[i];
+            double[] li = l[i];
+            for(int k = 0; k < i; k++)
+            {
+                sum -= li[k] * x[k];
+            }
+            x[i] = sum / li[i];
+        }
+        
+        // back substitution: L' x = z
+        for(int i = n - 1; i >= 0; i--)
+        {
+            double sum = x[i];
+            for(int k = i + 1; k < n; k++)
+            {
+                sum -= l[k][i] * x[k];
+            }
+            x[i] = sum / l[i][i];
+        }
+        
+        return x;
+    }
+    
+    /**
+     * Get the inverse of L L'
+     * @param l
+     *          the cholesky factor
+     * @return
+     *          the (symmetric) inverse
+     */
+    static double[][] choleskyInverse(double[][] l)
+    {
+        int n = l.length;
+        double[][] inverse = new double[n][];
+        double[] unit = new double[n];
+        for(int i = 0; i < n; i++)
+        {
+            unit[i] = 1.0;
+            inverse[i] = choleskySolve(l, unit);
+            unit[i] = 0.0;
+        }
+        
+        return inverse;
+    }
+    
+    /**
+     * Get the log of the determinant of L L'
+     * @param l
+     *          the cholesky factor
+     * @return
+     *          the log determinant
+     */
+    static double choleskyLogDeterminant(double[][] l)
+    {
+        double logDet = 0.0;
+        for(int i = 0; i < l.length; i++)
+        {
+            logDet += Math.log(l[i][i]);
+        }
+        
+        return 2.0 * logDet;
+    }
+    
+    /**
+     * Multiply a matrix by a vector
+     * @param a
+     *          the row-major matrix
+     * @param x
+     *          the vector
+     * @return
+     *          A x
+     */
+    static double[] multiply(double[][] a, double[] x)
+    {
+        double[] result = new double[a.length];
+        for(int i = 0; i < a.length; i++)
+        {
+            result[i] = dot(a[i], x);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Eigenvalues and eigenvectors of a symmetric matrix using the cyclic
+     * Jacobi method
+     * @param a
+     *          the symmetric matrix (not modified)
+     * @param eigenvectorsOut
+     *          if not null this n x n matrix gets the eigenvectors as its
+     *          rows (so row k goes with eigenvalue k)
+     * @return
+     *          the eigenvalues
+     */
+    static double[] symmetricEigen(double[][] a, double[][] eigenvectorsOut)
+    {
+        int n = a.length;
+        double[][] m = new double[n][];
+        for(int i = 0; i < n; i++)
+        {
+            m[i] = a[i].clone();
+        }
+        
+        double[][] v = eigenvectorsOut;
+        if(v != null)
+        {
+            for(int i = 0; i < n; i++)
+            {
+                for(int j = 0; j < n; j++)
+                {
+                    v[i][j] = i == j ? 1.0 : 0.0;
+                }
+            }
+        }
+        
+        for(int sweep = 0; sweep < MAX_JACOBI_SWEEPS; sweep++)
+        {
+            double offDiagonal = 0.0;
+            double diagonal = 0.0;
+            for(int i = 0; i < n; i++)
+            {
+                diagonal += m[i][i] * m[i][i];
+                for(int j = i + 1; j < n; j++)
+                {
+                    offDiagonal += m[i][j] * m[i][j];
+                }
+            }
+            if(offDiagonal <= 1e-30 * (diagonal + 1e-300))
+            {
+                break;
+            }
+            
+            for(int p = 0; p < n; p++)
+            {
+                for(int q = p + 1; q < n; q++)
+                {
+                    double apq = m[p][q];
+                    if(apq == 0.0)
+                    {
+                        continue;
+                    }
+                    
+                    double theta = (m[q][q] - m[p][p]) / (2.0 * apq);
+                    double t = Math.signum(theta) /
+                        (Math.abs(theta) + Math.sqrt(theta * theta + 1.0));
+                    if(theta == 0.0)
+                    {
+                        t = 1.0;
+                    }
+                    double c = 1.0 / Math.sqrt(t * t + 1.0);
+                    double s = t * c;
+                    
+                    for(int k = 0; k < n; k++)
+                    {
+                        double mkp = m[k][p];
+                        double mkq = m[k][q];
+                        m[k][p] = c * mkp - s * mkq;
+                        m[k][q] = s * mkp + c * mkq;
+                    }
+                    for(int k = 0; k < n; k++)
+                    {
+                        double mpk = m[p][k];
+                        double mqk = m[q][k];
+                        m[p][k] = c * mpk - s * mqk;
+                        m[q][k] = s * mpk + c * mqk;
+                    }
+                    
+                    if(v != null)
+                    {
+                        double[] vp = v[p];
+                        double[] vq = v[q];
+                        for(int k = 0; k < n; k++)
+                        {
+                            double vpk = vp[k];
+                            double vqk = vq[k];
+                            vp[k] = c * vpk - s * vqk;
+                            vq[k] = s * vpk + c * vqk;
+                        }
+                    }
+                }
+            }
+        }
+        
+        double[] eigenvalues = new double[n];
+        for(int i = 0; i < n; i++)
+        {
+            eigenvalues[i] = m[i][i];
+        }
+        
+        return eigenvalues;
+    }
+    
+    /**
+     * Dot product
+     * @param v1
+     *          the 1st vector
+     * @param v2
+     *          the 2nd vector
+     * @return
+     *          the dot product
+     */
+    static double dot(double[] v1, double[] v2)
+    {
+        double sum = 0.0;
+        for(int i = 0; i < v1.length; i++)
+        {
+            sum += v1[i] * v2[i];
+        }
+        return sum;
+    }
+    
+    /**
+     * Euclidean norm
+     * @param v
+     *          the vector
+     * @return
+     *          the norm
+     */
+    static double norm(double[] v)
+    {
+        return Math.sqrt(dot(v, v));
+    }
+}
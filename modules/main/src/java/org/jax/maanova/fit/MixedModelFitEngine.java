@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jax.r.jriutilities.RInterface;
+
+/**
+ * A pure Java alternative to R/maanova's fitmaanova(...) for mixed models
+ * using REML or ML. The variance components are estimated per probeset
+ * (see {@link MixedModelSolver}) in parallel across all of the available
+ * processors. The design dependent part of the solution is shared between
+ * all of the probesets that have the same missing value pattern (for the
+ * most recently used patterns).
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class MixedModelFitEngine extends BlockedFitEngine
+{
+    /**
+     * the name that R/maanova uses for the error variance component
+     */
+    private static final String ERROR_COMPONENT_NAME = "Error";
+    
+    /**
+     * the most missing value patterns that we hold solvers for. Each solver
+     * holds matrices that are quadratic in the number of arrays and data
+     * with scattered NAs can have a different pattern for almost every
+     * probeset so we can't hold on to all of them
+     */
+    private static final int MAX_CACHED_SOLVERS = 64;
+    
+    /**
+     * the solvers in access order so the eldest entry is the least
+     * recently used one. Guarded by itself
+     */
+    private final Map<BitSet, MixedModelSolver> solvers =
+        new LinkedHashMap<BitSet, MixedModelSolver>(16, 0.75F, true)
+        {
+            /**
+             * every {@link java.io.Serializable} is supposed to have one of these
+             */
+            private static final long serialVersionUID = -2719264810832262473L;
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<BitSet, MixedModelSolver> eldest)
+            {
+                return this.size() > MAX_CACHED_SOLVERS;
+            }
+        };
+    
+    private volatile double[][] fixedMatrix = null;
+    
+    private volatile int[][] randomLevels = null;
+    
+    private volatile int[] randomLevelCounts = null;
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the data comes from and that the
+     *          result is assigned in
+     * @param fitCommand
+     *          the fit command describing the model (see
+     *          {@link #isModelSupported(FitMaanovaCommand)})
+     */
+    public MixedModelFitEngine(
+            RInterface rInterface,
+            FitMaanovaCommand fitCommand)
+    {
+        this(rInterface,
+             fitCommand,
+             Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the data comes from and that the
+     *          result is assigned in
+     * @param fitCommand
+     *          the fit command describing the model (see
+     *          {@link #isModelSupported(FitMaanovaCommand)})
+     * @param threadCount
+     *          the number of worker threads to fit with
+     */
+    public MixedModelFitEngine(
+            RInterface rInterface,
+            FitMaanovaCommand fitCommand,
+            int threadCount)
+    {
+        super(rInterface, fitCommand, threadCount);
+    }
+    
+    /**
+     * Determine if the model described by the given command can be fit
+     * by this engine
+     * @param fitCommand
+     *          the command
+     * @return
+     *          true if the model has random terms and none of them are
+     *          covariates
+     */
+    public static boolean isModelSupported(FitMaanovaCommand fitCommand)
+    {
+        InteractivePredictor[] randomPredictors =
+            fitCommand.getRandomPredictors();
+        if(randomPredictors == null || randomPredictors.length == 0)
+        {
+            return false;
+        }
+        
+        InteractivePredictor[] covariates = fitCommand.getCovariatePredictors();
+        if(covariates != null)
+        {
+            for(InteractivePredictor randomPredictor: randomPredictors)
+            {
+                for(String randomTerm: randomPredictor.getInteractiveTerms())
+                {
+                    for(InteractivePredictor covariate: covariates)
+                    {
+                        for(String covariateTerm: covariate.getInteractiveTerms())
+                        {
+                            if(randomTerm.equals(covariateTerm))
+                            {
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isModelSupported()
+    {
+        return isModelSupported(this.getFitCommand());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void prepare(String[] designFactors, String[][] designData)
+    {
+        FitMaanovaCommand fitCommand = this.getFitCommand();
+        InteractivePredictor[] covariates = fitCommand.getCovariatePredictors();
+        if(covariates == null)
+        {
+            covariates = new InteractivePredictor[0];
+        }
+        InteractivePredictor[] randomPredictors = fitCommand.getRandomPredictors();
+        
+        // the fixed part of the model is everything in the formula that
+        // isn't random
+        List<InteractivePredictor> fixedPredictors =
+            new ArrayList<InteractivePredictor>();
+        for(InteractivePredictor predictor: fitCommand.getFormula())
+        {
+            boolean isRandom = false;
+            for(InteractivePredictor randomPredictor: randomPredictors)
+            {
+                if(randomPredictor.equals(predictor))
+                {
+                    isRandom = true;
+                    break;
+                }
+            }
+            
+            if(!isRandom)
+            {
+                fixedPredictors.add(predictor);
+            }
+        }
+        this.fixedMatrix = ModelDesignMatrix.create(
+                designFactors,
+                designData,
+                fixedPredictors.toArray(new InteractivePredictor[fixedPredictors.size()]),
+                covariates).getMatrix();
+        
+        // random terms are represented by the level index of each row. we
+        // borrow the design matrix indicator columns to work them out
+        int rowCount = designData.length;
+        int[][] randomLevels = new int[randomPredictors.length][rowCount];
+        int[] randomLevelCounts = new int[randomPredictors.length];
+        for(int k = 0; k < randomPredictors.length; k++)
+        {
+            ModelDesignMatrix randomMatrix = ModelDesignMatrix.create(
+                    designFactors,
+                    designData,
+                    new InteractivePredictor[] {randomPredictors[k]},
+                    new InteractivePredictor[0]);
+            double[][] matrix = randomMatrix.getMatrix();
+            
+            // column 0 is the intercept
+            randomLevelCounts[k] = randomMatrix.getColumnCount() - 1;
+            for(int row = 0; row < rowCount; row++)
+            {
+                for(int col = 1; col < matrix[row].length; col++)
+                {
+                    if(matrix[row][col] != 0.0)
+                    {
+                        randomLevels[k][row] = col - 1;
+                        break;
+                    }
+                }
+            }
+        }
+        this.randomLevels = randomLevels;
+        this.randomLevelCounts = randomLevelCounts;
+        synchronized(this.solvers)
+        {
+            this.solvers.clear();
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ProbesetFitter createProbesetFitter()
+    {
+        return new ProbesetFitter()
+        {
+            private final BitSet noneMissing = new BitSet();
+            
+            public void fit(
+                    double[] values,
+                    double[] fittedValues,
+                    double[] varianceComponents)
+            {
+                BitSet missing = this.noneMissing;
+                for(int col = 0; col < values.length; col++)
+                {
+                    if(Double.isNaN(values[col]))
+                    {
+                        if(missing == this.noneMissing)
+                        {
+                            missing = new BitSet(values.length);
+                        }
+                        missing.set(col);
+                    }
+                }
+                
+                MixedModelFitEngine.this.getSolver(missing).fit(
+                        values,
+                        fittedValues,
+                        varianceComponents);
+            }
+        };
+    }
+    
+    /**
+     * Get the solver for the given missing value pattern creating it if
+     * this is the 1st time that we've seen the pattern
+     * @param missing
+     *          the missing values (this should not be modified afterwards)
+     * @return
+     *          the solver
+     */
+    private MixedModelSolver getSolver(BitSet missing)
+    {
+        MixedModelSolver solver;
+        synchronized(this.solvers)
+        {
+            solver = this.solvers.get(missing);
+        }
+        
+        if(solver == null)
+        {
+            boolean[] observed = null;
+            if(!missing.isEmpty())
+            {
+                observed = new boolean[this.fixedMatrix.length];
+                for(int row = 0; row < observed.length; row++)
+                {
+                    observed[row] = !missing.get(row);
+                }
+            }
+            
+            MixedModelSolutionMethod method = this.getFitCommand().getMethod();
+            solver = new MixedModelSolver(
+                    this.fixedMatrix,
+                    this.randomLevels,
+                    this.randomLevelCounts,
+                    observed,
+                    method != MixedModelSolutionMethod.MAXIMUM_LIKLIHOOD);
+            
+            // if another thread beat us to it we use theirs. The solver is
+            // built outside of the lock since that's the expensive part
+            synchronized(this.solvers)
+            {
+                MixedModelSolver existingSolver = this.solvers.get(missing);
+                if(existingSolver == null)
+                {
+                    this.solvers.put(missing, solver);
+                }
+                else
+                {
+                    solver = existingSolver;
+                }
+            }
+        }
+        
+        return solver;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String[] getVarianceComponentNames()
+    {
+        InteractivePredictor[] randomPredictors =
+            this.getFitCommand().getRandomPredictors();
+        String[] names = new String[randomPredictors.length + 1];
+        for(int i = 0; i < randomPredictors.length; i++)
+        {
+            names[i] = randomPredictors[i].toString();
+        }
+        names[randomPredictors.length] = ERROR_COMPONENT_NAME;
+        
+        return names;
+    }
+}
@@ -0,0 +1,824 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+/**
+ * Estimates the variance components of a linear mixed model by REML or ML
+ * and uses them to get the fitted values (fixed effects plus the BLUPs of
+ * the random effects). All of the work that only depends on the design
+ * and on which values are observed is done in the constructor, so one
+ * solver can be shared by every probeset with the same missing value
+ * pattern. Instances are immutable and can be shared between threads.
+ * <p>
+ * Models with a single random term are solved by maximizing the profile
+ * likelihood of the variance ratio in the spectral basis of the random
+ * effect covariance, which makes each probeset linear in the number of
+ * arrays. Models with more random terms are solved with average
+ * information iterations.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class MixedModelSolver
+{
+    private static final int MAX_ITERATIONS = 100;
+    
+    private static final int MAX_STEP_HALVINGS = 10;
+    
+    private static final double CONVERGENCE_TOLERANCE = 1e-8;
+    
+    private static final double MIN_LOG_RATIO = -12.0;
+    
+    private static final double MAX_LOG_RATIO = 12.0;
+    
+    private static final double LOG_RATIO_GRID_STEP = 0.5;
+    
+    private static final int GOLDEN_SECTION_ITERATIONS = 40;
+    
+    private final boolean restricted;
+    
+    private final int[] observedRows;
+    
+    /**
+     * the linearly independent fixed effect columns for every row
+     * (rowCount x rank)
+     */
+    private final double[][] fixedMatrix;
+    
+    /**
+     * the level index of each row for each random term
+     */
+    private final int[][] randomLevels;
+    
+    private final int[] randomLevelCounts;
+    
+    /**
+     * orthonormal basis for the error contrasts of the observed rows. this
+     * is (observedCount - rank) x observedCount
+     */
+    private final double[][] errorContrasts;
+    
+    /**
+     * the random effect covariance matrices in the error contrast space
+     */
+    private final double[][][] contrastCovariances;
+    
+    /**
+     * for a single random term: the eigenvectors of the contrast
+     * covariance times the error contrasts
+     */
+    private final double[][] spectralTransform;
+    
+    /**
+     * for a single random term: the weights that go with the log
+     * determinant (eigenvalues for REML, observed level counts for ML)
+     */
+    private final double[] spectralWeights;
+    
+    /**
+     * for a single random term: the eigenvalues that go with the
+     * spectral transform
+     */
+    private final double[] spectralEigenvalues;
+    
+    /**
+     * Constructor
+     * @param fixedMatrix
+     *          the row-major fixed effect design matrix (this can be rank
+     *          deficient)
+     * @param randomLevels
+     *          the level index of each row for each random term
+     * @param randomLevelCounts
+     *          the number of levels in each random term
+     * @param observed
+     *          the rows that are observed or null if they all are
+     * @param restricted
+     *          true for REML and false for ML
+     */
+    public MixedModelSolver(
+            double[][] fixedMatrix,
+            int[][] randomLevels,
+            int[] randomLevelCounts,
+            boolean[] observed,
+            boolean restricted)
+    {
+        this.restricted = restricted;
+        this.randomLevels = randomLevels;
+        this.randomLevelCounts = randomLevelCounts;
+        
+        int rowCount = fixedMatrix.length;
+        int colCount = rowCount == 0 ? 0 : fixedMatrix[0].length;
+        int observedCount = 0;
+        for(int row = 0; row < rowCount; row++)
+        {
+            if(observed == null || observed[row])
+            {
+                observedCount++;
+            }
+        }
+        this.observedRows = new int[observedCount];
+        for(int row = 0, i = 0; row < rowCount; row++)
+        {
+            if(observed == null || observed[row])
+            {
+                this.observedRows[i++] = row;
+            }
+        }
+        
+        // find the independent fixed columns over the observed rows
+        double[][] observedColumns = new double[colCount][observedCount];
+        for(int col = 0; col < colCount; col++)
+        {
+            for(int i = 0; i < observedCount; i++)
+            {
+                observedColumns[col][i] = fixedMatrix[this.observedRows[i]][col];
+            }
+        }
+        int[] independentCols = new int[colCount];
+        double[][] basis = LinearAlgebra.gramSchmidt(
+                observedColumns,
+                independentCols);
+        int rank = basis.length;
+        this.fixedMatrix = new double[rowCount][rank];
+        for(int row = 0; row < rowCount; row++)
+        {
+            for(int i = 0; i < rank; i++)
+            {
+                this.fixedMatrix[row][i] = fixedMatrix[row][independentCols[i]];
+            }
+        }
+        
+        this.errorContrasts = LinearAlgebra.orthogonalComplement(
+                basis,
+                observedCount);
+        int contrastCount = this.errorContrasts.length;
+        
+        // the contrast covariance for a random term is (K Z)(K Z)' where K
+        // holds the error contrasts and Z is the term's indicator matrix
+        int randomCount = randomLevels.length;
+        this.contrastCovariances = new double[randomCount][][];
+        for(int k = 0; k < randomCount; k++)
+        {
+            double[][] contrastIndicators =
+                new double[contrastCount][randomLevelCounts[k]];
+            for(int c = 0; c < contrastCount; c++)
+            {
+                for(int i = 0; i < observedCount; i++)
+                {
+                    contrastIndicators[c][randomLevels[k][this.observedRows[i]]] +=
+                        this.errorContrasts[c][i];
+                }
+            }
+            
+            double[][] covariance = new double[contrastCount][contrastCount];
+            for(int c1 = 0; c1 < contrastCount; c1++)
+            {
+                for(int c2 = 0; c2 <= c1; c2++)
+                {
+                    double value = LinearAlgebra.dot(
+                            contrastIndicators[c1],
+                            contrastIndicators[c2]);
+                    covariance[c1][c2] = value;
+                    covariance[c2][c1] = value;
+                }
+            }
+            this.contrastCovariances[k] = covariance;
+        }
+        
+        if(randomCount == 1 && contrastCount > 0)
+        {
+            double[][] eigenvectors = new double[contrastCount][contrastCount];
+            double[] eigenvalues = LinearAlgebra.symmetricEigen(
+                    this.contrastCovariances[0],
+                    eigenvectors);
+            for(int i = 0; i < eigenvalues.length; i++)
+            {
+                // clear out rounding noise. the covariance is PSD
+                eigenvalues[i] = Math.max(0.0, eigenvalues[i]);
+            }
+            this.spectralEigenvalues = eigenvalues;
+            
+            this.spectralTransform = new double[contrastCount][observedCount];
+            for(int e = 0; e < contrastCount; e++)
+            {
+                for(int c = 0; c < contrastCount; c++)
+                {
+                    double weight = eigenvectors[e][c];
+                    if(weight != 0.0)
+                    {
+                        double[] contrast = this.errorContrasts[c];
+                        double[] transformRow = this.spectralTransform[e];
+                        for(int i = 0; i < observedCount; i++)
+                        {
+                            transformRow[i] += weight * contrast[i];
+                        }
+                    }
+                }
+            }
+            
+            if(restricted)
+            {
+                this.spectralWeights = eigenvalues;
+            }
+            else
+            {
+                // the nonzero eigenvalues of Z Z' are the level counts
+                double[] levelCounts = new double[randomLevelCounts[0]];
+                for(int i = 0; i < observedCount; i++)
+                {
+                    levelCounts[randomLevels[0][this.observedRows[i]]]++;
+                }
+                this.spectralWeights = levelCounts;
+            }
+        }
+        else
+        {
+            this.spectralTransform = null;
+            this.spectralEigenvalues = null;
+            this.spectralWeights = null;
+        }
+    }
+    
+    /**
+     * Fit a single probeset
+     * @param values
+     *          the values (one per design row). Only the observed rows are
+     *          read
+     * @param fittedValues
+     *          the array that the fitted values are written to (one per
+     *          design row)
+     * @param varianceComponents
+     *          the array that the variance components are written to: one
+     *          per random term followed by the error variance
+     */
+    public void fit(
+            double[] values,
+            double[] fittedValues,
+            double[] varianceComponents)
+    {
+        int observedCount = this.observedRows.length;
+        double[] observedValues = new double[observedCount];
+        for(int i = 0; i < observedCount; i++)
+        {
+            observedValues[i] = values[this.observedRows[i]];
+        }
+        
+        double[] theta;
+        if(this.errorContrasts.length == 0)
+        {
+            theta = null;
+        }
+        else
+        {
+            if(this.spectralTransform != null)
+            {
+                theta = this.solveSpectral(observedValues);
+            }
+            else
+            {
+                theta = this.solveAverageInformation(LinearAlgebra.multiply(
+                        this.errorContrasts,
+                        observedValues));
+            }
+        }
+        
+        if(theta == null)
+        {
+            for(int i = 0; i < varianceComponents.length; i++)
+            {
+                varianceComponents[i] = Double.NaN;
+            }
+        }
+        else
+        {
+            System.arraycopy(theta, 0, varianceComponents, 0, theta.length);
+        }
+        
+        this.predict(observedValues, theta, fittedValues);
+    }
+    
+    /**
+     * Maximize the profile (restricted) likelihood over the variance ratio
+     * for a model with a single random term
+     * @return
+     *          the random and error variances or null if they can't be
+     *          estimated
+     */
+    private double[] solveSpectral(double[] observedValues)
+    {
+        double[] rotated = LinearAlgebra.multiply(
+                this.spectralTransform,
+                observedValues);
+        double[] squares = new double[rotated.length];
+        double totalSquares = 0.0;
+        for(int i = 0; i < rotated.length; i++)
+        {
+            squares[i] = rotated[i] * rotated[i];
+            totalSquares += squares[i];
+        }
+        if(!(totalSquares > 0.0) || Double.isInfinite(totalSquares))
+        {
+            return null;
+        }
+        
+        // start with a coarse grid over the log ratio (plus a ratio of
+        // zero) and then refine around the best grid point
+        double bestRatio = 0.0;
+        double bestLikelihood = this.profileLikelihood(0.0, squares);
+        int bestGridIndex = -1;
+        int gridCount = (int)Math.round(
+                (MAX_LOG_RATIO - MIN_LOG_RATIO) / LOG_RATIO_GRID_STEP) + 1;
+        for(int gridIndex = 0; gridIndex < gridCount; gridIndex++)
+        {
+            double ratio = Math.exp(MIN_LOG_RATIO + gridIndex * LOG_RATIO_GRID_STEP);
+            double likelihood = this.profileLikelihood(ratio, squares);
+            if(likelihood > bestLikelihood)
+            {
+                bestLikelihood = likelihood;
+                bestRatio = ratio;
+                bestGridIndex = gridIndex;
+            }
+        }
+        
+        if(bestGridIndex >= 0)
+        {
+            double lower = MIN_LOG_RATIO +
+                Math.max(0, bestGridIndex - 1) * LOG_RATIO_GRID_STEP;
+            double upper = MIN_LOG_RATIO +
+                Math.min(gridCount - 1, bestGridIndex + 1) * LOG_RATIO_GRID_STEP;
+            double goldenRatio = (Math.sqrt(5.0) - 1.0) / 2.0;
+            double x1 = upper - goldenRatio * (upper - lower);
+            double x2 = lower + goldenRatio * (upper - lower);
+            double f1 = this.profileLikelihood(Math.exp(x1), squares);
+            double f2 = this.profileLikelihood(Math.exp(x2), squares);
+            for(int i = 0; i < GOLDEN_SECTION_ITERATIONS; i++)
+            {
+                if(f1 > f2)
+                {
+                    upper = x2;
+                    x2 = x1;
+                    f2 = f1;
+                    x1 = upper - goldenRatio * (upper - lower);
+                    f1 = this.profileLikelihood(Math.exp(x1), squares);
+                }
+                else
+                {
+                    lower = x1;
+                    x1 = x2;
+                    f1 = f2;
+                    x2 = lower + goldenRatio * (upper - lower);
+                    f2 = this.profileLikelihood(Math.exp(x2), squares);
+                }
+            }
+            
+            double refinedLogRatio = f1 > f2 ? x1 : x2;
+            double refinedLikelihood = Math.max(f1, f2);
+            if(refinedLikelihood > bestLikelihood)
+            {
+                bestRatio = Math.exp(refinedLogRatio);
+            }
+        }
+        
+        double errorVariance =
+            this.weightedSquares(bestRatio, squares) / this.getLikelihoodDegreesOfFreedom();
+        return new double[] {bestRatio * errorVariance, errorVariance};
+    }
+    
+    private double weightedSquares(double ratio, double[] squares)
+    {
+        double sum = 0.0;
+        for(int i = 0; i < squares.length; i++)
+        {
+            sum += squares[i] / (ratio * this.spectralEigenvalues[i] + 1.0);
+        }
+        return sum;
+    }
+    
+    private double profileLikelihood(double ratio, double[] squares)
+    {
+        double degreesOfFreedom = this.getLikelihoodDegreesOfFreedom();
+        double logDeterminant = 0.0;
+        for(double weight: this.spectralWeights)
+        {
+            logDeterminant += Math.log(ratio * weight + 1.0);
+        }
+        
+        double weightedSquares = this.weightedSquares(ratio, squares);
+        return -0.5 * (
+                degreesOfFreedom * Math.log(weightedSquares / degreesOfFreedom) +
+                logDeterminant);
+    }
+    
+    private int getLikelihoodDegreesOfFreedom()
+    {
+        return this.restricted ?
+                this.errorContrasts.length :
+                this.observedRows.length;
+    }
+    
+    /**
+     * Average information (AI) iterations with step halving. The
+     * parameters are the random term variances followed by the error
+     * variance
+     * @return
+     *          the variance components or null if they can't be estimated
+     */
+    private double[] solveAverageInformation(double[] contrastValues)
+    {
+        int randomCount = this.contrastCovariances.length;
+        int paramCount = randomCount + 1;
+        int contrastCount = contrastValues.length;
+        
+        double totalVariance =
+            LinearAlgebra.dot(contrastValues, contrastValues) / contrastCount;
+        if(!(totalVariance > 0.0) || Double.isInfinite(totalVariance))
+        {
+            return null;
+        }
+        double minErrorVariance = totalVariance * 1e-10;
+        
+        double[] theta = new double[paramCount];
+        for(int i = 0; i < paramCount; i++)
+        {
+            theta[i] = totalVariance / paramCount;
+        }
+        
+        AverageInformationState state = this.evaluate(theta, contrastValues);
+        if(state == null)
+        {
+            return null;
+        }
+        
+        for(int iteration = 0; iteration < MAX_ITERATIONS; iteration++)
+        {
+            double[][] aiCholesky = LinearAlgebra.cholesky(state.averageInformation);
+            if(aiCholesky == null)
+            {
+                // fall back on a ridged AI matrix
+                double[][] ridged = new double[paramCount][];
+                for(int i = 0; i < paramCount; i++)
+                {
+                    ridged[i] = state.averageInformation[i].clone();
+                    ridged[i][i] += 1e-8 * (1.0 + Math.abs(ridged[i][i]));
+                }
+                aiCholesky = LinearAlgebra.cholesky(ridged);
+                if(aiCholesky == null)
+                {
+                    break;
+                }
+            }
+            
+            double[] step = LinearAlgebra.choleskySolve(aiCholesky, state.score);
+            AverageInformationState nextState = null;
+            double[] nextTheta = new double[paramCount];
+            for(int halving = 0; halving <= MAX_STEP_HALVINGS; halving++)
+            {
+                for(int i = 0; i < paramCount; i++)
+                {
+                    nextTheta[i] = Math.max(0.0, theta[i] + step[i]);
+                }
+                nextTheta[randomCount] = Math.max(
+                        minErrorVariance,
+                        nextTheta[randomCount]);
+                
+                nextState = this.evaluate(nextTheta, contrastValues);
+                if(nextState != null &&
+                   nextState.logLikelihood >= state.logLikelihood - CONVERGENCE_TOLERANCE)
+                {
+                    break;
+                }
+                
+                nextState = null;
+                for(int i = 0; i < paramCount; i++)
+                {
+                    step[i] /= 2.0;
+                }
+            }
+            
+            if(nextState == null)
+            {
+                break;
+            }
+            
+            double maxChange = 0.0;
+            double thetaSum = 0.0;
+            for(int i = 0; i < paramCount; i++)
+            {
+                maxChange = Math.max(maxChange, Math.abs(nextTheta[i] - theta[i]));
+                thetaSum += nextTheta[i];
+            }
+            double likelihoodChange =
+                Math.abs(nextState.logLikelihood - state.logLikelihood);
+            
+            theta = nextTheta.clone();
+            state = nextState;
+            if(likelihoodChange < CONVERGENCE_TOLERANCE * (1.0 + Math.abs(state.logLikelihood)) &&
+               maxChange < 1e-6 * thetaSum)
+            {
+                break;
+            }
+        }
+        
+        return theta;
+    }
+    
+    /**
+     * Evaluate the likelihood, score and average information at the given
+     * parameters
+     * @return
+     *          the state or null if the covariance isn't positive definite
+     */
+    private AverageInformationState evaluate(
+            double[] theta,
+            double[] contrastValues)
+    {
+        int randomCount = this.contrastCovariances.length;
+        int paramCount = randomCount + 1;
+        int contrastCount = contrastValues.length;
+        
+        double[][] contrastCovariance = new double[contrastCount][contrastCount];
+        for(int k = 0; k < randomCount; k++)
+        {
+            addScaled(contrastCovariance, this.contrastCovariances[k], theta[k]);
+        }
+        for(int i = 0; i < contrastCount; i++)
+        {
+            contrastCovariance[i][i] += theta[randomCount];
+        }
+        
+        double[][] contrastCholesky = LinearAlgebra.cholesky(contrastCovariance);
+        if(contrastCholesky == null)
+        {
+            return null;
+        }
+        double[][] contrastInverse = LinearAlgebra.choleskyInverse(contrastCholesky);
+        double[] projected = LinearAlgebra.multiply(contrastInverse, contrastValues);
+        double quadraticForm = LinearAlgebra.dot(contrastValues, projected);
+        
+        // the contrast covariance times the projected values for each of
+        // the parameters (the error "covariance" is the identity)
+        double[][] workingVariates = new double[paramCount][];
+        for(int k = 0; k < randomCount; k++)
+        {
+            workingVariates[k] = LinearAlgebra.multiply(
+                    this.contrastCovariances[k],
+                    projected);
+        }
+        workingVariates[randomCount] = projected;
+        
+        AverageInformationState state = new AverageInformationState();
+        state.score = new double[paramCount];
+        state.averageInformation = new double[paramCount][paramCount];
+        
+        double[] traces;
+        double logDeterminant;
+        if(this.restricted)
+        {
+            traces = new double[paramCount];
+            for(int k = 0; k < randomCount; k++)
+            {
+                traces[k] = traceOfProduct(contrastInverse, this.contrastCovariances[k]);
+            }
+            for(int i = 0; i < contrastCount; i++)
+            {
+                traces[randomCount] += contrastInverse[i][i];
+            }
+            logDeterminant = LinearAlgebra.choleskyLogDeterminant(contrastCholesky);
+        }
+        else
+        {
+            // ML needs the traces and determinant over the full observed
+            // covariance rather than over the error contrasts
+            int observedCount = this.observedRows.length;
+            double[][] covariance = new double[observedCount][observedCount];
+            for(int i = 0; i < observedCount; i++)
+            {
+                for(int j = 0; j < observedCount; j++)
+                {
+                    double value = i == j ? theta[randomCount] : 0.0;
+                    for(int k = 0; k < randomCount; k++)
+                    {
+                        if(this.randomLevels[k][this.observedRows[i]] ==
+                           this.randomLevels[k][this.observedRows[j]])
+                        {
+                            value += theta[k];
+                        }
+                    }
+                    covariance[i][j] = value;
+                }
+            }
+            
+            double[][] cholesky = LinearAlgebra.cholesky(covariance);
+            if(cholesky == null)
+            {
+                return null;
+            }
+            double[][] inverse = LinearAlgebra.choleskyInverse(cholesky);
+            traces = new double[paramCount];
+            for(int i = 0; i < observedCount; i++)
+            {
+                for(int j = 0; j < observedCount; j++)
+                {
+                    for(int k = 0; k < randomCount; k++)
+                    {
+                        if(this.randomLevels[k][this.observedRows[i]] ==
+                           this.randomLevels[k][this.observedRows[j]])
+                        {
+                            traces[k] += inverse[i][j];
+                        }
+                    }
+                }
+                traces[randomCount] += inverse[i][i];
+            }
+            logDeterminant = LinearAlgebra.choleskyLogDeterminant(cholesky);
+        }
+        
+        state.logLikelihood = -0.5 * (logDeterminant + quadraticForm);
+        for(int k = 0; k < paramCount; k++)
+        {
+            state.score[k] = -0.5 * traces[k] +
+                0.5 * LinearAlgebra.dot(projected, workingVariates[k]);
+            double[] projectedVariate = LinearAlgebra.multiply(
+                    contrastInverse,
+                    workingVariates[k]);
+            for(int l = 0; l <= k; l++)
+            {
+                double value = 0.5 * LinearAlgebra.dot(
+                        workingVariates[l],
+                        projectedVariate);
+                state.averageInformation[k][l] = value;
+                state.averageInformation[l][k] = value;
+            }
+        }
+        
+        return state;
+    }
+    
+    /**
+     * Calculate the fitted values as the GLS fixed effects plus the BLUPs
+     * of the random effects
+     * @param theta
+     *          the variance components or null to fall back on the
+     *          ordinary least squares fixed effects fit
+     */
+    private void predict(
+            double[] observedValues,
+            double[] theta,
+            double[] fittedValues)
+    {
+        int observedCount = this.observedRows.length;
+        int randomCount = this.randomLevels.length;
+        int rank = observedCount == 0 ? 0 : this.fixedMatrix[0].length;
+        
+        double[][] covariance = new double[observedCount][observedCount];
+        for(int i = 0; i < observedCount; i++)
+        {
+            covariance[i][i] = theta == null ? 1.0 : theta[randomCount];
+            if(theta != null)
+            {
+                for(int j = 0; j < observedCount; j++)
+                {
+                    for(int k = 0; k < randomCount; k++)
+                    {
+                        if(this.randomLevels[k][this.observedRows[i]] ==
+                           this.randomLevels[k][this.observedRows[j]])
+                        {
+                            covariance[i][j] += theta[k];
+                        }
+                    }
+                }
+            }
+        }
+        
+        double[][] cholesky = LinearAlgebra.cholesky(covariance);
+        if(cholesky == null)
+        {
+            for(int row = 0; row < fittedValues.length; row++)
+            {
+                fittedValues[row] = Double.NaN;
+            }
+            return;
+        }
+        
+        // GLS: b = (X' V^-1 X)^-1 X' V^-1 y
+        double[][] inverseFixed = new double[rank][];
+        for(int c = 0; c < rank; c++)
+        {
+            double[] column = new double[observedCount];
+            for(int i = 0; i < observedCount; i++)
+            {
+                column[i] = this.fixedMatrix[this.observedRows[i]][c];
+            }
+            inverseFixed[c] = LinearAlgebra.choleskySolve(cholesky, column);
+        }
+        double[][] normalMatrix = new double[rank][rank];
+        double[] normalRhs = new double[rank];
+        for(int c1 = 0; c1 < rank; c1++)
+        {
+            for(int c2 = 0; c2 < rank; c2++)
+            {
+                double sum = 0.0;
+                for(int i = 0; i < observedCount; i++)
+                {
+                    sum += this.fixedMatrix[this.observedRows[i]][c2] * inverseFixed[c1][i];
+                }
+                normalMatrix[c1][c2] = sum;
+            }
+            normalRhs[c1] = LinearAlgebra.dot(inverseFixed[c1], observedValues);
+        }
+        
+        double[] coefficients = new double[rank];
+        if(rank > 0)
+        {
+            double[][] normalCholesky = LinearAlgebra.cholesky(normalMatrix);
+            if(normalCholesky == null)
+            {
+                for(int row = 0; row < fittedValues.length; row++)
+                {
+                    fittedValues[row] = Double.NaN;
+                }
+                return;
+            }
+            coefficients = LinearAlgebra.choleskySolve(normalCholesky, normalRhs);
+        }
+        
+        for(int row = 0; row < fittedValues.length; row++)
+        {
+            fittedValues[row] = LinearAlgebra.dot(this.fixedMatrix[row], coefficients);
+        }
+        
+        if(theta != null)
+        {
+            // BLUP: u_k = theta_k Z_k' V^-1 (y - X b)
+            double[] residuals = new double[observedCount];
+            for(int i = 0; i < observedCount; i++)
+            {
+                residuals[i] = observedValues[i] - fittedValues[this.observedRows[i]];
+            }
+            double[] weightedResiduals = LinearAlgebra.choleskySolve(cholesky, residuals);
+            for(int k = 0; k < randomCount; k++)
+            {
+                double[] randomEffects = new double[this.randomLevelCounts[k]];
+                for(int i = 0; i < observedCount; i++)
+                {
+                    randomEffects[this.randomLevels[k][this.observedRows[i]]] +=
+                        theta[k] * weightedResiduals[i];
+                }
+                for(int row = 0; row < fittedValues.length; row++)
+                {
+                    fittedValues[row] += randomEffects[this.randomLevels[k][row]];
+                }
+            }
+        }
+    }
+    
+    private static void addScaled(double[][] sum, double[][] matrix, double scale)
+    {
+        for(int i = 0; i < sum.length; i++)
+        {
+            for(int j = 0; j < sum[i].length; j++)
+            {
+                sum[i][j] += scale * matrix[i][j];
+            }
+        }
+    }
+    
+    /**
+     * trace(A B) for symmetric A and B
+     */
+    private static double traceOfProduct(double[][] a, double[][] b)
+    {
+        double trace = 0.0;
+        for(int i = 0; i < a.length; i++)
+        {
+            trace += LinearAlgebra.dot(a[i], b[i]);
+        }
+        return trace;
+    }
+    
+    /**
+     * The likelihood, score and average information at a point
+     */
+    private static class AverageInformationState
+    {
+        double logLikelihood;
+        
+        double[] score;
+        
+        double[][] averageInformation;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.fit;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An (over-parameterized) design matrix built from a microarray experiment
+ * design table and a model formula. Every level (or combination of levels
+ * for interactive terms) gets its own indicator column, so the matrix is
+ * generally not of full rank. Terms that are marked as covariates
+ * contribute their numeric values rather than indicators.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class ModelDesignMatrix
+{
+    /**
+     * the predictor index used for the intercept column
+     */
+    public static final int INTERCEPT_PREDICTOR_INDEX = -1;
+    
+    private final double[][] matrix;
+    
+    private final int[] columnPredictorIndices;
+    
+    private final String[] columnLevels;
+    
+    /**
+     * Constructor
+     * @param matrix
+     *          the row-major matrix
+     * @param columnPredictorIndices
+     *          see {@link #getColumnPredictorIndices()}
+     * @param columnLevels
+     *          see {@link #getColumnLevels()}
+     */
+    private ModelDesignMatrix(
+            double[][] matrix,
+            int[] columnPredictorIndices,
+            String[] columnLevels)
+    {
+        this.matrix = matrix;
+        this.columnPredictorIndices = columnPredictorIndices;
+        this.columnLevels = columnLevels;
+    }
+    
+    /**
+     * Build a design matrix with an intercept column followed by the
+     * columns for each of the given predictors
+     * @param designFactors
+     *          the design factor (column) names
+     * @param designData
+     *          the design table. There should be one row per data column
+     * @param predictors
+     *          the predictors to build columns for
+     * @param covariatePredictors
+     *          predictors whose terms should be treated as numeric
+     *          covariates rather than as factors
+     * @return
+     *          the design matrix
+     * @throws IllegalArgumentException
+     *          if a term isn't in the design or if a covariate term
+     *          can't be parsed as a number
+     */
+    public static ModelDesignMatrix create(
+            String[] designFactors,
+            String[][] designData,
+            InteractivePredictor[] predictors,
+            InteractivePredictor[] covariatePredictors)
+            throws IllegalArgumentException
+    {
+        Set<String> covariateTerms = new HashSet<String>();
+        for(InteractivePredictor covariatePredictor: covariatePredictors)
+        {
+            for(String term: covariatePredictor.getInteractiveTerms())
+            {
+                covariateTerms.add(term);
+            }
+        }
+        
+        int rowCount = designData.length;
+        List<double[]> columns = new ArrayList<double[]>();
+        List<Integer> columnPredictorIndices = new ArrayList<Integer>();
+        List<String> columnLevels = new ArrayList<String>();
+        
+        double[] interceptColumn = new double[rowCount];
+        for(int row = 0; row < rowCount; row++)
+        {
+            interceptColumn[row] = 1.0;
+        }
+        columns.add(interceptColumn);
+        columnPredictorIndices.add(INTERCEPT_PREDICTOR_INDEX);
+        columnLevels.add(null);
+        
+        for(int predictorIndex = 0; predictorIndex < predictors.length; predictorIndex++)
+        {
+            // the covariate part of the predictor is the product of all of
+            // its numeric terms
+            double[] covariateProduct = new double[rowCount];
+            for(int row = 0; row < rowCount; row++)
+            {
+                covariateProduct[row] = 1.0;
+            }
+            
+            List<String[]> factorColumns = new ArrayList<String[]>();
+            for(String term: predictors[predictorIndex].getInteractiveTerms())
+            {
+                String[] termColumn = getDesignColumn(
+                        designFactors,
+                        designData,
+                        term);
+                if(covariateTerms.contains(term))
+                {
+                    for(int row = 0; row < rowCount; row++)
+                    {
+                        try
+                        {
+                            covariateProduct[row] *= Double.parseDouble(
+                                    termColumn[row].trim());
+                        }
+                        catch(NumberFormatException ex)
+                        {
+                            throw new IllegalArgumentException(
+                                    "The value \"" + termColumn[row] +
+                                    "\" of covariate " + term +
+                                    " is not a number");
+                        }
+                    }
+                }
+                else
+                {
+                    factorColumns.add(termColumn);
+                }
+            }
+            
+            // one column per distinct combination of factor levels
+            Set<String> levelCombinations = new TreeSet<String>();
+            String[] rowCombinations = new String[rowCount];
+            for(int row = 0; row < rowCount; row++)
+            {
+                StringBuilder combination = new StringBuilder();
+                for(String[] factorColumn: factorColumns)
+                {
+                    combination.append(factorColumn[row]);
+                    combination.append('\u0000');
+                }
+                rowCombinations[row] = combination.toString();
+                levelCombinations.add(rowCombinations[row]);
+            }
+            
+            for(String levelCombination: levelCombinations)
+            {
+                double[] column = new double[rowCount];
+                for(int row = 0; row < rowCount; row++)
+                {
+                    if(levelCombination.equals(rowCombinations[row]))
+                    {
+                        column[row] = covariateProduct[row];
+                    }
+                }
+                columns.add(column);
+                columnPredictorIndices.add(predictorIndex);
+                columnLevels.add(toLevelLabel(levelCombination));
+            }
+        }
+        
+        double[][] matrix = new double[rowCount][columns.size()];
+        int[] predictorIndexArray = new int[columns.size()];
+        for(int col = 0; col < predictorIndexArray.length; col++)
+        {
+            double[] column = columns.get(col);
+            for(int row = 0; row < rowCount; row++)
+            {
+                matrix[row][col] = column[row];
+            }
+            predictorIndexArray[col] = columnPredictorIndices.get(col);
+        }
+        
+        return new ModelDesignMatrix(
+                matrix,
+                predictorIndexArray,
+                columnLevels.toArray(new String[columnLevels.size()]));
+    }
+    
+    /**
+     * Turn the internal level combination key into a readable label
+     * (levels are separated by ':' just like the interactive terms are)
+     */
+    private static String toLevelLabel(String levelCombination)
+    {
+        if(levelCombination.length() == 0)
+        {
+            return "";
+        }
+        else
+        {
+            // drop the trailing separator
+            return levelCombination.substring(
+                    0,
+                    levelCombination.length() - 1).replace('\u0000', ':');
+        }
+    }
+    
+    private static String[] getDesignColumn(
+            String[] designFactors,
+            String[][] designData,
+            String term)
+    {
+        for(int i = 0; i < designFactors.length; i++)
+        {
+            if(designFactors[i].equals(term))
+            {
+                String[] column = new String[designData.length];
+                for(int row = 0; row < column.length; row++)
+                {
+                    column[row] = designData[row][i];
+                }
+                return column;
+            }
+        }
+        
+        throw new IllegalArgumentException(
+                "The design does not contain a column named " + term);
+    }
+    
+    /**
+     * Getter for the row-major matrix. This is shared so it should not
+     * be modified
+     * @return
+     *          the matrix
+     */
+    public double[][] getMatrix()
+    {
+        return this.matrix;
+    }
+    
+    /**
+     * Getter for the number of rows (which is the number of data columns)
+     * @return
+     *          the row count
+     */
+    public int getRowCount()
+    {
+        return this.matrix.length;
+    }
+    
+    /**
+     * Getter for the number of columns
+     * @return
+     *          the column count
+     */
+    public int getColumnCount()
+    {
+        return this.columnPredictorIndices.length;
+    }
+    
+    /**
+     * Getter for the index of the predictor that each column belongs to.
+     * The intercept column uses {@link #INTERCEPT_PREDICTOR_INDEX}
+     * @return
+     *          the predictor indices
+     */
+    public int[] getColumnPredictorIndices()
+    {
+        return this.columnPredictorIndices;
+    }
+    
+    /**
+     * Get the design matrix of the model restricted by the given linear
+     * constraints on its coefficients. The columns of the result span
+     * the fitted values that are possible when C b = 0 so fitting the
+     * restricted matrix gives the null model for testing C b = 0
+     * @param constraintRows
+     *          the rows of C (one coefficient per column of this matrix)
+     * @return
+     *          the row-major restricted design matrix
+     */
+    public double[][] getRestrictedMatrix(double[][] constraintRows)
+    {
+        int colCount = this.getColumnCount();
+        double[][] constraintBasis = LinearAlgebra.gramSchmidt(
+                constraintRows,
+                null);
+        double[][] allowedDirections = LinearAlgebra.orthogonalComplement(
+                constraintBasis,
+                colCount);
+        
+        double[][] restrictedMatrix =
+            new double[this.matrix.length][allowedDirections.length];
+        for(int row = 0; row < this.matrix.length; row++)
+        {
+            for(int col = 0; col < allowedDirections.length; col++)
+            {
+                restrictedMatrix[row][col] = LinearAlgebra.dot(
+                        this.matrix[row],
+                        allowedDirections[col]);
+            }
+        }
+        
+        return restrictedMatrix;
+    }
+    
+    /**
+     * Getter for the factor level (or ':' separated level combination for
+     * interactive terms) that each column is the indicator for. The
+     * intercept column's level is null and columns for pure covariate
+     * predictors get an empty string
+     * @return
+     *          the column levels
+     */
+    public String[] getColumnLevels()
+    {
+        return this.columnLevels;
+    }
+}
@@ -38,6 +38,8 @@ import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.TableColumnModel;
 
+import org.jax.maanova.RWorkerPool;
+import org.jax.maanova.fit.FitExecutionBackend;
 import org.jax.maanova.fit.FitMaanovaCommand;
 import org.jax.maanova.fit.InteractivePredictor;
 import org.jax.maanova.fit.MixedModelSolutionMethod;
@@ -192,6 +194,17 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
         }
         this.fitMethodComboBox.addItemListener(this.updateRCommandItemListener);
         
+        for(FitExecutionBackend backend: FitExecutionBackend.values())
+        {
+            // only offer worker processes if we found an Rscript to run
+            if(backend != FitExecutionBackend.R_WORKER_PROCESS ||
+               RWorkerPool.getInstance().isAvailable())
+            {
+                this.fitEngineComboBox.addItem(backend);
+            }
+        }
+        this.fitEngineComboBox.addItemListener(this.updateRCommandItemListener);
+        
         this.verboseOutputCheckBox.addItemListener(
                 this.updateRCommandItemListener);
         
@@ -399,6 +412,7 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
                 this.verboseOutputCheckBox.isSelected());
         this.fitMaanovaCommand.setRandomPredictors(this.getRandomPredictors());
         this.fitMaanovaCommand.setCovariatePredictors(this.getCovariatePredictors());
+        this.fitMaanovaCommand.setBackend(this.getFitBackend());
         
         this.fireCommandModified();
     }
@@ -451,6 +465,16 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
         return (MixedModelSolutionMethod)this.fitMethodComboBox.getSelectedItem();
     }
 
+    /**
+     * Get the currently selected fit backend
+     * @return
+     *          the fit backend
+     */
+    private FitExecutionBackend getFitBackend()
+    {
+        return (FitExecutionBackend)this.fitEngineComboBox.getSelectedItem();
+    }
+    
     /**
      * Get the fit result name that's currently entered in the GUI
      * @return
@@ -760,6 +784,14 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
             message =
                 "Please enter a name for the fit result before continuing.";
         }
+        else if(!this.fitMaanovaCommand.getBackend().supportsModel(
+                this.fitMaanovaCommand))
+        {
+            message =
+                "The " + this.fitMaanovaCommand.getBackend() + " fit engine " +
+                "does not support this combination of random and covariate " +
+                "terms. Please choose a different fit engine.";
+        }
         else
         {
             message = RUtilities.getErrorMessageForReadableName(
@@ -808,6 +840,8 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
         fitMethodLabel = new javax.swing.JLabel();
         fitMethodComboBox = new javax.swing.JComboBox();
         verboseOutputCheckBox = new javax.swing.JCheckBox();
+        fitEngineLabel = new javax.swing.JLabel();
+        fitEngineComboBox = new javax.swing.JComboBox();
         fitResultNameLabel = new javax.swing.JLabel();
         fitResultNameTextField = new javax.swing.JTextField();
 
@@ -902,6 +936,8 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
         verboseOutputCheckBox.setSelected(true);
         verboseOutputCheckBox.setText("Print Verbose Output During Fit");
 
+        fitEngineLabel.setText("Fit Engine:");
+        
         fitResultNameLabel.setText("Name Your Fit Result:");
 
         org.jdesktop.layout.GroupLayout layout = new org.jdesktop.layout.GroupLayout(this);
@@ -927,13 +963,15 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
                     .add(layout.createSequentialGroup()
                         .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
                             .add(fitResultNameLabel)
-                            .add(fitMethodLabel))
+                            .add(fitMethodLabel)
+                            .add(fitEngineLabel))
                         .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                         .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
                             .add(layout.createSequentialGroup()
                                 .add(fitMethodComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                                 .add(verboseOutputCheckBox))
+                            .add(fitEngineComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                             .add(fitResultNameTextField, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, 102, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))))
                 .addContainerGap())
         );
@@ -958,6 +996,10 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
                     .add(fitMethodComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                     .add(verboseOutputCheckBox))
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(fitEngineLabel)
+                    .add(fitEngineComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
                     .add(fitResultNameLabel)
                     .add(fitResultNameTextField, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
@@ -990,6 +1032,8 @@ public class FitMaanovaInitialPanel extends RCommandEditorPanel
     private javax.swing.JButton addInteractivePredictorButton;
     private javax.swing.JButton addPredictorsButton;
     private javax.swing.JButton appendInteractionToPredictorButton;
+    private javax.swing.JComboBox fitEngineComboBox;
+    private javax.swing.JLabel fitEngineLabel;
     private javax.swing.JComboBox fitMethodComboBox;
     private javax.swing.JLabel fitMethodLabel;
     private javax.swing.JLabel fitResultNameLabel;
@@ -17,20 +17,19 @@
 
 package org.jax.maanova.fit.gui;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
 import javax.swing.SwingUtilities;
 
 import org.jax.maanova.Maanova;
+import org.jax.maanova.fit.FitMaanovaCommand;
+import org.jax.maanova.fit.FitMaanovaJob;
+import org.jax.maanova.job.AnalysisJobPriority;
+import org.jax.maanova.job.AnalysisJobScheduler;
 import org.jax.maanova.madata.MicroarrayExperiment;
-import org.jax.maanova.project.MaanovaProjectManager;
 import org.jax.r.RCommand;
 import org.jax.r.gui.RCommandEditorAndPreviewPanel;
 import org.jax.r.jriutilities.RInterface;
 import org.jax.r.jriutilities.RInterfaceFactory;
 import org.jax.util.gui.BroadcastingWizardController;
-import org.jax.util.gui.MessageDialogUtilities;
 import org.jax.util.gui.WizardDialog;
 import org.jax.util.gui.WizardEventSupport;
 import org.jax.util.gui.WizardListener;
@@ -42,12 +41,6 @@ import org.jax.util.gui.WizardDialog.WizardDialogType;
  */
 public class FitMaanovaWizard implements BroadcastingWizardController
 {
-    /**
-     * our logger
-     */
-    private static final Logger LOG = Logger.getLogger(
-            FitMaanovaWizard.class.getName());
-    
     private final WizardEventSupport wizardEventSupport;
     
     private final FitMaanovaAllPanels fitMaanovaAllPanels;
@@ -168,51 +161,15 @@ public class FitMaanovaWizard implements BroadcastingWizardController
     {
         if(this.fitMaanovaAllPanels.validateData())
         {
-            final RInterface rInterface =
-                RInterfaceFactory.getRInterfaceInstance();
-            final RCommand[] commands = this.fitMaanovaAllPanels.getCommands();
-            final MaanovaProjectManager projectManager =
-                MaanovaProjectManager.getInstance();
-            
-            // TODO this kind of a hack. i want to use
-            // evaluateCommandNoReturn, but I can't because the
-            // refresh call immediately after will cause swing to block.
-            // there is of course a better solution than what I'm doing
-            // here, but this works ok
-            Runnable evaluateFitRunnable = new Runnable()
+            RInterface rInterface = RInterfaceFactory.getRInterfaceInstance();
+            AnalysisJobScheduler scheduler = AnalysisJobScheduler.getInstance();
+            for(RCommand command: this.fitMaanovaAllPanels.getCommands())
             {
-                /**
-                 * {@inheritDoc}
-                 */
-                public void run()
-                {
-                    try
-                    {
-                        for(RCommand command: commands)
-                        {
-                            rInterface.evaluateCommand(command);
-                        }
-                        
-                        projectManager.notifyActiveProjectModified();
-                        projectManager.refreshProjectDataStructures();
-                    }
-                    catch(Exception ex)
-                    {
-                        final String errorMsg =
-                            "Error During Fit";
-                        LOG.log(Level.SEVERE,
-                                errorMsg,
-                                ex);
-                        MessageDialogUtilities.errorLater(
-                                FitMaanovaWizard.this.wizardDialog,
-                                ex.getMessage(),
-                                errorMsg);
-                    }
-                }
-            };
-            
-            Thread evaluateFitThread = new Thread(evaluateFitRunnable);
-            evaluateFitThread.start();
+                scheduler.submit(new FitMaanovaJob(
+                        rInterface,
+                        (FitMaanovaCommand)command,
+                        AnalysisJobPriority.NORMAL));
+            }
             
             return true;
         }
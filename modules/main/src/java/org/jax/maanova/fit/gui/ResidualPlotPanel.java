@@ -34,6 +34,9 @@ import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseMotionListener;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +51,8 @@ import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JToolTip;
 
+import org.jax.maanova.DataFetchListener;
+import org.jax.maanova.DataFetchService;
 import org.jax.maanova.Maanova;
 import org.jax.maanova.fit.FitMaanovaResult;
 import org.jax.maanova.plot.AreaSelectionListener;
@@ -55,6 +60,8 @@ import org.jax.maanova.plot.MaanovaChartPanel;
 import org.jax.maanova.plot.PlotUtil;
 import org.jax.maanova.plot.SaveChartAction;
 import org.jax.maanova.plot.SimpleChartConfigurationDialog;
+import org.jax.maanova.plot.XYProbeData;
+import org.jax.util.gui.MessageDialogUtilities;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.JFreeChart;
@@ -93,8 +100,17 @@ public class ResidualPlotPanel extends JPanel
 
     private final JComboBox dyeComboBox;
 
+    /**
+     * the data behind the chart that is showing. Only touched from the
+     * AWT thread
+     */
     private XYProbeData[] cachedXYData = null;
     
+    /**
+     * the fetch key that {@link #cachedXYData} was fetched with
+     */
+    private Object cachedXYDataKey = null;
+    
     private final MouseMotionListener myMouseMotionListener = new MouseMotionAdapter()
     {
         /**
@@ -252,11 +268,75 @@ public class ResidualPlotPanel extends JPanel
         this.viewArea = null;
     }
     
+    /**
+     * Update the chart, fetching new data points in the background if the
+     * selected dye has changed
+     */
     private void updateDataPoints()
     {
-        this.cachedXYData = null;
-        XYProbeData[] xyData = this.getXYData();
+        final int dyeIndex = this.getSelectedDyeIndex();
+        final List<Object> xyDataKey = Arrays.<Object>asList(
+                ResidualPlotPanel.class,
+                this.fitMaanovaResult,
+                dyeIndex);
         
+        if(xyDataKey.equals(this.cachedXYDataKey))
+        {
+            this.updateChart(this.cachedXYData);
+        }
+        else
+        {
+            this.chartPanel.setLoading(true);
+            DataFetchService.getInstance().fetch(
+                    this,
+                    xyDataKey,
+                    new Callable<XYProbeData[]>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public XYProbeData[] call()
+                        {
+                            return ResidualPlotPanel.this.createXYData(dyeIndex);
+                        }
+                    },
+                    new DataFetchListener<XYProbeData[]>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void dataFetched(XYProbeData[] data)
+                        {
+                            ResidualPlotPanel.this.cachedXYData = data;
+                            ResidualPlotPanel.this.cachedXYDataKey = xyDataKey;
+                            ResidualPlotPanel.this.chartPanel.setLoading(false);
+                            ResidualPlotPanel.this.updateChart(data);
+                        }
+                        
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void dataFetchFailed(Exception cause)
+                        {
+                            ResidualPlotPanel.this.chartPanel.setLoading(false);
+                            String message = "Failed to read the residual plot data";
+                            LOG.log(Level.SEVERE, message, cause);
+                            MessageDialogUtilities.error(
+                                    ResidualPlotPanel.this,
+                                    message + ": " + cause.getMessage(),
+                                    "Error Reading Data");
+                        }
+                    });
+        }
+    }
+    
+    /**
+     * Rebuild the chart from the given data
+     * @param xyData
+     *          the data for each array
+     */
+    private void updateChart(XYProbeData[] xyData)
+    {
         DefaultXYDataset xyDataSet = new DefaultXYDataset();
         for(int arrayIndex = 0; arrayIndex < xyData.length; arrayIndex++)
         {
@@ -277,7 +357,14 @@ public class ResidualPlotPanel extends JPanel
                 false);
         
         XYPlot xyPlot = (XYPlot)scatterPlot.getPlot();
-        xyPlot.setRenderer(PlotUtil.createMonochromeScatterPlotRenderer());
+        if(PlotUtil.isDensityRenderingNeeded(xyDataSet))
+        {
+            xyPlot.setRenderer(PlotUtil.createMonochromeDensityScatterPlotRenderer());
+        }
+        else
+        {
+            xyPlot.setRenderer(PlotUtil.createMonochromeScatterPlotRenderer());
+        }
         if(this.viewArea != null)
         {
             PlotUtil.rescaleXYPlot(this.viewArea, xyPlot);
@@ -299,16 +386,6 @@ public class ResidualPlotPanel extends JPanel
         }
     }
 
-    private synchronized XYProbeData[] getXYData()
-    {
-        if(this.cachedXYData == null)
-        {
-            this.cachedXYData = this.createXYData(this.getSelectedDyeIndex());
-        }
-        
-        return this.cachedXYData;
-    }
-    
     private XYProbeData[] createXYData(int dyeIndex)
     {
         XYProbeData[] probeData = new XYProbeData[this.arrayCount];
@@ -475,29 +552,30 @@ public class ResidualPlotPanel extends JPanel
     
     private void mouseMoved(MouseEvent e)
     {
-        if(this.showTooltip)
+        XYProbeData[] xyProbeData = this.cachedXYData;
+        if(this.showTooltip && xyProbeData != null)
         {
             Point2D chartPoint = this.chartPanel.toChartPoint(e.getPoint());
             
             // find the nearest probe
-            XYProbeData[] xyProbeData = this.getXYData();
             double nearestDistance = Double.POSITIVE_INFINITY;
             int nearestArrayIndex = -1;
             int nearestDotIndex = -1;
             for(int arrayIndex = 0; arrayIndex < xyProbeData.length; arrayIndex++)
             {
-                double[] currXData = xyProbeData[arrayIndex].getXData();
-                double[] currYData = xyProbeData[arrayIndex].getYData();
-                for(int dotIndex = 0; dotIndex < currXData.length; dotIndex++)
+                int currDotIndex = xyProbeData[arrayIndex].getNearestDataIndex(
+                        chartPoint.getX(),
+                        chartPoint.getY());
+                if(currDotIndex != -1)
                 {
                     double currDist = chartPoint.distanceSq(
-                            currXData[dotIndex],
-                            currYData[dotIndex]);
+                            xyProbeData[arrayIndex].getXData()[currDotIndex],
+                            xyProbeData[arrayIndex].getYData()[currDotIndex]);
                     if(currDist < nearestDistance)
                     {
                         nearestDistance = currDist;
                         nearestArrayIndex = arrayIndex;
-                        nearestDotIndex = dotIndex;
+                        nearestDotIndex = currDotIndex;
                     }
                 }
             }
@@ -630,56 +708,4 @@ public class ResidualPlotPanel extends JPanel
             this.toolTip.setSize(this.toolTip.getPreferredSize());
         }
     }
-    
-    private class XYProbeData
-    {
-        private final double[] xData;
-        
-        private final double[] yData;
-        
-        private final int[] probeIndices;
-
-        /**
-         * Constructor
-         * @param xData the x axis data
-         * @param yData the y axis data
-         * @param probeIndices  the indices for the corresponding probes
-         */
-        public XYProbeData(
-                double[] xData,
-                double[] yData,
-                int[] probeIndices)
-        {
-            this.xData = xData;
-            this.yData = yData;
-            this.probeIndices = probeIndices;
-        }
-        
-        /**
-         * Getter for the probe indices
-         * @return the probeIndices
-         */
-        public int[] getProbeIndices()
-        {
-            return this.probeIndices;
-        }
-        
-        /**
-         * Getter for the X data
-         * @return the xData
-         */
-        public double[] getXData()
-        {
-            return this.xData;
-        }
-        
-        /**
-         * Getter for the Y data
-         * @return the yData
-         */
-        public double[] getYData()
-        {
-            return this.yData;
-        }
-    }
 }
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.job;
+
+import org.jax.util.concurrent.SimpleLongRunningTask;
+
+/**
+ * Base class for the long running pieces of analysis work (fits, tests...)
+ * that are queued up and run by the {@link AnalysisJobScheduler}.
+ * Subclasses do their work in {@link #execute()} and report progress
+ * either by calling {@link #setProgress(int, int)} or by handing over an
+ * engine to {@link #trackProgressOf(SimpleLongRunningTask)}
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public abstract class AnalysisJob
+{
+    private final String name;
+    
+    private volatile AnalysisJobPriority priority;
+    
+    private volatile AnalysisJobStatus status = AnalysisJobStatus.QUEUED;
+    
+    private volatile boolean canceled = false;
+    
+    private volatile String failureMessage = null;
+    
+    private volatile long sequenceNumber = -1L;
+    
+    private volatile long submitTimeMillis = 0L;
+    
+    private volatile long startTimeMillis = 0L;
+    
+    private volatile long endTimeMillis = 0L;
+    
+    private volatile int totalWorkUnits = 0;
+    
+    private volatile int workUnitsCompleted = 0;
+    
+    private volatile SimpleLongRunningTask progressSource = null;
+    
+    /**
+     * Constructor
+     * @param name
+     *          the name that the job is shown with
+     * @param priority
+     *          the priority to queue the job with
+     */
+    public AnalysisJob(String name, AnalysisJobPriority priority)
+    {
+        this.name = name;
+        this.priority = priority;
+    }
+    
+    /**
+     * Do the job's work. This is called from the scheduler's thread and
+     * should block until the work is done
+     * @throws Exception
+     *          if the work fails. A
+     *          {@link java.util.concurrent.CancellationException} means that
+     *          the job stopped because it was canceled
+     */
+    protected abstract void execute() throws Exception;
+    
+    /**
+     * Determine if a running job can be stopped. Jobs that are still
+     * queued can always be canceled
+     * @return
+     *          true if {@link #cancelExecution()} stops the job. The
+     *          default is false
+     */
+    public boolean isCancelableWhileRunning()
+    {
+        return false;
+    }
+    
+    /**
+     * Determine if the job's work is done in an R worker process rather
+     * than in the interactive R session or a Java engine. The scheduler
+     * uses this to decide which of its slots the job takes up
+     * @return
+     *          true if the job runs in a worker process. The default is
+     *          false
+     */
+    public boolean isRunInWorkerProcess()
+    {
+        return false;
+    }
+    
+    /**
+     * Called when a running job is canceled. Subclasses that return true
+     * from {@link #isCancelableWhileRunning()} should make
+     * {@link #execute()} return early from here. The default does nothing
+     */
+    protected void cancelExecution()
+    {
+        // nothing to do
+    }
+    
+    /**
+     * Getter for the job's name
+     * @return
+     *          the name
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+    
+    /**
+     * Getter for the job's priority
+     * @return
+     *          the priority
+     */
+    public AnalysisJobPriority getPriority()
+    {
+        return this.priority;
+    }
+    
+    /**
+     * Setter for the priority. Use
+     * {@link AnalysisJobScheduler#setPriority(AnalysisJob, AnalysisJobPriority)}
+     * to change the priority of a queued job
+     * @param priority
+     *          the priority
+     */
+    void setPriority(AnalysisJobPriority priority)
+    {
+        this.priority = priority;
+    }
+    
+    /**
+     * Getter for the job's status
+     * @return
+     *          the status
+     */
+    public AnalysisJobStatus getStatus()
+    {
+        return this.status;
+    }
+    
+    /**
+     * Setter for the job's status
+     * @param status
+     *          the status
+     */
+    void setStatus(AnalysisJobStatus status)
+    {
+        this.status = status;
+    }
+    
+    /**
+     * Determine if the job has been canceled
+     * @return
+     *          true if the job has been canceled
+     */
+    public boolean isCanceled()
+    {
+        return this.canceled;
+    }
+    
+    /**
+     * Setter for the canceled flag
+     * @param canceled
+     *          the canceled flag
+     */
+    void setCanceled(boolean canceled)
+    {
+        this.canceled = canceled;
+    }
+    
+    /**
+     * Getter for the message of the error that the job failed with
+     * @return
+     *          the message or null if the job hasn't failed
+     */
+    public String getFailureMessage()
+    {
+        return this.failureMessage;
+    }
+    
+    /**
+     * Setter for the failure message
+     * @param failureMessage
+     *          the failure message
+     */
+    void setFailureMessage(String failureMessage)
+    {
+        this.failureMessage = failureMessage;
+    }
+    
+    /**
+     * Getter for the order that the job was submitted in
+     * @return
+     *          the sequence number or -1 if the job hasn't been submitted
+     */
+    long getSequenceNumber()
+    {
+        return this.sequenceNumber;
+    }
+    
+    /**
+     * Setter for the sequence number
+     * @param sequenceNumber
+     *          the sequence number
+     */
+    void setSequenceNumber(long sequenceNumber)
+    {
+        this.sequenceNumber = sequenceNumber;
+    }
+    
+    /**
+     * Getter for the time that the job was submitted
+     * @return
+     *          the time in milliseconds or 0 if it hasn't been submitted
+     */
+    public long getSubmitTimeMillis()
+    {
+        return this.submitTimeMillis;
+    }
+    
+    /**
+     * Setter for the submit time
+     * @param submitTimeMillis
+     *          the time in milliseconds
+     */
+    void setSubmitTimeMillis(long submitTimeMillis)
+    {
+        this.submitTimeMillis = submitTimeMillis;
+    }
+    
+    /**
+     * Getter for the time that the job started running
+     * @return
+     *          the time in milliseconds or 0 if it hasn't started
+     */
+    public long getStartTimeMillis()
+    {
+        return this.startTimeMillis;
+    }
+    
+    /**
+     * Setter for the start time
+     * @param startTimeMillis
+     *          the time in milliseconds
+     */
+    void setStartTimeMillis(long startTimeMillis)
+    {
+        this.startTimeMillis = startTimeMillis;
+    }
+    
+    /**
+     * Getter for the time that the job was done
+     * @return
+     *          the time in milliseconds or 0 if it isn't done
+     */
+    public long getEndTimeMillis()
+    {
+        return this.endTimeMillis;
+    }
+    
+    /**
+     * Setter for the end time
+     * @param endTimeMillis
+     *          the time in milliseconds
+     */
+    void setEndTimeMillis(long endTimeMillis)
+    {
+        this.endTimeMillis = endTimeMillis;
+    }
+    
+    /**
+     * Getter for the total amount of work that the job has to do
+     * @return
+     *          the total work units or 0 if we don't know
+     */
+    public int getTotalWorkUnits()
+    {
+        SimpleLongRunningTask progressSource = this.progressSource;
+        if(progressSource == null)
+        {
+            return this.totalWorkUnits;
+        }
+        else
+        {
+            return progressSource.getTotalWorkUnits();
+        }
+    }
+    
+    /**
+     * Getter for the amount of work that the job has done
+     * @return
+     *          the work units completed
+     */
+    public int getWorkUnitsCompleted()
+    {
+        SimpleLongRunningTask progressSource = this.progressSource;
+        if(progressSource == null)
+        {
+            return this.workUnitsCompleted;
+        }
+        else
+        {
+            return progressSource.getWorkUnitsCompleted();
+        }
+    }
+    
+    /**
+     * Set the job's progress
+     * @param workUnitsCompleted
+     *          the amount of work done
+     * @param totalWorkUnits
+     *          the total amount of work
+     */
+    protected void setProgress(int workUnitsCompleted, int totalWorkUnits)
+    {
+        this.totalWorkUnits = totalWorkUnits;
+        this.workUnitsCompleted = workUnitsCompleted;
+    }
+    
+    /**
+     * Take the job's progress from the given task from now on
+     * @param progressSource
+     *          the task (typically one of the Java engines) or null to go
+     *          back to the values given to {@link #setProgress(int, int)}
+     */
+    protected void trackProgressOf(SimpleLongRunningTask progressSource)
+    {
+        this.progressSource = progressSource;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return this.name;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.job;
+
+import java.util.EventListener;
+
+/**
+ * Interface that should be implemented by classes that want to listen for
+ * changes to the jobs in an {@link AnalysisJobScheduler}. Listener
+ * functions can be called from any thread
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public interface AnalysisJobListener extends EventListener
+{
+    /**
+     * Called when a job is submitted to the scheduler
+     * @param job
+     *          the job
+     */
+    public void jobSubmitted(AnalysisJob job);
+    
+    /**
+     * Called when a job's status or priority changes
+     * @param job
+     *          the job
+     */
+    public void jobChanged(AnalysisJob job);
+    
+    /**
+     * Called when a finished job is cleared out of the scheduler's history
+     * @param job
+     *          the job
+     */
+    public void jobRemoved(AnalysisJob job);
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.job;
+
+/**
+ * The priorities that an {@link AnalysisJob} can be queued with. Queued jobs
+ * are started highest priority first and in submission order within a
+ * priority
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public enum AnalysisJobPriority
+{
+    /**
+     * start ahead of everything else
+     */
+    HIGH
+    {
+        @Override
+        public String toString()
+        {
+            return "High";
+        }
+    },
+    
+    /**
+     * the priority that the wizards submit with
+     */
+    NORMAL
+    {
+        @Override
+        public String toString()
+        {
+            return "Normal";
+        }
+    },
+    
+    /**
+     * only start once there's nothing more important queued
+     */
+    LOW
+    {
+        @Override
+        public String toString()
+        {
+            return "Low";
+        }
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.job;
+
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.maanova.Maanova;
+import org.jax.maanova.RWorkerPool;
+import org.jax.util.gui.MessageDialogUtilities;
+
+/**
+ * Owns all of the long running analysis work. Submitted
+ * {@link AnalysisJob}s wait in a priority queue and are started as slots
+ * free up. Jobs that evaluate in the interactive R session or in the
+ * multi-threaded Java engines can't usefully overlap so only one of them
+ * runs at a time. Jobs that {@link AnalysisJob#isRunInWorkerProcess() run
+ * in R worker processes} get their own slots, with no more than
+ * {@link #getMaximumWorkerJobCount() the maximum} running at once. The
+ * scheduler keeps every job that it has seen (until
+ * {@link #clearDoneJobs() cleared}) so that the job history can be shown
+ * along with how many jobs are getting through per hour.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class AnalysisJobScheduler
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            AnalysisJobScheduler.class.getName());
+    
+    private static final long MILLIS_PER_HOUR = 1000L * 60L * 60L;
+    
+    /**
+     * higher priorities first then first come first served
+     */
+    private static final Comparator<AnalysisJob> QUEUE_ORDER =
+        new Comparator<AnalysisJob>()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public int compare(AnalysisJob job1, AnalysisJob job2)
+            {
+                int priorityComparison =
+                    job1.getPriority().compareTo(job2.getPriority());
+                if(priorityComparison != 0)
+                {
+                    return priorityComparison;
+                }
+                else if(job1.getSequenceNumber() < job2.getSequenceNumber())
+                {
+                    return -1;
+                }
+                else if(job1.getSequenceNumber() > job2.getSequenceNumber())
+                {
+                    return 1;
+                }
+                else
+                {
+                    return 0;
+                }
+            }
+        };
+    
+    private static final AnalysisJobScheduler instance =
+        new AnalysisJobScheduler();
+    
+    private final ConcurrentLinkedQueue<AnalysisJobListener> listenerList =
+        new ConcurrentLinkedQueue<AnalysisJobListener>();
+    
+    /**
+     * guards all of the members below
+     */
+    private final Object lock = new Object();
+    
+    private final PriorityQueue<AnalysisJob> queuedJobs =
+        new PriorityQueue<AnalysisJob>(11, QUEUE_ORDER);
+    
+    private final List<AnalysisJob> jobHistory = new ArrayList<AnalysisJob>();
+    
+    private long nextSequenceNumber = 0L;
+    
+    private int runningSessionJobCount = 0;
+    
+    private int runningWorkerJobCount = 0;
+    
+    private int maximumWorkerJobCount;
+    
+    /**
+     * Getter for the shared instance
+     * @return
+     *          the instance
+     */
+    public static AnalysisJobScheduler getInstance()
+    {
+        return AnalysisJobScheduler.instance;
+    }
+    
+    /**
+     * Constructor
+     */
+    private AnalysisJobScheduler()
+    {
+        RWorkerPool workerPool = RWorkerPool.getInstance();
+        this.maximumWorkerJobCount =
+            workerPool.isAvailable() ? workerPool.getWorkerCount() : 1;
+    }
+    
+    /**
+     * Queue up the given job. It starts as soon as there's a free slot
+     * and no higher priority job waiting for the same kind of slot
+     * @param job
+     *          the job
+     * @throws IllegalStateException
+     *          if the job has already been submitted
+     */
+    public void submit(AnalysisJob job) throws IllegalStateException
+    {
+        List<AnalysisJob> startedJobs;
+        synchronized(this.lock)
+        {
+            if(job.getSequenceNumber() >= 0L)
+            {
+                throw new IllegalStateException(
+                        "job has already been submitted: " + job);
+            }
+            
+            job.setSequenceNumber(this.nextSequenceNumber++);
+            job.setSubmitTimeMillis(System.currentTimeMillis());
+            this.jobHistory.add(job);
+            this.queuedJobs.add(job);
+            startedJobs = this.startJobsNoLock();
+        }
+        
+        this.fireJobSubmitted(job);
+        this.fireJobsChanged(startedJobs);
+    }
+    
+    /**
+     * Change the priority of a job. This only affects jobs that are still
+     * queued
+     * @param job
+     *          the job
+     * @param priority
+     *          the new priority
+     */
+    public void setPriority(AnalysisJob job, AnalysisJobPriority priority)
+    {
+        synchronized(this.lock)
+        {
+            if(job.getStatus() != AnalysisJobStatus.QUEUED ||
+               job.getPriority() == priority)
+            {
+                return;
+            }
+            
+            // the queue's ordering depends on the priority so we have to
+            // pull the job out before changing it
+            this.queuedJobs.remove(job);
+            job.setPriority(priority);
+            this.queuedJobs.add(job);
+        }
+        
+        this.fireJobChanged(job);
+    }
+    
+    /**
+     * Cancel the given job. A queued job is dropped from the queue. A
+     * running job is only stopped if it
+     * {@link AnalysisJob#isCancelableWhileRunning() can be}
+     * @param job
+     *          the job to cancel
+     * @return
+     *          true if the job was (or is going to be) stopped
+     */
+    public boolean cancel(AnalysisJob job)
+    {
+        boolean cancelRunningJob;
+        synchronized(this.lock)
+        {
+            switch(job.getStatus())
+            {
+                case QUEUED:
+                {
+                    this.queuedJobs.remove(job);
+                    job.setCanceled(true);
+                    job.setStatus(AnalysisJobStatus.CANCELED);
+                    job.setEndTimeMillis(System.currentTimeMillis());
+                    cancelRunningJob = false;
+                }
+                break;
+                
+                case RUNNING:
+                {
+                    if(!job.isCancelableWhileRunning() || job.isCanceled())
+                    {
+                        return false;
+                    }
+                    job.setCanceled(true);
+                    cancelRunningJob = true;
+                }
+                break;
+                
+                default:
+                {
+                    return false;
+                }
+            }
+        }
+        
+        if(cancelRunningJob)
+        {
+            job.cancelExecution();
+        }
+        this.fireJobChanged(job);
+        
+        return true;
+    }
+    
+    /**
+     * Cancel everything that's still queued
+     */
+    public void cancelQueuedJobs()
+    {
+        for(AnalysisJob job: this.getJobs())
+        {
+            if(job.getStatus() == AnalysisJobStatus.QUEUED)
+            {
+                this.cancel(job);
+            }
+        }
+    }
+    
+    /**
+     * Drop all of the jobs that are done from the job history
+     */
+    public void clearDoneJobs()
+    {
+        List<AnalysisJob> removedJobs = new ArrayList<AnalysisJob>();
+        synchronized(this.lock)
+        {
+            Iterator<AnalysisJob> jobIter = this.jobHistory.iterator();
+            while(jobIter.hasNext())
+            {
+                AnalysisJob job = jobIter.next();
+                if(job.getStatus().isDone())
+                {
+                    jobIter.remove();
+                    removedJobs.add(job);
+                }
+            }
+        }
+        
+        for(AnalysisJob job: removedJobs)
+        {
+            this.fireJobRemoved(job);
+        }
+    }
+    
+    /**
+     * Get all of the jobs in the order that they were submitted
+     * @return
+     *          a copy of the job history
+     */
+    public List<AnalysisJob> getJobs()
+    {
+        synchronized(this.lock)
+        {
+            return new ArrayList<AnalysisJob>(this.jobHistory);
+        }
+    }
+    
+    /**
+     * Getter for the number of jobs waiting to start
+     * @return
+     *          the queued job count
+     */
+    public int getQueuedJobCount()
+    {
+        synchronized(this.lock)
+        {
+            return this.queuedJobs.size();
+        }
+    }
+    
+    /**
+     * Getter for the number of jobs that are running
+     * @return
+     *          the running job count
+     */
+    public int getRunningJobCount()
+    {
+        synchronized(this.lock)
+        {
+            return this.runningSessionJobCount + this.runningWorkerJobCount;
+        }
+    }
+    
+    /**
+     * Getter for the cap on how many R worker process jobs can run at once
+     * @return
+     *          the maximum worker job count
+     */
+    public int getMaximumWorkerJobCount()
+    {
+        synchronized(this.lock)
+        {
+            return this.maximumWorkerJobCount;
+        }
+    }
+    
+    /**
+     * Setter for the cap on how many R worker process jobs can run at once.
+     * Lowering the cap doesn't stop jobs that are already running
+     * @param maximumWorkerJobCount
+     *          the maximum worker job count
+     * @throws IllegalArgumentException
+     *          if the count is less than 1
+     */
+    public void setMaximumWorkerJobCount(int maximumWorkerJobCount)
+    throws IllegalArgumentException
+    {
+        if(maximumWorkerJobCount < 1)
+        {
+            throw new IllegalArgumentException(
+                    "at least one job has to be allowed to run");
+        }
+        
+        List<AnalysisJob> startedJobs;
+        synchronized(this.lock)
+        {
+            this.maximumWorkerJobCount = maximumWorkerJobCount;
+            startedJobs = this.startJobsNoLock();
+        }
+        
+        this.fireJobsChanged(startedJobs);
+    }
+    
+    /**
+     * Calculate how many jobs are getting done per hour. This is the number
+     * of finished jobs divided by the time between the first of them
+     * starting and the last of them finishing
+     * @return
+     *          the jobs per hour or NaN if no jobs have finished
+     */
+    public double getFinishedJobsPerHour()
+    {
+        int finishedCount = 0;
+        long firstStartMillis = Long.MAX_VALUE;
+        long lastEndMillis = Long.MIN_VALUE;
+        for(AnalysisJob job: this.getJobs())
+        {
+            if(job.getStatus() == AnalysisJobStatus.FINISHED)
+            {
+                finishedCount++;
+                firstStartMillis = Math.min(
+                        firstStartMillis,
+                        job.getStartTimeMillis());
+                lastEndMillis = Math.max(
+                        lastEndMillis,
+                        job.getEndTimeMillis());
+            }
+        }
+        
+        if(finishedCount == 0)
+        {
+            return Double.NaN;
+        }
+        else
+        {
+            long elapsedMillis = Math.max(1L, lastEndMillis - firstStartMillis);
+            return finishedCount * MILLIS_PER_HOUR / (double)elapsedMillis;
+        }
+    }
+    
+    /**
+     * Start as many queued jobs as there are free slots for. Session jobs
+     * and worker process jobs don't compete for slots so a job can start
+     * ahead of a higher priority job that's waiting for the other kind
+     * @return
+     *          the jobs that were started
+     */
+    private List<AnalysisJob> startJobsNoLock()
+    {
+        List<AnalysisJob> startedJobs = new ArrayList<AnalysisJob>();
+        if(this.queuedJobs.isEmpty())
+        {
+            return startedJobs;
+        }
+        
+        AnalysisJob[] queuedJobsInOrder = this.queuedJobs.toArray(
+                new AnalysisJob[this.queuedJobs.size()]);
+        Arrays.sort(queuedJobsInOrder, QUEUE_ORDER);
+        for(final AnalysisJob job: queuedJobsInOrder)
+        {
+            boolean sessionSlotFree = this.runningSessionJobCount < 1;
+            boolean workerSlotFree =
+                this.runningWorkerJobCount < this.maximumWorkerJobCount;
+            if(!sessionSlotFree && !workerSlotFree)
+            {
+                break;
+            }
+            
+            if(job.isRunInWorkerProcess())
+            {
+                if(!workerSlotFree)
+                {
+                    continue;
+                }
+                this.runningWorkerJobCount++;
+            }
+            else
+            {
+                if(!sessionSlotFree)
+                {
+                    continue;
+                }
+                this.runningSessionJobCount++;
+            }
+            
+            this.queuedJobs.remove(job);
+            job.setStatus(AnalysisJobStatus.RUNNING);
+            job.setStartTimeMillis(System.currentTimeMillis());
+            startedJobs.add(job);
+            
+            Runnable runJobRunnable = new Runnable()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public void run()
+                {
+                    AnalysisJobScheduler.this.runJob(job);
+                }
+            };
+            Thread runJobThread = new Thread(runJobRunnable);
+            runJobThread.start();
+        }
+        
+        return startedJobs;
+    }
+    
+    /**
+     * Run the given job and start whatever is next in line once it's done
+     */
+    private void runJob(AnalysisJob job)
+    {
+        AnalysisJobStatus endStatus;
+        try
+        {
+            job.execute();
+            endStatus = AnalysisJobStatus.FINISHED;
+        }
+        catch(CancellationException ex)
+        {
+            LOG.info("job canceled: " + job);
+            endStatus = AnalysisJobStatus.CANCELED;
+        }
+        catch(Exception ex)
+        {
+            if(job.isCanceled())
+            {
+                // a job that we killed can fail in all sorts of ways
+                LOG.log(Level.INFO,
+                        "canceled job stopped with an error: " + job,
+                        ex);
+                endStatus = AnalysisJobStatus.CANCELED;
+            }
+            else
+            {
+                final String errorMsg = "Error Running " + job.getName();
+                LOG.log(Level.SEVERE,
+                        errorMsg,
+                        ex);
+                job.setFailureMessage(ex.getMessage());
+                endStatus = AnalysisJobStatus.FAILED;
+                
+                if(!GraphicsEnvironment.isHeadless())
+                {
+                    MessageDialogUtilities.errorLater(
+                            Maanova.getInstance().getApplicationFrame(),
+                            ex.getMessage(),
+                            errorMsg);
+                }
+            }
+        }
+        
+        List<AnalysisJob> startedJobs;
+        synchronized(this.lock)
+        {
+            job.setStatus(endStatus);
+            job.setEndTimeMillis(System.currentTimeMillis());
+            if(job.isRunInWorkerProcess())
+            {
+                this.runningWorkerJobCount--;
+            }
+            else
+            {
+                this.runningSessionJobCount--;
+            }
+            startedJobs = this.startJobsNoLock();
+        }
+        
+        this.fireJobChanged(job);
+        this.fireJobsChanged(startedJobs);
+    }
+    
+    /**
+     * Add a listener to this scheduler
+     * @param listener
+     *          the listener to add
+     */
+    public void addAnalysisJobListener(AnalysisJobListener listener)
+    {
+        this.listenerList.add(listener);
+    }
+    
+    /**
+     * Remove the given listener from this scheduler
+     * @param listener
+     *          the listener to remove
+     */
+    public void removeAnalysisJobListener(AnalysisJobListener listener)
+    {
+        this.listenerList.remove(listener);
+    }
+    
+    private void fireJobSubmitted(AnalysisJob job)
+    {
+        Iterator<AnalysisJobListener> listenerIter =
+            this.listenerList.iterator();
+        while(listenerIter.hasNext())
+        {
+            listenerIter.next().jobSubmitted(job);
+        }
+    }
+    
+    private void fireJobChanged(AnalysisJob job)
+    {
+        Iterator<AnalysisJobListener> listenerIter =
+            this.listenerList.iterator();
+        while(listenerIter.hasNext())
+        {
+            listenerIter.next().jobChanged(job);
+        }
+    }
+    
+    private void fireJobsChanged(List<AnalysisJob> jobs)
+    {
+        for(AnalysisJob job: jobs)
+        {
+            this.fireJobChanged(job);
+        }
+    }
+    
+    private void fireJobRemoved(AnalysisJob job)
+    {
+        Iterator<AnalysisJobListener> listenerIter =
+            this.listenerList.iterator();
+        while(listenerIter.hasNext())
+        {
+            listenerIter.next().jobRemoved(job);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.job;
+
+/**
+ * The states that an {@link AnalysisJob} moves through. A job starts out
+ * {@link #QUEUED}, becomes {@link #RUNNING} when the
+ * {@link AnalysisJobScheduler} starts it and ends in one of the other states
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public enum AnalysisJobStatus
+{
+    /**
+     * waiting for a free slot
+     */
+    QUEUED
+    {
+        @Override
+        public String toString()
+        {
+            return "Queued";
+        }
+    },
+    
+    /**
+     * started and not yet done
+     */
+    RUNNING
+    {
+        @Override
+        public String toString()
+        {
+            return "Running";
+        }
+    },
+    
+    /**
+     * done without errors
+     */
+    FINISHED
+    {
+        @Override
+        public String toString()
+        {
+            return "Finished";
+        }
+    },
+    
+    /**
+     * stopped by an error
+     */
+    FAILED
+    {
+        @Override
+        public String toString()
+        {
+            return "Failed";
+        }
+    },
+    
+    /**
+     * canceled before it was done
+     */
+    CANCELED
+    {
+        @Override
+        public String toString()
+        {
+            return "Canceled";
+        }
+    };
+    
+    /**
+     * Determine if a job in this state is done
+     * @return
+     *          true for the finished, failed and canceled states
+     */
+    public boolean isDone()
+    {
+        return this != QUEUED && this != RUNNING;
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.job.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.text.NumberFormat;
+import java.util.List;
+
+import javax.swing.DefaultComboBoxModel;
+import javax.swing.ListSelectionModel;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+
+import org.jax.maanova.job.AnalysisJob;
+import org.jax.maanova.job.AnalysisJobListener;
+import org.jax.maanova.job.AnalysisJobPriority;
+import org.jax.maanova.job.AnalysisJobScheduler;
+import org.jax.maanova.job.AnalysisJobStatus;
+
+/**
+ * A panel showing the history of the {@link AnalysisJobScheduler}'s jobs
+ * with their progress. The panel lets the user cancel jobs, change the
+ * priority of queued jobs and set how many jobs can run at once
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class AnalysisJobsPanel extends javax.swing.JPanel
+{
+    /**
+     * every {@link java.io.Serializable} is supposed to have one of these
+     */
+    private static final long serialVersionUID = -7024761322516694925L;
+    
+    /**
+     * how often we poll the jobs for progress
+     */
+    private static final int UPDATE_INTERVAL_MILLIS = 1000;
+    
+    /**
+     * the most jobs that the user can let run at once
+     */
+    private static final int MAX_RUNNING_JOB_LIMIT = 64;
+    
+    private final AnalysisJobScheduler scheduler;
+    
+    private final AnalysisJobsTableModel jobsTableModel;
+    
+    private final Timer updateTimer;
+    
+    private final NumberFormat throughputFormat;
+    
+    /**
+     * true while we're setting the controls from the selected job so that
+     * we don't turn around and push those values back to the scheduler
+     */
+    private boolean updatingControls = false;
+    
+    private final AnalysisJobListener schedulerListener = new AnalysisJobListener()
+    {
+        /**
+         * {@inheritDoc}
+         */
+        public void jobSubmitted(AnalysisJob job)
+        {
+            AnalysisJobsPanel.this.refreshJobsLater();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public void jobChanged(AnalysisJob job)
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public void run()
+                {
+                    AnalysisJobsPanel.this.jobsUpdated();
+                }
+            });
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public void jobRemoved(AnalysisJob job)
+        {
+            AnalysisJobsPanel.this.refreshJobsLater();
+        }
+    };
+    
+    /**
+     * Constructor
+     */
+    public AnalysisJobsPanel()
+    {
+        this.scheduler = AnalysisJobScheduler.getInstance();
+        this.jobsTableModel = new AnalysisJobsTableModel();
+        this.updateTimer = new Timer(UPDATE_INTERVAL_MILLIS, new ActionListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void actionPerformed(ActionEvent e)
+            {
+                AnalysisJobsPanel.this.jobsUpdated();
+            }
+        });
+        this.throughputFormat = NumberFormat.getNumberInstance();
+        this.throughputFormat.setMaximumFractionDigits(1);
+        
+        this.initComponents();
+        this.postGuiInit();
+    }
+    
+    /**
+     * take care of the initialization not handled by the GUI builder
+     */
+    private void postGuiInit()
+    {
+        this.jobsTable.setModel(this.jobsTableModel);
+        this.jobsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        this.jobsTable.getSelectionModel().addListSelectionListener(new ListSelectionListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void valueChanged(ListSelectionEvent e)
+            {
+                AnalysisJobsPanel.this.updateControls();
+            }
+        });
+        
+        this.maximumRunningJobsSpinner.setModel(new SpinnerNumberModel(
+                Math.min(
+                        MAX_RUNNING_JOB_LIMIT,
+                        this.scheduler.getMaximumWorkerJobCount()),
+                1,
+                MAX_RUNNING_JOB_LIMIT,
+                1));
+        this.maximumRunningJobsSpinner.addChangeListener(new ChangeListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void stateChanged(ChangeEvent e)
+            {
+                AnalysisJobsPanel.this.maximumRunningJobsChanged();
+            }
+        });
+        
+        this.priorityComboBox.setModel(new DefaultComboBoxModel(
+                AnalysisJobPriority.values()));
+        this.priorityComboBox.addActionListener(new ActionListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void actionPerformed(ActionEvent e)
+            {
+                AnalysisJobsPanel.this.priorityChanged();
+            }
+        });
+        
+        this.cancelJobButton.addActionListener(new ActionListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void actionPerformed(ActionEvent e)
+            {
+                AnalysisJobsPanel.this.cancelSelectedJob();
+            }
+        });
+        
+        this.cancelQueuedJobsButton.addActionListener(new ActionListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void actionPerformed(ActionEvent e)
+            {
+                AnalysisJobsPanel.this.scheduler.cancelQueuedJobs();
+            }
+        });
+        
+        this.clearDoneJobsButton.addActionListener(new ActionListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void actionPerformed(ActionEvent e)
+            {
+                AnalysisJobsPanel.this.scheduler.clearDoneJobs();
+            }
+        });
+        
+        this.refreshJobs();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addNotify()
+    {
+        super.addNotify();
+        
+        // we only listen while we're showing so that a closed panel can be
+        // garbage collected
+        this.scheduler.addAnalysisJobListener(this.schedulerListener);
+        this.updateTimer.start();
+        this.refreshJobs();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeNotify()
+    {
+        this.updateTimer.stop();
+        this.scheduler.removeAnalysisJobListener(this.schedulerListener);
+        
+        super.removeNotify();
+    }
+    
+    private AnalysisJob getSelectedJob()
+    {
+        int selectedRow = this.jobsTable.getSelectedRow();
+        if(selectedRow == -1)
+        {
+            return null;
+        }
+        else
+        {
+            return this.jobsTableModel.getJobAt(selectedRow);
+        }
+    }
+    
+    private void refreshJobsLater()
+    {
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void run()
+            {
+                AnalysisJobsPanel.this.refreshJobs();
+            }
+        });
+    }
+    
+    /**
+     * reload the job list from the scheduler holding on to the selection
+     */
+    private void refreshJobs()
+    {
+        AnalysisJob selectedJob = this.getSelectedJob();
+        List<AnalysisJob> jobs = this.scheduler.getJobs();
+        this.jobsTableModel.setJobs(jobs);
+        
+        int selectedRow = selectedJob == null ? -1 : jobs.indexOf(selectedJob);
+        if(selectedRow != -1)
+        {
+            this.jobsTable.getSelectionModel().setSelectionInterval(
+                    selectedRow,
+                    selectedRow);
+        }
+        
+        this.updateSummary();
+        this.updateControls();
+    }
+    
+    /**
+     * repaint the jobs that we already have
+     */
+    private void jobsUpdated()
+    {
+        this.jobsTableModel.jobsUpdated();
+        this.updateSummary();
+        this.updateControls();
+    }
+    
+    private void updateSummary()
+    {
+        List<AnalysisJob> jobs = this.jobsTableModel.getJobs();
+        if(jobs.isEmpty())
+        {
+            this.summaryLabel.setText("No Jobs");
+            return;
+        }
+        
+        int[] statusCounts = new int[AnalysisJobStatus.values().length];
+        for(AnalysisJob job: jobs)
+        {
+            statusCounts[job.getStatus().ordinal()]++;
+        }
+        
+        StringBuilder summary = new StringBuilder();
+        summary.append("Queued: ");
+        summary.append(statusCounts[AnalysisJobStatus.QUEUED.ordinal()]);
+        summary.append(", Running: ");
+        summary.append(statusCounts[AnalysisJobStatus.RUNNING.ordinal()]);
+        summary.append(", Finished: ");
+        summary.append(statusCounts[AnalysisJobStatus.FINISHED.ordinal()]);
+        summary.append(", Failed: ");
+        summary.append(statusCounts[AnalysisJobStatus.FAILED.ordinal()]);
+        summary.append(", Canceled: ");
+        summary.append(statusCounts[AnalysisJobStatus.CANCELED.ordinal()]);
+        
+        double jobsPerHour = this.scheduler.getFinishedJobsPerHour();
+        if(!Double.isNaN(jobsPerHour))
+        {
+            summary.append(", Throughput: ");
+            summary.append(this.throughputFormat.format(jobsPerHour));
+            summary.append(" Jobs/Hour");
+        }
+        
+        this.summaryLabel.setText(summary.toString());
+    }
+    
+    /**
+     * enable the controls that make sense for the selected job
+     */
+    private void updateControls()
+    {
+        AnalysisJob selectedJob = this.getSelectedJob();
+        boolean selectedJobQueued =
+            selectedJob != null &&
+            selectedJob.getStatus() == AnalysisJobStatus.QUEUED;
+        boolean selectedJobCancelable =
+            selectedJobQueued ||
+            (selectedJob != null &&
+             selectedJob.getStatus() == AnalysisJobStatus.RUNNING &&
+             selectedJob.isCancelableWhileRunning() &&
+             !selectedJob.isCanceled());
+        
+        this.updatingControls = true;
+        try
+        {
+            if(selectedJob != null &&
+               this.priorityComboBox.getSelectedItem() != selectedJob.getPriority())
+            {
+                this.priorityComboBox.setSelectedItem(selectedJob.getPriority());
+            }
+            this.priorityComboBox.setEnabled(selectedJobQueued);
+            this.cancelJobButton.setEnabled(selectedJobCancelable);
+        }
+        finally
+        {
+            this.updatingControls = false;
+        }
+    }
+    
+    private void priorityChanged()
+    {
+        AnalysisJob selectedJob = this.getSelectedJob();
+        if(!this.updatingControls && selectedJob != null)
+        {
+            this.scheduler.setPriority(
+                    selectedJob,
+                    (AnalysisJobPriority)this.priorityComboBox.getSelectedItem());
+        }
+    }
+    
+    private void cancelSelectedJob()
+    {
+        AnalysisJob selectedJob = this.getSelectedJob();
+        if(selectedJob != null)
+        {
+            this.scheduler.cancel(selectedJob);
+        }
+    }
+    
+    private void maximumRunningJobsChanged()
+    {
+        Number maximumRunningJobs =
+            (Number)this.maximumRunningJobsSpinner.getValue();
+        this.scheduler.setMaximumWorkerJobCount(maximumRunningJobs.intValue());
+    }
+    
+    /**
+     * This method is called from within the constructor to
+     * initialize the form.
+     * WARNING: Do NOT modify this code. The content of this method is
+     * always regenerated by the Form Editor.
+     */
+    @SuppressWarnings("all")
+    // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
+    private void initComponents() {
+        java.awt.GridBagConstraints gridBagConstraints;
+
+        summaryLabel = new javax.swing.JLabel();
+        javax.swing.JScrollPane jobsScrollPane = new javax.swing.JScrollPane();
+        jobsTable = new javax.swing.JTable();
+        javax.swing.JPanel controlsPanel = new javax.swing.JPanel();
+        javax.swing.JLabel maximumRunningJobsLabel = new javax.swing.JLabel();
+        maximumRunningJobsSpinner = new javax.swing.JSpinner();
+        javax.swing.JLabel priorityLabel = new javax.swing.JLabel();
+        priorityComboBox = new javax.swing.JComboBox();
+        cancelJobButton = new javax.swing.JButton();
+        cancelQueuedJobsButton = new javax.swing.JButton();
+        clearDoneJobsButton = new javax.swing.JButton();
+
+        setLayout(new java.awt.GridBagLayout());
+
+        summaryLabel.setText("No Jobs");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridwidth = java.awt.GridBagConstraints.REMAINDER;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+        gridBagConstraints.weightx = 1.0;
+        gridBagConstraints.insets = new java.awt.Insets(5, 5, 5, 5);
+        add(summaryLabel, gridBagConstraints);
+
+        jobsScrollPane.setViewportView(jobsTable);
+
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridwidth = java.awt.GridBagConstraints.REMAINDER;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.BOTH;
+        gridBagConstraints.weightx = 1.0;
+        gridBagConstraints.weighty = 1.0;
+        gridBagConstraints.insets = new java.awt.Insets(5, 5, 5, 5);
+        add(jobsScrollPane, gridBagConstraints);
+
+        controlsPanel.setLayout(new java.awt.GridBagLayout());
+
+        maximumRunningJobsLabel.setText("Maximum Worker Process Jobs:");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.insets = new java.awt.Insets(0, 0, 0, 5);
+        controlsPanel.add(maximumRunningJobsLabel, gridBagConstraints);
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.insets = new java.awt.Insets(0, 0, 0, 15);
+        controlsPanel.add(maximumRunningJobsSpinner, gridBagConstraints);
+
+        priorityLabel.setText("Selected Job Priority:");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.insets = new java.awt.Insets(0, 0, 0, 5);
+        controlsPanel.add(priorityLabel, gridBagConstraints);
+
+        priorityComboBox.setEnabled(false);
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.insets = new java.awt.Insets(0, 0, 0, 15);
+        controlsPanel.add(priorityComboBox, gridBagConstraints);
+
+        cancelJobButton.setText("Cancel Job");
+        cancelJobButton.setEnabled(false);
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.EAST;
+        gridBagConstraints.weightx = 1.0;
+        gridBagConstraints.insets = new java.awt.Insets(0, 0, 0, 5);
+        controlsPanel.add(cancelJobButton, gridBagConstraints);
+
+        cancelQueuedJobsButton.setText("Cancel Queued Jobs");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.insets = new java.awt.Insets(0, 0, 0, 5);
+        controlsPanel.add(cancelQueuedJobsButton, gridBagConstraints);
+
+        clearDoneJobsButton.setText("Clear Finished Jobs");
+        controlsPanel.add(clearDoneJobsButton, new java.awt.GridBagConstraints());
+
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridwidth = java.awt.GridBagConstraints.REMAINDER;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.weightx = 1.0;
+        gridBagConstraints.insets = new java.awt.Insets(5, 5, 5, 5);
+        add(controlsPanel, gridBagConstraints);
+    }// </editor-fold>//GEN-END:initComponents
+    
+    // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JButton cancelJobButton;
+    private javax.swing.JButton cancelQueuedJobsButton;
+    private javax.swing.JButton clearDoneJobsButton;
+    private javax.swing.JTable jobsTable;
+    private javax.swing.JSpinner maximumRunningJobsSpinner;
+    private javax.swing.JComboBox priorityComboBox;
+    private javax.swing.JLabel summaryLabel;
+    // End of variables declaration//GEN-END:variables
+    
+}
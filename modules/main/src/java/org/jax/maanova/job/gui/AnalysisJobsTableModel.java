@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.job.gui;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.swing.table.AbstractTableModel;
+
+import org.jax.maanova.job.AnalysisJob;
+import org.jax.maanova.job.AnalysisJobStatus;
+
+/**
+ * A read only table model with a row for each {@link AnalysisJob}. The jobs
+ * change under us as they run so cell values are read from the jobs every
+ * time that they're asked for
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class AnalysisJobsTableModel extends AbstractTableModel
+{
+    /**
+     * every {@link java.io.Serializable} is supposed to have one of these
+     */
+    private static final long serialVersionUID = 3164409862208738545L;
+    
+    private static final String[] COLUMN_NAMES = new String[] {
+        "Job",
+        "Priority",
+        "Status",
+        "Progress",
+        "Submitted",
+        "Run Time",
+        "Message"};
+    
+    private static final int JOB_COLUMN = 0;
+    
+    private static final int PRIORITY_COLUMN = 1;
+    
+    private static final int STATUS_COLUMN = 2;
+    
+    private static final int PROGRESS_COLUMN = 3;
+    
+    private static final int SUBMITTED_COLUMN = 4;
+    
+    private static final int RUN_TIME_COLUMN = 5;
+    
+    private static final int MESSAGE_COLUMN = 6;
+    
+    private final DateFormat submitTimeFormat = DateFormat.getDateTimeInstance(
+            DateFormat.SHORT,
+            DateFormat.MEDIUM);
+    
+    private List<AnalysisJob> jobs = new ArrayList<AnalysisJob>();
+    
+    /**
+     * Set the jobs that this model shows. This should only be called
+     * from the AWT thread
+     * @param jobs
+     *          the jobs
+     */
+    public void setJobs(List<AnalysisJob> jobs)
+    {
+        this.jobs = jobs;
+        this.fireTableDataChanged();
+    }
+    
+    /**
+     * Getter for the jobs that this model shows
+     * @return
+     *          the jobs
+     */
+    public List<AnalysisJob> getJobs()
+    {
+        return this.jobs;
+    }
+    
+    /**
+     * Get the job for the given row
+     * @param rowIndex
+     *          the row
+     * @return
+     *          the job
+     */
+    public AnalysisJob getJobAt(int rowIndex)
+    {
+        return this.jobs.get(rowIndex);
+    }
+    
+    /**
+     * Repaint all of the rows without changing which jobs are shown. This
+     * should only be called from the AWT thread
+     */
+    public void jobsUpdated()
+    {
+        if(!this.jobs.isEmpty())
+        {
+            this.fireTableRowsUpdated(0, this.jobs.size() - 1);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int getColumnCount()
+    {
+        return COLUMN_NAMES.length;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getColumnName(int column)
+    {
+        return COLUMN_NAMES[column];
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int getRowCount()
+    {
+        return this.jobs.size();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public Object getValueAt(int rowIndex, int columnIndex)
+    {
+        AnalysisJob job = this.jobs.get(rowIndex);
+        switch(columnIndex)
+        {
+            case JOB_COLUMN: return job.getName();
+            case PRIORITY_COLUMN: return job.getPriority().toString();
+            case STATUS_COLUMN: return this.getStatusString(job);
+            case PROGRESS_COLUMN: return this.getProgressString(job);
+            case SUBMITTED_COLUMN: return this.submitTimeFormat.format(
+                    new Date(job.getSubmitTimeMillis()));
+            case RUN_TIME_COLUMN: return this.getRunTimeString(job);
+            case MESSAGE_COLUMN:
+            {
+                String failureMessage = job.getFailureMessage();
+                return failureMessage == null ? "" : failureMessage;
+            }
+            default: throw new IndexOutOfBoundsException(
+                    "bad column index: " + columnIndex);
+        }
+    }
+    
+    private String getStatusString(AnalysisJob job)
+    {
+        AnalysisJobStatus status = job.getStatus();
+        if(status == AnalysisJobStatus.RUNNING && job.isCanceled())
+        {
+            return "Canceling";
+        }
+        else
+        {
+            return status.toString();
+        }
+    }
+    
+    private String getProgressString(AnalysisJob job)
+    {
+        int totalWorkUnits = job.getTotalWorkUnits();
+        if(job.getStatus() == AnalysisJobStatus.FINISHED)
+        {
+            return "100%";
+        }
+        else if(job.getStatus() != AnalysisJobStatus.RUNNING || totalWorkUnits <= 0)
+        {
+            // either we haven't started or the job can't tell us
+            return "";
+        }
+        else
+        {
+            int workUnitsCompleted = job.getWorkUnitsCompleted();
+            long percentCompleted = Math.round(
+                    100.0 * workUnitsCompleted / totalWorkUnits);
+            return percentCompleted + "% (" + workUnitsCompleted + " of " +
+                   totalWorkUnits + ")";
+        }
+    }
+    
+    private String getRunTimeString(AnalysisJob job)
+    {
+        long startTimeMillis = job.getStartTimeMillis();
+        if(startTimeMillis == 0L)
+        {
+            return "";
+        }
+        
+        long endTimeMillis = job.getStatus().isDone() ?
+                job.getEndTimeMillis() :
+                System.currentTimeMillis();
+        long totalSeconds = Math.max(0L, endTimeMillis - startTimeMillis) / 1000L;
+        long hours = totalSeconds / 3600L;
+        long minutes = (totalSeconds / 60L) % 60L;
+        long seconds = totalSeconds % 60L;
+        return hours + (minutes < 10L ? ":0" : ":") + minutes +
+               (seconds < 10L ? ":0" : ":") + seconds;
+    }
+}
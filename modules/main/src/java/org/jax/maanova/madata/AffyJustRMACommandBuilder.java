@@ -48,6 +48,8 @@ implements AffyReadDataCommandBuilderInterface, AffyRMACommandBuilderInterface
     
     private volatile boolean celFilesCompressed = false;
     
+    private volatile boolean useJavaEngine = false;
+    
     /**
      * Getter for the name that should be used for the resulting data object
      * @return the name to use
@@ -157,6 +159,27 @@ implements AffyReadDataCommandBuilderInterface, AffyRMACommandBuilderInterface
         this.celFilesCompressed = celFilesCompressed;
     }
     
+    /**
+     * Determines if the multi-threaded Java RMA engine should be used in
+     * place of running justRMA in R. This doesn't change the command
+     * since the Java engine follows the same settings
+     * @return true iff we should use the Java engine
+     * @see RMAPreprocessingEngine
+     */
+    public boolean getUseJavaEngine()
+    {
+        return this.useJavaEngine;
+    }
+    
+    /**
+     * @see #getUseJavaEngine()
+     * @param useJavaEngine the useJavaEngine to set
+     */
+    public void setUseJavaEngine(boolean useJavaEngine)
+    {
+        this.useJavaEngine = useJavaEngine;
+    }
+    
     /**
      * Get the command for the current settings
      * @return
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.madata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the cell intensities out of Affymetrix CEL files. Both the
+ * version 3 (text) and version 4 (binary) formats are supported, gzip
+ * compressed or not. Command Console (generic) CEL files are not.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+final class CelFileReader
+{
+    /**
+     * the magic number at the start of a version 4 CEL file
+     */
+    private static final int BINARY_MAGIC = 64;
+    
+    /**
+     * the first byte of a command console CEL file
+     */
+    private static final int COMMAND_CONSOLE_MAGIC = 59;
+    
+    /**
+     * the number of bytes in each version 4 cell entry: the mean and
+     * standard deviation floats and the pixel count short
+     */
+    private static final int BINARY_CELL_SIZE = 10;
+    
+    /**
+     * the chip type is the name of the .1sq file in the DAT header
+     */
+    private static final Pattern CHIP_TYPE_PATTERN = Pattern.compile(
+            "([^\\s\\x14]+)\\.1sq");
+    
+    private final int columnCount;
+    
+    private final int rowCount;
+    
+    private final String chipType;
+    
+    private final float[] intensities;
+    
+    private CelFileReader(
+            int columnCount,
+            int rowCount,
+            String chipType,
+            float[] intensities)
+    {
+        this.columnCount = columnCount;
+        this.rowCount = rowCount;
+        this.chipType = chipType;
+        this.intensities = intensities;
+    }
+    
+    /**
+     * Read a CEL file
+     * @param celFile
+     *          the file
+     * @param compressed
+     *          true if the file is gzip compressed. Compressed files are
+     *          also detected from their content so this only needs to be
+     *          set if the caller knows better
+     * @param headerOnly
+     *          if true we stop once we know the dimensions and chip type
+     *          and {@link #getIntensities()} returns null
+     * @return
+     *          the contents of the file
+     * @throws IOException
+     *          if the file can't be read or has a format we don't support
+     */
+    public static CelFileReader read(
+            File celFile,
+            boolean compressed,
+            boolean headerOnly) throws IOException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(celFile));
+        try
+        {
+            in.mark(2);
+            int firstByte = in.read();
+            int secondByte = in.read();
+            in.reset();
+            if(compressed || (firstByte == 0x1F && secondByte == 0x8B))
+            {
+                in = new BufferedInputStream(new GZIPInputStream(in));
+                in.mark(1);
+                firstByte = in.read();
+                in.reset();
+            }
+            
+            if(firstByte == BINARY_MAGIC)
+            {
+                return readBinary(new DataInputStream(in), headerOnly);
+            }
+            else if(firstByte == COMMAND_CONSOLE_MAGIC)
+            {
+                throw new IOException(
+                        celFile.getName() + " is a command console CEL file " +
+                        "which can't be read by the Java RMA engine");
+            }
+            else
+            {
+                return readText(
+                        new BufferedReader(new InputStreamReader(in, "ISO-8859-1")),
+                        headerOnly);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     * Read a version 4 CEL file. Everything is little endian
+     */
+    private static CelFileReader readBinary(
+            DataInputStream in,
+            boolean headerOnly) throws IOException
+    {
+        int magic = readLittleEndianInt(in);
+        int version = readLittleEndianInt(in);
+        if(magic != BINARY_MAGIC || version != 4)
+        {
+            throw new IOException(
+                    "unsupported binary CEL file version: " + version);
+        }
+        
+        int columnCount = readLittleEndianInt(in);
+        int rowCount = readLittleEndianInt(in);
+        int cellCount = readLittleEndianInt(in);
+        String header = readLittleEndianString(in);
+        readLittleEndianString(in); // algorithm name
+        readLittleEndianString(in); // algorithm parameters
+        readLittleEndianInt(in);    // cell margin
+        readLittleEndianInt(in);    // outlier count
+        readLittleEndianInt(in);    // masked count
+        readLittleEndianInt(in);    // sub-grid count
+        
+        String chipType = getChipType(header);
+        if(headerOnly)
+        {
+            return new CelFileReader(columnCount, rowCount, chipType, null);
+        }
+        
+        if(cellCount != columnCount * rowCount)
+        {
+            throw new IOException(
+                    "binary CEL file has " + cellCount + " cells for a " +
+                    columnCount + "x" + rowCount + " array");
+        }
+        
+        // the cells are stored with x changing fastest which is the same
+        // order that affy indexes them in
+        byte[] cellBytes = new byte[cellCount * BINARY_CELL_SIZE];
+        in.readFully(cellBytes);
+        ByteBuffer cellBuffer = ByteBuffer.wrap(cellBytes).order(ByteOrder.LITTLE_ENDIAN);
+        float[] intensities = new float[cellCount];
+        for(int i = 0; i < cellCount; i++)
+        {
+            intensities[i] = cellBuffer.getFloat(i * BINARY_CELL_SIZE);
+        }
+        
+        return new CelFileReader(columnCount, rowCount, chipType, intensities);
+    }
+    
+    private static int readLittleEndianInt(DataInputStream in) throws IOException
+    {
+        return Integer.reverseBytes(in.readInt());
+    }
+    
+    private static String readLittleEndianString(DataInputStream in) throws IOException
+    {
+        int length = readLittleEndianInt(in);
+        if(length < 0)
+        {
+            throw new IOException("bad string length in binary CEL file: " + length);
+        }
+        
+        byte[] stringBytes = new byte[length];
+        in.readFully(stringBytes);
+        return new String(stringBytes, "ISO-8859-1");
+    }
+    
+    /**
+     * Read a version 3 (text) CEL file
+     */
+    private static CelFileReader readText(
+            BufferedReader reader,
+            boolean headerOnly) throws IOException
+    {
+        int columnCount = -1;
+        int rowCount = -1;
+        String chipType = null;
+        float[] intensities = null;
+        String section = "";
+        
+        for(String line = reader.readLine(); line != null; line = reader.readLine())
+        {
+            String trimmedLine = line.trim();
+            if(trimmedLine.startsWith("["))
+            {
+                section = trimmedLine;
+                if(section.equals("[INTENSITY]") && headerOnly)
+                {
+                    break;
+                }
+            }
+            else if(section.equals("[HEADER]"))
+            {
+                if(trimmedLine.startsWith("Cols="))
+                {
+                    columnCount = parseHeaderInt(trimmedLine);
+                }
+                else if(trimmedLine.startsWith("Rows="))
+                {
+                    rowCount = parseHeaderInt(trimmedLine);
+                }
+                else if(trimmedLine.startsWith("DatHeader="))
+                {
+                    chipType = getChipType(trimmedLine);
+                }
+            }
+            else if(section.equals("[INTENSITY]"))
+            {
+                if(trimmedLine.startsWith("NumberCells=") || trimmedLine.startsWith("CellHeader="))
+                {
+                    continue;
+                }
+                else if(trimmedLine.length() == 0)
+                {
+                    if(intensities != null)
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                
+                if(intensities == null)
+                {
+                    if(columnCount <= 0 || rowCount <= 0)
+                    {
+                        throw new IOException("text CEL file is missing its dimensions");
+                    }
+                    intensities = new float[columnCount * rowCount];
+                }
+                
+                // X, Y, MEAN, STDV, NPIXELS
+                int xEnd = indexOfSeparator(trimmedLine, 0);
+                int yStart = skipSeparators(trimmedLine, xEnd);
+                int yEnd = indexOfSeparator(trimmedLine, yStart);
+                int meanStart = skipSeparators(trimmedLine, yEnd);
+                int meanEnd = indexOfSeparator(trimmedLine, meanStart);
+                try
+                {
+                    int x = Integer.parseInt(trimmedLine.substring(0, xEnd));
+                    int y = Integer.parseInt(trimmedLine.substring(yStart, yEnd));
+                    if(x < 0 || x >= columnCount || y < 0 || y >= rowCount)
+                    {
+                        throw new IOException("CEL cell is out of range: " + trimmedLine);
+                    }
+                    intensities[x + y * columnCount] = Float.parseFloat(
+                            trimmedLine.substring(meanStart, meanEnd));
+                }
+                catch(NumberFormatException ex)
+                {
+                    throw new IOException("bad CEL intensity line: " + trimmedLine);
+                }
+            }
+        }
+        
+        if(columnCount <= 0 || rowCount <= 0)
+        {
+            throw new IOException("text CEL file is missing its dimensions");
+        }
+        else if(!headerOnly && intensities == null)
+        {
+            throw new IOException("text CEL file has no intensities");
+        }
+        
+        return new CelFileReader(columnCount, rowCount, chipType, intensities);
+    }
+    
+    private static int parseHeaderInt(String line) throws IOException
+    {
+        try
+        {
+            return Integer.parseInt(line.substring(line.indexOf('=') + 1).trim());
+        }
+        catch(NumberFormatException ex)
+        {
+            throw new IOException("bad CEL header line: " + line);
+        }
+    }
+    
+    private static int indexOfSeparator(String line, int start)
+    {
+        int i = start;
+        while(i < line.length() && line.charAt(i) != '\t' && line.charAt(i) != ' ')
+        {
+            i++;
+        }
+        return i;
+    }
+    
+    private static int skipSeparators(String line, int start)
+    {
+        int i = start;
+        while(i < line.length() && (line.charAt(i) == '\t' || line.charAt(i) == ' '))
+        {
+            i++;
+        }
+        return i;
+    }
+    
+    private static String getChipType(String header)
+    {
+        Matcher chipTypeMatcher = CHIP_TYPE_PATTERN.matcher(header);
+        return chipTypeMatcher.find() ? chipTypeMatcher.group(1) : null;
+    }
+    
+    /**
+     * Getter for the number of columns (the X dimension)
+     * @return the column count
+     */
+    public int getColumnCount()
+    {
+        return this.columnCount;
+    }
+    
+    /**
+     * Getter for the number of rows (the Y dimension)
+     * @return the row count
+     */
+    public int getRowCount()
+    {
+        return this.rowCount;
+    }
+    
+    /**
+     * Getter for the chip type from the DAT header
+     * @return the chip type or null if the header doesn't name one
+     */
+    public String getChipType()
+    {
+        return this.chipType;
+    }
+    
+    /**
+     * Getter for the cell intensities indexed by x + y * columns which is
+     * the same as affy's indices minus one
+     * @return the intensities
+     */
+    public float[] getIntensities()
+    {
+        return this.intensities;
+    }
+}
@@ -29,7 +29,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jax.maanova.fit.FitMaanovaResult;
+import org.jax.maanova.project.LazyRObjectRegistry;
 import org.jax.maanova.test.MaanovaTestResult;
+import org.jax.maanova.test.MaanovaTestResultCache;
 import org.jax.r.RAssignmentCommand;
 import org.jax.r.RCommand;
 import org.jax.r.RCommandParameter;
@@ -65,6 +67,17 @@ public class MicroarrayExperiment extends RObject
     private static final String PROBESET_ID_COMPONENT   = "$probeid";
     private static final String GENE_LISTS_COMPONENT    = "$gene_lists";
     
+    private final Map<String, MaanovaTestResultCache> testResultCaches =
+        new HashMap<String, MaanovaTestResultCache>();
+    
+    /**
+     * the probeset IDs (lazily pulled out of R). Guarded by
+     * probesetDictionaryLock
+     */
+    private ProbesetDictionary probesetDictionary = null;
+    
+    private final Object probesetDictionaryLock = new Object();
+    
     /**
      * Constructor
      * @param rInterface
@@ -109,7 +122,8 @@ public class MicroarrayExperiment extends RObject
     }
     
     /**
-     * Get all of the top-level R objects whose class is {@value #R_CLASS_STRING}
+     * Get all of the top-level R objects whose class is {@value #R_CLASS_STRING}.
+     * This doesn't read objects from a lazily loaded project into R
      * @param rInterface
      *          the R interface to extract the objects from
      * @return
@@ -117,7 +131,7 @@ public class MicroarrayExperiment extends RObject
      */
     public static List<RObject> getAllMicroarrayExperimentRObjects(RInterface rInterface)
     {
-        List<RObject> microarrayIdentifiers = JRIUtilityFunctions.getTopLevelObjectsOfType(
+        List<RObject> microarrayIdentifiers = LazyRObjectRegistry.getTopLevelObjectsOfType(
                 rInterface,
                 R_CLASS_STRING);
         
@@ -179,18 +193,14 @@ public class MicroarrayExperiment extends RObject
      */
     public int[] getIndicesForGeneListNamed(String listName)
     {
-        String[] allGenesList = this.getProbesetIds();
-        Map<String, Integer> geneIndexMap = new HashMap<String, Integer>();
-        for(int i = 0; i < allGenesList.length; i++)
-        {
-            geneIndexMap.put(allGenesList[i], i);
-        }
-        
         String[] geneList = this.getGeneListNamed(listName);
-        int[] indices = new int[geneList.length];
-        for(int i = 0; i < geneList.length; i++)
+        int[] indices = this.getProbesetDictionary().getCodes(geneList);
+        if(indices.length < geneList.length)
         {
-            indices[i] = geneIndexMap.get(geneList[i]);
+            LOG.warning(
+                    (geneList.length - indices.length) + " genes in list \"" +
+                    listName + "\" are not in " +
+                    this.getAccessorExpressionString());
         }
         
         return indices;
@@ -297,6 +307,40 @@ public class MicroarrayExperiment extends RObject
         return JRIUtilityFunctions.extractDoubleValues(yHatsExpr);
     }
     
+    /**
+     * Getter for a contiguous block of data rows. The block comes back
+     * in R's column-major order so the value for row <code>r</code> and
+     * column <code>c</code> (both relative to the block) is at
+     * <code>c * (endIndex - startIndex) + r</code>. Missing values
+     * are NaN.
+     * @param startIndex
+     *          the 0-based index of the first row (inclusive)
+     * @param endIndex
+     *          the 0-based index of the last row (exclusive)
+     * @return
+     *          the column-major block of data
+     */
+    public double[] getDataRowBlock(int startIndex, int endIndex)
+    {
+        if(endIndex <= startIndex)
+        {
+            return new double[0];
+        }
+        
+        // as.numeric flattens the block in column-major order and makes sure
+        // that we get doubles back from JRI even if the data is integer
+        String blockExpression =
+            this.getAccessorExpressionString() + DATA_COMPONENT +
+            "[" + (startIndex + 1) + ":" + endIndex + ", , drop=FALSE]";
+        REXP blockExpr = this.getRInterface().evaluateCommand(new SilentRCommand(
+                new RMethodInvocationCommand(
+                        "as.numeric",
+                        new RCommandParameter(blockExpression))));
+        double[] block = blockExpr.asDoubleArray();
+        
+        return block == null ? new double[0] : block;
+    }
+    
     /**
      * Getter for the {@link FitMaanovaResult}s that belong to this
      * experiment
@@ -346,6 +390,69 @@ public class MicroarrayExperiment extends RObject
         return maanovaTestResults;
     }
     
+    /**
+     * Get the value cache for the test result with the given accessor. The
+     * cache lives as long as this experiment does so that every view of the
+     * same test result shares the values that have already been pulled
+     * out of R.
+     * @param testResultAccessor
+     *          the accessor expression of the test result
+     * @return
+     *          the cache (created on demand)
+     */
+    public MaanovaTestResultCache getTestResultCache(String testResultAccessor)
+    {
+        synchronized(this.testResultCaches)
+        {
+            MaanovaTestResultCache cache =
+                this.testResultCaches.get(testResultAccessor);
+            if(cache == null)
+            {
+                cache = new MaanovaTestResultCache();
+                this.testResultCaches.put(testResultAccessor, cache);
+            }
+            
+            return cache;
+        }
+    }
+    
+    /**
+     * Clear and forget about the value cache for the given test result.
+     * This should be called whenever the test result is removed from
+     * or replaced in R.
+     * @param testResultAccessor
+     *          the accessor expression of the test result
+     */
+    public void removeTestResultCache(String testResultAccessor)
+    {
+        synchronized(this.testResultCaches)
+        {
+            MaanovaTestResultCache cache =
+                this.testResultCaches.remove(testResultAccessor);
+            if(cache != null)
+            {
+                cache.clear();
+            }
+        }
+    }
+    
+    /**
+     * Clear and forget about the value caches for all of this experiment's
+     * test results. This should be called any time that the test results
+     * may have been replaced in R without us knowing which ones.
+     */
+    public void clearTestResultCaches()
+    {
+        synchronized(this.testResultCaches)
+        {
+            for(MaanovaTestResultCache cache: this.testResultCaches.values())
+            {
+                cache.clear();
+            }
+            this.testResultCaches.clear();
+        }
+    }
+    
     /**
      * Getter for the dye count
      * @return
@@ -380,13 +487,7 @@ public class MicroarrayExperiment extends RObject
      */
     public String getProbesetId(int probesetIndex)
     {
-        SilentRCommand probesetIdCommand = new SilentRCommand(
-                RUtilities.indexExpression(
-                        this.probesetIdAccessor(),
-                        probesetIndex));
-        REXP probesetIdExpr = this.getRInterface().evaluateCommand(
-                probesetIdCommand);
-        return probesetIdExpr.asString();
+        return this.getProbesetDictionary().getProbesetId(probesetIndex);
     }
     
     /**
@@ -395,11 +496,69 @@ public class MicroarrayExperiment extends RObject
      */
     public String[] getProbesetIds()
     {
-        SilentRCommand probesetIdsCommand = new SilentRCommand(
-                this.probesetIdAccessor());
-        REXP probesetIdsExpr = this.getRInterface().evaluateCommand(
-                probesetIdsCommand);
-        return probesetIdsExpr.asStringArray();
+        return this.getProbesetDictionary().getProbesetIds();
+    }
+    
+    /**
+     * Get the dictionary of this experiment's probeset IDs. The IDs are
+     * only pulled out of R the first time that this is called (or the
+     * first time after {@link #clearProbesetDictionary()})
+     * @return
+     *          the dictionary
+     */
+    public ProbesetDictionary getProbesetDictionary()
+    {
+        synchronized(this.probesetDictionaryLock)
+        {
+            if(this.probesetDictionary == null)
+            {
+                SilentRCommand probesetIdsCommand = new SilentRCommand(
+                        this.probesetIdAccessor());
+                REXP probesetIdsExpr = this.getRInterface().evaluateCommand(
+                        probesetIdsCommand);
+                this.probesetDictionary = new ProbesetDictionary(
+                        probesetIdsExpr.asStringArray());
+            }
+            
+            return this.probesetDictionary;
+        }
+    }
+    
+    /**
+     * Get a dictionary for probeset IDs that were read from one of this
+     * experiment's fits or tests. fitmaanova and matest copy the probeset
+     * IDs straight from the experiment so this will normally just be
+     * {@link #getProbesetDictionary()}, but if the experiment has been
+     * replaced since then the result gets a dictionary of its own
+     * @param probesetIds
+     *          the probeset IDs
+     * @return
+     *          the dictionary
+     */
+    public ProbesetDictionary internProbesetIds(String[] probesetIds)
+    {
+        ProbesetDictionary experimentDictionary = this.getProbesetDictionary();
+        if(experimentDictionary.containsSameIds(probesetIds))
+        {
+            return experimentDictionary;
+        }
+        else
+        {
+            return new ProbesetDictionary(probesetIds);
+        }
+    }
+    
+    /**
+     * Forget the probeset dictionary so that it's pulled out of R again
+     * the next time that it's needed. This should be called any time that
+     * the underlying R object may have been replaced
+     */
+    public void clearProbesetDictionary()
+    {
+        synchronized(this.probesetDictionaryLock)
+        {
+            this.probesetDictionary = null;
+        }
     }
     
     private String probesetIdAccessor()
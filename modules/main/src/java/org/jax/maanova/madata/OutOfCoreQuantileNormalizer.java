@@ -0,0 +1,461 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.madata;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Quantile normalizes a probes by arrays matrix that lives on disk. The
+ * matrix file holds big endian doubles in column major order (a column
+ * per array, the same way that R lays out a matrix) and is memory mapped
+ * a column at a time, so memory use doesn't grow with the number of
+ * arrays or probes. Normalization takes three steps:
+ * <ol>
+ * <li>
+ * every column is sorted into a second on-disk matrix with an external
+ * merge sort (see {@link #createSortTasks()})
+ * </li>
+ * <li>
+ * the reference distribution (the mean of the sorted columns) is
+ * computed in a single streaming pass over the sorted matrix (see
+ * {@link #computeReference()})
+ * </li>
+ * <li>
+ * every value in the matrix is replaced in place by the reference value
+ * at its rank (see {@link #createNormalizeTasks()}). Tied values get the
+ * reference value at their average rank like preprocessCore's
+ * normalize.quantiles(...)
+ * </li>
+ * </ol>
+ * The sort and normalize steps are handed back as tasks, a task per
+ * column, so that the caller can run them on its own thread pool.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+final class OutOfCoreQuantileNormalizer
+{
+    /**
+     * the default maximum number of values that we sort in memory. Longer
+     * columns are sorted in runs of this size which are then merged
+     */
+    public static final int DEFAULT_RUN_SIZE = 1024 * 1024;
+    
+    /**
+     * the number of rows that we sum at a time when computing the
+     * reference distribution
+     */
+    private static final int REFERENCE_CHUNK_SIZE = 64 * 1024;
+    
+    private final File matrixFile;
+    
+    private final int rowCount;
+    
+    private final int columnCount;
+    
+    private final File sortedFile;
+    
+    private final File scratchFile;
+    
+    private final File referenceFile;
+    
+    private final int runSize;
+    
+    /**
+     * Constructor
+     * @param matrixFile
+     *          the matrix file which is normalized in place
+     * @param rowCount
+     *          the number of rows (probes)
+     * @param columnCount
+     *          the number of columns (arrays)
+     * @param workDirectory
+     *          the directory that we put our working files in. The
+     *          sorted matrix takes as much space as the matrix itself and
+     *          the merge runs take that much again
+     */
+    public OutOfCoreQuantileNormalizer(
+            File matrixFile,
+            int rowCount,
+            int columnCount,
+            File workDirectory)
+    {
+        this(matrixFile, rowCount, columnCount, workDirectory, DEFAULT_RUN_SIZE);
+    }
+    
+    /**
+     * Constructor
+     * @param matrixFile
+     *          the matrix file which is normalized in place
+     * @param rowCount
+     *          the number of rows (probes)
+     * @param columnCount
+     *          the number of columns (arrays)
+     * @param workDirectory
+     *          the directory that we put our working files in
+     * @param runSize
+     *          the maximum number of values that a sort task holds in
+     *          memory
+     */
+    public OutOfCoreQuantileNormalizer(
+            File matrixFile,
+            int rowCount,
+            int columnCount,
+            File workDirectory,
+            int runSize)
+    {
+        this.matrixFile = matrixFile;
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.sortedFile = new File(workDirectory, "sorted.bin");
+        this.scratchFile = new File(workDirectory, "runs.bin");
+        this.referenceFile = new File(workDirectory, "reference.bin");
+        this.runSize = Math.max(1, runSize);
+    }
+    
+    /**
+     * Create the tasks that sort each column into the sorted matrix. All
+     * of these must be done before {@link #computeReference()} is called
+     * @return
+     *          the tasks, one per column
+     * @throws IOException
+     *          if we fail to create the sorted matrix file
+     */
+    public List<Callable<Void>> createSortTasks() throws IOException
+    {
+        long matrixLength = 8L * this.rowCount * this.columnCount;
+        setFileLength(this.sortedFile, matrixLength);
+        if(this.rowCount > this.runSize)
+        {
+            setFileLength(this.scratchFile, matrixLength);
+        }
+        
+        List<Callable<Void>> sortTasks = new ArrayList<Callable<Void>>(this.columnCount);
+        for(int column = 0; column < this.columnCount; column++)
+        {
+            sortTasks.add(new SortColumnTask(column));
+        }
+        return sortTasks;
+    }
+    
+    /**
+     * Compute the reference distribution from the sorted columns
+     * @throws IOException
+     *          if we fail to read the sorted matrix or write the
+     *          reference distribution
+     */
+    public void computeReference() throws IOException
+    {
+        setFileLength(this.referenceFile, 8L * this.rowCount);
+        DoubleBuffer reference = this.mapColumn(
+                this.referenceFile,
+                0,
+                MapMode.READ_WRITE);
+        DoubleBuffer[] sortedColumns = new DoubleBuffer[this.columnCount];
+        for(int column = 0; column < this.columnCount; column++)
+        {
+            sortedColumns[column] = this.mapColumn(
+                    this.sortedFile,
+                    column,
+                    MapMode.READ_ONLY);
+        }
+        
+        double[] sums = new double[Math.min(REFERENCE_CHUNK_SIZE, this.rowCount)];
+        double[] values = new double[sums.length];
+        for(int chunkStart = 0; chunkStart < this.rowCount; chunkStart += sums.length)
+        {
+            int chunkSize = Math.min(sums.length, this.rowCount - chunkStart);
+            Arrays.fill(sums, 0.0);
+            for(DoubleBuffer sortedColumn: sortedColumns)
+            {
+                sortedColumn.get(values, 0, chunkSize);
+                for(int i = 0; i < chunkSize; i++)
+                {
+                    sums[i] += values[i];
+                }
+            }
+            
+            for(int i = 0; i < chunkSize; i++)
+            {
+                sums[i] /= this.columnCount;
+            }
+            reference.put(sums, 0, chunkSize);
+        }
+    }
+    
+    /**
+     * Create the tasks that replace each column's values with their
+     * normalized values. {@link #computeReference()} must be called
+     * before these are run
+     * @return
+     *          the tasks, one per column
+     */
+    public List<Callable<Void>> createNormalizeTasks()
+    {
+        List<Callable<Void>> normalizeTasks =
+            new ArrayList<Callable<Void>>(this.columnCount);
+        for(int column = 0; column < this.columnCount; column++)
+        {
+            normalizeTasks.add(new NormalizeColumnTask(column));
+        }
+        return normalizeTasks;
+    }
+    
+    private static void setFileLength(File file, long length) throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            randomAccessFile.setLength(length);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+    
+    /**
+     * Memory map a single column of one of our matrix files. The mapping
+     * stays valid after the file is closed
+     */
+    private DoubleBuffer mapColumn(
+            File file,
+            int column,
+            MapMode mapMode) throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(
+                file,
+                mapMode == MapMode.READ_ONLY ? "r" : "rw");
+        try
+        {
+            FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(
+                    mapMode,
+                    8L * column * this.rowCount,
+                    8L * this.rowCount).asDoubleBuffer();
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+    
+    /**
+     * Find the index of the 1st sorted value that is not less than the
+     * given value
+     */
+    private static int lowerBound(DoubleBuffer sortedValues, int start, int end, double value)
+    {
+        int low = start;
+        int high = end;
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if(sortedValues.get(middle) < value)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Find the index of the 1st sorted value that is greater than the
+     * given value
+     */
+    private static int upperBound(DoubleBuffer sortedValues, int start, int end, double value)
+    {
+        int low = start;
+        int high = end;
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if(sortedValues.get(middle) <= value)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Sorts a single column with an external merge sort. The column is
+     * split into runs which are sorted in memory and written to the
+     * scratch matrix, then the runs are merged into the sorted matrix
+     */
+    private class SortColumnTask implements Callable<Void>
+    {
+        private final int column;
+        
+        /**
+         * Constructor
+         * @param column
+         *          the column to sort
+         */
+        public SortColumnTask(int column)
+        {
+            this.column = column;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public Void call() throws IOException
+        {
+            OutOfCoreQuantileNormalizer normalizer = OutOfCoreQuantileNormalizer.this;
+            int rowCount = normalizer.rowCount;
+            int runSize = normalizer.runSize;
+            DoubleBuffer values = normalizer.mapColumn(
+                    normalizer.matrixFile,
+                    this.column,
+                    MapMode.READ_ONLY);
+            DoubleBuffer sortedValues = normalizer.mapColumn(
+                    normalizer.sortedFile,
+                    this.column,
+                    MapMode.READ_WRITE);
+            
+            double[] run = new double[Math.min(runSize, rowCount)];
+            if(rowCount <= runSize)
+            {
+                values.get(run);
+                Arrays.sort(run);
+                sortedValues.put(run);
+                return null;
+            }
+            
+            DoubleBuffer runs = normalizer.mapColumn(
+                    normalizer.scratchFile,
+                    this.column,
+                    MapMode.READ_WRITE);
+            int runCount = (rowCount + runSize - 1) / runSize;
+            int[] runPositions = new int[runCount];
+            int[] runEnds = new int[runCount];
+            for(int i = 0; i < runCount; i++)
+            {
+                runPositions[i] = i * runSize;
+                runEnds[i] = Math.min(runPositions[i] + runSize, rowCount);
+                int length = runEnds[i] - runPositions[i];
+                values.get(run, 0, length);
+                Arrays.sort(run, 0, length);
+                runs.put(run, 0, length);
+            }
+            
+            // there are only ever a handful of runs so a linear scan for
+            // the smallest head is cheaper than keeping a heap
+            for(int i = 0; i < rowCount; i++)
+            {
+                int minRun = -1;
+                double minValue = 0.0;
+                for(int j = 0; j < runCount; j++)
+                {
+                    if(runPositions[j] < runEnds[j])
+                    {
+                        double value = runs.get(runPositions[j]);
+                        if(minRun == -1 || value < minValue)
+                        {
+                            minRun = j;
+                            minValue = value;
+                        }
+                    }
+                }
+                sortedValues.put(minValue);
+                runPositions[minRun]++;
+            }
+            
+            return null;
+        }
+    }
+    
+    /**
+     * Replaces a single column's values in place by the reference value
+     * at their rank. The rank comes from a binary search of the sorted
+     * column so no index needs to be held in memory
+     */
+    private class NormalizeColumnTask implements Callable<Void>
+    {
+        private final int column;
+        
+        /**
+         * Constructor
+         * @param column
+         *          the column to normalize
+         */
+        public NormalizeColumnTask(int column)
+        {
+            this.column = column;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public Void call() throws IOException
+        {
+            OutOfCoreQuantileNormalizer normalizer = OutOfCoreQuantileNormalizer.this;
+            int rowCount = normalizer.rowCount;
+            DoubleBuffer values = normalizer.mapColumn(
+                    normalizer.matrixFile,
+                    this.column,
+                    MapMode.READ_WRITE);
+            DoubleBuffer sortedValues = normalizer.mapColumn(
+                    normalizer.sortedFile,
+                    this.column,
+                    MapMode.READ_ONLY);
+            DoubleBuffer reference = normalizer.mapColumn(
+                    normalizer.referenceFile,
+                    0,
+                    MapMode.READ_ONLY);
+            
+            for(int i = 0; i < rowCount; i++)
+            {
+                double value = values.get(i);
+                int tieStart = lowerBound(sortedValues, 0, rowCount, value);
+                int tieEnd = upperBound(sortedValues, tieStart, rowCount, value);
+                
+                // the average of the 1-based ranks tieStart + 1 through
+                // tieEnd
+                double averageRank = (tieStart + 1 + tieEnd) / 2.0;
+                int floorRank = (int)Math.floor(averageRank);
+                if(averageRank - floorRank > 0.4)
+                {
+                    values.put(i, 0.5 * (reference.get(floorRank - 1) + reference.get(floorRank)));
+                }
+                else
+                {
+                    values.put(i, reference.get(floorRank - 1));
+                }
+            }
+            
+            return null;
+        }
+    }
+}
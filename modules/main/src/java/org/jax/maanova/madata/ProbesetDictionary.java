@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.madata;
+
+import java.util.Arrays;
+
+/**
+ * An immutable dictionary that gives every probeset ID in an experiment a
+ * dense int code (its row index) along with a reverse index for going
+ * from IDs back to codes. The reverse index is an open addressing hash
+ * table of plain ints so lookups don't allocate anything. A single
+ * dictionary is shared by the experiment and all of the fits and tests
+ * that are calculated from it (see
+ * {@link MicroarrayExperiment#internProbesetIds(String[])}) so the IDs are
+ * only held in memory once.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public final class ProbesetDictionary
+{
+    /**
+     * the code returned for IDs that aren't in the dictionary
+     */
+    public static final int NO_CODE = -1;
+    
+    private final String[] probesetIds;
+    
+    /**
+     * the reverse index. Slots hold the code + 1 so that zero can mean
+     * empty. The length is always a power of two
+     */
+    private final int[] codeTable;
+    
+    /**
+     * Constructor
+     * @param probesetIds
+     *          the probeset IDs in row order. The dictionary takes
+     *          ownership of this array so it must not be modified
+     *          afterwards
+     */
+    public ProbesetDictionary(String[] probesetIds)
+    {
+        this.probesetIds = probesetIds;
+        
+        // keep the table at most half full so that probe sequences stay short
+        int tableLength = 2;
+        while(tableLength < probesetIds.length * 2)
+        {
+            tableLength <<= 1;
+        }
+        this.codeTable = new int[tableLength];
+        
+        int mask = tableLength - 1;
+        for(int code = 0; code < probesetIds.length; code++)
+        {
+            String probesetId = probesetIds[code];
+            if(probesetId != null)
+            {
+                int slot = hash(probesetId) & mask;
+                boolean duplicate = false;
+                while(this.codeTable[slot] != 0)
+                {
+                    if(probesetIds[this.codeTable[slot] - 1].equals(probesetId))
+                    {
+                        // IDs should be unique but if they aren't the
+                        // first row wins
+                        duplicate = true;
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                
+                if(!duplicate)
+                {
+                    this.codeTable[slot] = code + 1;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Getter for the number of probesets
+     * @return
+     *          the size
+     */
+    public int size()
+    {
+        return this.probesetIds.length;
+    }
+    
+    /**
+     * Get the probeset ID for the given code
+     * @param code
+     *          the code (row index)
+     * @return
+     *          the ID or null if the code is out of range
+     */
+    public String getProbesetId(int code)
+    {
+        if(code >= 0 && code < this.probesetIds.length)
+        {
+            return this.probesetIds[code];
+        }
+        else
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Get the code for the given probeset ID
+     * @param probesetId
+     *          the ID
+     * @return
+     *          the code (row index) or {@link #NO_CODE} if the ID isn't
+     *          in the dictionary
+     */
+    public int getCode(String probesetId)
+    {
+        if(probesetId == null)
+        {
+            return NO_CODE;
+        }
+        
+        int mask = this.codeTable.length - 1;
+        int slot = hash(probesetId) & mask;
+        while(this.codeTable[slot] != 0)
+        {
+            int code = this.codeTable[slot] - 1;
+            if(this.probesetIds[code].equals(probesetId))
+            {
+                return code;
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        return NO_CODE;
+    }
+    
+    /**
+     * Get the codes for the given probeset IDs. IDs that aren't in the
+     * dictionary are left out
+     * @param probesetIds
+     *          the IDs
+     * @return
+     *          the codes in the same order as the IDs
+     */
+    public int[] getCodes(String[] probesetIds)
+    {
+        int[] codes = new int[probesetIds.length];
+        int codeCount = 0;
+        for(String probesetId: probesetIds)
+        {
+            int code = this.getCode(probesetId);
+            if(code != NO_CODE)
+            {
+                codes[codeCount] = code;
+                codeCount++;
+            }
+        }
+        
+        if(codeCount == codes.length)
+        {
+            return codes;
+        }
+        else
+        {
+            int[] foundCodes = new int[codeCount];
+            System.arraycopy(codes, 0, foundCodes, 0, codeCount);
+            return foundCodes;
+        }
+    }
+    
+    /**
+     * Getter for all of the probeset IDs
+     * @return
+     *          a copy of the IDs in row order
+     */
+    public String[] getProbesetIds()
+    {
+        return this.probesetIds.clone();
+    }
+    
+    /**
+     * Determine if this dictionary holds exactly the given IDs in the
+     * same order
+     * @param probesetIds
+     *          the IDs to compare with
+     * @return
+     *          true if the IDs match
+     */
+    public boolean containsSameIds(String[] probesetIds)
+    {
+        return Arrays.equals(this.probesetIds, probesetIds);
+    }
+    
+    /**
+     * spread the string hash out so that IDs which only differ in their
+     * last few characters (which is typical) don't cluster in the table
+     */
+    private static int hash(String probesetId)
+    {
+        int hash = probesetId.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.madata;
+
+import java.util.Arrays;
+
+/**
+ * The numerical pieces of RMA (robust multi-array average) following the
+ * affy package: the convolution model background correction and median
+ * polish summarization. Quantile normalization works across arrays so it
+ * lives in {@link OutOfCoreQuantileNormalizer}. None of these keep any
+ * state so they're safe to call from any number of threads.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+final class RMAAlgorithms
+{
+    /**
+     * the number of points that affy uses for the density estimates in
+     * the background correction
+     */
+    private static final int DENSITY_POINT_COUNT = 16384;
+    
+    /**
+     * median polish gives up after this many iterations
+     */
+    private static final int MEDIAN_POLISH_MAX_ITERATIONS = 10;
+    
+    /**
+     * median polish stops when the sum of the absolute residuals changes
+     * by less than this fraction
+     */
+    private static final double MEDIAN_POLISH_EPSILON = 0.01;
+    
+    /**
+     * 1 / sqrt(2 * pi)
+     */
+    private static final double INV_SQRT_2PI = 0.398942280401432677939946;
+    
+    /**
+     * private constructor. this is a static utility class
+     */
+    private RMAAlgorithms()
+    {
+    }
+    
+    /**
+     * Apply the RMA convolution model background correction to the PM
+     * intensities of a single array. The signal is modeled as exponential
+     * and the background as normal, with the parameters estimated the
+     * same way that affy's bg.parameters(...) does
+     * @param pm
+     *          the PM intensities which are corrected in place
+     */
+    public static void backgroundCorrect(double[] pm)
+    {
+        if(pm.length < 2)
+        {
+            return;
+        }
+        
+        double[] values = pm.clone();
+        double pmbg = maxDensity(values, values.length);
+        int belowCount = keepBelow(pm, values, pmbg);
+        pmbg = maxDensity(values, belowCount);
+        belowCount = keepBelow(pm, values, pmbg);
+        
+        double sumOfSquares = 0.0;
+        for(int i = 0; i < belowCount; i++)
+        {
+            double diff = values[i] - pmbg;
+            sumOfSquares += diff * diff;
+        }
+        double sigma = Math.sqrt(sumOfSquares / (belowCount - 1)) * Math.sqrt(2.0);
+        
+        int aboveCount = 0;
+        for(double value: pm)
+        {
+            if(value > pmbg)
+            {
+                values[aboveCount] = value - pmbg;
+                aboveCount++;
+            }
+        }
+        double alpha = 1.0 / maxDensity(values, aboveCount);
+        
+        for(int i = 0; i < pm.length; i++)
+        {
+            double a = pm[i] - pmbg - alpha * sigma * sigma;
+            pm[i] = a + sigma * inverseMillsRatio(a / sigma);
+        }
+    }
+    
+    /**
+     * Copy the values less than the given limit to the front of the
+     * destination array
+     * @return
+     *          the number of values that were copied
+     */
+    private static int keepBelow(double[] source, double[] destination, double limit)
+    {
+        int keptCount = 0;
+        for(double value: source)
+        {
+            if(value < limit)
+            {
+                destination[keptCount] = value;
+                keptCount++;
+            }
+        }
+        
+        return keptCount;
+    }
+    
+    /**
+     * Find the mode of an Epanechnikov kernel density estimate the way
+     * R's density(...) computes it: the data is linearly binned and then
+     * convolved with the kernel using FFTs
+     * @param values
+     *          the values. These are reordered
+     * @param count
+     *          the number of values to use
+     * @return
+     *          the location of the density's maximum
+     */
+    static double maxDensity(double[] values, int count)
+    {
+        if(count == 0)
+        {
+            return Double.NaN;
+        }
+        
+        Arrays.sort(values, 0, count);
+        double bandwidth = bandwidthNrd0(values, count);
+        int n = DENSITY_POINT_COUNT;
+        double from = values[0] - 3.0 * bandwidth;
+        double to = values[count - 1] + 3.0 * bandwidth;
+        double lo = from - 4.0 * bandwidth;
+        double up = to + 4.0 * bandwidth;
+        
+        // linear binning on a grid of 2n points like R's BinDist
+        double[] yReal = new double[2 * n];
+        double[] yImag = new double[2 * n];
+        double xDelta = (up - lo) / (n - 1);
+        double weight = 1.0 / count;
+        for(int i = 0; i < count; i++)
+        {
+            double xPos = (values[i] - lo) / xDelta;
+            int ix = (int)Math.floor(xPos);
+            double fx = xPos - ix;
+            if(ix >= 0 && ix <= n - 2)
+            {
+                yReal[ix] += weight * (1.0 - fx);
+                yReal[ix + 1] += weight * fx;
+            }
+            else if(ix == -1)
+            {
+                yReal[0] += weight * fx;
+            }
+            else if(ix == n - 1)
+            {
+                yReal[ix] += weight * (1.0 - fx);
+            }
+        }
+        
+        // the kernel evaluated at the (wrapped around) grid offsets
+        double[] kReal = new double[2 * n];
+        double[] kImag = new double[2 * n];
+        double kernelHalfWidth = bandwidth * Math.sqrt(5.0);
+        double kDelta = 2.0 * (up - lo) / (2 * n - 1);
+        for(int i = 0; i < 2 * n; i++)
+        {
+            double offset = i <= n ? i * kDelta : (2 * n - i) * kDelta;
+            if(offset < kernelHalfWidth)
+            {
+                double scaled = offset / kernelHalfWidth;
+                kReal[i] = 0.75 * (1.0 - scaled * scaled) / kernelHalfWidth;
+            }
+        }
+        
+        fft(yReal, yImag, false);
+        fft(kReal, kImag, false);
+        for(int i = 0; i < 2 * n; i++)
+        {
+            // y * conj(k)
+            double real = yReal[i] * kReal[i] + yImag[i] * kImag[i];
+            double imag = yImag[i] * kReal[i] - yReal[i] * kImag[i];
+            yReal[i] = real;
+            yImag[i] = imag;
+        }
+        fft(yReal, yImag, true);
+        
+        // interpolate from the kernel grid onto the output grid and find
+        // the first maximum
+        double xordsDelta = (up - lo) / (n - 1);
+        double outDelta = (to - from) / (n - 1);
+        double maxX = from;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < n; i++)
+        {
+            double x = from + i * outDelta;
+            double pos = (x - lo) / xordsDelta;
+            int j = Math.min((int)Math.floor(pos), n - 2);
+            double frac = pos - j;
+            double y0 = Math.max(0.0, yReal[j] / (2 * n));
+            double y1 = Math.max(0.0, yReal[j + 1] / (2 * n));
+            double y = y0 + frac * (y1 - y0);
+            if(y > maxY)
+            {
+                maxY = y;
+                maxX = x;
+            }
+        }
+        
+        return maxX;
+    }
+    
+    /**
+     * Silverman's rule of thumb bandwidth like R's bw.nrd0(...)
+     * @param sortedValues
+     *          the values in ascending order
+     * @param count
+     *          the number of values
+     * @return
+     *          the bandwidth
+     */
+    static double bandwidthNrd0(double[] sortedValues, int count)
+    {
+        double sum = 0.0;
+        for(int i = 0; i < count; i++)
+        {
+            sum += sortedValues[i];
+        }
+        double mean = sum / count;
+        double sumOfSquares = 0.0;
+        for(int i = 0; i < count; i++)
+        {
+            double diff = sortedValues[i] - mean;
+            sumOfSquares += diff * diff;
+        }
+        
+        double hi = count >= 2 ? Math.sqrt(sumOfSquares / (count - 1)) : 0.0;
+        double iqr =
+            sortedQuantile(sortedValues, count, 0.75) -
+            sortedQuantile(sortedValues, count, 0.25);
+        double lo = Math.min(hi, iqr / 1.34);
+        if(!(lo > 0.0))
+        {
+            lo = hi > 0.0 ? hi : Math.abs(sortedValues[0]) > 0.0 ? Math.abs(sortedValues[0]) : 1.0;
+        }
+        
+        return 0.9 * lo * Math.pow(count, -0.2);
+    }
+    
+    /**
+     * A type 7 quantile (R's default) of sorted values
+     */
+    private static double sortedQuantile(double[] sortedValues, int count, double probability)
+    {
+        double index = (count - 1) * probability;
+        int lowIndex = (int)Math.floor(index);
+        int highIndex = Math.min(lowIndex + 1, count - 1);
+        double frac = index - lowIndex;
+        return sortedValues[lowIndex] + frac * (sortedValues[highIndex] - sortedValues[lowIndex]);
+    }
+    
+    /**
+     * In place radix-2 FFT. The inverse is not scaled
+     * @param real
+     *          the real parts. the length must be a power of 2
+     * @param imag
+     *          the imaginary parts
+     * @param inverse
+     *          true for the inverse transform
+     */
+    private static void fft(double[] real, double[] imag, boolean inverse)
+    {
+        int n = real.length;
+        for(int i = 1, j = 0; i < n; i++)
+        {
+            int bit = n >> 1;
+            for(; (j & bit) != 0; bit >>= 1)
+            {
+                j ^= bit;
+            }
+            j ^= bit;
+            
+            if(i < j)
+            {
+                double temp = real[i];
+                real[i] = real[j];
+                real[j] = temp;
+                temp = imag[i];
+                imag[i] = imag[j];
+                imag[j] = temp;
+            }
+        }
+        
+        for(int length = 2; length <= n; length <<= 1)
+        {
+            double angle = 2.0 * Math.PI / length * (inverse ? 1.0 : -1.0);
+            double stepReal = Math.cos(angle);
+            double stepImag = Math.sin(angle);
+            int halfLength = length >> 1;
+            for(int start = 0; start < n; start += length)
+            {
+                double wReal = 1.0;
+                double wImag = 0.0;
+                for(int k = 0; k < halfLength; k++)
+                {
+                    int even = start + k;
+                    int odd = even + halfLength;
+                    double oddReal = real[odd] * wReal - imag[odd] * wImag;
+                    double oddImag = real[odd] * wImag + imag[odd] * wReal;
+                    real[odd] = real[even] - oddReal;
+                    imag[odd] = imag[even] - oddImag;
+                    real[even] += oddReal;
+                    imag[even] += oddImag;
+                    
+                    double nextWReal = wReal * stepReal - wImag * stepImag;
+                    wImag = wReal * stepImag + wImag * stepReal;
+                    wReal = nextWReal;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Calculate dnorm(z) / pnorm(z) without underflowing for very
+     * negative z
+     * @param z
+     *          the standard normal quantile
+     * @return
+     *          the ratio
+     */
+    static double inverseMillsRatio(double z)
+    {
+        if(z < -3.0)
+        {
+            // pnorm(z) / dnorm(z) is the Mills ratio of -z which has a
+            // continued fraction that converges quickly out here
+            double t = -z;
+            double fraction = t;
+            for(int k = 200; k >= 1; k--)
+            {
+                fraction = t + k / fraction;
+            }
+            return fraction;
+        }
+        else
+        {
+            double density = INV_SQRT_2PI * Math.exp(-0.5 * z * z);
+            return density / normalCdf(z, density);
+        }
+    }
+    
+    /**
+     * The standard normal CDF for z >= -3
+     * @param z
+     *          the quantile
+     * @param density
+     *          dnorm(z)
+     * @return
+     *          pnorm(z)
+     */
+    private static double normalCdf(double z, double density)
+    {
+        if(z > 8.0)
+        {
+            double fraction = z;
+            for(int k = 200; k >= 1; k--)
+            {
+                fraction = z + k / fraction;
+            }
+            return 1.0 - density / fraction;
+        }
+        else
+        {
+            // pnorm(z) = 1/2 + dnorm(z) * (z + z^3/3 + z^5/(3*5) + ...)
+            double zSquared = z * z;
+            double term = z;
+            double sum = z;
+            for(int k = 3; Math.abs(term) > 1e-17 * Math.abs(sum); k += 2)
+            {
+                term *= zSquared / k;
+                sum += term;
+            }
+            return 0.5 + density * sum;
+        }
+    }
+    
+    /**
+     * Summarize a probeset with Tukey's median polish the way
+     * preprocessCore's median_polish does, returning the overall effect
+     * plus the column (array) effects
+     * @param z
+     *          the log2 probe values. z[probe][array]. This is used as
+     *          scratch space and holds the residuals on return
+     * @param arrayCount
+     *          the number of arrays
+     * @param expression
+     *          the array that gets one expression value per array
+     */
+    public static void medianPolish(double[][] z, int arrayCount, double[] expression)
+    {
+        int probeCount = z.length;
+        double[] rowEffects = new double[probeCount];
+        double[] colEffects = new double[arrayCount];
+        double[] rowScratch = new double[arrayCount];
+        double[] colScratch = new double[probeCount];
+        double overall = 0.0;
+        double oldSum = 0.0;
+        
+        for(int iteration = 0; iteration < MEDIAN_POLISH_MAX_ITERATIONS; iteration++)
+        {
+            for(int row = 0; row < probeCount; row++)
+            {
+                System.arraycopy(z[row], 0, rowScratch, 0, arrayCount);
+                double rowDelta = median(rowScratch, arrayCount);
+                for(int col = 0; col < arrayCount; col++)
+                {
+                    z[row][col] -= rowDelta;
+                }
+                rowEffects[row] += rowDelta;
+            }
+            System.arraycopy(colEffects, 0, rowScratch, 0, arrayCount);
+            double delta = median(rowScratch, arrayCount);
+            for(int col = 0; col < arrayCount; col++)
+            {
+                colEffects[col] -= delta;
+            }
+            overall += delta;
+            
+            for(int col = 0; col < arrayCount; col++)
+            {
+                for(int row = 0; row < probeCount; row++)
+                {
+                    colScratch[row] = z[row][col];
+                }
+                double colDelta = median(colScratch, probeCount);
+                for(int row = 0; row < probeCount; row++)
+                {
+                    z[row][col] -= colDelta;
+                }
+                colEffects[col] += colDelta;
+            }
+            System.arraycopy(rowEffects, 0, colScratch, 0, probeCount);
+            delta = median(colScratch, probeCount);
+            for(int row = 0; row < probeCount; row++)
+            {
+                rowEffects[row] -= delta;
+            }
+            overall += delta;
+            
+            double newSum = 0.0;
+            for(int row = 0; row < probeCount; row++)
+            {
+                for(int col = 0; col < arrayCount; col++)
+                {
+                    newSum += Math.abs(z[row][col]);
+                }
+            }
+            boolean converged =
+                newSum == 0.0 ||
+                Math.abs(1.0 - oldSum / newSum) < MEDIAN_POLISH_EPSILON;
+            oldSum = newSum;
+            if(converged)
+            {
+                break;
+            }
+        }
+        
+        for(int col = 0; col < arrayCount; col++)
+        {
+            expression[col] = overall + colEffects[col];
+        }
+    }
+    
+    /**
+     * The median of the given values. The values are reordered
+     */
+    private static double median(double[] values, int count)
+    {
+        Arrays.sort(values, 0, count);
+        int half = count / 2;
+        return (count & 1) == 1 ?
+                values[half] :
+                0.5 * (values[half - 1] + values[half]);
+    }
+}
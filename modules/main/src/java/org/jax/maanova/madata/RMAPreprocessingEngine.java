@@ -0,0 +1,853 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.madata;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.r.RUtilities;
+import org.jax.r.jriutilities.RInterface;
+import org.jax.r.jriutilities.SilentRCommand;
+import org.jax.util.concurrent.SimpleLongRunningTask;
+
+/**
+ * A multi-threaded Java alternative to affy's justRMA(...). The work is
+ * done in three passes over the CEL files, none of which needs every
+ * array's probe level data in memory at once:
+ * <ol>
+ * <li>
+ * the CEL files are parsed on a pool of worker threads, one file per
+ * task. Each array's PM intensities are background corrected and written
+ * as a column of an on-disk probes by arrays matrix
+ * </li>
+ * <li>
+ * the matrix is quantile normalized in place by an
+ * {@link OutOfCoreQuantileNormalizer}
+ * </li>
+ * <li>
+ * the probesets are split into blocks that are log2 transformed and
+ * summarized by median polish in parallel, reading only the block's
+ * probes from each column of the matrix
+ * </li>
+ * </ol>
+ * The probe layout comes from the same CDF environment that justRMA(...)
+ * would use so the resulting ExpressionSet has the same probesets in the
+ * same order. If anything goes wrong before the result is assigned in R
+ * {@link #preprocess()} throws an {@link IOException} and the caller
+ * should fall back on {@link AffyJustRMACommandBuilder#getCommand()}.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class RMAPreprocessingEngine
+extends SimpleLongRunningTask
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            RMAPreprocessingEngine.class.getName());
+    
+    /**
+     * the maximum number of probe values (probes times arrays) that we
+     * read into memory for a single block of probesets
+     */
+    private static final int MAX_VALUES_PER_BLOCK = 4 * 1024 * 1024;
+    
+    private static final double LOG_2 = Math.log(2.0);
+    
+    private final RInterface rInterface;
+    
+    private final AffyJustRMACommandBuilder commandBuilder;
+    
+    private final int threadCount;
+    
+    /**
+     * Constructor which uses a thread per processor
+     * @param rInterface
+     *          the R interface that the result is assigned in
+     * @param commandBuilder
+     *          the justRMA settings
+     */
+    public RMAPreprocessingEngine(
+            RInterface rInterface,
+            AffyJustRMACommandBuilder commandBuilder)
+    {
+        this(rInterface,
+             commandBuilder,
+             Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the result is assigned in
+     * @param commandBuilder
+     *          the justRMA settings
+     * @param threadCount
+     *          the number of worker threads to use
+     */
+    public RMAPreprocessingEngine(
+            RInterface rInterface,
+            AffyJustRMACommandBuilder commandBuilder,
+            int threadCount)
+    {
+        this.rInterface = rInterface;
+        this.commandBuilder = commandBuilder;
+        this.threadCount = Math.max(1, threadCount);
+    }
+    
+    /**
+     * Determine if the given settings are ones that we can handle
+     * @param commandBuilder
+     *          the justRMA settings
+     * @return
+     *          true if {@link #preprocess()} can be used
+     */
+    public static boolean canPreprocess(AffyJustRMACommandBuilder commandBuilder)
+    {
+        String resultObjectName = commandBuilder.getResultObjectName();
+        String[] celFiles = commandBuilder.getCelFiles();
+        if(resultObjectName == null || resultObjectName.trim().length() == 0 ||
+           celFiles == null || celFiles.length == 0)
+        {
+            return false;
+        }
+        
+        for(String celFile: celFiles)
+        {
+            if(!new File(celFile).isFile())
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Run RMA on the CEL files and assign the resulting ExpressionSet to
+     * the builder's result object name. This blocks until we're done
+     * @throws IOException
+     *          if a CEL file can't be read, the CDF can't be found or a
+     *          worker fails. Nothing has been assigned in R when this is
+     *          thrown
+     */
+    public void preprocess() throws IOException
+    {
+        String[] celFileNames = this.commandBuilder.getCelFiles().clone();
+        File[] celFiles = new File[celFileNames.length];
+        for(int i = 0; i < celFiles.length; i++)
+        {
+            celFiles[i] = new File(celFileNames[i]);
+        }
+        
+        String cdfName = this.commandBuilder.getCdfFile();
+        if(cdfName == null || cdfName.length() == 0)
+        {
+            // same as justRMA(...), the 1st CEL file tells us the chip type
+            cdfName = CelFileReader.read(
+                    celFiles[0],
+                    this.commandBuilder.getCelFilesCompressed(),
+                    true).getChipType();
+            if(cdfName == null)
+            {
+                throw new IOException(
+                        "failed to find the chip type in " + celFiles[0].getName());
+            }
+        }
+        
+        File workDirectory = File.createTempFile("rma", "");
+        if(!workDirectory.delete() || !workDirectory.mkdir())
+        {
+            throw new IOException(
+                    "failed to create temporary directory: " +
+                    workDirectory.getAbsolutePath());
+        }
+        
+        try
+        {
+            ProbeLayout probeLayout = this.readProbeLayout(cdfName, workDirectory);
+            
+            int arrayCount = celFiles.length;
+            List<int[]> blocks = probeLayout.getProbesetBlocks(arrayCount);
+            boolean doQuantileNormalization =
+                this.commandBuilder.getDoQuantileNormalization();
+            
+            // normalization takes a unit of work per array for sorting,
+            // one for the reference distribution and one per array for
+            // the normalized values
+            int normalizeWorkUnits = doQuantileNormalization ? 2 * arrayCount + 1 : 0;
+            this.setTotalWorkUnits(arrayCount + normalizeWorkUnits + blocks.size() + 1);
+            this.setWorkUnitsCompleted(0);
+            
+            File matrixFile = new File(workDirectory, "pm.bin");
+            File resultFile = new File(workDirectory, "exprs.bin");
+            
+            ExecutorService executor = Executors.newFixedThreadPool(this.threadCount);
+            try
+            {
+                this.readArrays(executor, celFiles, matrixFile, probeLayout);
+                if(doQuantileNormalization)
+                {
+                    this.normalizeArrays(
+                            executor,
+                            matrixFile,
+                            probeLayout.getProbeCount(),
+                            arrayCount,
+                            workDirectory);
+                }
+                this.summarizeProbesets(
+                        executor,
+                        matrixFile,
+                        arrayCount,
+                        probeLayout,
+                        blocks,
+                        resultFile);
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+            
+            this.assignResult(
+                    cdfName,
+                    celFiles,
+                    probeLayout,
+                    new File(workDirectory, "probesets.txt"),
+                    resultFile);
+        }
+        finally
+        {
+            for(File file: workDirectory.listFiles())
+            {
+                deleteTempFile(file);
+            }
+            deleteTempFile(workDirectory);
+            this.setWorkUnitsCompleted(this.getTotalWorkUnits());
+        }
+    }
+    
+    /**
+     * Have R write out the PM indices of every probeset in the CDF
+     * environment. The probesets are in the same (sorted) order that
+     * justRMA(...) uses
+     */
+    private ProbeLayout readProbeLayout(
+            String cdfName,
+            File workDirectory) throws IOException
+    {
+        File layoutFile = new File(workDirectory, "layout.bin");
+        File namesFile = new File(workDirectory, "probesets.txt");
+        
+        this.rInterface.evaluateCommandNoReturn(new SilentRCommand(
+                "local({" +
+                "library(affy); " +
+                "cdfEnv <- getCdfInfo(new(\"AffyBatch\", cdfName=" +
+                RUtilities.javaStringToRString(cdfName) + ")); " +
+                "probesetNames <- sort(ls(envir=cdfEnv)); " +
+                "pmIndices <- lapply(probesetNames, function(probesetName) " +
+                "as.integer(get(probesetName, envir=cdfEnv)[, 1])); " +
+                "con <- file(" + toRFileString(layoutFile) + ", \"wb\"); " +
+                "writeBin(c(length(probesetNames), sapply(pmIndices, length), " +
+                "unlist(pmIndices)), con, endian=\"big\"); " +
+                "close(con); " +
+                "writeLines(probesetNames, " + toRFileString(namesFile) + ")})"));
+        
+        if(!layoutFile.isFile() || !namesFile.isFile())
+        {
+            throw new IOException(
+                    "failed to get the probe layout for CDF: " + cdfName);
+        }
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(layoutFile)));
+        try
+        {
+            int probesetCount = in.readInt();
+            int[] probesetStarts = new int[probesetCount + 1];
+            for(int i = 0; i < probesetCount; i++)
+            {
+                probesetStarts[i + 1] = probesetStarts[i] + in.readInt();
+            }
+            
+            int[] pmIndices = new int[probesetStarts[probesetCount]];
+            for(int i = 0; i < pmIndices.length; i++)
+            {
+                // R's indices are 1-based
+                pmIndices[i] = in.readInt() - 1;
+            }
+            
+            return new ProbeLayout(probesetStarts, pmIndices);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     * The 1st pass: parse and background correct the arrays and write
+     * them into the probe matrix
+     */
+    private void readArrays(
+            ExecutorService executor,
+            File[] celFiles,
+            File matrixFile,
+            ProbeLayout probeLayout) throws IOException
+    {
+        List<Future<?>> pendingArrays = new ArrayList<Future<?>>(celFiles.length);
+        for(int i = 0; i < celFiles.length; i++)
+        {
+            pendingArrays.add(executor.submit(new ReadArrayTask(
+                    celFiles[i],
+                    this.commandBuilder.getCelFilesCompressed(),
+                    this.commandBuilder.getDoBackgroundCorrection(),
+                    probeLayout,
+                    matrixFile,
+                    i)));
+        }
+        this.waitForAll(pendingArrays);
+    }
+    
+    /**
+     * The 2nd pass: quantile normalize the probe matrix in place
+     */
+    private void normalizeArrays(
+            ExecutorService executor,
+            File matrixFile,
+            int probeCount,
+            int arrayCount,
+            File workDirectory) throws IOException
+    {
+        OutOfCoreQuantileNormalizer normalizer = new OutOfCoreQuantileNormalizer(
+                matrixFile,
+                probeCount,
+                arrayCount,
+                workDirectory);
+        
+        this.waitForAll(submitAll(executor, normalizer.createSortTasks()));
+        normalizer.computeReference();
+        this.setWorkUnitsCompleted(this.getWorkUnitsCompleted() + 1);
+        this.waitForAll(submitAll(executor, normalizer.createNormalizeTasks()));
+    }
+    
+    private static List<Future<?>> submitAll(
+            ExecutorService executor,
+            List<Callable<Void>> tasks)
+    {
+        List<Future<?>> pendingTasks = new ArrayList<Future<?>>(tasks.size());
+        for(Callable<Void> task: tasks)
+        {
+            pendingTasks.add(executor.submit(task));
+        }
+        return pendingTasks;
+    }
+    
+    /**
+     * The 3rd pass: median polish the probesets block by block
+     */
+    private void summarizeProbesets(
+            ExecutorService executor,
+            File matrixFile,
+            int arrayCount,
+            ProbeLayout probeLayout,
+            List<int[]> blocks,
+            File resultFile) throws IOException
+    {
+        RandomAccessFile result = new RandomAccessFile(resultFile, "rw");
+        try
+        {
+            result.setLength(8L * probeLayout.getProbesetCount() * arrayCount);
+            
+            List<Future<?>> pendingBlocks = new ArrayList<Future<?>>(blocks.size());
+            for(int[] block: blocks)
+            {
+                pendingBlocks.add(executor.submit(new SummarizeBlockTask(
+                        matrixFile,
+                        arrayCount,
+                        probeLayout,
+                        block[0],
+                        block[1],
+                        result.getChannel())));
+            }
+            this.waitForAll(pendingBlocks);
+        }
+        finally
+        {
+            result.close();
+        }
+    }
+    
+    private void waitForAll(List<Future<?>> pendingTasks) throws IOException
+    {
+        for(Future<?> pendingTask: pendingTasks)
+        {
+            try
+            {
+                pendingTask.get();
+            }
+            catch(InterruptedException ex)
+            {
+                throw new IOException("interrupted while running RMA: " + ex.getMessage());
+            }
+            catch(ExecutionException ex)
+            {
+                if(ex.getCause() instanceof IOException)
+                {
+                    throw (IOException)ex.getCause();
+                }
+                
+                LOG.log(Level.SEVERE,
+                        "RMA worker failed",
+                        ex.getCause());
+                throw new IOException("RMA failed: " + ex.getCause().getMessage());
+            }
+            
+            this.setWorkUnitsCompleted(this.getWorkUnitsCompleted() + 1);
+        }
+    }
+    
+    /**
+     * Build the ExpressionSet in R the same way that justRMA(...) does
+     */
+    private void assignResult(
+            String cdfName,
+            File[] celFiles,
+            ProbeLayout probeLayout,
+            File namesFile,
+            File resultFile)
+    {
+        String[] sampleNames = new String[celFiles.length];
+        for(int i = 0; i < celFiles.length; i++)
+        {
+            sampleNames[i] = celFiles[i].getName();
+        }
+        
+        int probesetCount = probeLayout.getProbesetCount();
+        String cdfNameString = RUtilities.javaStringToRString(cdfName);
+        StringBuilder assignment = new StringBuilder();
+        assignment.append(this.commandBuilder.getResultObjectName().trim());
+        assignment.append(" <- local({");
+        assignment.append("library(affy); ");
+        assignment.append("con <- file(" + toRFileString(resultFile) + ", \"rb\"); ");
+        assignment.append("exprs <- matrix(readBin(con, \"double\", n=" +
+                ((long)probesetCount * celFiles.length) + ", endian=\"big\"), nrow=" +
+                probesetCount + ", ncol=" + celFiles.length + "); ");
+        assignment.append("close(con); ");
+        assignment.append("dimnames(exprs) <- list(readLines(" +
+                toRFileString(namesFile) + "), " +
+                RUtilities.stringArrayToRVector(sampleNames) + "); ");
+        assignment.append("new(\"ExpressionSet\", exprs=exprs, annotation=cleancdfname(" +
+                cdfNameString + ", addcdf=FALSE))})");
+        
+        this.rInterface.insertComment(
+                "the following RMA expression values were calculated by " +
+                "J/maanova's Java RMA engine using the settings of:");
+        this.rInterface.insertComment(
+                this.commandBuilder.getCommand().getCommandText());
+        this.rInterface.evaluateCommandNoReturn(assignment.toString());
+        this.setWorkUnitsCompleted(this.getWorkUnitsCompleted() + 1);
+    }
+    
+    private static String toRFileString(File file)
+    {
+        return RUtilities.javaStringToRString(
+                file.getAbsolutePath().replace('\\', '/'));
+    }
+    
+    private static void deleteTempFile(File file)
+    {
+        if(!file.delete())
+        {
+            LOG.warning(
+                    "failed to delete temporary RMA file: " +
+                    file.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * Write the values to the given file as big endian doubles
+     * @param file
+     *          the file
+     * @param start
+     *          the index of the 1st double to write
+     * @param values
+     *          the values to write
+     */
+    private static void writeDoubles(File file, long start, double[] values) throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(8 * values.length);
+            buffer.asDoubleBuffer().put(values);
+            writeFully(randomAccessFile.getChannel(), buffer, 8L * start);
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+    
+    /**
+     * Read big endian doubles from the given file
+     * @param file
+     *          the file
+     * @param start
+     *          the index of the 1st double to read
+     * @param count
+     *          the number of doubles to read
+     */
+    private static double[] readDoubles(File file, long start, int count) throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(8 * count);
+            FileChannel channel = randomAccessFile.getChannel();
+            long position = 8L * start;
+            while(buffer.hasRemaining())
+            {
+                int readCount = channel.read(buffer, position);
+                if(readCount < 0)
+                {
+                    throw new IOException(
+                            "unexpected end of temporary RMA file: " +
+                            file.getAbsolutePath());
+                }
+                position += readCount;
+            }
+            buffer.flip();
+            
+            double[] values = new double[count];
+            buffer.asDoubleBuffer().get(values);
+            return values;
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+    
+    private static void writeFully(
+            FileChannel channel,
+            ByteBuffer buffer,
+            long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            position += channel.write(buffer, position);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTaskName()
+    {
+        return "Running RMA on " + this.commandBuilder.getCelFiles().length +
+               " CEL files";
+    }
+    
+    /**
+     * Where the PM probes of each probeset are on the arrays. The probes
+     * are numbered in probeset order so that a probeset's probes (and a
+     * block of probesets' probes) are contiguous in each column of the
+     * probe matrix
+     */
+    private static final class ProbeLayout
+    {
+        private final int[] probesetStarts;
+        
+        private final int[] pmIndices;
+        
+        /**
+         * Constructor
+         * @param probesetStarts
+         *          the index of each probeset's 1st probe. There is one
+         *          extra entry at the end which is the probe count
+         * @param pmIndices
+         *          the 0-based cell index of each probe
+         */
+        public ProbeLayout(int[] probesetStarts, int[] pmIndices)
+        {
+            this.probesetStarts = probesetStarts;
+            this.pmIndices = pmIndices;
+        }
+        
+        public int getProbesetCount()
+        {
+            return this.probesetStarts.length - 1;
+        }
+        
+        public int getProbeCount()
+        {
+            return this.pmIndices.length;
+        }
+        
+        public int getProbesetStart(int probeset)
+        {
+            return this.probesetStarts[probeset];
+        }
+        
+        /**
+         * Pull the PM intensities out of an array's cells
+         */
+        public double[] getPMValues(float[] intensities) throws IOException
+        {
+            double[] pm = new double[this.pmIndices.length];
+            for(int i = 0; i < pm.length; i++)
+            {
+                int cellIndex = this.pmIndices[i];
+                if(cellIndex < 0 || cellIndex >= intensities.length)
+                {
+                    throw new IOException(
+                            "the CEL file has fewer cells than the CDF expects");
+                }
+                pm[i] = intensities[cellIndex];
+            }
+            return pm;
+        }
+        
+        /**
+         * Split the probesets into blocks whose probe values fit within
+         * {@link #MAX_VALUES_PER_BLOCK}
+         * @return
+         *          the blocks as {start, end} probeset index pairs
+         */
+        public List<int[]> getProbesetBlocks(int arrayCount)
+        {
+            List<int[]> blocks = new ArrayList<int[]>();
+            int probesetCount = this.getProbesetCount();
+            int blockStart = 0;
+            for(int probeset = 1; probeset <= probesetCount; probeset++)
+            {
+                long valueCount =
+                    (long)(this.probesetStarts[probeset] - this.probesetStarts[blockStart]) *
+                    arrayCount;
+                if(probeset == probesetCount ||
+                   (valueCount >= MAX_VALUES_PER_BLOCK && probeset > blockStart))
+                {
+                    blocks.add(new int[] {blockStart, probeset});
+                    blockStart = probeset;
+                }
+            }
+            return blocks;
+        }
+    }
+    
+    /**
+     * Reads and background corrects a single array and writes it into its
+     * column of the probe matrix
+     */
+    private static class ReadArrayTask implements Callable<Void>
+    {
+        private final File celFile;
+        
+        private final boolean compressed;
+        
+        private final boolean doBackgroundCorrection;
+        
+        private final ProbeLayout probeLayout;
+        
+        private final File matrixFile;
+        
+        private final int column;
+        
+        /**
+         * Constructor
+         * @param celFile
+         *          the CEL file to read
+         * @param compressed
+         *          true if the CEL file is gzip compressed
+         * @param doBackgroundCorrection
+         *          true if we should background correct
+         * @param probeLayout
+         *          the probe layout
+         * @param matrixFile
+         *          the probe matrix file that the PM values are written to
+         * @param column
+         *          the matrix column for this array
+         */
+        public ReadArrayTask(
+                File celFile,
+                boolean compressed,
+                boolean doBackgroundCorrection,
+                ProbeLayout probeLayout,
+                File matrixFile,
+                int column)
+        {
+            this.celFile = celFile;
+            this.compressed = compressed;
+            this.doBackgroundCorrection = doBackgroundCorrection;
+            this.probeLayout = probeLayout;
+            this.matrixFile = matrixFile;
+            this.column = column;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public Void call() throws IOException
+        {
+            CelFileReader cel = CelFileReader.read(this.celFile, this.compressed, false);
+            double[] pm = this.probeLayout.getPMValues(cel.getIntensities());
+            if(this.doBackgroundCorrection)
+            {
+                RMAAlgorithms.backgroundCorrect(pm);
+            }
+            
+            writeDoubles(this.matrixFile, (long)this.column * pm.length, pm);
+            return null;
+        }
+    }
+    
+    /**
+     * Log transforms and median polishes a block of probesets and writes
+     * their expression
+     * values into the result file. The result file is column major
+     * (a column per array) which is how R lays out a matrix
+     */
+    private static class SummarizeBlockTask implements Callable<Void>
+    {
+        private final File matrixFile;
+        
+        private final int arrayCount;
+        
+        private final ProbeLayout probeLayout;
+        
+        private final int blockStart;
+        
+        private final int blockEnd;
+        
+        private final FileChannel resultChannel;
+        
+        /**
+         * Constructor
+         * @param matrixFile
+         *          the (normalized) probe matrix file
+         * @param arrayCount
+         *          the number of arrays (matrix columns)
+         * @param probeLayout
+         *          the probe layout
+         * @param blockStart
+         *          the 1st probeset in the block
+         * @param blockEnd
+         *          the probeset after the last one in the block
+         * @param resultChannel
+         *          the result file channel
+         */
+        public SummarizeBlockTask(
+                File matrixFile,
+                int arrayCount,
+                ProbeLayout probeLayout,
+                int blockStart,
+                int blockEnd,
+                FileChannel resultChannel)
+        {
+            this.matrixFile = matrixFile;
+            this.arrayCount = arrayCount;
+            this.probeLayout = probeLayout;
+            this.blockStart = blockStart;
+            this.blockEnd = blockEnd;
+            this.resultChannel = resultChannel;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public Void call() throws IOException
+        {
+            int arrayCount = this.arrayCount;
+            int probeCount = this.probeLayout.getProbeCount();
+            int probeStart = this.probeLayout.getProbesetStart(this.blockStart);
+            int probeEnd = this.probeLayout.getProbesetStart(this.blockEnd);
+            double[][] blockValues = new double[arrayCount][];
+            for(int array = 0; array < arrayCount; array++)
+            {
+                blockValues[array] = readDoubles(
+                        this.matrixFile,
+                        (long)array * probeCount + probeStart,
+                        probeEnd - probeStart);
+            }
+            
+            int blockSize = this.blockEnd - this.blockStart;
+            double[][] expression = new double[arrayCount][blockSize];
+            double[] probesetExpression = new double[arrayCount];
+            for(int probeset = this.blockStart; probeset < this.blockEnd; probeset++)
+            {
+                int start = this.probeLayout.getProbesetStart(probeset) - probeStart;
+                int end = this.probeLayout.getProbesetStart(probeset + 1) - probeStart;
+                if(end > start)
+                {
+                    double[][] z = new double[end - start][arrayCount];
+                    for(int probe = start; probe < end; probe++)
+                    {
+                        for(int array = 0; array < arrayCount; array++)
+                        {
+                            z[probe - start][array] =
+                                Math.log(blockValues[array][probe]) / LOG_2;
+                        }
+                    }
+                    RMAAlgorithms.medianPolish(z, arrayCount, probesetExpression);
+                }
+                else
+                {
+                    Arrays.fill(probesetExpression, Double.NaN);
+                }
+                
+                for(int array = 0; array < arrayCount; array++)
+                {
+                    expression[array][probeset - this.blockStart] =
+                        probesetExpression[array];
+                }
+            }
+            
+            long probesetCount = this.probeLayout.getProbesetCount();
+            for(int array = 0; array < arrayCount; array++)
+            {
+                ByteBuffer buffer = ByteBuffer.allocate(8 * blockSize);
+                DoubleBuffer doubleBuffer = buffer.asDoubleBuffer();
+                doubleBuffer.put(expression[array]);
+                writeFully(
+                        this.resultChannel,
+                        buffer,
+                        8L * (array * probesetCount + this.blockStart));
+            }
+            
+            return null;
+        }
+    }
+}
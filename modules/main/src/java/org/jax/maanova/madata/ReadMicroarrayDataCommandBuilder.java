@@ -474,9 +474,37 @@ public class ReadMicroarrayDataCommandBuilder implements RCommandBuilder
      */
     public RCommand getCommand()
     {
-        List<RCommandParameter> commandParameters =
-            this.getCommandParameters();
-        
+        return this.createCommand(
+                this.getCommandParameters(
+                        this.dataFileName,
+                        this.dataFileIsReallyAnObject));
+    }
+    
+    /**
+     * Get the read.madata command that reads from an R data frame that
+     * has already been loaded instead of reading the data file. All of
+     * the other settings are the same as they are for {@link #getCommand()}
+     * @param dataObjectName
+     *          the R identifier of the data frame
+     * @return
+     *          the command
+     */
+    public RCommand getCommandForDataObject(String dataObjectName)
+    {
+        return this.createCommand(
+                this.getCommandParameters(dataObjectName, true));
+    }
+    
+    /**
+     * Create the read.madata command from the given parameters, assigning
+     * the result if we have a name for it
+     * @param commandParameters
+     *          the parameters
+     * @return
+     *          the command
+     */
+    private RCommand createCommand(List<RCommandParameter> commandParameters)
+    {
         RMethodInvocationCommand readMadataMethodCommand = new RMethodInvocationCommand(
                 METHOD_NAME,
                 commandParameters);
@@ -496,17 +524,22 @@ public class ReadMicroarrayDataCommandBuilder implements RCommandBuilder
 
     /**
      * Getter for the command parameters
+     * @param dataFileName
+     *          the data file name or data object identifier
+     * @param dataFileIsReallyAnObject
+     *          true if the data file name is really an R object
      * @return
      *          the command parameters
      */
-    private List<RCommandParameter> getCommandParameters()
+    private List<RCommandParameter> getCommandParameters(
+            String dataFileName,
+            boolean dataFileIsReallyAnObject)
     {
         List<RCommandParameter> parameters = new ArrayList<RCommandParameter>();
         
-        String dataFileName = this.dataFileName;
         if(dataFileName != null && dataFileName.length() >= 1)
         {
-            if(this.dataFileIsReallyAnObject)
+            if(dataFileIsReallyAnObject)
             {
                 parameters.add(new RCommandParameter(
                         "datafile",
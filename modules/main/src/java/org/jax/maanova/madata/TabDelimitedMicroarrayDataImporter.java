@@ -0,0 +1,1228 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.madata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.r.RUtilities;
+import org.jax.r.jriutilities.RInterface;
+import org.jax.r.jriutilities.SilentRCommand;
+import org.jax.util.concurrent.SimpleLongRunningTask;
+
+/**
+ * A pure Java alternative to letting read.madata(...) parse a
+ * tab-delimited data file with read.table(...). The data file is memory
+ * mapped and split into chunks at line boundaries which are parsed on a
+ * pool of worker threads. The intensity columns (the intensity column and
+ * every column after it) are parsed into binary doubles and the
+ * annotation columns before them are kept as text. Each chunk spills its
+ * columns to temporary files as it goes, so the parsed values never have
+ * to fit on the Java heap. Once every chunk is done the column files are
+ * joined into a pair of files that go to R in one bulk transfer and then
+ * read.madata(...) is run on the resulting data frame, so all of the other
+ * {@link ReadMicroarrayDataCommandBuilder} settings (spot flags, replicates,
+ * log transform, matching to the design and so on) are applied exactly
+ * as they are when R reads the file.
+ * <p>
+ * The parser is stricter than read.table(...). Any line with the wrong
+ * number of fields or any intensity value that isn't a number causes
+ * {@link #importData()} to fail with an {@link IOException} before
+ * anything is changed in R. Running out of memory while parsing is
+ * treated the same way. In either case the caller should fall back on
+ * {@link ReadMicroarrayDataCommandBuilder#getCommand()}.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class TabDelimitedMicroarrayDataImporter
+extends SimpleLongRunningTask
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            TabDelimitedMicroarrayDataImporter.class.getName());
+    
+    /**
+     * the approximate number of bytes in each chunk that we hand to a
+     * worker thread
+     */
+    private static final int CHUNK_SIZE = 32 * 1024 * 1024;
+    
+    /**
+     * the size of the reads we use when looking for line ends
+     */
+    private static final int SCAN_BUFFER_SIZE = 8192;
+    
+    /**
+     * the hidden R object that holds the parsed data frame until
+     * read.madata(...) is done with it
+     */
+    private static final String IMPORTED_DATA_NAME = ".jmaanovaImportedData";
+    
+    /**
+     * the bit pattern that R uses for a numeric NA (as opposed to NaN)
+     */
+    private static final long R_NA_BITS = 0x7FF00000000007A2L;
+    
+    /**
+     * we keep text byte for byte. R reads it back in the same way
+     */
+    private static final String TEXT_ENCODING = "ISO-8859-1";
+    
+    /**
+     * the powers of ten that are exactly representable as doubles
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    
+    private final RInterface rInterface;
+    
+    private final ReadMicroarrayDataCommandBuilder commandBuilder;
+    
+    private final int threadCount;
+    
+    /**
+     * Constructor which uses a thread per processor
+     * @param rInterface
+     *          the R interface that the data is read into
+     * @param commandBuilder
+     *          the read.madata settings
+     */
+    public TabDelimitedMicroarrayDataImporter(
+            RInterface rInterface,
+            ReadMicroarrayDataCommandBuilder commandBuilder)
+    {
+        this(rInterface,
+             commandBuilder,
+             Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the data is read into
+     * @param commandBuilder
+     *          the read.madata settings
+     * @param threadCount
+     *          the number of threads to parse with
+     */
+    public TabDelimitedMicroarrayDataImporter(
+            RInterface rInterface,
+            ReadMicroarrayDataCommandBuilder commandBuilder,
+            int threadCount)
+    {
+        this.rInterface = rInterface;
+        this.commandBuilder = commandBuilder;
+        this.threadCount = Math.max(1, threadCount);
+    }
+    
+    /**
+     * Determine if the given settings read from a data file that we can
+     * parse (as opposed to a data frame that's already in R)
+     * @param commandBuilder
+     *          the read.madata settings
+     * @return
+     *          true if {@link #importData()} can be used
+     */
+    public static boolean canImport(ReadMicroarrayDataCommandBuilder commandBuilder)
+    {
+        String dataFileName = commandBuilder.getDataFileName();
+        return !commandBuilder.getDataFileIsReallyAnObject() &&
+               dataFileName != null &&
+               dataFileName.length() >= 1 &&
+               new File(dataFileName).isFile();
+    }
+    
+    /**
+     * Parse the data file, hand it to R and run read.madata(...) on it.
+     * This blocks until the data is read
+     * @throws IOException
+     *          if the file can't be read or doesn't parse. Nothing has
+     *          been changed in R when this is thrown
+     */
+    public void importData() throws IOException
+    {
+        File dataFile = new File(this.commandBuilder.getDataFileName());
+        File spillDirectory = createSpillDirectory();
+        try
+        {
+            File numericFile = new File(spillDirectory, "numeric.bin");
+            File textFile = new File(spillDirectory, "text.txt");
+            String[] columnNames = null;
+            int columnCount;
+            int textColumnCount;
+            long rowCount = 0L;
+            
+            RandomAccessFile randomAccessFile = new RandomAccessFile(dataFile, "r");
+            try
+            {
+                FileChannel channel = randomAccessFile.getChannel();
+                long fileLength = channel.size();
+                
+                // the 1st line tells us how many columns there are and holds
+                // the column names if there's a header
+                long firstLineEnd = findLineEnd(channel, 0L, fileLength);
+                byte[] firstLine = readLine(channel, 0L, firstLineEnd);
+                List<String> firstLineFields = new ArrayList<String>();
+                for(int[] field: splitFields(firstLine, firstLine.length))
+                {
+                    firstLineFields.add(toText(firstLine, field[0], field[1]));
+                }
+                
+                columnCount = firstLineFields.size();
+                long dataStart = 0L;
+                if(this.commandBuilder.getFilesIncludeHeader())
+                {
+                    columnNames = firstLineFields.toArray(new String[columnCount]);
+                    dataStart = firstLineEnd;
+                }
+                
+                textColumnCount = Math.max(0, Math.min(
+                        columnCount,
+                        this.commandBuilder.getIntensityColumn() - 1));
+                
+                List<long[]> chunkBounds = new ArrayList<long[]>();
+                for(long chunkStart = dataStart; chunkStart < fileLength; )
+                {
+                    long chunkEnd = findLineStart(
+                            channel,
+                            Math.min(chunkStart + CHUNK_SIZE, fileLength),
+                            fileLength);
+                    chunkBounds.add(new long[] {chunkStart, chunkEnd});
+                    chunkStart = chunkEnd;
+                }
+                
+                // parsing takes a unit of work per chunk and handing the
+                // data to R takes one more
+                this.setTotalWorkUnits(chunkBounds.size() + 1);
+                this.setWorkUnitsCompleted(0);
+                
+                List<ParsedChunk> chunks = this.parseChunks(
+                        channel,
+                        chunkBounds,
+                        columnCount,
+                        textColumnCount,
+                        spillDirectory);
+                for(ParsedChunk chunk: chunks)
+                {
+                    rowCount += chunk.rowCount;
+                }
+                
+                writeNumericFile(chunks, columnCount - textColumnCount, numericFile);
+                writeTextFile(chunks, textColumnCount, textFile);
+            }
+            catch(OutOfMemoryError ex)
+            {
+                // nothing has been changed in R yet so the caller can still
+                // let read.madata(...) read the file
+                LOG.log(Level.WARNING,
+                        "ran out of memory while parsing " + dataFile.getName(),
+                        ex);
+                throw new IOException(
+                        "ran out of memory while parsing " + dataFile.getName());
+            }
+            finally
+            {
+                randomAccessFile.close();
+            }
+            
+            this.assignData(
+                    numericFile,
+                    textFile,
+                    rowCount,
+                    columnNames,
+                    columnCount,
+                    textColumnCount);
+        }
+        finally
+        {
+            deleteSpillDirectory(spillDirectory);
+            this.setWorkUnitsCompleted(this.getTotalWorkUnits());
+        }
+    }
+    
+    /**
+     * Parse all of the chunks on our thread pool
+     */
+    private List<ParsedChunk> parseChunks(
+            FileChannel channel,
+            List<long[]> chunkBounds,
+            int columnCount,
+            int textColumnCount,
+            File spillDirectory) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(this.threadCount);
+        try
+        {
+            List<Future<ParsedChunk>> pendingChunks =
+                new ArrayList<Future<ParsedChunk>>(chunkBounds.size());
+            for(long[] bounds: chunkBounds)
+            {
+                pendingChunks.add(executor.submit(new ParseChunkTask(
+                        channel,
+                        bounds[0],
+                        bounds[1],
+                        columnCount,
+                        textColumnCount,
+                        spillDirectory)));
+            }
+            
+            List<ParsedChunk> chunks = new ArrayList<ParsedChunk>(chunkBounds.size());
+            for(Future<ParsedChunk> pendingChunk: pendingChunks)
+            {
+                chunks.add(this.waitForChunk(pendingChunk));
+            }
+            
+            return chunks;
+        }
+        finally
+        {
+            // wait for the workers that are still running so that none of
+            // them are writing to the spill directory when it's deleted
+            executor.shutdownNow();
+            try
+            {
+                while(!executor.awaitTermination(1L, TimeUnit.SECONDS))
+                {
+                    LOG.fine("waiting for data parsing workers to stop");
+                }
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private ParsedChunk waitForChunk(Future<ParsedChunk> pendingChunk) throws IOException
+    {
+        ParsedChunk chunk;
+        try
+        {
+            chunk = pendingChunk.get();
+        }
+        catch(InterruptedException ex)
+        {
+            throw new IOException("interrupted while parsing data: " + ex.getMessage());
+        }
+        catch(ExecutionException ex)
+        {
+            if(ex.getCause() instanceof IOException)
+            {
+                throw (IOException)ex.getCause();
+            }
+            else if(ex.getCause() instanceof OutOfMemoryError)
+            {
+                throw (OutOfMemoryError)ex.getCause();
+            }
+            
+            LOG.log(Level.SEVERE,
+                    "data parsing worker failed",
+                    ex.getCause());
+            throw new IOException("failed to parse data: " + ex.getCause().getMessage());
+        }
+        
+        this.setWorkUnitsCompleted(this.getWorkUnitsCompleted() + 1);
+        return chunk;
+    }
+    
+    /**
+     * Build the data frame in R from the joined column files and run
+     * read.madata(...) on the data frame
+     */
+    private void assignData(
+            File numericFile,
+            File textFile,
+            long rowCount,
+            String[] columnNames,
+            int columnCount,
+            int textColumnCount)
+    {
+        int numericColumnCount = columnCount - textColumnCount;
+        StringBuilder assignment = new StringBuilder();
+        assignment.append(IMPORTED_DATA_NAME);
+        assignment.append(" <- local({");
+        assignment.append("con <- file(" + toRFileString(numericFile) + ", \"rb\"); ");
+        assignment.append("num <- matrix(readBin(con, \"double\", n=" +
+                (rowCount * numericColumnCount) + ", endian=\"big\"), nrow=" +
+                rowCount + ", ncol=" + numericColumnCount + "); ");
+        assignment.append("close(con); ");
+        assignment.append("txt <- matrix(readLines(" + toRFileString(textFile) +
+                ", n=" + (rowCount * textColumnCount) + "), nrow=" +
+                rowCount + ", ncol=" + textColumnCount + "); ");
+        assignment.append("cols <- vector(\"list\", " + columnCount + "); ");
+        
+        // this is the same type conversion that read.table(...) does
+        assignment.append("for(i in seq_len(" + textColumnCount +
+                ")) cols[[i]] <- type.convert(txt[, i], as.is=FALSE); ");
+        assignment.append("for(i in seq_len(" + numericColumnCount +
+                ")) cols[[" + textColumnCount + " + i]] <- num[, i]; ");
+        if(columnNames == null)
+        {
+            assignment.append("names(cols) <- paste(\"V\", seq_len(" +
+                    columnCount + "), sep=\"\"); ");
+        }
+        else
+        {
+            assignment.append("names(cols) <- c(");
+            for(int i = 0; i < columnNames.length; i++)
+            {
+                if(i >= 1)
+                {
+                    assignment.append(", ");
+                }
+                assignment.append(RUtilities.javaStringToRString(columnNames[i]));
+            }
+            assignment.append("); ");
+        }
+        assignment.append("data.frame(cols, check.names=TRUE)})");
+        
+        this.rInterface.insertComment(
+                "the following data was parsed from " +
+                this.commandBuilder.getDataFileName() +
+                " by J/maanova's tab-delimited data importer");
+        this.rInterface.evaluateCommandNoReturn(assignment.toString());
+        this.rInterface.evaluateCommand(
+                this.commandBuilder.getCommandForDataObject(IMPORTED_DATA_NAME));
+        this.rInterface.evaluateCommandNoReturn(new SilentRCommand(
+                "rm(" + IMPORTED_DATA_NAME + ")"));
+    }
+    
+    /**
+     * Join the spilled numeric columns into one file with the columns one
+     * after the other as big endian doubles
+     */
+    private static void writeNumericFile(
+            List<ParsedChunk> chunks,
+            int numericColumnCount,
+            File numericFile) throws IOException
+    {
+        FileChannel out = new FileOutputStream(numericFile).getChannel();
+        try
+        {
+            for(int col = 0; col < numericColumnCount; col++)
+            {
+                for(ParsedChunk chunk: chunks)
+                {
+                    appendFile(out, chunk.numericFiles[col]);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Join the spilled text columns into one file with the columns one
+     * after the other and a value per line
+     */
+    private static void writeTextFile(
+            List<ParsedChunk> chunks,
+            int textColumnCount,
+            File textFile) throws IOException
+    {
+        FileChannel out = new FileOutputStream(textFile).getChannel();
+        try
+        {
+            for(int col = 0; col < textColumnCount; col++)
+            {
+                for(ParsedChunk chunk: chunks)
+                {
+                    appendFile(out, chunk.textFiles[col]);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Copy the given spill file onto the end of the output and delete it
+     * so that we don't need room for the data twice over
+     */
+    private static void appendFile(FileChannel out, File file) throws IOException
+    {
+        FileChannel in = new FileInputStream(file).getChannel();
+        try
+        {
+            long size = in.size();
+            for(long position = 0L; position < size; )
+            {
+                long transferCount = in.transferTo(position, size - position, out);
+                if(transferCount <= 0L)
+                {
+                    throw new IOException(
+                            "failed to copy temporary data file: " +
+                            file.getAbsolutePath());
+                }
+                position += transferCount;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        deleteTempFile(file);
+    }
+    
+    private static File createSpillDirectory() throws IOException
+    {
+        File spillDirectory = File.createTempFile("madata", "");
+        if(!spillDirectory.delete() || !spillDirectory.mkdir())
+        {
+            throw new IOException(
+                    "failed to create temporary data directory: " +
+                    spillDirectory.getAbsolutePath());
+        }
+        
+        return spillDirectory;
+    }
+    
+    private static void deleteSpillDirectory(File spillDirectory)
+    {
+        File[] spillFiles = spillDirectory.listFiles();
+        if(spillFiles != null)
+        {
+            for(File spillFile: spillFiles)
+            {
+                deleteTempFile(spillFile);
+            }
+        }
+        deleteTempFile(spillDirectory);
+    }
+    
+    private static String toRFileString(File file)
+    {
+        return RUtilities.javaStringToRString(
+                file.getAbsolutePath().replace('\\', '/'));
+    }
+    
+    private static void deleteTempFile(File file)
+    {
+        if(!file.delete())
+        {
+            LOG.warning(
+                    "failed to delete temporary data file: " +
+                    file.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * Find the start of the first line that starts at or after the given
+     * position
+     * @param channel
+     *          the channel to scan
+     * @param position
+     *          the position to start looking from
+     * @param fileLength
+     *          the length of the file
+     * @return
+     *          the line start or the file length if there are no more
+     *          lines
+     * @throws IOException
+     *          if the read fails
+     */
+    private static long findLineStart(
+            FileChannel channel,
+            long position,
+            long fileLength) throws IOException
+    {
+        if(position >= fileLength)
+        {
+            return fileLength;
+        }
+        else if(position == 0L)
+        {
+            return 0L;
+        }
+        else
+        {
+            // we might already be at a line start
+            return findLineEnd(channel, position - 1, fileLength);
+        }
+    }
+    
+    /**
+     * Find the position right after the next newline at or after the given
+     * position
+     */
+    private static long findLineEnd(
+            FileChannel channel,
+            long position,
+            long fileLength) throws IOException
+    {
+        ByteBuffer scanBuffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        while(position < fileLength)
+        {
+            scanBuffer.clear();
+            int readCount = channel.read(scanBuffer, position);
+            if(readCount <= 0)
+            {
+                break;
+            }
+            
+            for(int i = 0; i < readCount; i++)
+            {
+                if(scanBuffer.get(i) == '\n')
+                {
+                    return position + i + 1;
+                }
+            }
+            position += readCount;
+        }
+        
+        return fileLength;
+    }
+    
+    /**
+     * Read a line without its line terminator
+     */
+    private static byte[] readLine(
+            FileChannel channel,
+            long start,
+            long end) throws IOException
+    {
+        ByteBuffer lineBuffer = ByteBuffer.allocate((int)(end - start));
+        while(lineBuffer.hasRemaining())
+        {
+            if(channel.read(lineBuffer, start + lineBuffer.position()) <= 0)
+            {
+                break;
+            }
+        }
+        
+        byte[] line = lineBuffer.array();
+        int lineLength = lineBuffer.position();
+        while(lineLength >= 1 &&
+              (line[lineLength - 1] == '\n' || line[lineLength - 1] == '\r'))
+        {
+            lineLength--;
+        }
+        
+        byte[] trimmedLine = new byte[lineLength];
+        System.arraycopy(line, 0, trimmedLine, 0, lineLength);
+        return trimmedLine;
+    }
+    
+    /**
+     * Split a line into its tab separated fields
+     * @param line
+     *          the line
+     * @param lineLength
+     *          the length of the line
+     * @return
+     *          the start (inclusive) and end (exclusive) of each field
+     */
+    private static List<int[]> splitFields(byte[] line, int lineLength)
+    {
+        List<int[]> fields = new ArrayList<int[]>();
+        int fieldStart = 0;
+        for(int i = 0; i <= lineLength; i++)
+        {
+            if(i == lineLength || line[i] == '\t')
+            {
+                fields.add(new int[] {fieldStart, i});
+                fieldStart = i + 1;
+            }
+        }
+        
+        return fields;
+    }
+    
+    /**
+     * Convert a field to text, dropping any surrounding double quotes
+     * like read.table(...) does
+     */
+    private static String toText(byte[] line, int start, int end)
+    {
+        if(isQuoted(line, start, end))
+        {
+            start++;
+            end--;
+        }
+        
+        try
+        {
+            return new String(line, start, end - start, TEXT_ENCODING);
+        }
+        catch(UnsupportedEncodingException ex)
+        {
+            // every JVM has to support ISO-8859-1
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Parse a numeric field the way R does. Empty fields and "NA" are NA
+     * @param line
+     *          the line holding the field
+     * @param start
+     *          the field start (inclusive)
+     * @param end
+     *          the field end (exclusive)
+     * @return
+     *          the value
+     * @throws NumberFormatException
+     *          if the field isn't a number
+     */
+    private static boolean isQuoted(byte[] line, int start, int end)
+    {
+        return end - start >= 2 && line[start] == '"' && line[end - 1] == '"';
+    }
+    
+    static double parseNumber(byte[] line, int start, int end)
+    throws NumberFormatException
+    {
+        while(start < end && line[start] == ' ')
+        {
+            start++;
+        }
+        while(end > start && line[end - 1] == ' ')
+        {
+            end--;
+        }
+        if(isQuoted(line, start, end))
+        {
+            start++;
+            end--;
+        }
+        
+        if(start == end || isToken(line, start, end, "NA"))
+        {
+            return Double.longBitsToDouble(R_NA_BITS);
+        }
+        
+        // the fast path handles plain decimals with up to 18 significant
+        // digits. everything else goes through Double.parseDouble
+        int i = start;
+        boolean negative = false;
+        if(line[i] == '-' || line[i] == '+')
+        {
+            negative = line[i] == '-';
+            i++;
+        }
+        
+        long mantissa = 0L;
+        int significantDigits = 0;
+        int exponent = 0;
+        int digitCount = 0;
+        boolean exact = true;
+        for(boolean afterPoint = false; i < end; i++)
+        {
+            byte currByte = line[i];
+            if(currByte >= '0' && currByte <= '9')
+            {
+                digitCount++;
+                if(significantDigits < 18)
+                {
+                    mantissa = mantissa * 10 + (currByte - '0');
+                    if(mantissa != 0L)
+                    {
+                        significantDigits++;
+                    }
+                    if(afterPoint)
+                    {
+                        exponent--;
+                    }
+                }
+                else
+                {
+                    if(currByte != '0')
+                    {
+                        exact = false;
+                    }
+                    if(!afterPoint)
+                    {
+                        exponent++;
+                    }
+                }
+            }
+            else if(currByte == '.' && !afterPoint)
+            {
+                afterPoint = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+        
+        if(digitCount >= 1 && i < end && (line[i] == 'e' || line[i] == 'E'))
+        {
+            i++;
+            boolean negativeExponent = false;
+            if(i < end && (line[i] == '-' || line[i] == '+'))
+            {
+                negativeExponent = line[i] == '-';
+                i++;
+            }
+            
+            int exponentDigits = 0;
+            int explicitExponent = 0;
+            for(; i < end && line[i] >= '0' && line[i] <= '9'; i++)
+            {
+                if(explicitExponent < 100000)
+                {
+                    explicitExponent = explicitExponent * 10 + (line[i] - '0');
+                }
+                exponentDigits++;
+            }
+            if(exponentDigits == 0)
+            {
+                throw new NumberFormatException(toText(line, start, end));
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        
+        if(digitCount == 0 || i != end)
+        {
+            return parseSpecialNumber(line, start, end);
+        }
+        else if(mantissa == 0L)
+        {
+            return negative ? -0.0 : 0.0;
+        }
+        else if(exact &&
+                mantissa < (1L << 53) &&
+                exponent >= -22 &&
+                exponent <= 22)
+        {
+            // both the mantissa and the power of ten are exact here so a
+            // single multiply or divide is correctly rounded
+            double value = exponent >= 0 ?
+                    mantissa * POWERS_OF_TEN[exponent] :
+                    mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        else
+        {
+            return Double.parseDouble(toText(line, start, end));
+        }
+    }
+    
+    /**
+     * Parse the non-finite values that R understands
+     */
+    private static double parseSpecialNumber(byte[] line, int start, int end)
+    throws NumberFormatException
+    {
+        boolean negative = false;
+        int unsignedStart = start;
+        if(line[start] == '-' || line[start] == '+')
+        {
+            negative = line[start] == '-';
+            unsignedStart++;
+        }
+        
+        if(isToken(line, unsignedStart, end, "Inf") ||
+           isToken(line, unsignedStart, end, "inf") ||
+           isToken(line, unsignedStart, end, "Infinity"))
+        {
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        else if(isToken(line, unsignedStart, end, "NaN"))
+        {
+            return Double.NaN;
+        }
+        else
+        {
+            throw new NumberFormatException(toText(line, start, end));
+        }
+    }
+    
+    private static boolean isToken(byte[] line, int start, int end, String token)
+    {
+        if(end - start != token.length())
+        {
+            return false;
+        }
+        
+        for(int i = 0; i < token.length(); i++)
+        {
+            if(line[start + i] != token.charAt(i))
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTaskName()
+    {
+        return "Reading " + new File(this.commandBuilder.getDataFileName()).getName();
+    }
+    
+    /**
+     * The rows parsed from a single chunk of the data file. Every column
+     * is spilled to its own file as it's parsed. The text columns are
+     * written a value per line and the numeric columns as big endian
+     * doubles
+     */
+    private static final class ParsedChunk
+    {
+        private final File[] textFiles;
+        
+        private final File[] numericFiles;
+        
+        private final OutputStream[] textOutputs;
+        
+        private final DataOutputStream[] numericOutputs;
+        
+        private int rowCount = 0;
+        
+        /**
+         * Constructor
+         * @param spillDirectory
+         *          the directory that the column files go in
+         * @param textColumnCount
+         *          the number of text columns
+         * @param numericColumnCount
+         *          the number of numeric columns
+         * @throws IOException
+         *          if the column files can't be created
+         */
+        public ParsedChunk(
+                File spillDirectory,
+                int textColumnCount,
+                int numericColumnCount) throws IOException
+        {
+            this.textFiles = new File[textColumnCount];
+            this.numericFiles = new File[numericColumnCount];
+            this.textOutputs = new OutputStream[textColumnCount];
+            this.numericOutputs = new DataOutputStream[numericColumnCount];
+            
+            try
+            {
+                for(int col = 0; col < textColumnCount; col++)
+                {
+                    this.textFiles[col] = File.createTempFile(
+                            "text", ".txt", spillDirectory);
+                    this.textOutputs[col] = new BufferedOutputStream(
+                            new FileOutputStream(this.textFiles[col]));
+                }
+                for(int col = 0; col < numericColumnCount; col++)
+                {
+                    this.numericFiles[col] = File.createTempFile(
+                            "numeric", ".bin", spillDirectory);
+                    this.numericOutputs[col] = new DataOutputStream(
+                            new BufferedOutputStream(
+                                    new FileOutputStream(this.numericFiles[col])));
+                }
+            }
+            catch(IOException ex)
+            {
+                this.close();
+                throw ex;
+            }
+        }
+        
+        /**
+         * Add a text value to the end of the given column
+         * @param col
+         *          the text column index
+         * @param line
+         *          the line holding the value
+         * @param start
+         *          the start of the value
+         * @param end
+         *          the end of the value (exclusive)
+         * @throws IOException
+         *          if the write fails
+         */
+        public void writeText(int col, byte[] line, int start, int end)
+        throws IOException
+        {
+            if(isQuoted(line, start, end))
+            {
+                start++;
+                end--;
+            }
+            
+            // the bytes are kept as is which is the same as going through
+            // ISO-8859-1 text
+            OutputStream out = this.textOutputs[col];
+            out.write(line, start, end - start);
+            out.write('\n');
+        }
+        
+        /**
+         * Add a numeric value to the end of the given column
+         * @param col
+         *          the numeric column index
+         * @param value
+         *          the value
+         * @throws IOException
+         *          if the write fails
+         */
+        public void writeNumber(int col, double value) throws IOException
+        {
+            // raw bits so that NA stays NA rather than NaN
+            this.numericOutputs[col].writeLong(Double.doubleToRawLongBits(value));
+        }
+        
+        /**
+         * Flush and close all of the column files
+         * @throws IOException
+         *          if any of the column files fail to close
+         */
+        public void close() throws IOException
+        {
+            IOException closeException = null;
+            List<OutputStream> outputs = new ArrayList<OutputStream>();
+            outputs.addAll(Arrays.asList(this.textOutputs));
+            outputs.addAll(Arrays.asList(this.numericOutputs));
+            for(OutputStream out: outputs)
+            {
+                if(out != null)
+                {
+                    try
+                    {
+                        out.close();
+                    }
+                    catch(IOException ex)
+                    {
+                        closeException = ex;
+                    }
+                }
+            }
+            
+            if(closeException != null)
+            {
+                throw closeException;
+            }
+        }
+    }
+    
+    /**
+     * Parses a single chunk of the data file
+     */
+    private static class ParseChunkTask implements Callable<ParsedChunk>
+    {
+        private final FileChannel channel;
+        
+        private final long chunkStart;
+        
+        private final long chunkEnd;
+        
+        private final int columnCount;
+        
+        private final int textColumnCount;
+        
+        private final File spillDirectory;
+        
+        /**
+         * Constructor
+         * @param channel
+         *          the data file channel
+         * @param chunkStart
+         *          the start of the chunk. This is always a line start
+         * @param chunkEnd
+         *          the end of the chunk. This is always a line start or
+         *          the end of the file
+         * @param columnCount
+         *          the number of fields on each line
+         * @param textColumnCount
+         *          the number of leading fields that are kept as text
+         * @param spillDirectory
+         *          the directory that the parsed columns are spilled to
+         */
+        public ParseChunkTask(
+                FileChannel channel,
+                long chunkStart,
+                long chunkEnd,
+                int columnCount,
+                int textColumnCount,
+                File spillDirectory)
+        {
+            this.channel = channel;
+            this.chunkStart = chunkStart;
+            this.chunkEnd = chunkEnd;
+            this.columnCount = columnCount;
+            this.textColumnCount = textColumnCount;
+            this.spillDirectory = spillDirectory;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public ParsedChunk call() throws IOException
+        {
+            MappedByteBuffer buffer = this.channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    this.chunkStart,
+                    this.chunkEnd - this.chunkStart);
+            ParsedChunk chunk = new ParsedChunk(
+                    this.spillDirectory,
+                    this.textColumnCount,
+                    this.columnCount - this.textColumnCount);
+            try
+            {
+                this.parseLines(chunk, buffer);
+            }
+            finally
+            {
+                chunk.close();
+            }
+            
+            return chunk;
+        }
+        
+        private void parseLines(
+                ParsedChunk chunk,
+                MappedByteBuffer buffer) throws IOException
+        {
+            byte[] line = new byte[256];
+            int[] fieldBounds = new int[this.columnCount + 1];
+            
+            while(buffer.hasRemaining())
+            {
+                // we're told to stop if another chunk fails
+                if(Thread.currentThread().isInterrupted())
+                {
+                    throw new IOException("data parsing was interrupted");
+                }
+                
+                long lineOffset = this.chunkStart + buffer.position();
+                int lineLength = 0;
+                while(buffer.hasRemaining())
+                {
+                    byte currByte = buffer.get();
+                    if(currByte == '\n')
+                    {
+                        break;
+                    }
+                    
+                    if(lineLength == line.length)
+                    {
+                        byte[] newLine = new byte[lineLength * 2];
+                        System.arraycopy(line, 0, newLine, 0, lineLength);
+                        line = newLine;
+                    }
+                    line[lineLength] = currByte;
+                    lineLength++;
+                }
+                if(lineLength >= 1 && line[lineLength - 1] == '\r')
+                {
+                    lineLength--;
+                }
+                
+                // read.table(...) skips blank lines too
+                if(lineLength >= 1)
+                {
+                    this.parseLine(chunk, line, lineLength, fieldBounds, lineOffset);
+                }
+            }
+        }
+        
+        private void parseLine(
+                ParsedChunk chunk,
+                byte[] line,
+                int lineLength,
+                int[] fieldBounds,
+                long lineOffset) throws IOException
+        {
+            // fieldBounds[i] is where field i starts and
+            // fieldBounds[i + 1] - 1 is where it ends
+            int fieldCount = 0;
+            fieldBounds[0] = 0;
+            for(int i = 0; i < lineLength; i++)
+            {
+                if(line[i] == '\t')
+                {
+                    fieldCount++;
+                    if(fieldCount >= this.columnCount)
+                    {
+                        break;
+                    }
+                    fieldBounds[fieldCount] = i + 1;
+                }
+            }
+            fieldCount++;
+            if(fieldCount != this.columnCount)
+            {
+                throw new IOException(
+                        "the line at byte offset " + lineOffset + " has " +
+                        (fieldCount > this.columnCount ? "more than " + this.columnCount : fieldCount) +
+                        " fields but " + this.columnCount + " were expected");
+            }
+            fieldBounds[fieldCount] = lineLength + 1;
+            
+            for(int col = 0; col < this.textColumnCount; col++)
+            {
+                chunk.writeText(
+                        col,
+                        line,
+                        fieldBounds[col],
+                        fieldBounds[col + 1] - 1);
+            }
+            for(int col = this.textColumnCount; col < this.columnCount; col++)
+            {
+                double value;
+                try
+                {
+                    value = parseNumber(
+                            line,
+                            fieldBounds[col],
+                            fieldBounds[col + 1] - 1);
+                }
+                catch(NumberFormatException ex)
+                {
+                    throw new IOException(
+                            "the line at byte offset " + lineOffset +
+                            " has a non-numeric value in intensity column " +
+                            (col + 1) + ": " + ex.getMessage());
+                }
+                chunk.writeNumber(col - this.textColumnCount, value);
+            }
+            chunk.rowCount++;
+        }
+    }
+}
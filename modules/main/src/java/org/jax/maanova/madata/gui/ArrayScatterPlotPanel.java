@@ -34,6 +34,9 @@ import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseMotionListener;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,6 +53,8 @@ import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JToolTip;
 
+import org.jax.maanova.DataFetchListener;
+import org.jax.maanova.DataFetchService;
 import org.jax.maanova.Maanova;
 import org.jax.maanova.madata.MicroarrayExperiment;
 import org.jax.maanova.madata.MicroarrayExperimentDesign;
@@ -58,6 +63,7 @@ import org.jax.maanova.plot.MaanovaChartPanel;
 import org.jax.maanova.plot.PlotUtil;
 import org.jax.maanova.plot.SaveChartAction;
 import org.jax.maanova.plot.SimpleChartConfigurationDialog;
+import org.jax.maanova.plot.XYProbeData;
 import org.jax.util.gui.MessageDialogUtilities;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartRenderingInfo;
@@ -97,8 +103,17 @@ public class ArrayScatterPlotPanel extends JPanel
     
     private final JComboBox array2ComboBox;
 
+    /**
+     * the data behind the chart that is showing. Only touched from the
+     * AWT thread
+     */
     private XYProbeData cachedXYData = null;
     
+    /**
+     * the fetch key that {@link #cachedXYData} was fetched with
+     */
+    private Object cachedXYDataKey = null;
+    
     private final MouseMotionListener myMouseMotionListener = new MouseMotionAdapter()
     {
         /**
@@ -236,27 +251,17 @@ public class ArrayScatterPlotPanel extends JPanel
     
     private void mouseMoved(MouseEvent e)
     {
-        if(this.showTooltip)
+        XYProbeData xyProbeData = this.cachedXYData;
+        if(this.showTooltip && xyProbeData != null)
         {
             Point2D chartPoint = this.chartPanel.toChartPoint(e.getPoint());
             
             // find the nearest probe
-            XYProbeData xyProbeData = this.getXYData();
-            double nearestDistance = Double.POSITIVE_INFINITY;
-            int nearestDotIndex = -1;
             double[] xData = xyProbeData.getXData();
             double[] yData = xyProbeData.getYData();
-            for(int dotIndex = 0; dotIndex < xData.length ; dotIndex++)
-            {
-                double currDist = chartPoint.distanceSq(
-                        xData[dotIndex],
-                        yData[dotIndex]);
-                if(currDist < nearestDistance)
-                {
-                    nearestDistance = currDist;
-                    nearestDotIndex = dotIndex;
-                }
-            }
+            int nearestDotIndex = xyProbeData.getNearestDataIndex(
+                    chartPoint.getX(),
+                    chartPoint.getY());
             
             if(nearestDotIndex == -1)
             {
@@ -438,11 +443,90 @@ public class ArrayScatterPlotPanel extends JPanel
         this.viewArea = null;
     }
     
+    /**
+     * Update the chart, fetching new data points in the background if the
+     * selected arrays have changed
+     */
     private void updateDataPoints()
     {
-        this.cachedXYData = null;
-        XYProbeData currData = this.getXYData();
+        int index1 = this.array1ComboBox.getSelectedIndex();
+        int index2 = this.array2ComboBox.getSelectedIndex();
+        
+        final int array1 = index1 / this.dyeCount;
+        final int dye1 = index1 % this.dyeCount;
         
+        final int array2 = index2 / this.dyeCount;
+        final int dye2 = index2 % this.dyeCount;
+        
+        final List<Object> xyDataKey = Arrays.<Object>asList(
+                ArrayScatterPlotPanel.class,
+                this.experiment,
+                array1,
+                dye1,
+                array2,
+                dye2);
+        
+        if(xyDataKey.equals(this.cachedXYDataKey))
+        {
+            this.updateChart(this.cachedXYData);
+        }
+        else
+        {
+            this.chartPanel.setLoading(true);
+            DataFetchService.getInstance().fetch(
+                    this,
+                    xyDataKey,
+                    new Callable<XYProbeData>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public XYProbeData call()
+                        {
+                            return ArrayScatterPlotPanel.this.createXYData(
+                                    array1,
+                                    dye1,
+                                    array2,
+                                    dye2);
+                        }
+                    },
+                    new DataFetchListener<XYProbeData>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void dataFetched(XYProbeData data)
+                        {
+                            ArrayScatterPlotPanel.this.cachedXYData = data;
+                            ArrayScatterPlotPanel.this.cachedXYDataKey = xyDataKey;
+                            ArrayScatterPlotPanel.this.chartPanel.setLoading(false);
+                            ArrayScatterPlotPanel.this.updateChart(data);
+                        }
+                        
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void dataFetchFailed(Exception cause)
+                        {
+                            ArrayScatterPlotPanel.this.chartPanel.setLoading(false);
+                            String message = "Failed to read the scatter plot data";
+                            LOG.log(Level.SEVERE, message, cause);
+                            MessageDialogUtilities.error(
+                                    ArrayScatterPlotPanel.this,
+                                    message + ": " + cause.getMessage(),
+                                    "Error Reading Data");
+                        }
+                    });
+        }
+    }
+    
+    /**
+     * Rebuild the chart from the given data
+     * @param currData
+     *          the data
+     */
+    private void updateChart(XYProbeData currData)
+    {
         DefaultXYDataset xyDataSet = new DefaultXYDataset();
         xyDataSet.addSeries(
                 "data",
@@ -459,7 +543,14 @@ public class ArrayScatterPlotPanel extends JPanel
                 false);
         
         XYPlot xyPlot = (XYPlot)scatterPlot.getPlot();
-        xyPlot.setRenderer(PlotUtil.createMonochromeScatterPlotRenderer());
+        if(PlotUtil.isDensityRenderingNeeded(xyDataSet))
+        {
+            xyPlot.setRenderer(PlotUtil.createMonochromeDensityScatterPlotRenderer());
+        }
+        else
+        {
+            xyPlot.setRenderer(PlotUtil.createMonochromeScatterPlotRenderer());
+        }
         if(this.viewArea != null)
         {
             PlotUtil.rescaleXYPlot(this.viewArea, xyPlot);
@@ -469,25 +560,6 @@ public class ArrayScatterPlotPanel extends JPanel
         this.chartPanel.setChart(scatterPlot);
     }
 
-    private synchronized XYProbeData getXYData()
-    {
-        if(this.cachedXYData == null)
-        {
-            int index1 = this.array1ComboBox.getSelectedIndex();
-            int index2 = this.array2ComboBox.getSelectedIndex();
-            
-            int array1 = index1 / this.dyeCount;
-            int dye1 = index1 % this.dyeCount;
-            
-            int array2 = index2 / this.dyeCount;
-            int dye2 = index2 % this.dyeCount;
-            
-            this.cachedXYData = this.createXYData(array1, dye1, array2, dye2);
-        }
-        
-        return this.cachedXYData;
-    }
-    
     private XYProbeData createXYData(int array1, int dye1, int array2, int dye2)
     {
         Double[] xValues = this.experiment.getData(dye1, array1);
@@ -635,56 +707,4 @@ public class ArrayScatterPlotPanel extends JPanel
         this.viewArea = chartArea;
         this.updateDataPoints();
     }
-    
-    private class XYProbeData
-    {
-        private final double[] xData;
-        
-        private final double[] yData;
-        
-        private final int[] probeIndices;
-
-        /**
-         * Constructor
-         * @param xData the x axis data
-         * @param yData the y axis data
-         * @param probeIndices  the indices for the corresponding probes
-         */
-        public XYProbeData(
-                double[] xData,
-                double[] yData,
-                int[] probeIndices)
-        {
-            this.xData = xData;
-            this.yData = yData;
-            this.probeIndices = probeIndices;
-        }
-        
-        /**
-         * Getter for the probe indices
-         * @return the probeIndices
-         */
-        public int[] getProbeIndices()
-        {
-            return this.probeIndices;
-        }
-        
-        /**
-         * Getter for the X data
-         * @return the xData
-         */
-        public double[] getXData()
-        {
-            return this.xData;
-        }
-        
-        /**
-         * Getter for the Y data
-         * @return the yData
-         */
-        public double[] getYData()
-        {
-            return this.yData;
-        }
-    }
 }
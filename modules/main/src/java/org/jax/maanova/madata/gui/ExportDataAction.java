@@ -18,35 +18,23 @@
 package org.jax.maanova.madata.gui;
 
 import java.awt.event.ActionEvent;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import javax.swing.AbstractAction;
 import javax.swing.JFileChooser;
-import javax.swing.JFrame;
 
 import org.jax.maanova.Maanova;
 import org.jax.maanova.configuration.MaanovaApplicationConfigurationManager;
 import org.jax.maanova.madata.MicroarrayExperiment;
-import org.jax.maanova.madata.MicroarrayExperimentDesign;
+import org.jax.r.gui.ApplicationFrame;
 import org.jax.util.gui.MessageDialogUtilities;
-import org.jax.util.io.CommonFlatFileFormat;
 import org.jax.util.io.FileChooserExtensionFilter;
-import org.jax.util.io.FlatFileWriter;
 
 /**
  * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
  */
 public class ExportDataAction extends AbstractAction
 {
-    private static final Logger LOG = Logger.getLogger(ExportDataAction.class.getName());
-    
-    private static final String PROBESET_ID_HEADER_STRING = "Probeset ID";
-    
     /**
      * every {@link java.io.Serializable} is supposed to have one of these
      */
@@ -73,7 +61,7 @@ public class ExportDataAction extends AbstractAction
      */
     public void actionPerformed(ActionEvent e)
     {
-        JFrame parentFrame = Maanova.getInstance().getApplicationFrame();
+        ApplicationFrame parentFrame = Maanova.getInstance().getApplicationFrame();
         
         MaanovaApplicationConfigurationManager manager =
             MaanovaApplicationConfigurationManager.getInstance();
@@ -97,62 +85,18 @@ public class ExportDataAction extends AbstractAction
             {
                 manager.setStartingDataDirectory(selectedFile.getParentFile());
                 
-                try
-                {
-                    int dyeCount = this.experiment.getDyeCount();
-                    MicroarrayExperimentDesign design = this.experiment.getDesign();
-                    String[] arrays = design.getColumnNamed(MicroarrayExperimentDesign.ARRAY_COL_NAME);
-                    final String[] currRow = new String[arrays.length + 1];
-                    currRow[0] = PROBESET_ID_HEADER_STRING;
-                    if(dyeCount >= 2)
-                    {
-                        String[] dyes = design.getColumnNamed(MicroarrayExperimentDesign.DYE_COL_NAME);
-                        for(int i = 0; i < arrays.length; i++)
-                        {
-                            currRow[i + 1] = arrays[i] + "-" + dyes[i];
-                        }
-                    }
-                    else
-                    {
-                        for(int i = 0; i < arrays.length; i++)
-                        {
-                            currRow[i + 1] = arrays[i];
-                        }
-                    }
-                    
-                    FlatFileWriter writer = new FlatFileWriter(
-                            new BufferedWriter(new FileWriter(selectedFile)),
-                            CommonFlatFileFormat.CSV_UNIX);
-                    writer.writeRow(currRow);
-                    
-                    String[] probeIds = this.experiment.getProbesetIds();
-                    for(int probeIndex = 0; probeIndex < probeIds.length; probeIndex++)
-                    {
-                        currRow[0] = probeIds[probeIndex];
-                        
-                        Double[] probeVals = this.experiment.getDataRow(probeIndex);
-                        for(int i = 0; i < probeVals.length; i++)
-                        {
-                            currRow[i + 1] = probeVals[i] == null ? "" : probeVals[i].toString();
-                        }
-                        
-                        writer.writeRow(currRow);
-                    }
-                    
-                    writer.flush();
-                    writer.close();
-                }
-                catch(IOException ex)
-                {
-                    String titleString = "Error Writing Table";
-                    LOG.log(Level.SEVERE,
-                            titleString,
-                            ex);
-                    MessageDialogUtilities.errorLater(
-                            parentFrame,
-                            ex.getMessage(),
-                            titleString);
-                }
+                final String[] headerRow =
+                    ExportDataTask.createHeaderRow(this.experiment);
+                
+                // the export can take a long time for big experiments so
+                // we do it in the background
+                ExportDataTask exportTask = new ExportDataTask(
+                        this.experiment,
+                        headerRow,
+                        selectedFile);
+                parentFrame.getTaskProgressPanel().addTaskToTrack(exportTask, true);
+                Thread exportThread = new Thread(exportTask);
+                exportThread.start();
             }
         }
     }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.madata.gui;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.maanova.Maanova;
+import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.madata.MicroarrayExperimentDesign;
+import org.jax.util.concurrent.SimpleLongRunningTask;
+import org.jax.util.gui.MessageDialogUtilities;
+import org.jax.util.io.CommonFlatFileFormat;
+import org.jax.util.io.FlatFileWriter;
+
+/**
+ * A long running task that streams the data matrix of a microarray
+ * experiment out to a CSV file. The data is pulled out of R a block of rows
+ * at a time so that memory use stays bounded no matter how many probesets
+ * the experiment has.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class ExportDataTask
+extends SimpleLongRunningTask
+implements Runnable
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            ExportDataTask.class.getName());
+    
+    /**
+     * the number of rows that we pull out of R at a time
+     */
+    private static final int ROWS_PER_BLOCK = 5000;
+    
+    private static final String PROBESET_ID_HEADER_STRING = "Probeset ID";
+    
+    private final MicroarrayExperiment experiment;
+    
+    private final String[] headerRow;
+    
+    private final File exportFile;
+    
+    /**
+     * Constructor
+     * @param experiment
+     *          the experiment to export
+     * @param headerRow
+     *          the header row to write. The 1st column is the probeset ID
+     *          column and the rest must line up with the data columns
+     * @param exportFile
+     *          the file to export to
+     */
+    public ExportDataTask(
+            MicroarrayExperiment experiment,
+            String[] headerRow,
+            File exportFile)
+    {
+        this.experiment = experiment;
+        this.headerRow = headerRow;
+        this.exportFile = exportFile;
+    }
+    
+    /**
+     * Create the header row that goes with the experiment's data columns
+     * @param experiment
+     *          the experiment
+     * @return
+     *          the header row
+     */
+    public static String[] createHeaderRow(MicroarrayExperiment experiment)
+    {
+        int dyeCount = experiment.getDyeCount();
+        MicroarrayExperimentDesign design = experiment.getDesign();
+        String[] arrays = design.getColumnNamed(MicroarrayExperimentDesign.ARRAY_COL_NAME);
+        String[] headerRow = new String[arrays.length + 1];
+        headerRow[0] = PROBESET_ID_HEADER_STRING;
+        if(dyeCount >= 2)
+        {
+            String[] dyes = design.getColumnNamed(MicroarrayExperimentDesign.DYE_COL_NAME);
+            for(int i = 0; i < arrays.length; i++)
+            {
+                headerRow[i + 1] = arrays[i] + "-" + dyes[i];
+            }
+        }
+        else
+        {
+            for(int i = 0; i < arrays.length; i++)
+            {
+                headerRow[i + 1] = arrays[i];
+            }
+        }
+        
+        return headerRow;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void run()
+    {
+        try
+        {
+            this.export();
+        }
+        catch(IOException ex)
+        {
+            String titleString = "Error Writing Table";
+            LOG.log(Level.SEVERE,
+                    titleString,
+                    ex);
+            MessageDialogUtilities.errorLater(
+                    Maanova.getInstance().getApplicationFrame(),
+                    ex.getMessage(),
+                    titleString);
+        }
+    }
+    
+    /**
+     * Do the export on the calling thread
+     * @throws IOException
+     *          if the export fails
+     */
+    public void export() throws IOException
+    {
+        FlatFileWriter writer = null;
+        try
+        {
+            String[] probeIds = this.experiment.getProbesetIds();
+            this.setTotalWorkUnits(probeIds.length);
+            this.setWorkUnitsCompleted(0);
+            
+            writer = new FlatFileWriter(
+                    new BufferedWriter(new FileWriter(this.exportFile)),
+                    CommonFlatFileFormat.CSV_UNIX);
+            writer.writeRow(this.headerRow);
+            
+            final String[] currRow = new String[this.headerRow.length];
+            final int dataColumnCount = currRow.length - 1;
+            for(int blockStart = 0;
+                blockStart < probeIds.length;
+                blockStart += ROWS_PER_BLOCK)
+            {
+                int blockEnd = Math.min(
+                        blockStart + ROWS_PER_BLOCK,
+                        probeIds.length);
+                int blockRowCount = blockEnd - blockStart;
+                double[] block = this.experiment.getDataRowBlock(
+                        blockStart,
+                        blockEnd);
+                if(block.length != blockRowCount * dataColumnCount)
+                {
+                    throw new IOException(
+                            "Expected " + blockRowCount * dataColumnCount +
+                            " data values for rows " + (blockStart + 1) +
+                            " to " + blockEnd + " but got " + block.length);
+                }
+                
+                // the block is column-major so we transpose as we go
+                for(int blockRow = 0; blockRow < blockRowCount; blockRow++)
+                {
+                    currRow[0] = probeIds[blockStart + blockRow];
+                    for(int col = 0; col < dataColumnCount; col++)
+                    {
+                        double value = block[col * blockRowCount + blockRow];
+                        currRow[col + 1] =
+                            Double.isNaN(value) ? "" : Double.toString(value);
+                    }
+                    
+                    writer.writeRow(currRow);
+                }
+                
+                this.setWorkUnitsCompleted(blockEnd);
+            }
+            
+            writer.flush();
+        }
+        finally
+        {
+            if(writer != null)
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch(IOException ex)
+                {
+                    LOG.log(Level.WARNING,
+                            "failed to close export file",
+                            ex);
+                }
+            }
+            
+            // make sure that the task always shows up as done
+            this.setTotalWorkUnits(1);
+            this.setWorkUnitsCompleted(1);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTaskName()
+    {
+        return "Exporting " + this.exportFile.getName();
+    }
+}
@@ -19,6 +19,7 @@ package org.jax.maanova.madata.gui;
 import java.awt.Frame;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,6 +27,10 @@ import javax.swing.Icon;
 import javax.swing.ImageIcon;
 
 import org.jax.maanova.Maanova;
+import org.jax.maanova.RWorkerJob;
+import org.jax.maanova.RWorkerPool;
+import org.jax.maanova.madata.AffyJustRMACommandBuilder;
+import org.jax.maanova.madata.RMAPreprocessingEngine;
 import org.jax.maanova.project.MaanovaProjectManager;
 import org.jax.r.RCommand;
 import org.jax.r.gui.RCommandEditorAndPreviewPanel;
@@ -136,6 +141,8 @@ public class ReadAffymetrixDataDialog extends javax.swing.JDialog
             }
             
             final RCommand[] commands = this.readAffyDataPanel.getCommands();
+            final AffyJustRMACommandBuilder rmaCommandBuilder =
+                this.readAffyDataPanel.getRMACommandBuilder();
             
             Runnable evaluateReadAffyRunnable = new Runnable()
             {
@@ -147,9 +154,15 @@ public class ReadAffymetrixDataDialog extends javax.swing.JDialog
                     try
                     {
                         RInterface rInterface = RInterfaceFactory.getRInterfaceInstance();
-                        for(RCommand command: commands)
+                        
+                        // the 1st command is the RMA command which we skip
+                        // if the Java engine did the preprocessing
+                        boolean preprocessed = ReadAffymetrixDataDialog.this.preprocess(
+                                rInterface,
+                                rmaCommandBuilder);
+                        for(int i = preprocessed ? 1 : 0; i < commands.length; i++)
                         {
-                            rInterface.evaluateCommand(command);
+                            rInterface.evaluateCommand(commands[i]);
                         }
                         
                         MaanovaProjectManager projectManager =
@@ -177,6 +190,79 @@ public class ReadAffymetrixDataDialog extends javax.swing.JDialog
             this.dispose();
         }
     }
+    
+    /**
+     * Run RMA with the Java engine if it was selected, otherwise in an R
+     * worker process if one is available
+     * @param rInterface
+     *          the R interface
+     * @param rmaCommandBuilder
+     *          the RMA settings
+     * @return
+     *          true if the RMA result was assigned. if false the caller
+     *          should let R run justRMA
+     */
+    private boolean preprocess(
+            RInterface rInterface,
+            AffyJustRMACommandBuilder rmaCommandBuilder)
+    {
+        if(rmaCommandBuilder.getUseJavaEngine() &&
+           RMAPreprocessingEngine.canPreprocess(rmaCommandBuilder))
+        {
+            RMAPreprocessingEngine engine =
+                new RMAPreprocessingEngine(rInterface, rmaCommandBuilder);
+            Maanova.getInstance().getApplicationFrame().getTaskProgressPanel().addTaskToTrack(
+                    engine,
+                    true);
+            try
+            {
+                engine.preprocess();
+                return true;
+            }
+            catch(IOException ex)
+            {
+                LOG.log(Level.WARNING,
+                        "could not run RMA in Java. " +
+                        "letting justRMA run in R instead",
+                        ex);
+            }
+        }
+        
+        // justRMA can take a long time so if we can we run it in a worker
+        // process where it won't hold up the interactive R session
+        String resultObjectName = rmaCommandBuilder.getResultObjectName();
+        if(RWorkerPool.getInstance().isAvailable() &&
+           resultObjectName != null &&
+           resultObjectName.trim().length() > 0)
+        {
+            RWorkerJob workerJob = new RWorkerJob(
+                    rmaCommandBuilder.getCommand(),
+                    new String[] {"affy"},
+                    new String[0],
+                    resultObjectName.trim());
+            try
+            {
+                RWorkerPool.getInstance().evaluate(workerJob);
+                return true;
+            }
+            catch(IOException ex)
+            {
+                LOG.log(Level.WARNING,
+                        "could not run justRMA in an R worker process. " +
+                        "letting justRMA run in the R session instead",
+                        ex);
+            }
+            catch(InterruptedException ex)
+            {
+                LOG.log(Level.WARNING,
+                        "interrupted while running justRMA in an R worker " +
+                        "process. letting justRMA run in the R session instead",
+                        ex);
+            }
+        }
+        
+        return false;
+    }
 
     /**
      * This method is called from within the constructor to
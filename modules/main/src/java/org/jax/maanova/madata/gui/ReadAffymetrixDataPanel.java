@@ -105,6 +105,8 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
                 this.affyJustRMACommandBuilder.getDoQuantileNormalization());
         this.backgroundCorrectionCheckBox.setSelected(
                 this.affyJustRMACommandBuilder.getDoBackgroundCorrection());
+        this.javaRMAEngineCheckBox.setSelected(
+                this.affyJustRMACommandBuilder.getUseJavaEngine());
         
         // register all the listeners needed to update our command preview
         // in real time
@@ -122,6 +124,7 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
         this.celFilesAreCompressedCheckBox.addItemListener(updateCommandItemListener);
         this.quantileNormalizationCheckBox.addItemListener(updateCommandItemListener);
         this.backgroundCorrectionCheckBox.addItemListener(updateCommandItemListener);
+        this.javaRMAEngineCheckBox.addItemListener(updateCommandItemListener);
         
         DocumentListener updateCommandDocListener = new SimplifiedDocumentListener()
         {
@@ -287,6 +290,9 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
         final boolean doBackground = this.backgroundCorrectionCheckBox.isSelected();
         this.affyJustRMACommandBuilder.setDoBackgroundCorrection(doBackground);
         
+        final boolean useJavaEngine = this.javaRMAEngineCheckBox.isSelected();
+        this.affyJustRMACommandBuilder.setUseJavaEngine(useJavaEngine);
+        
         this.readMACommandBuilder.setDesignFileName(
                 this.designFileTextField.getText().trim());
         
@@ -319,6 +325,16 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
         this.fireCommandModified();
     }
     
+    /**
+     * Getter for the justRMA command builder. The RMA command is always
+     * the 1st of the {@link #getCommands() commands}
+     * @return the RMA command builder
+     */
+    public AffyJustRMACommandBuilder getRMACommandBuilder()
+    {
+        return this.affyJustRMACommandBuilder;
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -398,6 +414,7 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
         celFilesAreCompressedCheckBox = new javax.swing.JCheckBox();
         quantileNormalizationCheckBox = new javax.swing.JCheckBox();
         backgroundCorrectionCheckBox = new javax.swing.JCheckBox();
+        javaRMAEngineCheckBox = new javax.swing.JCheckBox();
         dataNameLabel = new javax.swing.JLabel();
         dataNameTextField = new javax.swing.JTextField();
 
@@ -419,6 +436,8 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
 
         backgroundCorrectionCheckBox.setText("Perform Background Correction");
 
+        javaRMAEngineCheckBox.setText("Use Multi-Threaded Java RMA");
+
         dataNameLabel.setText("Microarray Data Object Name:");
 
         org.jdesktop.layout.GroupLayout layout = new org.jdesktop.layout.GroupLayout(this);
@@ -450,6 +469,7 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
                             .add(browseCelFilesButton)))
                     .add(celFilesAreCompressedCheckBox)
                     .add(quantileNormalizationCheckBox)
+                    .add(javaRMAEngineCheckBox)
                     .add(layout.createSequentialGroup()
                         .add(dataNameLabel)
                         .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
@@ -481,6 +501,8 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(backgroundCorrectionCheckBox)
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(javaRMAEngineCheckBox)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
                     .add(dataNameLabel)
                     .add(dataNameTextField, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
@@ -500,6 +522,7 @@ public class ReadAffymetrixDataPanel extends RCommandEditorPanel
     private javax.swing.JLabel dataNameLabel;
     private javax.swing.JTextField dataNameTextField;
     private javax.swing.JTextField designFileTextField;
+    private javax.swing.JCheckBox javaRMAEngineCheckBox;
     private javax.swing.JButton previewDesignFileButton;
     private javax.swing.JCheckBox quantileNormalizationCheckBox;
     // End of variables declaration//GEN-END:variables
@@ -19,6 +19,7 @@ package org.jax.maanova.madata.gui;
 import java.awt.Frame;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,11 +27,14 @@ import javax.swing.Icon;
 import javax.swing.ImageIcon;
 
 import org.jax.maanova.Maanova;
+import org.jax.maanova.madata.ReadMicroarrayDataCommandBuilder;
+import org.jax.maanova.madata.TabDelimitedMicroarrayDataImporter;
 import org.jax.maanova.project.MaanovaProjectManager;
 import org.jax.r.RCommand;
 import org.jax.r.gui.RCommandEditorAndPreviewPanel;
 import org.jax.r.jriutilities.RInterface;
 import org.jax.r.jriutilities.RInterfaceFactory;
+import org.jax.util.gui.MessageDialogUtilities;
 
 /**
  * Dialog for reading in microarray data
@@ -134,22 +138,113 @@ public class ReadMicroarrayDataDialog extends javax.swing.JDialog
                 LOG.fine("read microarray command is valid. issuing command");
             }
             
-            RCommand[] commands = this.readMicroarrayDataPanel.getCommands();
+            final RCommand[] commands = this.readMicroarrayDataPanel.getCommands();
+            final ReadMicroarrayDataCommandBuilder commandBuilder =
+                this.readMicroarrayDataPanel.getCommandBuilder();
             
-            RInterface rInterface = RInterfaceFactory.getRInterfaceInstance();
-            for(RCommand command: commands)
+            // large data files can take a while so we read them outside
+            // of the AWT thread
+            Runnable readDataRunnable = new Runnable()
             {
-                rInterface.evaluateCommandNoReturn(command);
-            }
-            
-            MaanovaProjectManager projectManager =
-                MaanovaProjectManager.getInstance();
-            projectManager.refreshProjectDataStructures();
-            projectManager.notifyActiveProjectModified();
+                /**
+                 * {@inheritDoc}
+                 */
+                public void run()
+                {
+                    try
+                    {
+                        RInterface rInterface = RInterfaceFactory.getRInterfaceInstance();
+                        if(!ReadMicroarrayDataDialog.this.importData(rInterface, commandBuilder))
+                        {
+                            for(RCommand command: commands)
+                            {
+                                rInterface.evaluateCommand(command);
+                            }
+                        }
+                        
+                        MaanovaProjectManager projectManager =
+                            MaanovaProjectManager.getInstance();
+                        projectManager.refreshProjectDataStructures();
+                        projectManager.notifyActiveProjectModified();
+                    }
+                    catch(Exception ex)
+                    {
+                        final String errorMsg =
+                            "Failed to Read Microarray Data";
+                        LOG.log(Level.SEVERE,
+                                errorMsg,
+                                ex);
+                        MessageDialogUtilities.errorLater(
+                                ReadMicroarrayDataDialog.this,
+                                ex.getMessage(),
+                                errorMsg);
+                    }
+                    catch(OutOfMemoryError ex)
+                    {
+                        final String errorMsg =
+                            "Failed to Read Microarray Data";
+                        LOG.log(Level.SEVERE,
+                                errorMsg,
+                                ex);
+                        MessageDialogUtilities.errorLater(
+                                ReadMicroarrayDataDialog.this,
+                                "Ran out of memory while reading the " +
+                                "microarray data",
+                                errorMsg);
+                    }
+                }
+            };
+            Thread readDataThread = new Thread(readDataRunnable);
+            readDataThread.start();
             
             this.dispose();
         }
     }
+    
+    /**
+     * Try reading the data file with the Java importer
+     * @param rInterface
+     *          the R interface to read into
+     * @param commandBuilder
+     *          the read settings
+     * @return
+     *          true if the data was read. if false the caller should let
+     *          R read the file
+     */
+    private boolean importData(
+            RInterface rInterface,
+            ReadMicroarrayDataCommandBuilder commandBuilder)
+    {
+        if(TabDelimitedMicroarrayDataImporter.canImport(commandBuilder))
+        {
+            TabDelimitedMicroarrayDataImporter importer =
+                new TabDelimitedMicroarrayDataImporter(rInterface, commandBuilder);
+            Maanova.getInstance().getApplicationFrame().getTaskProgressPanel().addTaskToTrack(
+                    importer,
+                    true);
+            try
+            {
+                importer.importData();
+                return true;
+            }
+            catch(IOException ex)
+            {
+                LOG.log(Level.WARNING,
+                        "could not parse the data file in Java. " +
+                        "letting read.madata read it instead",
+                        ex);
+            }
+            catch(OutOfMemoryError ex)
+            {
+                LOG.log(Level.WARNING,
+                        "ran out of memory parsing the data file in Java. " +
+                        "letting read.madata read it instead",
+                        ex);
+            }
+        }
+        
+        return false;
+    }
 
     /**
      * This method is called from within the constructor to
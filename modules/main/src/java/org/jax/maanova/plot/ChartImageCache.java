@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.plot;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jfree.chart.ChartRenderingInfo;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.XYItemRenderer;
+import org.jfree.data.xy.XYDataset;
+
+/**
+ * A least recently used cache of rendered XY chart images. The panels
+ * build a new chart every time the view changes, so images are keyed on
+ * what the chart shows (the data, the axis ranges, the labels, the
+ * renderer and the image size) rather than on the chart object itself.
+ * Going back to a view that was already rendered then costs a hash over
+ * the data instead of a full render. The cache is bounded by the number
+ * of bytes taken up by its images.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+final class ChartImageCache
+{
+    /**
+     * the default cache size in bytes
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+    
+    /**
+     * we hold images in access order so the eldest entry is the least
+     * recently used one
+     */
+    private final LinkedHashMap<Key, CachedImage> cachedImages =
+        new LinkedHashMap<Key, CachedImage>(16, 0.75F, true);
+    
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    
+    private long cachedBytes = 0L;
+    
+    /**
+     * Setter for the cache size. Images are evicted right away if needed
+     * @param maxBytes
+     *          the maximum number of bytes of image data to hold. Zero
+     *          turns off caching
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        this.evict();
+    }
+    
+    /**
+     * Getter for the cache size
+     * @return
+     *          the maximum number of bytes of image data that we hold
+     */
+    public synchronized long getMaxBytes()
+    {
+        return this.maxBytes;
+    }
+    
+    /**
+     * Create the cache key for the given chart
+     * @param chart
+     *          the chart
+     * @param width
+     *          the width of the image
+     * @param height
+     *          the height of the image
+     * @return
+     *          the key or null if this isn't the kind of chart we cache
+     */
+    public static Key createKey(JFreeChart chart, int width, int height)
+    {
+        if(!(chart.getPlot() instanceof XYPlot))
+        {
+            return null;
+        }
+        
+        XYPlot plot = (XYPlot)chart.getPlot();
+        StringBuilder description = new StringBuilder();
+        description.append(width).append('x').append(height);
+        String title = chart.getTitle() == null ? null : chart.getTitle().getText();
+        description.append('|').append(title);
+        description.append('|').append(chart.getLegend() != null);
+        describeAxes(plot, description);
+        
+        long dataHash = 17L;
+        for(int i = 0; i < plot.getDatasetCount(); i++)
+        {
+            XYItemRenderer renderer = plot.getRenderer(i);
+            String rendererName =
+                renderer == null ? null : renderer.getClass().getName();
+            description.append('|').append(rendererName);
+            
+            XYDataset dataset = plot.getDataset(i);
+            if(dataset != null)
+            {
+                for(int series = 0; series < dataset.getSeriesCount(); series++)
+                {
+                    int itemCount = dataset.getItemCount(series);
+                    dataHash = mix(dataHash, itemCount);
+                    for(int item = 0; item < itemCount; item++)
+                    {
+                        dataHash = mix(
+                                dataHash,
+                                Double.doubleToLongBits(dataset.getXValue(series, item)));
+                        dataHash = mix(
+                                dataHash,
+                                Double.doubleToLongBits(dataset.getYValue(series, item)));
+                    }
+                }
+            }
+        }
+        
+        return new Key(description.toString(), dataHash);
+    }
+    
+    private static void describeAxes(XYPlot plot, StringBuilder description)
+    {
+        for(int i = 0; i < plot.getDomainAxisCount(); i++)
+        {
+            describeAxis(plot.getDomainAxis(i), description);
+        }
+        for(int i = 0; i < plot.getRangeAxisCount(); i++)
+        {
+            describeAxis(plot.getRangeAxis(i), description);
+        }
+    }
+    
+    private static void describeAxis(ValueAxis axis, StringBuilder description)
+    {
+        if(axis != null)
+        {
+            description.append('|').append(axis.getLabel());
+            description.append('[').append(axis.getLowerBound());
+            description.append(',').append(axis.getUpperBound()).append(']');
+        }
+    }
+    
+    /**
+     * One step of a 64 bit FNV style hash
+     */
+    private static long mix(long hash, long value)
+    {
+        return (hash ^ value) * 0x100000001B3L;
+    }
+    
+    /**
+     * Get the cached image for the given key
+     * @param key
+     *          the key
+     * @return
+     *          the cached image or null if we don't have one
+     */
+    public synchronized CachedImage get(Key key)
+    {
+        return this.cachedImages.get(key);
+    }
+    
+    /**
+     * Cache the given image
+     * @param key
+     *          the key
+     * @param image
+     *          the rendered image
+     * @param renderingInfo
+     *          the rendering info that was filled in when the image was
+     *          rendered
+     */
+    public synchronized void put(
+            Key key,
+            BufferedImage image,
+            ChartRenderingInfo renderingInfo)
+    {
+        CachedImage cachedImage = new CachedImage(image, renderingInfo);
+        if(cachedImage.getByteCount() <= this.maxBytes)
+        {
+            CachedImage replacedImage = this.cachedImages.put(key, cachedImage);
+            if(replacedImage != null)
+            {
+                this.cachedBytes -= replacedImage.getByteCount();
+            }
+            this.cachedBytes += cachedImage.getByteCount();
+            this.evict();
+        }
+    }
+    
+    /**
+     * Throw away everything in the cache
+     */
+    public synchronized void clear()
+    {
+        this.cachedImages.clear();
+        this.cachedBytes = 0L;
+    }
+    
+    /**
+     * Evict least recently used images until we're within budget
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<Key, CachedImage>> iter =
+            this.cachedImages.entrySet().iterator();
+        while(this.cachedBytes > this.maxBytes && iter.hasNext())
+        {
+            this.cachedBytes -= iter.next().getValue().getByteCount();
+            iter.remove();
+        }
+    }
+    
+    /**
+     * A key for a rendered chart image
+     */
+    static final class Key
+    {
+        private final String description;
+        
+        private final long dataHash;
+        
+        /**
+         * Constructor
+         * @param description
+         *          a description of everything but the data
+         * @param dataHash
+         *          a hash of the data
+         */
+        public Key(String description, long dataHash)
+        {
+            this.description = description;
+            this.dataHash = dataHash;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if(obj instanceof Key)
+            {
+                Key otherKey = (Key)obj;
+                return this.dataHash == otherKey.dataHash &&
+                       this.description.equals(otherKey.description);
+            }
+            else
+            {
+                return false;
+            }
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return this.description.hashCode() ^ (int)(this.dataHash ^ (this.dataHash >>> 32));
+        }
+    }
+    
+    /**
+     * A rendered image along with the areas that were filled into the
+     * rendering info when it was rendered. We need these to go between
+     * screen and chart coordinates.
+     */
+    static final class CachedImage
+    {
+        private final BufferedImage image;
+        
+        private final Rectangle2D chartArea;
+        
+        private final Rectangle2D plotArea;
+        
+        private final Rectangle2D dataArea;
+        
+        /**
+         * Constructor
+         * @param image
+         *          the image
+         * @param renderingInfo
+         *          the rendering info to copy the areas from
+         */
+        public CachedImage(BufferedImage image, ChartRenderingInfo renderingInfo)
+        {
+            this.image = image;
+            this.chartArea = copy(renderingInfo.getChartArea());
+            this.plotArea = copy(renderingInfo.getPlotInfo().getPlotArea());
+            this.dataArea = copy(renderingInfo.getPlotInfo().getDataArea());
+        }
+        
+        private static Rectangle2D copy(Rectangle2D rectangle)
+        {
+            return rectangle == null ? null : (Rectangle2D)rectangle.clone();
+        }
+        
+        /**
+         * Getter for the image
+         * @return the image
+         */
+        public BufferedImage getImage()
+        {
+            return this.image;
+        }
+        
+        /**
+         * Restore the areas that were in the rendering info when this
+         * image was rendered
+         * @param renderingInfo
+         *          the rendering info to update
+         */
+        public void restoreRenderingInfo(ChartRenderingInfo renderingInfo)
+        {
+            renderingInfo.setChartArea(copy(this.chartArea));
+            renderingInfo.getPlotInfo().setPlotArea(copy(this.plotArea));
+            renderingInfo.getPlotInfo().setDataArea(copy(this.dataArea));
+        }
+        
+        /**
+         * Get the number of bytes taken up by the image
+         * @return
+         *          the approximate byte count
+         */
+        public long getByteCount()
+        {
+            return 4L * this.image.getWidth() * this.image.getHeight();
+        }
+    }
+}
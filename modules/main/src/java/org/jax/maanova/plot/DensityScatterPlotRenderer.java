@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.plot;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.plot.CrosshairState;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.plot.PlotRenderingInfo;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.AbstractXYItemRenderer;
+import org.jfree.chart.renderer.xy.XYItemRendererState;
+import org.jfree.data.xy.XYDataset;
+
+/**
+ * A scatter plot renderer for data sets that are too big to draw a dot
+ * for every point. Points are counted in square screen cells that are
+ * shaded by how many points they hold. Points in sparse cells (the
+ * outliers) are still drawn as dots, as is every point in a series that
+ * is marked to be drawn individually (eg: selected probes).
+ * <p>
+ * The first pass counts the points and the second pass paints the cells
+ * followed by the individual dots, so the dots always end up on top.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class DensityScatterPlotRenderer extends AbstractXYItemRenderer
+{
+    /**
+     * every {@link java.io.Serializable} is supposed to have one of these
+     */
+    private static final long serialVersionUID = 4206718373951227415L;
+    
+    /**
+     * the width and height of the density cells in pixels
+     */
+    public static final int DEFAULT_CELL_SIZE_PIXELS = 3;
+    
+    /**
+     * cells with this many points or fewer are drawn as individual dots
+     */
+    public static final int DEFAULT_OUTLIER_CELL_COUNT = 2;
+    
+    private static final int COUNT_PASS = 0;
+    
+    private static final int DRAW_PASS = 1;
+    
+    private static final Stroke DOT_OUTLINE_STROKE = new BasicStroke(0.25F);
+    
+    private final Color densityColor;
+    
+    private final Set<Integer> individualSeries = new HashSet<Integer>();
+    
+    private int cellSizePixels = DEFAULT_CELL_SIZE_PIXELS;
+    
+    private int outlierCellCount = DEFAULT_OUTLIER_CELL_COUNT;
+    
+    /**
+     * Constructor
+     * @param densityColor
+     *          the color used for the densest cells. Sparser cells fade
+     *          toward white
+     */
+    public DensityScatterPlotRenderer(Color densityColor)
+    {
+        this.densityColor = densityColor;
+    }
+    
+    /**
+     * Mark the given series to be drawn a dot at a time rather than being
+     * counted into the density cells
+     * @param series
+     *          the series index
+     * @param drawnIndividually
+     *          true if every point in the series should be drawn as a dot
+     */
+    public void setSeriesDrawnIndividually(int series, boolean drawnIndividually)
+    {
+        if(drawnIndividually)
+        {
+            this.individualSeries.add(series);
+        }
+        else
+        {
+            this.individualSeries.remove(series);
+        }
+        this.fireChangeEvent();
+    }
+    
+    /**
+     * Determine if the given series is drawn a dot at a time
+     * @param series
+     *          the series index
+     * @return
+     *          true if the series is drawn individually
+     */
+    public boolean isSeriesDrawnIndividually(int series)
+    {
+        return this.individualSeries.contains(series);
+    }
+    
+    /**
+     * Getter for the cell size
+     * @return the cell width and height in pixels
+     */
+    public int getCellSizePixels()
+    {
+        return this.cellSizePixels;
+    }
+    
+    /**
+     * Setter for the cell size
+     * @param cellSizePixels the cell width and height in pixels
+     */
+    public void setCellSizePixels(int cellSizePixels)
+    {
+        if(cellSizePixels < 1)
+        {
+            throw new IllegalArgumentException(
+                    "cell size must be positive: " + cellSizePixels);
+        }
+        this.cellSizePixels = cellSizePixels;
+        this.fireChangeEvent();
+    }
+    
+    /**
+     * Getter for the outlier cell count
+     * @return
+     *          cells holding this many points or fewer have their points
+     *          drawn as dots
+     */
+    public int getOutlierCellCount()
+    {
+        return this.outlierCellCount;
+    }
+    
+    /**
+     * Setter for the outlier cell count
+     * @param outlierCellCount
+     *          cells holding this many points or fewer have their points
+     *          drawn as dots
+     */
+    public void setOutlierCellCount(int outlierCellCount)
+    {
+        this.outlierCellCount = outlierCellCount;
+        this.fireChangeEvent();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPassCount()
+    {
+        return 2;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public XYItemRendererState initialise(
+            Graphics2D g2,
+            Rectangle2D dataArea,
+            XYPlot plot,
+            XYDataset dataset,
+            PlotRenderingInfo info)
+    {
+        return new DensityState(info, dataArea, this.cellSizePixels);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void drawItem(
+            Graphics2D g2,
+            XYItemRendererState state,
+            Rectangle2D dataArea,
+            PlotRenderingInfo info,
+            XYPlot plot,
+            ValueAxis domainAxis,
+            ValueAxis rangeAxis,
+            XYDataset dataset,
+            int series,
+            int item,
+            CrosshairState crosshairState,
+            int pass)
+    {
+        DensityState densityState = (DensityState)state;
+        
+        double x = dataset.getXValue(series, item);
+        double y = dataset.getYValue(series, item);
+        if(Double.isNaN(x) || Double.isNaN(y))
+        {
+            return;
+        }
+        
+        double java2DX = domainAxis.valueToJava2D(
+                x,
+                dataArea,
+                plot.getDomainAxisEdge());
+        double java2DY = rangeAxis.valueToJava2D(
+                y,
+                dataArea,
+                plot.getRangeAxisEdge());
+        if(plot.getOrientation() == PlotOrientation.HORIZONTAL)
+        {
+            double temp = java2DX;
+            java2DX = java2DY;
+            java2DY = temp;
+        }
+        
+        boolean individual = this.individualSeries.contains(series);
+        int cellIndex = densityState.getCellIndex(java2DX, java2DY);
+        if(pass == COUNT_PASS)
+        {
+            if(!individual && cellIndex != -1)
+            {
+                densityState.cellCounts[cellIndex]++;
+            }
+        }
+        else if(pass == DRAW_PASS)
+        {
+            if(!densityState.cellsPainted)
+            {
+                this.paintCells(g2, densityState);
+            }
+            
+            if(cellIndex != -1 &&
+               (individual || densityState.cellCounts[cellIndex] <= this.outlierCellCount))
+            {
+                // the same dot that the simple scatter plot renderers use
+                Shape dot = new Ellipse2D.Double(
+                        java2DX - PlotUtil.SCATTER_PLOT_DOT_SIZE_PIXELS / 2.0,
+                        java2DY - PlotUtil.SCATTER_PLOT_DOT_SIZE_PIXELS / 2.0,
+                        PlotUtil.SCATTER_PLOT_DOT_SIZE_PIXELS,
+                        PlotUtil.SCATTER_PLOT_DOT_SIZE_PIXELS);
+                g2.setPaint(this.getItemPaint(series, item));
+                g2.fill(dot);
+                g2.setPaint(Color.BLACK);
+                g2.setStroke(DOT_OUTLINE_STROKE);
+                g2.draw(dot);
+            }
+        }
+    }
+    
+    /**
+     * Paint the density cells as a single image scaled up to the data area
+     * @param g2
+     *          the graphics to paint to
+     * @param densityState
+     *          the state holding the cell counts
+     */
+    private void paintCells(Graphics2D g2, DensityState densityState)
+    {
+        densityState.cellsPainted = true;
+        
+        int[] cellCounts = densityState.cellCounts;
+        int maxCount = 0;
+        for(int count: cellCounts)
+        {
+            if(count > maxCount)
+            {
+                maxCount = count;
+            }
+        }
+        
+        if(maxCount <= this.outlierCellCount)
+        {
+            // everything gets drawn as a dot
+            return;
+        }
+        
+        // shade on a log scale so that sparse cells are still visible
+        double logMax = Math.log(maxCount + 1);
+        int red = this.densityColor.getRed();
+        int green = this.densityColor.getGreen();
+        int blue = this.densityColor.getBlue();
+        BufferedImage cellImage = new BufferedImage(
+                densityState.columnCount,
+                densityState.rowCount,
+                BufferedImage.TYPE_INT_ARGB);
+        for(int row = 0; row < densityState.rowCount; row++)
+        {
+            for(int column = 0; column < densityState.columnCount; column++)
+            {
+                int count = cellCounts[row * densityState.columnCount + column];
+                if(count > this.outlierCellCount)
+                {
+                    // go from a quarter of the way to full intensity
+                    double intensity =
+                        0.25 + 0.75 * Math.log(count + 1) / logMax;
+                    int argb =
+                        (0xFF << 24) |
+                        (fade(red, intensity) << 16) |
+                        (fade(green, intensity) << 8) |
+                        fade(blue, intensity);
+                    cellImage.setRGB(column, row, argb);
+                }
+            }
+        }
+        
+        Rectangle2D dataArea = densityState.dataArea;
+        Object oldInterpolation = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        g2.setRenderingHint(
+                RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2.drawImage(
+                cellImage,
+                (int)Math.floor(dataArea.getMinX()),
+                (int)Math.floor(dataArea.getMinY()),
+                densityState.columnCount * densityState.cellSizePixels,
+                densityState.rowCount * densityState.cellSizePixels,
+                null);
+        if(oldInterpolation != null)
+        {
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, oldInterpolation);
+        }
+    }
+    
+    /**
+     * Blend a color component with white
+     * @param component
+     *          the color component
+     * @param intensity
+     *          1 for the full color and 0 for white
+     * @return
+     *          the blended component
+     */
+    private static int fade(int component, double intensity)
+    {
+        return (int)Math.round(255 - (255 - component) * intensity);
+    }
+    
+    /**
+     * The per-drawing state that holds the cell counts
+     */
+    private static class DensityState extends XYItemRendererState
+    {
+        private final Rectangle2D dataArea;
+        
+        private final int cellSizePixels;
+        
+        private final int columnCount;
+        
+        private final int rowCount;
+        
+        private final int[] cellCounts;
+        
+        private boolean cellsPainted = false;
+        
+        /**
+         * Constructor
+         * @param info
+         *          the plot rendering info
+         * @param dataArea
+         *          the data area that we're drawing in
+         * @param cellSizePixels
+         *          the cell width and height
+         */
+        public DensityState(
+                PlotRenderingInfo info,
+                Rectangle2D dataArea,
+                int cellSizePixels)
+        {
+            super(info);
+            this.dataArea = dataArea;
+            this.cellSizePixels = cellSizePixels;
+            this.columnCount = Math.max(
+                    1,
+                    (int)Math.ceil(dataArea.getWidth() / cellSizePixels));
+            this.rowCount = Math.max(
+                    1,
+                    (int)Math.ceil(dataArea.getHeight() / cellSizePixels));
+            this.cellCounts = new int[this.columnCount * this.rowCount];
+        }
+        
+        /**
+         * Get the index of the cell holding the given Java2D point
+         * @param java2DX
+         *          the X position
+         * @param java2DY
+         *          the Y position
+         * @return
+         *          the cell index or -1 if the point is outside of the
+         *          data area
+         */
+        public int getCellIndex(double java2DX, double java2DY)
+        {
+            double xOffset = java2DX - Math.floor(this.dataArea.getMinX());
+            double yOffset = java2DY - Math.floor(this.dataArea.getMinY());
+            if(xOffset < 0.0 || yOffset < 0.0)
+            {
+                return -1;
+            }
+            
+            int column = (int)(xOffset / this.cellSizePixels);
+            int row = (int)(yOffset / this.cellSizePixels);
+            if(column >= this.columnCount || row >= this.rowCount)
+            {
+                return -1;
+            }
+            
+            return row * this.columnCount + column;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.jax.maanova.plot;
 
 import java.awt.Color;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
@@ -118,6 +119,18 @@ public class MaanovaChartPanel extends JPanel
     
     private volatile BufferedImage chartImage = null;
     
+    private volatile boolean loading = false;
+    
+    /**
+     * the message shown over the chart while its data is loading
+     */
+    private static final String LOADING_MESSAGE = "Loading Data...";
+    
+    /**
+     * washes out the old chart while new data is loading
+     */
+    private static final Color LOADING_FILL_COLOR = new Color(255, 255, 255, 160);
+    
     private static final Color DEFAULT_SELECTION_RECTANGLE_COLOR =
         Color.RED;
     
@@ -220,6 +233,51 @@ public class MaanovaChartPanel extends JPanel
         this.renderChartImageTask.setChart(chart);
     }
     
+    /**
+     * Set how many bytes of rendered chart images this panel holds on to
+     * so that views that were already rendered can be shown again
+     * without rendering them
+     * @param maxBytes
+     *          the cache size in bytes. Zero turns off caching
+     */
+    public void setImageCacheSize(long maxBytes)
+    {
+        this.renderChartImageTask.setImageCacheSize(maxBytes);
+    }
+    
+    /**
+     * Getter for the rendered chart image cache size
+     * @return
+     *          the cache size in bytes
+     */
+    public long getImageCacheSize()
+    {
+        return this.renderChartImageTask.getImageCacheSize();
+    }
+    
+    /**
+     * Turn the loading indicator on or off. The panel keeps showing the
+     * current chart while loading so that the user has something to look
+     * at until the new data shows up
+     * @param loading
+     *          true if the data for a new chart is being loaded
+     */
+    public void setLoading(boolean loading)
+    {
+        this.loading = loading;
+        this.repaint();
+    }
+    
+    /**
+     * Determine if the loading indicator is on
+     * @return
+     *          true if it's on
+     */
+    public boolean isLoading()
+    {
+        return this.loading;
+    }
+    
     /**
      * Getter for the chart rendering info
      * @return the rendering info
@@ -321,6 +379,29 @@ public class MaanovaChartPanel extends JPanel
         {
             this.renderDragRectangle(g2);
         }
+        
+        if(this.loading)
+        {
+            this.renderLoadingMessage(g2);
+        }
+    }
+    
+    /**
+     * Render the loading message in the middle of the panel
+     * @param graphics2D
+     *          the graphics context to render to
+     */
+    protected void renderLoadingMessage(Graphics2D graphics2D)
+    {
+        FontMetrics fontMetrics = graphics2D.getFontMetrics();
+        int messageWidth = fontMetrics.stringWidth(LOADING_MESSAGE);
+        int x = (this.getWidth() - messageWidth) / 2;
+        int y = (this.getHeight() + fontMetrics.getAscent()) / 2;
+        
+        graphics2D.setColor(LOADING_FILL_COLOR);
+        graphics2D.fillRect(0, 0, this.getWidth(), this.getHeight());
+        graphics2D.setColor(Color.BLACK);
+        graphics2D.drawString(LOADING_MESSAGE, x, y);
     }
     /**
      * Render the selection rectangle
@@ -27,6 +27,7 @@ import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
 import org.jfree.data.Range;
+import org.jfree.data.xy.XYDataset;
 
 /**
  * Some utility functions for plotting with JFreeChart
@@ -39,6 +40,13 @@ public class PlotUtil
      */
     public static final int SCATTER_PLOT_DOT_SIZE_PIXELS = 5;
     
+    /**
+     * scatter plots with more points than this are drawn as density cells
+     * rather than a dot per point
+     * @see DensityScatterPlotRenderer
+     */
+    public static final int DENSITY_RENDERING_POINT_THRESHOLD = 50000;
+    
     /**
      * Create a simple XY renderer which can be used for scatter plots
      * @return  the renderer
@@ -101,6 +109,60 @@ public class PlotUtil
         return renderer;
     }
     
+    /**
+     * Determine if the given data set has too many points to draw as
+     * individual dots
+     * @param dataset
+     *          the data set
+     * @return
+     *          true if the data set has more than
+     *          {@link #DENSITY_RENDERING_POINT_THRESHOLD} points
+     */
+    public static boolean isDensityRenderingNeeded(XYDataset dataset)
+    {
+        int pointCount = 0;
+        for(int series = 0; series < dataset.getSeriesCount(); series++)
+        {
+            pointCount += dataset.getItemCount(series);
+        }
+        
+        return pointCount > DENSITY_RENDERING_POINT_THRESHOLD;
+    }
+    
+    /**
+     * Create a density renderer colored like
+     * {@link #createSimpleScatterPlotRenderer()}
+     * @return  the renderer
+     */
+    public static DensityScatterPlotRenderer createDensityScatterPlotRenderer()
+    {
+        DensityScatterPlotRenderer renderer = new DensityScatterPlotRenderer(
+                new Color(0x55, 0x55, 0xFF)); // blue
+        
+        renderer.setAutoPopulateSeriesPaint(false);
+        renderer.setSeriesPaint(0, new Color(0x55, 0x55, 0xFF)); // blue
+        renderer.setSeriesPaint(1, new Color(0xFF, 0x55, 0x55)); // red
+        
+        return renderer;
+    }
+    
+    /**
+     * Create a density renderer colored like
+     * {@link #createMonochromeScatterPlotRenderer()}
+     * @return  the renderer
+     */
+    public static DensityScatterPlotRenderer createMonochromeDensityScatterPlotRenderer()
+    {
+        DensityScatterPlotRenderer renderer = new DensityScatterPlotRenderer(
+                new Color(0x55, 0x55, 0xFF)); // blue
+        
+        renderer.setAutoPopulateSeriesPaint(false);
+        renderer.clearSeriesPaints(false);
+        renderer.setBasePaint(new Color(0x55, 0x55, 0xFF)); // blue
+        
+        return renderer;
+    }
+    
     /**
      * Convert from graph coordinates to Java2D coordinates
      * @param plot
@@ -19,18 +19,36 @@ package org.jax.maanova.plot;
 
 import java.awt.image.BufferedImage;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jax.util.concurrent.SimpleLongRunningTask;
 import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.ValueAxis;
 import org.jfree.chart.event.ChartChangeEvent;
 import org.jfree.chart.event.ChartChangeListener;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.data.xy.AbstractXYDataset;
+import org.jfree.data.xy.XYDataset;
 
 /**
  * A long running task that is useful for rendering chart images outside
  * of the AWT Event thread.
+ * <p>
+ * XY charts with a lot of points are rendered progressively: a preview
+ * drawn from a sample of the points is pushed out first and the full
+ * image follows. Both passes render a copy of the chart whose data
+ * sets check for newer render requests as they're read, so a pass that
+ * has been superseded (by a zoom or resize for instance) is abandoned
+ * rather than finished.
+ * </p>
+ * <p>
+ * Finished images are held in a {@link ChartImageCache} so that going
+ * back to a view that was already rendered (like zooming back out)
+ * doesn't render all of the points again.
+ * </p>
  * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
  */
 public class RenderChartImageTask
@@ -43,6 +61,22 @@ implements Runnable
     private static final Logger LOG = Logger.getLogger(
             RenderChartImageTask.class.getName());
     
+    /**
+     * charts with more points than this get a preview pass
+     */
+    private static final int PREVIEW_POINT_COUNT = 20000;
+    
+    /**
+     * series with this many points or fewer are never sampled for the
+     * preview. these are usually selections that should stay visible
+     */
+    private static final int MIN_SAMPLED_SERIES_SIZE = 1000;
+    
+    /**
+     * how many data set reads happen between checks for a newer request
+     */
+    private static final int CANCEL_CHECK_INTERVAL = 4096;
+    
     private volatile JFreeChart chart;
     
     private volatile int width;
@@ -55,6 +89,8 @@ implements Runnable
     
     private final ArrayBlockingQueue<Object> renderRequestQueue;
     
+    private final ChartImageCache imageCache = new ChartImageCache();
+    
     private final ChartChangeListener chartChageListener = new ChartChangeListener()
     {
         /**
@@ -123,6 +159,28 @@ implements Runnable
         this.renderRequestQueue.offer(new Object());
     }
     
+    /**
+     * Set the maximum number of bytes of rendered images that we hold on
+     * to for reuse
+     * @param maxBytes
+     *          the cache size in bytes. Zero turns off caching
+     */
+    public void setImageCacheSize(long maxBytes)
+    {
+        this.imageCache.setMaxBytes(maxBytes);
+    }
+    
+    /**
+     * Getter for the image cache size
+     * @return
+     *          the maximum number of bytes of rendered images that we
+     *          hold on to
+     */
+    public long getImageCacheSize()
+    {
+        return this.imageCache.getMaxBytes();
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -147,21 +205,19 @@ implements Runnable
                 int tmpWidth = this.width;
                 int tmpHeight = this.height;
                 
-                // if any values are bad leave the buffered image as null
-                BufferedImage bi = null;
+                // skip rendering if any values are bad
                 if(tmpChart != null && tmpWidth > 0 && tmpHeight > 0)
                 {
-                    bi = tmpChart.createBufferedImage(
-                            tmpWidth,
-                            tmpHeight,
-                            this.chartRenderingInfo);
-                }
-                
-                if(bi != null)
-                {
-                    // clear any old image before putting our shiny new image
-                    this.bufferedImageQueue.poll();
-                    this.bufferedImageQueue.put(bi);
+                    try
+                    {
+                        this.renderWithCache(tmpChart, tmpWidth, tmpHeight);
+                    }
+                    catch(CancellationException ex)
+                    {
+                        // a newer request came in. we'll take care of
+                        // it on the next time through the loop
+                        LOG.fine("abandoned a superseded chart render");
+                    }
                 }
                 
                 // don't bother setting work to complete if we know there
@@ -180,6 +236,317 @@ implements Runnable
         }
     }
     
+    /**
+     * Push out the cached image for the given chart if we have one and
+     * render it otherwise
+     * @param chart
+     *          the chart to render
+     * @param width
+     *          the image width
+     * @param height
+     *          the image height
+     * @throws InterruptedException
+     *          if we're interrupted while pushing an image
+     * @throws CancellationException
+     *          if a newer render request comes in before we're done
+     */
+    private void renderWithCache(JFreeChart chart, int width, int height)
+    throws InterruptedException, CancellationException
+    {
+        ChartImageCache.Key key = this.imageCache.getMaxBytes() > 0L ?
+                ChartImageCache.createKey(chart, width, height) :
+                null;
+        ChartImageCache.CachedImage cachedImage =
+            key == null ? null : this.imageCache.get(key);
+        if(cachedImage != null)
+        {
+            // the panel uses the rendering info to map mouse positions
+            // so it has to match the image we push out
+            cachedImage.restoreRenderingInfo(this.chartRenderingInfo);
+            this.publishImage(cachedImage.getImage());
+        }
+        else
+        {
+            BufferedImage image = this.renderProgressively(chart, width, height);
+            if(key != null && image != null)
+            {
+                this.imageCache.put(key, image, this.chartRenderingInfo);
+            }
+        }
+    }
+    
+    /**
+     * Render the given chart, pushing out a preview first if the chart is
+     * big enough to need one
+     * @param chart
+     *          the chart to render
+     * @param width
+     *          the image width
+     * @param height
+     *          the image height
+     * @return
+     *          the fully rendered image
+     * @throws InterruptedException
+     *          if we're interrupted while pushing an image
+     * @throws CancellationException
+     *          if a newer render request comes in before we're done
+     */
+    private BufferedImage renderProgressively(JFreeChart chart, int width, int height)
+    throws InterruptedException, CancellationException
+    {
+        int pointCount = getPointCount(chart);
+        if(pointCount > PREVIEW_POINT_COUNT)
+        {
+            int sampleStride = (pointCount + PREVIEW_POINT_COUNT - 1) / PREVIEW_POINT_COUNT;
+            JFreeChart previewChart = this.copyChart(chart, sampleStride);
+            if(previewChart != null)
+            {
+                this.publishImage(previewChart.createBufferedImage(
+                        width,
+                        height,
+                        this.chartRenderingInfo));
+            }
+        }
+        
+        JFreeChart fullChart = pointCount > PREVIEW_POINT_COUNT ?
+                this.copyChart(chart, 1) :
+                null;
+        if(fullChart == null)
+        {
+            // small charts aren't worth copying
+            fullChart = chart;
+        }
+        
+        BufferedImage image = fullChart.createBufferedImage(
+                width,
+                height,
+                this.chartRenderingInfo);
+        this.publishImage(image);
+        
+        return image;
+    }
+    
+    /**
+     * Push the given image out to whoever is waiting for it
+     * @param bi
+     *          the image (null is ignored)
+     * @throws InterruptedException
+     *          if we're interrupted
+     */
+    private void publishImage(BufferedImage bi) throws InterruptedException
+    {
+        if(bi != null)
+        {
+            // clear any old image before putting our shiny new image
+            this.bufferedImageQueue.poll();
+            this.bufferedImageQueue.put(bi);
+        }
+    }
+    
+    /**
+     * Count the points in an XY chart
+     * @param chart
+     *          the chart
+     * @return
+     *          the number of points or 0 if this isn't an XY chart
+     */
+    private static int getPointCount(JFreeChart chart)
+    {
+        int pointCount = 0;
+        if(chart.getPlot() instanceof XYPlot)
+        {
+            XYPlot plot = (XYPlot)chart.getPlot();
+            for(int i = 0; i < plot.getDatasetCount(); i++)
+            {
+                XYDataset dataset = plot.getDataset(i);
+                if(dataset != null)
+                {
+                    for(int series = 0; series < dataset.getSeriesCount(); series++)
+                    {
+                        pointCount += dataset.getItemCount(series);
+                    }
+                }
+            }
+        }
+        
+        return pointCount;
+    }
+    
+    /**
+     * Make a copy of an XY chart that renders a sample of the original
+     * points and that gives up when a newer render request comes in. The
+     * axes of the copy are fixed to the current axis ranges of the
+     * original so that sampling can't change the view.
+     * @param chart
+     *          the chart to copy
+     * @param sampleStride
+     *          we keep every sampleStride'th point (1 keeps all of them)
+     * @return
+     *          the copy or null if the chart can't be copied
+     */
+    private JFreeChart copyChart(JFreeChart chart, int sampleStride)
+    {
+        try
+        {
+            JFreeChart chartCopy = (JFreeChart)chart.clone();
+            XYPlot plot = (XYPlot)chart.getPlot();
+            XYPlot plotCopy = (XYPlot)chartCopy.getPlot();
+            for(int i = 0; i < plot.getDatasetCount(); i++)
+            {
+                XYDataset dataset = plot.getDataset(i);
+                if(dataset != null)
+                {
+                    plotCopy.setDataset(i, new SampledXYDataset(dataset, sampleStride));
+                }
+            }
+            
+            for(int i = 0; i < plot.getDomainAxisCount(); i++)
+            {
+                ValueAxis axis = plot.getDomainAxis(i);
+                if(axis != null)
+                {
+                    plotCopy.getDomainAxis(i).setRange(axis.getRange(), false, false);
+                }
+            }
+            for(int i = 0; i < plot.getRangeAxisCount(); i++)
+            {
+                ValueAxis axis = plot.getRangeAxis(i);
+                if(axis != null)
+                {
+                    plotCopy.getRangeAxis(i).setRange(axis.getRange(), false, false);
+                }
+            }
+            
+            return chartCopy;
+        }
+        catch(CloneNotSupportedException ex)
+        {
+            LOG.log(Level.WARNING,
+                    "failed to copy chart for progressive rendering",
+                    ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Throws a {@link CancellationException} if a newer render request is
+     * waiting
+     */
+    private void checkForNewerRequest()
+    {
+        if(!this.renderRequestQueue.isEmpty())
+        {
+            throw new CancellationException();
+        }
+    }
+    
+    /**
+     * An XY data set that shows every n'th point of another data set and
+     * checks for newer render requests as it's read
+     */
+    private class SampledXYDataset extends AbstractXYDataset
+    {
+        /**
+         * every {@link java.io.Serializable} is supposed to have one of these
+         */
+        private static final long serialVersionUID = -3019622740580880530L;
+        
+        private final XYDataset dataset;
+        
+        private final int[] strides;
+        
+        private int readCount = 0;
+        
+        /**
+         * Constructor
+         * @param dataset
+         *          the data set to sample
+         * @param sampleStride
+         *          we keep every sampleStride'th point of the larger
+         *          series
+         */
+        public SampledXYDataset(XYDataset dataset, int sampleStride)
+        {
+            this.dataset = dataset;
+            this.strides = new int[dataset.getSeriesCount()];
+            for(int series = 0; series < this.strides.length; series++)
+            {
+                this.strides[series] =
+                    dataset.getItemCount(series) <= MIN_SAMPLED_SERIES_SIZE ?
+                    1 :
+                    sampleStride;
+            }
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getSeriesCount()
+        {
+            return this.strides.length;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @SuppressWarnings("unchecked")
+        @Override
+        public Comparable getSeriesKey(int series)
+        {
+            return this.dataset.getSeriesKey(series);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public int getItemCount(int series)
+        {
+            int stride = this.strides[series];
+            return (this.dataset.getItemCount(series) + stride - 1) / stride;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public Number getX(int series, int item)
+        {
+            return this.dataset.getX(series, item * this.strides[series]);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public Number getY(int series, int item)
+        {
+            return this.dataset.getY(series, item * this.strides[series]);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public double getXValue(int series, int item)
+        {
+            this.readCount++;
+            if(this.readCount % CANCEL_CHECK_INTERVAL == 0)
+            {
+                RenderChartImageTask.this.checkForNewerRequest();
+            }
+            
+            return this.dataset.getXValue(series, item * this.strides[series]);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public double getYValue(int series, int item)
+        {
+            return this.dataset.getYValue(series, item * this.strides[series]);
+        }
+    }
+    
     /**
      * Getter for the next image. This function blocks until there is an
      * updated image to get
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.plot;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * A static 2-d tree over a set of XY points. The tree is stored implicitly
+ * as a permutation of the point indices: the point in the middle of any
+ * range splits that range on X (at even depths) or Y (at odd depths) and
+ * ranges small enough to scan are left as they are. Points with a
+ * coordinate that isn't finite are left out since they can never be the
+ * nearest point or fall in an area.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+final class XYPointIndex
+{
+    /**
+     * ranges of this size or smaller are scanned rather than split
+     */
+    private static final int LEAF_SIZE = 8;
+    
+    private final double[] xData;
+    
+    private final double[] yData;
+    
+    /**
+     * the point indices in tree order
+     */
+    private final int[] order;
+    
+    /**
+     * Constructor
+     * @param xData
+     *          the X coordinates
+     * @param yData
+     *          the Y coordinates
+     */
+    public XYPointIndex(double[] xData, double[] yData)
+    {
+        this.xData = xData;
+        this.yData = yData;
+        
+        int finiteCount = 0;
+        int[] finiteIndices = new int[xData.length];
+        for(int i = 0; i < xData.length; i++)
+        {
+            if(isFinite(xData[i]) && isFinite(yData[i]))
+            {
+                finiteIndices[finiteCount] = i;
+                finiteCount++;
+            }
+        }
+        
+        this.order = finiteCount == finiteIndices.length ?
+                finiteIndices :
+                resize(finiteIndices, finiteCount);
+        this.build(0, this.order.length, 0);
+    }
+    
+    /**
+     * Copy the given array into a new array of the given length, truncating
+     * or zero padding as needed
+     * @param array
+     *          the array to copy
+     * @param newLength
+     *          the length of the new array
+     * @return
+     *          the new array
+     */
+    private static int[] resize(int[] array, int newLength)
+    {
+        int[] newArray = new int[newLength];
+        System.arraycopy(
+                array,
+                0,
+                newArray,
+                0,
+                Math.min(array.length, newLength));
+        return newArray;
+    }
+    
+    private static boolean isFinite(double value)
+    {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+    
+    /**
+     * Split the given range recursively
+     * @param start
+     *          the start of the range (inclusive)
+     * @param end
+     *          the end of the range (exclusive)
+     * @param depth
+     *          the depth of the range which picks the axis to split on
+     */
+    private void build(int start, int end, int depth)
+    {
+        if(end - start > LEAF_SIZE)
+        {
+            int middle = (start + end) >>> 1;
+            this.select(start, end - 1, middle, this.axisData(depth));
+            this.build(start, middle, depth + 1);
+            this.build(middle + 1, end, depth + 1);
+        }
+    }
+    
+    private double[] axisData(int depth)
+    {
+        return (depth & 1) == 0 ? this.xData : this.yData;
+    }
+    
+    /**
+     * Partially sort the given range so that the k'th position holds the
+     * point that would be there if the range were sorted, with nothing
+     * greater before it and nothing less after it
+     * @param left
+     *          the start of the range (inclusive)
+     * @param right
+     *          the end of the range (inclusive)
+     * @param k
+     *          the position to select
+     * @param values
+     *          the coordinates that we're ordering by
+     */
+    private void select(int left, int right, int k, double[] values)
+    {
+        int[] order = this.order;
+        while(right > left)
+        {
+            // median of three pivot
+            int middle = (left + right) >>> 1;
+            if(values[order[middle]] < values[order[left]]) swap(order, left, middle);
+            if(values[order[right]] < values[order[left]]) swap(order, left, right);
+            if(values[order[right]] < values[order[middle]]) swap(order, middle, right);
+            double pivot = values[order[middle]];
+            
+            int i = left;
+            int j = right;
+            while(i <= j)
+            {
+                while(values[order[i]] < pivot) i++;
+                while(values[order[j]] > pivot) j--;
+                if(i <= j)
+                {
+                    swap(order, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            
+            if(k <= j)
+            {
+                right = j;
+            }
+            else if(k >= i)
+            {
+                left = i;
+            }
+            else
+            {
+                return;
+            }
+        }
+    }
+    
+    private static void swap(int[] array, int i, int j)
+    {
+        int temp = array[i];
+        array[i] = array[j];
+        array[j] = temp;
+    }
+    
+    /**
+     * Get the index of the point nearest to x, y
+     * @param x
+     *          the reference X point
+     * @param y
+     *          the reference Y point
+     * @return
+     *          the index of the nearest point or -1 if there is no such
+     *          point
+     */
+    public int getNearestIndex(double x, double y)
+    {
+        NearestSearch search = new NearestSearch(x, y);
+        if(!Double.isNaN(x) && !Double.isNaN(y))
+        {
+            this.searchNearest(0, this.order.length, 0, search);
+        }
+        
+        return search.nearestIndex;
+    }
+    
+    private void searchNearest(int start, int end, int depth, NearestSearch search)
+    {
+        if(end - start <= LEAF_SIZE)
+        {
+            for(int i = start; i < end; i++)
+            {
+                search.offer(this.order[i]);
+            }
+        }
+        else
+        {
+            int middle = (start + end) >>> 1;
+            int splitIndex = this.order[middle];
+            search.offer(splitIndex);
+            
+            double[] values = this.axisData(depth);
+            double diff =
+                ((depth & 1) == 0 ? search.x : search.y) - values[splitIndex];
+            
+            // search the side that the point is on first so that we can
+            // usually skip the other side
+            if(diff < 0.0)
+            {
+                this.searchNearest(start, middle, depth + 1, search);
+                if(diff * diff <= search.nearestDistSq)
+                {
+                    this.searchNearest(middle + 1, end, depth + 1, search);
+                }
+            }
+            else
+            {
+                this.searchNearest(middle + 1, end, depth + 1, search);
+                if(diff * diff <= search.nearestDistSq)
+                {
+                    this.searchNearest(start, middle, depth + 1, search);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the indices of all of the points that fall in the given area
+     * @param area
+     *          the area
+     * @return
+     *          the indices in ascending order
+     */
+    public int[] getIndicesInArea(Rectangle2D area)
+    {
+        AreaSearch search = new AreaSearch(area);
+        this.searchArea(0, this.order.length, 0, search);
+        
+        int[] indices = resize(search.indices, search.count);
+        Arrays.sort(indices);
+        return indices;
+    }
+    
+    private void searchArea(int start, int end, int depth, AreaSearch search)
+    {
+        if(end - start <= LEAF_SIZE)
+        {
+            for(int i = start; i < end; i++)
+            {
+                search.offer(this.order[i]);
+            }
+        }
+        else
+        {
+            int middle = (start + end) >>> 1;
+            int splitIndex = this.order[middle];
+            search.offer(splitIndex);
+            
+            double splitValue = this.axisData(depth)[splitIndex];
+            Rectangle2D area = search.area;
+            boolean xAxis = (depth & 1) == 0;
+            double areaMin = xAxis ? area.getMinX() : area.getMinY();
+            double areaMax = xAxis ? area.getMaxX() : area.getMaxY();
+            
+            // nothing before the middle is greater than the split value and
+            // nothing after it is less
+            if(areaMin <= splitValue)
+            {
+                this.searchArea(start, middle, depth + 1, search);
+            }
+            if(areaMax >= splitValue)
+            {
+                this.searchArea(middle + 1, end, depth + 1, search);
+            }
+        }
+    }
+    
+    /**
+     * The state of a nearest point search
+     */
+    private final class NearestSearch
+    {
+        private final double x;
+        
+        private final double y;
+        
+        private int nearestIndex = -1;
+        
+        private double nearestDistSq = Double.POSITIVE_INFINITY;
+        
+        public NearestSearch(double x, double y)
+        {
+            this.x = x;
+            this.y = y;
+        }
+        
+        public void offer(int index)
+        {
+            double xDiff = XYPointIndex.this.xData[index] - this.x;
+            double yDiff = XYPointIndex.this.yData[index] - this.y;
+            double distSq = xDiff * xDiff + yDiff * yDiff;
+            
+            // ties go to the lower index like a linear scan would
+            if(distSq < this.nearestDistSq ||
+               (distSq == this.nearestDistSq && index < this.nearestIndex))
+            {
+                this.nearestDistSq = distSq;
+                this.nearestIndex = index;
+            }
+        }
+    }
+    
+    /**
+     * The state of an area search
+     */
+    private final class AreaSearch
+    {
+        private final Rectangle2D area;
+        
+        private int[] indices = new int[16];
+        
+        private int count = 0;
+        
+        public AreaSearch(Rectangle2D area)
+        {
+            this.area = area;
+        }
+        
+        public void offer(int index)
+        {
+            if(this.area.contains(
+                    XYPointIndex.this.xData[index],
+                    XYPointIndex.this.yData[index]))
+            {
+                if(this.count == this.indices.length)
+                {
+                    this.indices = resize(this.indices, this.count * 2);
+                }
+                this.indices[this.count] = index;
+                this.count++;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.plot;
+
+import java.awt.geom.Rectangle2D;
+
+/**
+ * The XY points of a scatter plot along with the index of the probe
+ * that each point belongs to. A spatial index over the points is built
+ * the first time that it's needed so that nearest point and area queries
+ * don't have to scan every point. The data should not be modified after
+ * it's passed in: create a new instance when the data changes.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class XYProbeData
+{
+    private final double[] xData;
+    
+    private final double[] yData;
+    
+    private final int[] probeIndices;
+    
+    private volatile XYPointIndex pointIndex = null;
+    
+    /**
+     * Constructor
+     * @param xData the x axis data
+     * @param yData the y axis data
+     * @param probeIndices  the indices for the corresponding probes
+     */
+    public XYProbeData(double[] xData, double[] yData, int[] probeIndices)
+    {
+        assert xData.length == yData.length;
+        assert yData.length == probeIndices.length;
+        
+        this.xData = xData;
+        this.yData = yData;
+        this.probeIndices = probeIndices;
+    }
+    
+    /**
+     * Getter for the probe indices
+     * @return the probeIndices
+     */
+    public int[] getProbeIndices()
+    {
+        return this.probeIndices;
+    }
+    
+    /**
+     * Getter for the X data
+     * @return the xData
+     */
+    public double[] getXData()
+    {
+        return this.xData;
+    }
+    
+    /**
+     * Getter for the Y data
+     * @return the yData
+     */
+    public double[] getYData()
+    {
+        return this.yData;
+    }
+    
+    /**
+     * Get the index of the data point nearest to graphX, graphY.
+     * @param graphX
+     *          the reference X point
+     * @param graphY
+     *          the reference Y point
+     * @return
+     *          the index of the nearest point or -1 if there is no such point
+     */
+    public int getNearestDataIndex(double graphX, double graphY)
+    {
+        return this.getPointIndex().getNearestIndex(graphX, graphY);
+    }
+    
+    /**
+     * Get the indices of the data points that fall in the given area
+     * @param area
+     *          the area (using chart coordinates)
+     * @return
+     *          the data point indices in ascending order. Use
+     *          {@link #getProbeIndices()} to get from these to probe indices
+     */
+    public int[] getDataIndicesInArea(Rectangle2D area)
+    {
+        return this.getPointIndex().getIndicesInArea(area);
+    }
+    
+    private XYPointIndex getPointIndex()
+    {
+        XYPointIndex pointIndex = this.pointIndex;
+        if(pointIndex == null)
+        {
+            synchronized(this)
+            {
+                pointIndex = this.pointIndex;
+                if(pointIndex == null)
+                {
+                    pointIndex = new XYPointIndex(this.xData, this.yData);
+                    this.pointIndex = pointIndex;
+                }
+            }
+        }
+        
+        return pointIndex;
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.project;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jax.r.RUtilities;
+import org.jax.r.jriutilities.RInterface;
+import org.jax.r.jriutilities.RObject;
+import org.jax.r.jriutilities.SilentRCommand;
+import org.rosuda.JRI.REXP;
+
+/**
+ * Keeps track of the top-level R objects of a lazily loaded project that
+ * haven't been read into R yet. Each of these objects is bound in the
+ * global environment with an active binding that loads the object from
+ * its own R data file the first time that anything reads it. Assigning
+ * a new value to the object also counts as loading it.
+ * <p>
+ * Until an object is loaded, its class comes from the project index
+ * rather than from R, which lets us find the experiments, fits and
+ * tests in a project without loading them.
+ * </p>
+ * <p>
+ * Objects are loaded by R without telling us, so we keep our own copy of
+ * the pending object names which {@link #updatePendingObjects(RInterface)}
+ * brings up to date. That way {@link #isPending(RObject)} never has to
+ * ask R, which matters since it's used while painting.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public final class LazyRObjectRegistry
+{
+    /**
+     * the name of the hidden R environment that maps the names of objects
+     * that haven't been loaded yet to their class. The leading "." keeps
+     * it out of ls()
+     */
+    static final String PENDING_OBJECTS_ENV_NAME = ".jmaanovaPendingObjects";
+    
+    /**
+     * R expression for the pending objects environment which is empty if
+     * nothing is pending
+     */
+    private static final String PENDING_OBJECTS_EXPRESSION =
+        "(if(exists(\"" + PENDING_OBJECTS_ENV_NAME + "\", envir=globalenv(), inherits=FALSE)) " +
+        "get(\"" + PENDING_OBJECTS_ENV_NAME + "\", envir=globalenv()) else emptyenv())";
+    
+    /**
+     * R function that takes an object name, its class and the file that
+     * it was saved to and sets up the active binding for it. What the
+     * binding reads in is what's in the project file so it's also
+     * remembered as the object's saved version (see
+     * {@link MaanovaProjectManager#SAVED_OBJECTS_ENV_NAME})
+     */
+    private static final String REGISTER_FUNCTION_EXPRESSION =
+        "function(objectName, objectClass, fileName) {" +
+        "force(objectName); force(fileName); " +
+        "value <- NULL; loaded <- FALSE; " +
+        "assign(objectName, objectClass, envir=pending); " +
+        "makeActiveBinding(objectName, function(newValue) {" +
+        "if(!missing(newValue)) {" +
+        "value <<- newValue; loaded <<- TRUE" +
+        "} else if(!loaded) {" +
+        "loadEnv <- new.env(); " +
+        "load(fileName, envir=loadEnv); " +
+        "value <<- get(objectName, envir=loadEnv); " +
+        "loaded <<- TRUE; " +
+        "if(exists(\"" + MaanovaProjectManager.SAVED_OBJECTS_ENV_NAME +
+        "\", envir=globalenv(), inherits=FALSE)) " +
+        "assign(objectName, value, envir=get(\"" +
+        MaanovaProjectManager.SAVED_OBJECTS_ENV_NAME + "\", envir=globalenv()))" +
+        "}; " +
+        "if(exists(objectName, envir=pending, inherits=FALSE)) " +
+        "rm(list=objectName, envir=pending); " +
+        "invisible(value)" +
+        "}, globalenv())" +
+        "}";
+    
+    /**
+     * the names of the objects that were pending the last time we looked.
+     * Guarded by itself
+     */
+    private static final Set<String> pendingObjectNames = new HashSet<String>();
+    
+    private static final ConcurrentLinkedQueue<LazyRObjectRegistryListener> listeners =
+        new ConcurrentLinkedQueue<LazyRObjectRegistryListener>();
+    
+    /**
+     * private constructor. this is a static utility class
+     */
+    private LazyRObjectRegistry()
+    {
+    }
+    
+    /**
+     * Get all of the top-level R objects with the given class. Unlike
+     * {@link org.jax.r.jriutilities.JRIUtilityFunctions#getTopLevelObjectsOfType(RInterface, String)}
+     * this doesn't load any pending objects.
+     * @param rInterface
+     *          the R interface to look in
+     * @param rClass
+     *          the R class we're looking for
+     * @return
+     *          the matching objects
+     */
+    public static List<RObject> getTopLevelObjectsOfType(
+            RInterface rInterface,
+            String rClass)
+    {
+        String rClassString = RUtilities.javaStringToRString(rClass);
+        String objectsOfTypeCommand =
+            "local({" +
+            "pending <- " + PENDING_OBJECTS_EXPRESSION + "; " +
+            "objectNames <- ls(envir=globalenv()); " +
+            "as.character(objectNames[as.logical(sapply(objectNames, function(objectName) {" +
+            "if(exists(objectName, envir=pending, inherits=FALSE)) " +
+            rClassString + " %in% get(objectName, envir=pending) " +
+            "else inherits(get(objectName, envir=globalenv()), " + rClassString + ")" +
+            "}))])" +
+            "})";
+        REXP objectNamesExpr = rInterface.evaluateCommand(
+                new SilentRCommand(objectsOfTypeCommand));
+        String[] objectNames =
+            objectNamesExpr == null ? null : objectNamesExpr.asStringArray();
+        
+        List<RObject> objects = new ArrayList<RObject>();
+        if(objectNames != null)
+        {
+            for(String objectName: objectNames)
+            {
+                objects.add(new RObject(rInterface, objectName));
+            }
+        }
+        
+        return objects;
+    }
+    
+    /**
+     * Determine if the given object was still waiting to be loaded the
+     * last time that the pending objects were updated. This doesn't
+     * evaluate anything in R
+     * @param rObject
+     *          the object
+     * @return
+     *          true if the object hasn't been read into R yet
+     */
+    public static boolean isPending(RObject rObject)
+    {
+        synchronized(pendingObjectNames)
+        {
+            return pendingObjectNames.contains(
+                    rObject.getAccessorExpressionString());
+        }
+    }
+    
+    /**
+     * Check with R which of the pending objects have been loaded since
+     * we last looked and tell the listeners about them. This is cheap
+     * when nothing is pending
+     * @param rInterface
+     *          the R interface
+     */
+    public static void updatePendingObjects(RInterface rInterface)
+    {
+        List<String> loadedObjectNames = new ArrayList<String>();
+        synchronized(pendingObjectNames)
+        {
+            if(pendingObjectNames.isEmpty())
+            {
+                return;
+            }
+            
+            String[] namesAndClasses = getPendingObjectNamesAndClasses(rInterface);
+            Set<String> stillPendingNames = new HashSet<String>();
+            for(int i = 0; i + 1 < namesAndClasses.length; i += 2)
+            {
+                stillPendingNames.add(namesAndClasses[i]);
+            }
+            
+            Iterator<String> pendingIter = pendingObjectNames.iterator();
+            while(pendingIter.hasNext())
+            {
+                String objectName = pendingIter.next();
+                if(!stillPendingNames.contains(objectName))
+                {
+                    loadedObjectNames.add(objectName);
+                    pendingIter.remove();
+                }
+            }
+        }
+        
+        if(!loadedObjectNames.isEmpty())
+        {
+            Iterator<LazyRObjectRegistryListener> listenerIter = listeners.iterator();
+            while(listenerIter.hasNext())
+            {
+                listenerIter.next().pendingObjectsLoaded(loadedObjectNames);
+            }
+        }
+    }
+    
+    /**
+     * Add a listener that is told when pending objects are loaded
+     * @param listener
+     *          the listener to add
+     */
+    public static void addLazyRObjectRegistryListener(
+            LazyRObjectRegistryListener listener)
+    {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Remove the given listener
+     * @param listener
+     *          the listener to remove
+     */
+    public static void removeLazyRObjectRegistryListener(
+            LazyRObjectRegistryListener listener)
+    {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Get the names and classes of all pending objects
+     * @param rInterface
+     *          the R interface
+     * @return
+     *          alternating object names and space separated class names
+     */
+    static String[] getPendingObjectNamesAndClasses(RInterface rInterface)
+    {
+        REXP pendingExpr = rInterface.evaluateCommand(new SilentRCommand(
+                "local({" +
+                "pending <- " + PENDING_OBJECTS_EXPRESSION + "; " +
+                "as.character(unlist(lapply(ls(envir=pending), function(objectName) " +
+                "c(objectName, paste(get(objectName, envir=pending), collapse=\" \")))))" +
+                "})"));
+        String[] namesAndClasses =
+            pendingExpr == null ? null : pendingExpr.asStringArray();
+        return namesAndClasses == null ? new String[0] : namesAndClasses;
+    }
+    
+    /**
+     * Bind the given objects in the global environment so that they're
+     * loaded the first time they're used. This replaces any objects that
+     * are pending from before
+     * @param rInterface
+     *          the R interface
+     * @param objectNames
+     *          the names of the objects
+     * @param objectClasses
+     *          the class vector of each object
+     * @param rDataFiles
+     *          the file that each object was saved to on its own
+     */
+    static void registerPendingObjects(
+            RInterface rInterface,
+            List<String> objectNames,
+            List<String[]> objectClasses,
+            List<File> rDataFiles)
+    {
+        StringBuilder registerCommand = new StringBuilder(
+                "local({" +
+                "pending <- new.env(); " +
+                "assign(\"" + PENDING_OBJECTS_ENV_NAME + "\", pending, envir=globalenv()); " +
+                "register <- " + REGISTER_FUNCTION_EXPRESSION + "; ");
+        for(int i = 0; i < objectNames.size(); i++)
+        {
+            registerCommand.append("register(");
+            registerCommand.append(RUtilities.javaStringToRString(objectNames.get(i)));
+            registerCommand.append(", c(");
+            String[] currClasses = objectClasses.get(i);
+            for(int j = 0; j < currClasses.length; j++)
+            {
+                if(j > 0)
+                {
+                    registerCommand.append(", ");
+                }
+                registerCommand.append(RUtilities.javaStringToRString(currClasses[j]));
+            }
+            registerCommand.append("), ");
+            registerCommand.append(RUtilities.javaStringToRString(
+                    rDataFiles.get(i).getAbsolutePath()));
+            registerCommand.append("); ");
+        }
+        registerCommand.append("invisible(NULL)})");
+        
+        synchronized(pendingObjectNames)
+        {
+            rInterface.evaluateCommandNoReturn(new SilentRCommand(
+                    registerCommand.toString()));
+            pendingObjectNames.clear();
+            pendingObjectNames.addAll(objectNames);
+        }
+    }
+    
+    /**
+     * Forget about any pending objects. This doesn't remove their
+     * bindings from the global environment
+     * @param rInterface
+     *          the R interface
+     */
+    static void clearPendingObjects(RInterface rInterface)
+    {
+        synchronized(pendingObjectNames)
+        {
+            rInterface.evaluateCommandNoReturn(new SilentRCommand(
+                    "if(exists(\"" + PENDING_OBJECTS_ENV_NAME + "\", envir=globalenv(), inherits=FALSE)) " +
+                    "rm(list=\"" + PENDING_OBJECTS_ENV_NAME + "\", envir=globalenv())"));
+            pendingObjectNames.clear();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.project;
+
+import java.util.EventListener;
+import java.util.List;
+
+/**
+ * Interface that should be implemented by classes that want to know when
+ * the pending objects of a lazily loaded project get read into R (see
+ * {@link LazyRObjectRegistry}). Listener functions can be called from any
+ * thread.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public interface LazyRObjectRegistryListener extends EventListener
+{
+    /**
+     * Called when pending objects are found to have been loaded
+     * @param objectNames
+     *          the names of the objects that were loaded
+     */
+    public void pendingObjectsLoaded(List<String> objectNames);
+}
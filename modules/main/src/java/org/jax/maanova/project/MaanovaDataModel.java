@@ -108,6 +108,14 @@ public class MaanovaDataModel
                         matchingMircroarray);
                 addedMicroarrays.add(matchingMircroarray);
             }
+            else
+            {
+                // the R objects could have been replaced since we last
+                // looked so we can't trust the IDs or test values that
+                // we already have
+                matchingMircroarray.clearProbesetDictionary();
+                matchingMircroarray.clearTestResultCaches();
+            }
         }
         
         // remove any missing microarrays
@@ -133,6 +141,7 @@ public class MaanovaDataModel
                 {
                     removedMicroarrays.add(currMicroarray);
                     microarrayEntryIter.remove();
+                    currMicroarray.clearTestResultCaches();
                 }
             }
         }
@@ -17,14 +17,25 @@
 
 package org.jax.maanova.project;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
 import javax.swing.filechooser.FileFilter;
 import javax.xml.bind.JAXBContext;
@@ -41,6 +52,7 @@ import org.jax.r.jriutilities.SilentRCommand;
 import org.jax.util.ConfigurationUtilities;
 import org.jax.util.io.FileChooserExtensionFilter;
 import org.jax.util.io.FileUtilities;
+import org.rosuda.JRI.REXP;
 import org.jax.util.project.ProjectManager;
 
 /**
@@ -74,11 +86,91 @@ public class MaanovaProjectManager extends ProjectManager
         "project-metadata-1.0.0.xml";
     
     /**
-     * the file name that is used for R data
+     * the file name that was used for R data before each R object got its
+     * own entry. We still load projects saved this way
      */
     private static final String PROJECT_R_DATA_FILENAME =
         "maanova-data.RData";
     
+    /**
+     * the file name of the index that maps every R object in the project
+     * to the version of the object that was saved. A new version is made
+     * up every time that an object is written
+     */
+    private static final String R_OBJECT_INDEX_FILENAME =
+        "r-object-index.properties";
+    
+    /**
+     * the file name of the index that maps every R object in the project
+     * to its class. Lazy loading needs this to find experiments, fits
+     * and tests without reading them into R
+     */
+    private static final String R_OBJECT_CLASS_INDEX_FILENAME =
+        "r-object-classes.properties";
+    
+    /**
+     * each R object is saved to an entry under this directory
+     */
+    private static final String R_OBJECT_ENTRY_PREFIX = "r-objects/";
+    
+    private static final String R_OBJECT_ENTRY_SUFFIX = ".RData";
+    
+    /**
+     * the name of the hidden R environment that holds every R object as it
+     * was when it was last saved to (or loaded from) the project file.
+     * R copies an object when it is modified, so an object that is still
+     * identical to its saved version hasn't changed. When nothing changed
+     * the two are the same object in memory and checking is a quick
+     * pointer comparison rather than a walk through all of the data. The
+     * catch is that the old version of a modified object is held on to
+     * until the next save
+     */
+    static final String SAVED_OBJECTS_ENV_NAME = ".jmaanovaSavedObjects";
+    
+    /**
+     * the name of the hidden R environment that objects are put in while
+     * they're being saved. They're only moved to the
+     * {@link #SAVED_OBJECTS_ENV_NAME saved objects} once the save succeeds
+     */
+    private static final String STAGED_OBJECTS_ENV_NAME = ".jmaanovaStagedObjects";
+    
+    private static final String PENDING_STATE = "pending";
+    
+    private static final String UNCHANGED_STATE = "unchanged";
+    
+    private static final String CHANGED_STATE = "changed";
+    
+    /**
+     * An R expression that evaluates to the name, class and state of
+     * everything in the global environment. The state is
+     * {@value #PENDING_STATE} for objects that haven't been lazily loaded
+     * yet (which are left as they are), {@value #UNCHANGED_STATE} for
+     * objects that are identical to their saved version and
+     * {@value #CHANGED_STATE} for everything else
+     */
+    private static final String R_OBJECT_STATES_EXPRESSION =
+        "local({" +
+        "pending <- if(exists(\"" + LazyRObjectRegistry.PENDING_OBJECTS_ENV_NAME +
+        "\", envir=globalenv(), inherits=FALSE)) get(\"" +
+        LazyRObjectRegistry.PENDING_OBJECTS_ENV_NAME + "\", envir=globalenv()) else emptyenv(); " +
+        "saved <- if(exists(\"" + SAVED_OBJECTS_ENV_NAME +
+        "\", envir=globalenv(), inherits=FALSE)) get(\"" +
+        SAVED_OBJECTS_ENV_NAME + "\", envir=globalenv()) else emptyenv(); " +
+        "objectNames <- ls(envir=globalenv()); " +
+        "as.character(unlist(lapply(objectNames, function(objectName) {" +
+        "if(exists(objectName, envir=pending, inherits=FALSE)) " +
+        "c(objectName, paste(get(objectName, envir=pending), collapse=\" \"), \"" +
+        PENDING_STATE + "\") " +
+        "else {" +
+        "x <- get(objectName, envir=globalenv()); " +
+        "unchanged <- exists(objectName, envir=saved, inherits=FALSE) && " +
+        "identical(get(objectName, envir=saved), x); " +
+        "c(objectName, paste(class(x), collapse=\" \"), " +
+        "if(unchanged) \"" + UNCHANGED_STATE + "\" else \"" + CHANGED_STATE + "\")" +
+        "}" +
+        "})))" +
+        "})";
+    
     /**
      * the temporary directory name that we use for short-term storage of
      * project data (in the long term, project data is stored in a
@@ -87,6 +179,25 @@ public class MaanovaProjectManager extends ProjectManager
     private static final String TEMP_PROJECT_DIR_NAME =
         "temp-proj";
     
+    /**
+     * the directory that holds the R data files of a lazily loaded project
+     * for as long as the project is open
+     */
+    private static final String LAZY_PROJECT_DIR_NAME =
+        "lazy-proj";
+    
+    private volatile boolean lazyLoadingEnabled = true;
+    
+    /**
+     * the versions of the objects in the
+     * {@link #SAVED_OBJECTS_ENV_NAME saved objects} environment (along with
+     * any objects that are still waiting to be lazily loaded) as they are
+     * in the active project file
+     */
+    private final Properties savedObjectVersions = new Properties();
+    
+    private volatile File lazyObjectDir = null;
+    
     /**
      * the jaxb context for marshalling and unmarshalling
      */
@@ -126,6 +237,8 @@ public class MaanovaProjectManager extends ProjectManager
         // clear the current r data
         this.rInterface.evaluateCommand(new SilentRCommand(
                 new CleanEnvironmentCommand()));
+        this.forgetLazyObjects();
+        this.forgetSavedObjects();
         
         this.setActiveProjectFile(null);
         this.setActiveProjectModified(false);
@@ -135,6 +248,31 @@ public class MaanovaProjectManager extends ProjectManager
         return newProject;
     }
     
+    /**
+     * Determines whether projects are loaded lazily. When they are, opening
+     * a project only reads its metadata and object index, and each R object
+     * is read into R the first time that anything uses it. Projects saved
+     * before objects were indexed are always loaded up front
+     * @return
+     *          true if projects are loaded lazily
+     */
+    public boolean isLazyLoadingEnabled()
+    {
+        return this.lazyLoadingEnabled;
+    }
+    
+    /**
+     * Setter for whether or not projects are loaded lazily. This takes
+     * effect the next time a project is loaded
+     * @param lazyLoadingEnabled
+     *          true if projects should be loaded lazily
+     * @see #isLazyLoadingEnabled()
+     */
+    public void setLazyLoadingEnabled(boolean lazyLoadingEnabled)
+    {
+        this.lazyLoadingEnabled = lazyLoadingEnabled;
+    }
+    
     /**
      * Getter for the instance.
      * @return the instance
@@ -159,6 +297,7 @@ public class MaanovaProjectManager extends ProjectManager
     @Override
     public void refreshProjectDataStructures()
     {
+        LazyRObjectRegistry.updatePendingObjects(this.rInterface);
         this.getActiveProject().getDataModel().updateAll();
     }
     
@@ -173,6 +312,11 @@ public class MaanovaProjectManager extends ProjectManager
     
     /**
      * {@inheritDoc}
+     * <p>
+     * Every R object is saved to its own archive entry. If the project
+     * file already exists it is updated in place and only the R objects
+     * that changed since they were last saved to it are written.
+     * </p>
      */
     @Override
     public boolean saveActiveProject(File projectFile)
@@ -188,34 +332,134 @@ public class MaanovaProjectManager extends ProjectManager
             {
                 try
                 {
-                    // create temp r data file
-                    File rDataFile = new File(tempProjDir, PROJECT_R_DATA_FILENAME);
-                    String saveDataCommandString =
-                        "save(list = ls(), file = " +
-                        RUtilities.javaStringToRString(rDataFile.getAbsolutePath()) +
-                        ")";
-                    this.rInterface.evaluateCommand(
-                            new SilentRCommand(saveDataCommandString));
-                    
-                    // create temp metadata file
-                    FileOutputStream configFileOut = new FileOutputStream(
-                            new File(tempProjDir, PROJECT_METADATA_FILENAME_1_0_0));
-                    Marshaller marshaller = this.jaxbContext.createMarshaller();
-                    marshaller.setProperty(
-                            Marshaller.JAXB_FORMATTED_OUTPUT,
-                            Boolean.TRUE);
-                    marshaller.marshal(
-                            this.getActiveProject().getMetadata(),
-                            configFileOut);
-                    configFileOut.close();
+                    Properties savedIndex = this.readRObjectIndex(projectFile);
+                    Properties classIndex = new Properties();
+                    Map<String, String> objectStates = this.getRObjectStates(classIndex);
                     
-                    // zip up the directory and save it to the file
-                    ZipOutputStream zipOut = new ZipOutputStream(
-                            new FileOutputStream(projectFile));
-                    FileUtilities.compressDirectoryToZip(
-                            tempProjDir,
-                            zipOut);
-                    zipOut.close();
+                    this.rInterface.evaluateCommand(new SilentRCommand(
+                            "assign(\"" + STAGED_OBJECTS_ENV_NAME +
+                            "\", new.env(), envir=globalenv())"));
+                    ProjectArchive archive = new ProjectArchive(projectFile);
+                    boolean archiveClosed = false;
+                    Properties index = new Properties();
+                    try
+                    {
+                        List<String> liveEntryNames = new ArrayList<String>();
+                        liveEntryNames.add(R_OBJECT_INDEX_FILENAME);
+                        liveEntryNames.add(R_OBJECT_CLASS_INDEX_FILENAME);
+                        liveEntryNames.add(PROJECT_METADATA_FILENAME_1_0_0);
+                        
+                        // only write the objects that changed
+                        int savedObjectCount = 0;
+                        for(Map.Entry<String, String> stateEntry: objectStates.entrySet())
+                        {
+                            String objectName = stateEntry.getKey();
+                            String state = stateEntry.getValue();
+                            String entryName = getRObjectEntryName(objectName);
+                            liveEntryNames.add(entryName);
+                            
+                            String savedVersion =
+                                this.savedObjectVersions.getProperty(objectName);
+                            boolean savedVersionInArchive =
+                                savedVersion != null &&
+                                savedVersion.equals(savedIndex.getProperty(objectName)) &&
+                                archive.containsEntry(entryName);
+                            
+                            if(savedVersionInArchive &&
+                               (state.equals(UNCHANGED_STATE) || state.equals(PENDING_STATE)))
+                            {
+                                // nothing changed
+                                index.setProperty(objectName, savedVersion);
+                            }
+                            else if(state.equals(PENDING_STATE) && savedVersion != null)
+                            {
+                                // this object was never loaded so we copy
+                                // it straight from the file it came from
+                                archive.putEntry(
+                                        entryName,
+                                        this.getLazyObjectFile(entryName));
+                                index.setProperty(objectName, savedVersion);
+                                savedObjectCount++;
+                            }
+                            else
+                            {
+                                // we save the staged copy so that what we
+                                // remember as saved is exactly what was written
+                                File rDataFile = new File(
+                                        tempProjDir,
+                                        entryName.substring(R_OBJECT_ENTRY_PREFIX.length()));
+                                String objectNameString =
+                                    RUtilities.javaStringToRString(objectName);
+                                String saveDataCommandString =
+                                    "local({" +
+                                    "staged <- get(\"" + STAGED_OBJECTS_ENV_NAME +
+                                    "\", envir=globalenv()); " +
+                                    "assign(" + objectNameString + ", get(" +
+                                    objectNameString + ", envir=globalenv()), " +
+                                    "envir=staged); " +
+                                    "save(list = " + objectNameString +
+                                    ", envir = staged, file = " +
+                                    RUtilities.javaStringToRString(rDataFile.getAbsolutePath()) +
+                                    ")})";
+                                this.rInterface.evaluateCommand(
+                                        new SilentRCommand(saveDataCommandString));
+                                archive.putEntry(entryName, rDataFile);
+                                rDataFile.delete();
+                                index.setProperty(
+                                        objectName,
+                                        UUID.randomUUID().toString());
+                                savedObjectCount++;
+                            }
+                        }
+                        
+                        // drop deleted objects along with anything left
+                        // over from an older project format
+                        for(String entryName: new ArrayList<String>(archive.getEntryNames()))
+                        {
+                            if(!liveEntryNames.contains(entryName))
+                            {
+                                archive.removeEntry(entryName);
+                            }
+                        }
+                        
+                        ByteArrayOutputStream indexOut = new ByteArrayOutputStream();
+                        index.store(indexOut, "J/maanova R object versions");
+                        archive.putEntry(
+                                R_OBJECT_INDEX_FILENAME,
+                                indexOut.toByteArray());
+                        
+                        ByteArrayOutputStream classIndexOut = new ByteArrayOutputStream();
+                        classIndex.store(classIndexOut, "J/maanova R object classes");
+                        archive.putEntry(
+                                R_OBJECT_CLASS_INDEX_FILENAME,
+                                classIndexOut.toByteArray());
+                        
+                        ByteArrayOutputStream metadataOut = new ByteArrayOutputStream();
+                        this.writeMetadata(metadataOut);
+                        archive.putEntry(
+                                PROJECT_METADATA_FILENAME_1_0_0,
+                                metadataOut.toByteArray());
+                        
+                        archive.close();
+                        archiveClosed = true;
+                        
+                        if(LOG.isLoggable(Level.FINE))
+                        {
+                            LOG.fine("saved " + savedObjectCount + " of " +
+                                     objectStates.size() + " R objects to " +
+                                     projectFile.getAbsolutePath());
+                        }
+                    }
+                    finally
+                    {
+                        // a failed save must not leave a directory behind
+                        // that's missing objects
+                        if(!archiveClosed)
+                        {
+                            archive.abort();
+                        }
+                        this.updateSavedObjects(archiveClosed, index);
+                    }
                     
                     // update and notify
                     this.setActiveProjectFile(projectFile);
@@ -239,19 +483,406 @@ public class MaanovaProjectManager extends ProjectManager
         }
     }
     
+    /**
+     * Write the active project's metadata to the given stream
+     * @param out
+     *          the stream to write to (this isn't closed)
+     * @throws JAXBException
+     *          if marshaling fails
+     */
+    private void writeMetadata(OutputStream out) throws JAXBException
+    {
+        Marshaller marshaller = this.jaxbContext.createMarshaller();
+        marshaller.setProperty(
+                Marshaller.JAXB_FORMATTED_OUTPUT,
+                Boolean.TRUE);
+        marshaller.marshal(
+                this.getActiveProject().getMetadata(),
+                out);
+    }
+    
+    /**
+     * Get the states of all of the R objects in the global environment
+     * (see {@link #R_OBJECT_STATES_EXPRESSION})
+     * @param classIndex
+     *          the properties that each object's space separated class
+     *          names are put into
+     * @return
+     *          a map from object name to state
+     */
+    private Map<String, String> getRObjectStates(Properties classIndex)
+    {
+        REXP statesExpr = this.rInterface.evaluateCommand(new SilentRCommand(
+                R_OBJECT_STATES_EXPRESSION));
+        String[] namesClassesAndStates =
+            statesExpr == null ? null : statesExpr.asStringArray();
+        
+        Map<String, String> states = new LinkedHashMap<String, String>();
+        if(namesClassesAndStates != null)
+        {
+            for(int i = 0; i + 2 < namesClassesAndStates.length; i += 3)
+            {
+                String objectName = namesClassesAndStates[i];
+                classIndex.setProperty(objectName, namesClassesAndStates[i + 1]);
+                states.put(objectName, namesClassesAndStates[i + 2]);
+            }
+        }
+        
+        return states;
+    }
+    
+    /**
+     * Finish off a save. If it worked the staged objects become the saved
+     * objects and the versions are updated to match the new index.
+     * Either way the staged objects are dropped
+     * @param saved
+     *          true if the save worked
+     * @param index
+     *          the object index that was saved
+     */
+    private void updateSavedObjects(boolean saved, Properties index)
+    {
+        StringBuilder command = new StringBuilder("local({");
+        if(saved)
+        {
+            this.savedObjectVersions.clear();
+            this.savedObjectVersions.putAll(index);
+            
+            // forget about deleted objects so that we don't hold on to them
+            command.append(
+                    "saved <- if(exists(\"" + SAVED_OBJECTS_ENV_NAME +
+                    "\", envir=globalenv(), inherits=FALSE)) get(\"" +
+                    SAVED_OBJECTS_ENV_NAME + "\", envir=globalenv()) else new.env(); " +
+                    "staged <- get(\"" + STAGED_OBJECTS_ENV_NAME + "\", envir=globalenv()); " +
+                    "rm(list=setdiff(ls(saved, all.names=TRUE), ls(globalenv())), envir=saved); " +
+                    "for(objectName in ls(staged, all.names=TRUE)) " +
+                    "assign(objectName, get(objectName, envir=staged), envir=saved); " +
+                    "assign(\"" + SAVED_OBJECTS_ENV_NAME + "\", saved, envir=globalenv()); ");
+        }
+        command.append(
+                "if(exists(\"" + STAGED_OBJECTS_ENV_NAME + "\", envir=globalenv(), inherits=FALSE)) " +
+                "rm(list=\"" + STAGED_OBJECTS_ENV_NAME + "\", envir=globalenv())" +
+                "})");
+        this.rInterface.evaluateCommand(new SilentRCommand(command.toString()));
+    }
+    
+    /**
+     * Remember all of the objects that were just read from the project
+     * file as saved. Objects that are waiting to be lazily loaded are left
+     * alone (they're remembered when they're loaded)
+     * @param index
+     *          the object index that was read from the project file
+     * @param loadedObjectNames
+     *          the names of the objects that were read into R
+     */
+    private void rememberLoadedObjects(Properties index, List<String> loadedObjectNames)
+    {
+        this.savedObjectVersions.clear();
+        this.savedObjectVersions.putAll(index);
+        this.rInterface.evaluateCommand(new SilentRCommand(
+                "local({" +
+                "saved <- new.env(); " +
+                "for(objectName in " +
+                RUtilities.stringArrayToRVector(loadedObjectNames.toArray(
+                        new String[loadedObjectNames.size()])) + ") " +
+                "assign(objectName, get(objectName, envir=globalenv()), envir=saved); " +
+                "assign(\"" + SAVED_OBJECTS_ENV_NAME + "\", saved, envir=globalenv())" +
+                "})"));
+    }
+    
+    /**
+     * Forget everything that we know about saved objects
+     */
+    private void forgetSavedObjects()
+    {
+        this.savedObjectVersions.clear();
+        this.rInterface.evaluateCommand(new SilentRCommand(
+                "rm(list=intersect(c(\"" + SAVED_OBJECTS_ENV_NAME + "\", \"" +
+                STAGED_OBJECTS_ENV_NAME + "\"), ls(globalenv(), all.names=TRUE)), " +
+                "envir=globalenv())"));
+    }
+    
+    /**
+     * Get the archive entry name used for the given R object
+     * @param objectName
+     *          the R object name
+     * @return
+     *          the entry name
+     * @throws UnsupportedEncodingException
+     *          if UTF-8 isn't supported (it always is)
+     */
+    private static String getRObjectEntryName(String objectName)
+    throws UnsupportedEncodingException
+    {
+        // R names can contain characters that don't belong in file names
+        return
+            R_OBJECT_ENTRY_PREFIX +
+            URLEncoder.encode(objectName, "UTF-8") +
+            R_OBJECT_ENTRY_SUFFIX;
+    }
+    
+    /**
+     * Read the R object index from the given project file
+     * @param projectFile
+     *          the project file
+     * @return
+     *          the index which is empty if the file doesn't exist or
+     *          doesn't have an index
+     * @throws IOException
+     *          if reading the index fails
+     */
+    private Properties readRObjectIndex(File projectFile) throws IOException
+    {
+        Properties index = new Properties();
+        if(projectFile.isFile())
+        {
+            try
+            {
+                ZipFile zipFile = new ZipFile(projectFile);
+                try
+                {
+                    this.readRObjectIndex(zipFile, index);
+                }
+                finally
+                {
+                    zipFile.close();
+                }
+            }
+            catch(ZipException ex)
+            {
+                LOG.fine("not an existing project archive: " +
+                         projectFile.getAbsolutePath());
+            }
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Read the R object index from the given project archive
+     * @param zipFile
+     *          the project archive
+     * @param index
+     *          the properties to read the index into. Nothing is added if
+     *          the archive doesn't have an index
+     * @throws IOException
+     *          if reading the index fails
+     */
+    private void readRObjectIndex(ZipFile zipFile, Properties index)
+    throws IOException
+    {
+        ZipEntry indexEntry = zipFile.getEntry(R_OBJECT_INDEX_FILENAME);
+        if(indexEntry != null)
+        {
+            InputStream indexIn = zipFile.getInputStream(indexEntry);
+            try
+            {
+                index.load(indexIn);
+            }
+            finally
+            {
+                indexIn.close();
+            }
+        }
+    }
+    
+    /**
+     * Extract the given archive entry to a file
+     * @param zipFile
+     *          the archive
+     * @param entry
+     *          the entry to extract
+     * @param destinationFile
+     *          the file to extract to
+     * @throws IOException
+     *          if extraction fails
+     */
+    private static void extractEntry(
+            ZipFile zipFile,
+            ZipEntry entry,
+            File destinationFile) throws IOException
+    {
+        InputStream in = zipFile.getInputStream(entry);
+        try
+        {
+            OutputStream out = new FileOutputStream(destinationFile);
+            try
+            {
+                byte[] buffer = new byte[64 * 1024];
+                int readCount;
+                while((readCount = in.read(buffer)) != -1)
+                {
+                    out.write(buffer, 0, readCount);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     * Set up all of the objects in the given index to be loaded on demand.
+     * Their R data files are extracted to the lazy project directory where
+     * they stay until another project is opened
+     * @param zipFile
+     *          the project archive
+     * @param classIndexEntry
+     *          the class index entry of the archive
+     * @param index
+     *          the object index that was read from the archive
+     * @throws IOException
+     *          if extracting the object data fails
+     */
+    private void registerLazyObjects(
+            ZipFile zipFile,
+            ZipEntry classIndexEntry,
+            Properties index) throws IOException
+    {
+        File lazyDir = this.getCleanedDirectory(LAZY_PROJECT_DIR_NAME);
+        if(lazyDir == null)
+        {
+            throw new IOException("failed to create lazy project directory");
+        }
+        
+        Properties classIndex = new Properties();
+        InputStream classIndexIn = zipFile.getInputStream(classIndexEntry);
+        try
+        {
+            classIndex.load(classIndexIn);
+        }
+        finally
+        {
+            classIndexIn.close();
+        }
+        
+        List<String> objectNames = new ArrayList<String>();
+        List<String[]> objectClasses = new ArrayList<String[]>();
+        List<File> rDataFiles = new ArrayList<File>();
+        for(Object objectNameKey: index.keySet())
+        {
+            String objectName = (String)objectNameKey;
+            String entryName = getRObjectEntryName(objectName);
+            ZipEntry objectEntry = zipFile.getEntry(entryName);
+            if(objectEntry == null)
+            {
+                LOG.warning(
+                        "project archive is missing R object: " +
+                        objectName);
+            }
+            else
+            {
+                File rDataFile = new File(
+                        lazyDir,
+                        entryName.substring(R_OBJECT_ENTRY_PREFIX.length()));
+                extractEntry(zipFile, objectEntry, rDataFile);
+                
+                objectNames.add(objectName);
+                objectClasses.add(classIndex.getProperty(objectName, "").split(" "));
+                rDataFiles.add(rDataFile);
+            }
+        }
+        
+        LazyRObjectRegistry.registerPendingObjects(
+                this.rInterface,
+                objectNames,
+                objectClasses,
+                rDataFiles);
+        this.lazyObjectDir = lazyDir;
+        
+        if(LOG.isLoggable(Level.FINE))
+        {
+            LOG.fine("registered " + objectNames.size() +
+                     " R objects for lazy loading");
+        }
+    }
+    
+    /**
+     * Get the R data file that a lazily loaded object is read from
+     * @param entryName
+     *          the archive entry name of the object
+     * @return
+     *          the file
+     * @throws IOException
+     *          if we don't have a file for the object
+     */
+    private File getLazyObjectFile(String entryName) throws IOException
+    {
+        File lazyDir = this.lazyObjectDir;
+        File rDataFile = lazyDir == null ? null : new File(
+                lazyDir,
+                entryName.substring(R_OBJECT_ENTRY_PREFIX.length()));
+        if(rDataFile == null || !rDataFile.isFile())
+        {
+            throw new IOException(
+                    "missing data file for lazily loaded entry: " + entryName);
+        }
+        
+        return rDataFile;
+    }
+    
+    /**
+     * Forget about any objects that are waiting to be lazily loaded along
+     * with the files that they would have been loaded from
+     */
+    private void forgetLazyObjects()
+    {
+        LazyRObjectRegistry.clearPendingObjects(this.rInterface);
+        
+        File lazyDir = this.lazyObjectDir;
+        this.lazyObjectDir = null;
+        if(lazyDir != null)
+        {
+            FileUtilities.recursiveDelete(lazyDir);
+        }
+    }
+    
+    /**
+     * Load an R data file into the global environment
+     * @param rDataFile
+     *          the file to load
+     */
+    private void loadRDataFile(File rDataFile)
+    {
+        String loadDataCommandString =
+            "load(" +
+            RUtilities.javaStringToRString(rDataFile.getAbsolutePath()) +
+            ")";
+        this.rInterface.evaluateCommand(new SilentRCommand(
+                loadDataCommandString));
+    }
+    
     /**
      * Get a clean version of the temporary project directory.
      * @return
      *          return the project directory
      */
     private File getCleanedTempProjectDir()
+    {
+        return this.getCleanedDirectory(TEMP_PROJECT_DIR_NAME);
+    }
+    
+    /**
+     * Get a clean version of the given directory under the configuration
+     * directory.
+     * @param dirName
+     *          the name of the directory
+     * @return
+     *          return the directory or null if we couldn't clean it
+     */
+    private File getCleanedDirectory(String dirName)
     {
         try
         {
             ConfigurationUtilities configurationUtilities =
                 new ConfigurationUtilities();
             File configDir = configurationUtilities.getBaseDirectory();
-            File tempProjDir = new File(configDir, TEMP_PROJECT_DIR_NAME);
+            File tempProjDir = new File(configDir, dirName);
             if(tempProjDir.exists())
             {
                 if(LOG.isLoggable(Level.FINE))
@@ -302,37 +933,81 @@ public class MaanovaProjectManager extends ProjectManager
             }
             else
             {
+                // we go through the central directory rather than
+                // streaming the archive since an archive that was updated
+                // in place can contain replaced entries
+                ZipFile zipFile = new ZipFile(projectFile);
                 try
                 {
-                    // expand project file to temp dir
-                    ZipInputStream zipIn = new ZipInputStream(
-                            new FileInputStream(projectFile));
-                    FileUtilities.unzipToDirectory(
-                            zipIn,
-                            tempProjDir);
-                    
                     // clear the current r data
                     this.rInterface.evaluateCommand(new SilentRCommand(
                             "rm(list=ls())"));
-                    
-                    // load the r data
-                    File rDataFile = new File(tempProjDir, PROJECT_R_DATA_FILENAME);
                     this.rInterface.evaluateCommandNoReturn(new SilentRCommand(
                             new CleanEnvironmentCommand()));
-                    String loadDataCommandString =
-                        "load(" +
-                        RUtilities.javaStringToRString(rDataFile.getAbsolutePath()) +
-                        ")";
-                    this.rInterface.evaluateCommand(new SilentRCommand(
-                            loadDataCommandString));
+                    this.forgetLazyObjects();
+                    this.forgetSavedObjects();
+                    
+                    // load the r data
+                    ZipEntry legacyDataEntry = zipFile.getEntry(PROJECT_R_DATA_FILENAME);
+                    if(legacyDataEntry != null)
+                    {
+                        File rDataFile = new File(tempProjDir, PROJECT_R_DATA_FILENAME);
+                        extractEntry(zipFile, legacyDataEntry, rDataFile);
+                        this.loadRDataFile(rDataFile);
+                        rDataFile.delete();
+                    }
+                    else
+                    {
+                        Properties index = new Properties();
+                        this.readRObjectIndex(zipFile, index);
+                        ZipEntry classIndexEntry = zipFile.getEntry(R_OBJECT_CLASS_INDEX_FILENAME);
+                        List<String> loadedObjectNames = new ArrayList<String>();
+                        if(this.lazyLoadingEnabled && classIndexEntry != null)
+                        {
+                            this.registerLazyObjects(zipFile, classIndexEntry, index);
+                        }
+                        else
+                        {
+                            for(Object objectNameKey: index.keySet())
+                            {
+                                String objectName = (String)objectNameKey;
+                                String entryName = getRObjectEntryName(objectName);
+                                ZipEntry objectEntry = zipFile.getEntry(entryName);
+                                if(objectEntry == null)
+                                {
+                                    LOG.warning(
+                                            "project archive is missing R object: " +
+                                            objectName);
+                                }
+                                else
+                                {
+                                    File rDataFile = new File(
+                                            tempProjDir,
+                                            entryName.substring(R_OBJECT_ENTRY_PREFIX.length()));
+                                    extractEntry(zipFile, objectEntry, rDataFile);
+                                    this.loadRDataFile(rDataFile);
+                                    rDataFile.delete();
+                                    loadedObjectNames.add(objectName);
+                                }
+                            }
+                        }
+                        this.rememberLoadedObjects(index, loadedObjectNames);
+                    }
                     
                     // load the meta data
-                    InputStream configFileIn = new FileInputStream(new File(
-                            tempProjDir,
-                            PROJECT_METADATA_FILENAME_1_0_0));
+                    InputStream configFileIn = zipFile.getInputStream(
+                            zipFile.getEntry(PROJECT_METADATA_FILENAME_1_0_0));
                     Unmarshaller unmarshaller = this.jaxbContext.createUnmarshaller();
-                    JMaanovaProjectMetadata jaxbProjectMetatata =
-                        (JMaanovaProjectMetadata)unmarshaller.unmarshal(configFileIn);
+                    JMaanovaProjectMetadata jaxbProjectMetatata;
+                    try
+                    {
+                        jaxbProjectMetatata =
+                            (JMaanovaProjectMetadata)unmarshaller.unmarshal(configFileIn);
+                    }
+                    finally
+                    {
+                        configFileIn.close();
+                    }
                     
                     // create the project
                     MaanovaProject newProject = new MaanovaProject(
@@ -346,6 +1021,8 @@ public class MaanovaProjectManager extends ProjectManager
                 }
                 finally
                 {
+                    zipFile.close();
+                    
                     // blow away the temp dir
                     FileUtilities.recursiveDelete(tempProjDir);
                 }
@@ -0,0 +1,919 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.project;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A zip archive that is updated in place. New and replaced entries are
+ * appended to the end of the existing file and a new central directory is
+ * written after them, so entries that don't change are never copied or
+ * recompressed. The space taken up by replaced entries is only reclaimed
+ * once it outgrows the space that is still in use (or sooner if appending
+ * an entry would push the archive over its size limit). Reclaiming it
+ * means copying the live entries to a compacted copy of the archive next
+ * to the original, finishing the update in the copy and then renaming the
+ * copy over the original on {@link #close()}, so the original is never
+ * left half rewritten. An update that fails part way through should be
+ * {@link #abort() aborted} which leaves the archive as it was before the
+ * update.
+ * <p>
+ * Entries are always written uncompressed since the R data that goes into
+ * project archives is already compressed by R. The result is a plain zip
+ * file that {@link java.util.zip.ZipFile} can read. Like
+ * {@link java.util.zip.ZipOutputStream} there is no ZIP64 support so
+ * archives are limited to 4GB.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class ProjectArchive
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            ProjectArchive.class.getName());
+    
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    
+    private static final int LOCAL_HEADER_BYTE_COUNT = 30;
+    
+    private static final int CENTRAL_HEADER_BYTE_COUNT = 46;
+    
+    private static final int END_OF_CENTRAL_DIRECTORY_BYTE_COUNT = 22;
+    
+    /**
+     * the offset of the local header offset within a central directory
+     * record
+     */
+    private static final int CENTRAL_HEADER_OFFSET_FIELD = 42;
+    
+    /**
+     * the end of central directory record can be followed by a comment of
+     * up to this many bytes
+     */
+    private static final int MAX_COMMENT_BYTE_COUNT = 0xFFFF;
+    
+    /**
+     * general purpose flag saying that entry names are UTF-8
+     */
+    private static final int UTF8_FLAG = 0x0800;
+    
+    private static final int STORED_METHOD = 0;
+    
+    private static final int VERSION_STORED = 10;
+    
+    private static final int VERSION_MADE_BY = 20;
+    
+    private static final long MAX_ARCHIVE_BYTE_COUNT = 0xFFFFFFFFL;
+    
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    
+    private final File file;
+    
+    /**
+     * the file that we're writing to. This is the archive file itself
+     * unless the archive was compacted during this update, in which case
+     * it's the compacted copy that replaces the archive file on
+     * {@link #close()}
+     */
+    private File workingFile;
+    
+    private RandomAccessFile randomAccessFile;
+    
+    /**
+     * the length of the archive file when we opened it. Aborting an update
+     * truncates the file back to this length which leaves the old central
+     * directory as the last thing in the file
+     */
+    private final long originalByteCount;
+    
+    /**
+     * the central directory records for the live entries (keyed by entry
+     * name) in archive order
+     */
+    private final Map<String, CentralDirectoryRecord> entries =
+        new LinkedHashMap<String, CentralDirectoryRecord>();
+    
+    /**
+     * the number of bytes in the archive that don't belong to a live entry
+     */
+    private long deadByteCount = 0L;
+    
+    private boolean modified = false;
+    
+    private boolean closed = false;
+    
+    /**
+     * Open the given archive for updating. If the file doesn't exist or
+     * is empty we start out with an empty archive.
+     * @param file
+     *          the archive file
+     * @throws IOException
+     *          if we can't read the archive or if the file exists but
+     *          isn't a zip archive (we won't write over it)
+     */
+    public ProjectArchive(File file) throws IOException
+    {
+        this.file = file;
+        this.workingFile = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        
+        try
+        {
+            this.originalByteCount = this.randomAccessFile.length();
+            if(!this.readCentralDirectory())
+            {
+                if(this.randomAccessFile.length() > 0L)
+                {
+                    throw new IOException(
+                            "not a project archive: " + file.getAbsolutePath());
+                }
+                this.entries.clear();
+                this.deadByteCount = 0L;
+                this.modified = true;
+            }
+        }
+        catch(IOException ex)
+        {
+            this.randomAccessFile.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Getter for the archive file
+     * @return
+     *          the file
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+    
+    /**
+     * Get the names of the live entries
+     * @return
+     *          the entry names
+     */
+    public Set<String> getEntryNames()
+    {
+        return this.entries.keySet();
+    }
+    
+    /**
+     * Determine if the archive has the given entry
+     * @param entryName
+     *          the entry name
+     * @return
+     *          true if it does
+     */
+    public boolean containsEntry(String entryName)
+    {
+        return this.entries.containsKey(entryName);
+    }
+    
+    /**
+     * Add the given file's contents as an entry replacing any entry of
+     * the same name. The contents are appended to the archive
+     * @param entryName
+     *          the entry name
+     * @param contents
+     *          the file with the contents
+     * @throws IOException
+     *          if we fail to write the entry. Any entry of the same name is
+     *          left as it was
+     */
+    public void putEntry(String entryName, File contents) throws IOException
+    {
+        InputStream in = new FileInputStream(contents);
+        try
+        {
+            this.putEntry(entryName, in, contents.length());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     * Add the given bytes as an entry replacing any entry of the same name.
+     * The contents are appended to the archive
+     * @param entryName
+     *          the entry name
+     * @param contents
+     *          the contents
+     * @throws IOException
+     *          if we fail to write the entry. Any entry of the same name is
+     *          left as it was
+     */
+    public void putEntry(String entryName, byte[] contents) throws IOException
+    {
+        this.putEntry(
+                entryName,
+                new ByteArrayInputStream(contents),
+                contents.length);
+    }
+    
+    /**
+     * Append the given stream's contents as an entry. The entry that it
+     * replaces (if any) is only dropped once the new one is fully written
+     */
+    private void putEntry(
+            String entryName,
+            InputStream contents,
+            long contentsByteCount) throws IOException
+    {
+        byte[] nameBytes = entryName.getBytes("UTF-8");
+        
+        // the new entry and the central directory that follows it have to
+        // fit under the limit. If they won't we try to make room by
+        // dropping the dead space now rather than failing part way through
+        long requiredByteCount =
+            LOCAL_HEADER_BYTE_COUNT + nameBytes.length + contentsByteCount +
+            this.getCentralDirectoryByteCount() +
+            CENTRAL_HEADER_BYTE_COUNT + nameBytes.length;
+        if(this.getAppendOffset() + requiredByteCount > MAX_ARCHIVE_BYTE_COUNT &&
+           this.deadByteCount > 0L)
+        {
+            this.compact();
+        }
+        if(this.getAppendOffset() + requiredByteCount > MAX_ARCHIVE_BYTE_COUNT)
+        {
+            throw new IOException(
+                    "project archives can't be larger than 4GB: " +
+                    this.file.getAbsolutePath());
+        }
+        
+        int dosTime = toDosTime(System.currentTimeMillis());
+        long headerOffset = this.getAppendOffset();
+        RandomAccessFile out = this.randomAccessFile;
+        byte[] sizes = new byte[12];
+        long size = 0L;
+        try
+        {
+            // write a local header with placeholders for the CRC and sizes
+            out.seek(headerOffset);
+            byte[] localHeader = new byte[LOCAL_HEADER_BYTE_COUNT];
+            putInt(localHeader, 0, LOCAL_HEADER_SIGNATURE);
+            putShort(localHeader, 4, VERSION_STORED);
+            putShort(localHeader, 6, UTF8_FLAG);
+            putShort(localHeader, 8, STORED_METHOD);
+            putInt(localHeader, 10, dosTime);
+            putShort(localHeader, 26, nameBytes.length);
+            putShort(localHeader, 28, 0);
+            out.write(localHeader);
+            out.write(nameBytes);
+            
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int readCount;
+            while((readCount = contents.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, readCount);
+                crc.update(buffer, 0, readCount);
+                size += readCount;
+            }
+            
+            if(out.getFilePointer() > MAX_ARCHIVE_BYTE_COUNT)
+            {
+                throw new IOException(
+                        "project archives can't be larger than 4GB: " +
+                        this.file.getAbsolutePath());
+            }
+            
+            // go back and fill in the CRC and sizes
+            putInt(sizes, 0, (int)crc.getValue());
+            putInt(sizes, 4, (int)size);
+            putInt(sizes, 8, (int)size);
+            out.seek(headerOffset + 14);
+            out.write(sizes);
+        }
+        catch(IOException ex)
+        {
+            // nothing points at the partial entry but there's no sense
+            // leaving it around
+            try
+            {
+                out.setLength(headerOffset);
+            }
+            catch(IOException truncateEx)
+            {
+                LOG.log(Level.WARNING,
+                        "failed to truncate partial archive entry",
+                        truncateEx);
+            }
+            throw ex;
+        }
+        
+        byte[] centralHeader = new byte[CENTRAL_HEADER_BYTE_COUNT + nameBytes.length];
+        putInt(centralHeader, 0, CENTRAL_HEADER_SIGNATURE);
+        putShort(centralHeader, 4, VERSION_MADE_BY);
+        putShort(centralHeader, 6, VERSION_STORED);
+        putShort(centralHeader, 8, UTF8_FLAG);
+        putShort(centralHeader, 10, STORED_METHOD);
+        putInt(centralHeader, 12, dosTime);
+        System.arraycopy(sizes, 0, centralHeader, 16, sizes.length);
+        putShort(centralHeader, 28, nameBytes.length);
+        putInt(centralHeader, CENTRAL_HEADER_OFFSET_FIELD, (int)headerOffset);
+        System.arraycopy(
+                nameBytes, 0,
+                centralHeader, CENTRAL_HEADER_BYTE_COUNT,
+                nameBytes.length);
+        
+        // only now that the new entry is complete do we let go of the old
+        this.removeEntry(entryName);
+        this.entries.put(entryName, new CentralDirectoryRecord(
+                centralHeader,
+                headerOffset,
+                LOCAL_HEADER_BYTE_COUNT + nameBytes.length + size));
+        this.modified = true;
+    }
+    
+    /**
+     * Remove the given entry. The space that it takes up isn't reclaimed
+     * until the archive is compacted
+     * @param entryName
+     *          the entry to remove
+     * @return
+     *          true if there was an entry to remove
+     */
+    public boolean removeEntry(String entryName)
+    {
+        CentralDirectoryRecord removedRecord = this.entries.remove(entryName);
+        if(removedRecord == null)
+        {
+            return false;
+        }
+        else
+        {
+            this.deadByteCount += removedRecord.recordByteCount;
+            this.modified = true;
+            return true;
+        }
+    }
+    
+    /**
+     * Write the central directory (compacting the archive if too much of
+     * it is dead space) and close the file. Nothing is written if the
+     * archive wasn't modified. If this fails the update is
+     * {@link #abort() aborted}
+     * @throws IOException
+     *          if we fail to write the directory
+     */
+    public void close() throws IOException
+    {
+        if(this.closed)
+        {
+            return;
+        }
+        
+        try
+        {
+            if(this.modified)
+            {
+                if(this.deadByteCount > this.getLiveByteCount())
+                {
+                    this.compact();
+                }
+                
+                this.writeCentralDirectory(
+                        this.randomAccessFile,
+                        this.getAppendOffset());
+                if(this.workingFile != this.file)
+                {
+                    // make sure that the copy is really on disk before it
+                    // replaces the original
+                    this.randomAccessFile.getFD().sync();
+                }
+            }
+            
+            this.randomAccessFile.close();
+            this.closed = true;
+            if(this.workingFile != this.file)
+            {
+                this.replaceFile(this.workingFile);
+                this.workingFile = this.file;
+            }
+        }
+        catch(IOException ex)
+        {
+            this.abort();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Close the file without writing a central directory, throwing away
+     * everything that was written since the archive was opened. The
+     * archive file is left as it was before the update. Errors are logged
+     * rather than thrown since this is meant to be called when something
+     * has already gone wrong
+     */
+    public void abort()
+    {
+        if(!this.closed)
+        {
+            this.closed = true;
+            try
+            {
+                try
+                {
+                    if(this.workingFile == this.file)
+                    {
+                        this.randomAccessFile.setLength(this.originalByteCount);
+                    }
+                }
+                finally
+                {
+                    this.randomAccessFile.close();
+                }
+            }
+            catch(IOException ex)
+            {
+                LOG.log(Level.WARNING,
+                        "failed to roll back project archive: " +
+                        this.file.getAbsolutePath(),
+                        ex);
+            }
+        }
+        
+        if(this.workingFile != this.file &&
+           this.workingFile.exists() &&
+           !this.workingFile.delete())
+        {
+            LOG.warning(
+                    "failed to delete partially written archive: " +
+                    this.workingFile.getAbsolutePath());
+        }
+        this.workingFile = this.file;
+    }
+    
+    /**
+     * Get the number of bytes that the central directory for the live
+     * entries takes up (including the end record)
+     */
+    private long getCentralDirectoryByteCount()
+    {
+        long directoryByteCount = END_OF_CENTRAL_DIRECTORY_BYTE_COUNT;
+        for(CentralDirectoryRecord record: this.entries.values())
+        {
+            directoryByteCount += record.bytes.length;
+        }
+        return directoryByteCount;
+    }
+    
+    /**
+     * Get the number of bytes taken up by the live entries
+     */
+    private long getLiveByteCount()
+    {
+        long liveByteCount = 0L;
+        for(CentralDirectoryRecord record: this.entries.values())
+        {
+            liveByteCount += record.recordByteCount;
+        }
+        return liveByteCount;
+    }
+    
+    /**
+     * New entries go after everything that is already in the file. We
+     * never write over the old central directory so the previous version of
+     * the archive is intact until the new directory is written
+     */
+    private long getAppendOffset() throws IOException
+    {
+        long appendOffset = this.randomAccessFile.length();
+        for(CentralDirectoryRecord record: this.entries.values())
+        {
+            appendOffset = Math.max(
+                    appendOffset,
+                    record.localHeaderOffset + record.recordByteCount);
+        }
+        return appendOffset;
+    }
+    
+    /**
+     * Copy the live entries (without any gaps between them) into a
+     * temporary file in the same directory and carry on the update in
+     * that file. The copy replaces the archive on {@link #close()}. If
+     * anything goes wrong before then the original archive is still intact
+     * as it was before this update since we never write over its central
+     * directory
+     */
+    private void compact() throws IOException
+    {
+        LOG.fine("compacting project archive: " + this.file.getAbsolutePath());
+        
+        List<CentralDirectoryRecord> records =
+            new ArrayList<CentralDirectoryRecord>(this.entries.values());
+        Collections.sort(records, new Comparator<CentralDirectoryRecord>()
+        {
+            public int compare(
+                    CentralDirectoryRecord record1,
+                    CentralDirectoryRecord record2)
+            {
+                return record1.localHeaderOffset < record2.localHeaderOffset ? -1 :
+                       record1.localHeaderOffset > record2.localHeaderOffset ? 1 : 0;
+            }
+        });
+        
+        File directory = this.file.getAbsoluteFile().getParentFile();
+        File compactedFile = File.createTempFile(
+                this.file.getName(),
+                ".compacting",
+                directory);
+        RandomAccessFile out = null;
+        long[] compactedOffsets = new long[records.size()];
+        boolean copied = false;
+        try
+        {
+            RandomAccessFile in = this.randomAccessFile;
+            out = new RandomAccessFile(compactedFile, "rw");
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long writeOffset = 0L;
+            for(int i = 0; i < compactedOffsets.length; i++)
+            {
+                CentralDirectoryRecord record = records.get(i);
+                long remaining = record.recordByteCount;
+                in.seek(record.localHeaderOffset);
+                while(remaining > 0L)
+                {
+                    int chunk = (int)Math.min(buffer.length, remaining);
+                    in.readFully(buffer, 0, chunk);
+                    out.write(buffer, 0, chunk);
+                    remaining -= chunk;
+                }
+                compactedOffsets[i] = writeOffset;
+                writeOffset += record.recordByteCount;
+            }
+            copied = true;
+        }
+        finally
+        {
+            if(!copied)
+            {
+                if(out != null)
+                {
+                    out.close();
+                }
+                if(!compactedFile.delete())
+                {
+                    LOG.warning(
+                            "failed to delete partially compacted archive: " +
+                            compactedFile.getAbsolutePath());
+                }
+            }
+        }
+        
+        // switch over to the copy. Anything that we appended to the
+        // original is dropped so that its old directory is at the end again
+        RandomAccessFile oldRandomAccessFile = this.randomAccessFile;
+        File oldWorkingFile = this.workingFile;
+        this.randomAccessFile = out;
+        this.workingFile = compactedFile;
+        for(int i = 0; i < compactedOffsets.length; i++)
+        {
+            records.get(i).setLocalHeaderOffset(compactedOffsets[i]);
+        }
+        this.deadByteCount = 0L;
+        
+        try
+        {
+            if(oldWorkingFile == this.file)
+            {
+                oldRandomAccessFile.setLength(this.originalByteCount);
+            }
+        }
+        finally
+        {
+            oldRandomAccessFile.close();
+        }
+        if(oldWorkingFile != this.file && !oldWorkingFile.delete())
+        {
+            LOG.warning(
+                    "failed to delete partially compacted archive: " +
+                    oldWorkingFile.getAbsolutePath());
+        }
+    }
+    
+    /**
+     * Rename the given file over the archive file
+     */
+    private void replaceFile(File replacementFile) throws IOException
+    {
+        if(!replacementFile.renameTo(this.file))
+        {
+            // some platforms (windows) won't rename over an existing file
+            // so we move the original out of the way first and put it back
+            // if the rename still fails
+            File originalFile = new File(
+                    replacementFile.getParentFile(),
+                    replacementFile.getName() + ".original");
+            if(!this.file.renameTo(originalFile))
+            {
+                throw new IOException(
+                        "failed to replace project archive: " +
+                        this.file.getAbsolutePath());
+            }
+            
+            if(replacementFile.renameTo(this.file))
+            {
+                if(!originalFile.delete())
+                {
+                    LOG.warning(
+                            "failed to delete old project archive: " +
+                            originalFile.getAbsolutePath());
+                }
+            }
+            else
+            {
+                if(!originalFile.renameTo(this.file))
+                {
+                    throw new IOException(
+                            "failed to replace project archive. The original " +
+                            "is saved as: " + originalFile.getAbsolutePath());
+                }
+                throw new IOException(
+                        "failed to replace project archive: " +
+                        this.file.getAbsolutePath());
+            }
+        }
+    }
+    
+    /**
+     * Write the central directory at the given offset
+     */
+    private void writeCentralDirectory(
+            RandomAccessFile raf,
+            long directoryOffset) throws IOException
+    {
+        if(this.entries.size() > 0xFFFF)
+        {
+            throw new IOException(
+                    "too many entries for a project archive: " +
+                    this.entries.size());
+        }
+        
+        raf.seek(directoryOffset);
+        long directoryByteCount = 0L;
+        for(CentralDirectoryRecord record: this.entries.values())
+        {
+            raf.write(record.bytes);
+            directoryByteCount += record.bytes.length;
+        }
+        
+        byte[] endRecord = new byte[END_OF_CENTRAL_DIRECTORY_BYTE_COUNT];
+        putInt(endRecord, 0, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        putShort(endRecord, 8, this.entries.size());
+        putShort(endRecord, 10, this.entries.size());
+        putInt(endRecord, 12, (int)directoryByteCount);
+        putInt(endRecord, 16, (int)directoryOffset);
+        raf.write(endRecord);
+        
+        if(raf.getFilePointer() > MAX_ARCHIVE_BYTE_COUNT)
+        {
+            throw new IOException(
+                    "project archives can't be larger than 4GB: " +
+                    this.file.getAbsolutePath());
+        }
+        raf.setLength(raf.getFilePointer());
+    }
+    
+    /**
+     * Read the existing central directory
+     * @return
+     *          true if we found one
+     */
+    private boolean readCentralDirectory() throws IOException
+    {
+        RandomAccessFile raf = this.randomAccessFile;
+        long fileLength = raf.length();
+        if(fileLength < END_OF_CENTRAL_DIRECTORY_BYTE_COUNT)
+        {
+            return false;
+        }
+        
+        // the end record is at the very end unless there's a comment
+        int tailLength = (int)Math.min(
+                fileLength,
+                END_OF_CENTRAL_DIRECTORY_BYTE_COUNT + MAX_COMMENT_BYTE_COUNT);
+        byte[] tail = new byte[tailLength];
+        raf.seek(fileLength - tailLength);
+        raf.readFully(tail);
+        int endRecordIndex = -1;
+        for(int i = tailLength - END_OF_CENTRAL_DIRECTORY_BYTE_COUNT; i >= 0; i--)
+        {
+            if(getInt(tail, i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+            {
+                endRecordIndex = i;
+                break;
+            }
+        }
+        if(endRecordIndex == -1)
+        {
+            return false;
+        }
+        
+        int entryCount = getShort(tail, endRecordIndex + 10);
+        long directoryByteCount = getInt(tail, endRecordIndex + 12) & 0xFFFFFFFFL;
+        long directoryOffset = getInt(tail, endRecordIndex + 16) & 0xFFFFFFFFL;
+        if(directoryOffset + directoryByteCount > fileLength)
+        {
+            return false;
+        }
+        
+        byte[] directory = new byte[(int)directoryByteCount];
+        raf.seek(directoryOffset);
+        raf.readFully(directory);
+        
+        long liveByteCount = 0L;
+        int recordStart = 0;
+        for(int i = 0; i < entryCount; i++)
+        {
+            if(recordStart + CENTRAL_HEADER_BYTE_COUNT > directory.length ||
+               getInt(directory, recordStart) != CENTRAL_HEADER_SIGNATURE)
+            {
+                return false;
+            }
+            
+            int flags = getShort(directory, recordStart + 8);
+            long compressedSize = getInt(directory, recordStart + 20) & 0xFFFFFFFFL;
+            int nameLength = getShort(directory, recordStart + 28);
+            int extraLength = getShort(directory, recordStart + 30);
+            int commentLength = getShort(directory, recordStart + 32);
+            long localHeaderOffset =
+                getInt(directory, recordStart + CENTRAL_HEADER_OFFSET_FIELD) & 0xFFFFFFFFL;
+            int recordLength =
+                CENTRAL_HEADER_BYTE_COUNT + nameLength + extraLength + commentLength;
+            
+            String name = new String(
+                    directory,
+                    recordStart + CENTRAL_HEADER_BYTE_COUNT,
+                    nameLength,
+                    (flags & UTF8_FLAG) != 0 ? "UTF-8" : "ISO-8859-1");
+            byte[] recordBytes = new byte[recordLength];
+            System.arraycopy(directory, recordStart, recordBytes, 0, recordLength);
+            
+            // the local header's extra field doesn't have to match the
+            // central one so we read its length from the local header
+            byte[] localHeader = new byte[LOCAL_HEADER_BYTE_COUNT];
+            raf.seek(localHeaderOffset);
+            raf.readFully(localHeader);
+            if(getInt(localHeader, 0) != LOCAL_HEADER_SIGNATURE)
+            {
+                return false;
+            }
+            long recordByteCount =
+                LOCAL_HEADER_BYTE_COUNT +
+                getShort(localHeader, 26) +
+                getShort(localHeader, 28) +
+                compressedSize;
+            
+            // entries written by ZipOutputStream are followed by a data
+            // descriptor
+            if((flags & 0x0008) != 0)
+            {
+                long descriptorOffset = localHeaderOffset + recordByteCount;
+                raf.seek(descriptorOffset);
+                byte[] signature = new byte[4];
+                raf.readFully(signature);
+                recordByteCount += getInt(signature, 0) == 0x08074b50 ? 16 : 12;
+            }
+            
+            this.entries.put(name, new CentralDirectoryRecord(
+                    recordBytes,
+                    localHeaderOffset,
+                    recordByteCount));
+            liveByteCount += recordByteCount;
+            recordStart += recordLength;
+        }
+        
+        // everything that isn't a live entry is dead space. we count the
+        // old directory as dead since it is replaced on the next update
+        this.deadByteCount = Math.max(0L, fileLength - liveByteCount);
+        
+        return true;
+    }
+    
+    /**
+     * Convert the given time to MS-DOS date and time format
+     */
+    private static int toDosTime(long timeMillis)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMillis);
+        int year = Math.max(1980, calendar.get(Calendar.YEAR));
+        return
+            ((year - 1980) << 25) |
+            ((calendar.get(Calendar.MONTH) + 1) << 21) |
+            (calendar.get(Calendar.DAY_OF_MONTH) << 16) |
+            (calendar.get(Calendar.HOUR_OF_DAY) << 11) |
+            (calendar.get(Calendar.MINUTE) << 5) |
+            (calendar.get(Calendar.SECOND) >> 1);
+    }
+    
+    private static void putShort(byte[] bytes, int offset, int value)
+    {
+        bytes[offset] = (byte)value;
+        bytes[offset + 1] = (byte)(value >>> 8);
+    }
+    
+    private static void putInt(byte[] bytes, int offset, int value)
+    {
+        putShort(bytes, offset, value);
+        putShort(bytes, offset + 2, value >>> 16);
+    }
+    
+    private static int getShort(byte[] bytes, int offset)
+    {
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+    }
+    
+    private static int getInt(byte[] bytes, int offset)
+    {
+        return getShort(bytes, offset) | (getShort(bytes, offset + 2) << 16);
+    }
+    
+    /**
+     * A central directory record along with the location of the entry
+     * that it points to
+     */
+    private static class CentralDirectoryRecord
+    {
+        private final byte[] bytes;
+        
+        private long localHeaderOffset;
+        
+        /**
+         * the size of the local header, data and data descriptor
+         */
+        private final long recordByteCount;
+        
+        /**
+         * Constructor
+         * @param bytes
+         *          the raw central directory record
+         * @param localHeaderOffset
+         *          the offset of the local header
+         * @param recordByteCount
+         *          the size of the local header, data and data descriptor
+         */
+        public CentralDirectoryRecord(
+                byte[] bytes,
+                long localHeaderOffset,
+                long recordByteCount)
+        {
+            this.bytes = bytes;
+            this.localHeaderOffset = localHeaderOffset;
+            this.recordByteCount = recordByteCount;
+        }
+        
+        /**
+         * Move the entry
+         * @param localHeaderOffset
+         *          the new local header offset
+         */
+        public void setLocalHeaderOffset(long localHeaderOffset)
+        {
+            this.localHeaderOffset = localHeaderOffset;
+            putInt(this.bytes, CENTRAL_HEADER_OFFSET_FIELD, (int)localHeaderOffset);
+        }
+    }
+}
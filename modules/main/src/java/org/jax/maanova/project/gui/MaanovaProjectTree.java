@@ -33,6 +33,8 @@ import javax.swing.tree.TreeSelectionModel;
 
 import org.jax.maanova.fit.FitMaanovaResult;
 import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.project.LazyRObjectRegistry;
+import org.jax.maanova.project.LazyRObjectRegistryListener;
 import org.jax.maanova.project.MaanovaDataModel;
 import org.jax.maanova.project.MaanovaDataModelListener;
 import org.jax.maanova.project.MaanovaProject;
@@ -88,11 +90,31 @@ public class MaanovaProjectTree extends ProjectTree
         }
     };
     
+    private final LazyRObjectRegistryListener lazyRObjectRegistryListener =
+        new LazyRObjectRegistryListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void pendingObjectsLoaded(final List<String> objectNames)
+            {
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        MaanovaProjectTree.this.pendingObjectsLoaded(objectNames);
+                    }
+                });
+            }
+        };
+    
     /**
      * Constructor 
      */
     public MaanovaProjectTree()
     {
+        LazyRObjectRegistry.addLazyRObjectRegistryListener(
+                this.lazyRObjectRegistryListener);
         this.getSelectionModel().setSelectionMode(
                 TreeSelectionModel.DISCONTIGUOUS_TREE_SELECTION);
         this.addTreeSelectionListener(new TreeSelectionListener()
@@ -171,6 +193,32 @@ public class MaanovaProjectTree extends ProjectTree
         super.setActiveProject(activeProject);
     }
     
+    /**
+     * update the labels of experiment nodes whose experiments were just
+     * read into R
+     * @param objectNames
+     *          the names of the objects that were read in
+     */
+    private void pendingObjectsLoaded(List<String> objectNames)
+    {
+        Object root = this.getModel().getRoot();
+        if(root instanceof ProjectTreeNode)
+        {
+            ProjectTreeNode projectNode = (ProjectTreeNode)root;
+            for(int i = 0; i < projectNode.getChildCount(); i++)
+            {
+                MicroarrayExperimentTreeNode currMicroarrayNode =
+                    (MicroarrayExperimentTreeNode)projectNode.getChildAt(i);
+                if(objectNames.contains(
+                   currMicroarrayNode.getMicroarrayExperiment().getAccessorExpressionString()))
+                {
+                    currMicroarrayNode.pendingExperimentLoaded();
+                    this.getModel().nodeChanged(currMicroarrayNode);
+                }
+            }
+        }
+    }
+    
     /**
      * refresh all of the microarray experiment nodes
      */
@@ -31,6 +31,7 @@ import org.jax.maanova.madata.MicroarrayExperiment;
 import org.jax.maanova.madata.gui.ArrayScatterPlotAction;
 import org.jax.maanova.madata.gui.ExportDataAction;
 import org.jax.maanova.madata.gui.ShowExperimentDesignAction;
+import org.jax.maanova.project.LazyRObjectRegistry;
 import org.jax.maanova.project.MaanovaProjectManager;
 import org.jax.r.jriutilities.JRIUtilityFunctions;
 import org.jax.util.gui.Iconifiable;
@@ -66,6 +67,13 @@ implements MouseListener, Iconifiable
 
     private volatile String nodeString;
     
+    /**
+     * true until the experiment is read into R (if the project is lazily
+     * loaded). We keep this here rather than asking every time that the
+     * node is painted
+     */
+    private volatile boolean pending;
+    
     /**
      * Constructor
      * @param microarrayExperiment
@@ -77,6 +85,17 @@ implements MouseListener, Iconifiable
         this.fitMaanovasTreeNode = new FitMaanovasTreeNode(microarrayExperiment);
         this.maanovaTestsTreeNode = new MaanovaTestsTreeNode(microarrayExperiment);
         this.geneListsTreeNode = new GeneListsTreeNode(microarrayExperiment);
+        this.pending = LazyRObjectRegistry.isPending(microarrayExperiment);
+    }
+    
+    /**
+     * Tell this node that its experiment has been read into R so that the
+     * next time it's painted it can show the experiment's counts
+     */
+    public void pendingExperimentLoaded()
+    {
+        this.pending = false;
+        this.nodeString = null;
     }
     
     /**
@@ -124,6 +143,13 @@ implements MouseListener, Iconifiable
     {
         if(this.nodeString == null)
         {
+            // don't pull a lazily loaded experiment into R just to label
+            // it. we'll pick up the counts once something else loads it
+            if(this.pending)
+            {
+                return this.getMicroarrayExperiment().toString();
+            }
+            
             this.nodeString = this.initString();
         }
         
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.test;
+
+import java.awt.GraphicsEnvironment;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jax.maanova.AnalysisResultCache;
+import org.jax.maanova.Maanova;
+import org.jax.maanova.RWorkerJob;
+import org.jax.maanova.RWorkerOutputListener;
+import org.jax.maanova.RWorkerPool;
+import org.jax.maanova.job.AnalysisJob;
+import org.jax.maanova.job.AnalysisJobPriority;
+import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.project.MaanovaProjectManager;
+import org.jax.r.RCommand;
+import org.jax.r.jriutilities.RInterface;
+
+/**
+ * An {@link AnalysisJob} that carries out the matest described by a
+ * {@link TestModelCommandBuilder}. Permutations are done by the
+ * {@link PermutationTestEngine} or in an R worker process when the
+ * builder's {@link TestExecutionBackend} asks for it, in which case the
+ * job reports its progress and can be canceled. Everything else is
+ * evaluated in the interactive R session
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class MaanovaTestJob extends AnalysisJob
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            MaanovaTestJob.class.getName());
+    
+    /**
+     * matches the lines that matest(...) prints in verbose mode as it
+     * works through the permutations
+     */
+    private static final Pattern PERMUTATION_PROGRESS_PATTERN = Pattern.compile(
+            "permutation\\D*?(\\d+)",
+            Pattern.CASE_INSENSITIVE);
+    
+    private final RInterface rInterface;
+    
+    private final TestModelCommandBuilder commandBuilder;
+    
+    private final MicroarrayExperiment experiment;
+    
+    private final RCommand command;
+    
+    private final String testResultName;
+    
+    private volatile PermutationTestEngine permutationEngine = null;
+    
+    private volatile RWorkerJob workerJob = null;
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface to test against
+     * @param experiment
+     *          the experiment being tested or null if it isn't known (in
+     *          which case the test is evaluated in R)
+     * @param commandBuilder
+     *          the builder describing the test
+     * @param priority
+     *          the priority to queue the test with
+     */
+    public MaanovaTestJob(
+            RInterface rInterface,
+            MicroarrayExperiment experiment,
+            TestModelCommandBuilder commandBuilder,
+            AnalysisJobPriority priority)
+    {
+        super("Test " + commandBuilder.getTestResultDataName(), priority);
+        this.rInterface = rInterface;
+        this.experiment = experiment;
+        this.commandBuilder = commandBuilder;
+        this.command = commandBuilder.getCommand();
+        
+        String testResultName = commandBuilder.getTestResultDataName();
+        this.testResultName =
+            testResultName == null ? null : testResultName.trim();
+    }
+    
+    /**
+     * Determine if the Java engine takes over the permutations
+     */
+    private boolean isPermutationEngineUsed()
+    {
+        // the Java engine only takes over when there is something to
+        // permute
+        return
+            this.experiment != null &&
+            this.commandBuilder.getBackend() == TestExecutionBackend.JAVA_PERMUTATIONS &&
+            this.commandBuilder.getPermutationCount() >= 2;
+    }
+    
+    /**
+     * Determine if the test is shipped off to an R worker process
+     */
+    private boolean isWorkerProcessUsed()
+    {
+        return
+            this.testResultName != null &&
+            this.testResultName.length() > 0 &&
+            this.commandBuilder.getBackend() == TestExecutionBackend.R_WORKER_PROCESS &&
+            this.commandBuilder.getPermutationCount() >= 2;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelableWhileRunning()
+    {
+        return this.isPermutationEngineUsed() || this.isWorkerProcessUsed();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRunInWorkerProcess()
+    {
+        return this.isWorkerProcessUsed();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void cancelExecution()
+    {
+        PermutationTestEngine permutationEngine = this.permutationEngine;
+        if(permutationEngine != null)
+        {
+            permutationEngine.cancel();
+        }
+        
+        RWorkerJob workerJob = this.workerJob;
+        if(workerJob != null)
+        {
+            RWorkerPool.getInstance().cancel(workerJob);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void execute() throws Exception
+    {
+        // there's no need to test at all if we already have the result
+        AnalysisResultCache resultCache = AnalysisResultCache.getInstance();
+        String cacheKey = resultCache.getTestKey(
+                this.rInterface,
+                this.experiment,
+                this.commandBuilder);
+        if(cacheKey != null && resultCache.restore(
+                this.rInterface,
+                cacheKey,
+                this.testResultName))
+        {
+            this.testResultUpdated();
+            return;
+        }
+        
+        boolean cacheable = true;
+        try
+        {
+            if(this.isPermutationEngineUsed())
+            {
+                cacheable = this.testWithPermutationEngine();
+            }
+            else if(this.isWorkerProcessUsed())
+            {
+                this.testInWorkerProcess();
+            }
+            else
+            {
+                this.rInterface.evaluateCommand(this.command);
+            }
+        }
+        catch(CancellationException ex)
+        {
+            if(this.permutationEngine != null)
+            {
+                // the observed statistics are still good so we keep them
+                LOG.info("permutations canceled for: " + this.testResultName);
+                this.testResultUpdated();
+            }
+            throw ex;
+        }
+        
+        // canceled results are incomplete so only finished ones get cached
+        if(cacheKey != null && cacheable)
+        {
+            resultCache.store(this.rInterface, cacheKey, this.testResultName);
+        }
+        this.testResultUpdated();
+    }
+    
+    /**
+     * Run the test with the Java permutation engine or in R/maanova if the
+     * engine doesn't support the fit
+     * @return
+     *          true if the engine did the test. Otherwise R's random number
+     *          stream was used so the result shouldn't be cached
+     */
+    private boolean testWithPermutationEngine() throws Exception
+    {
+        PermutationTestEngine permutationEngine = new PermutationTestEngine(
+                this.rInterface,
+                this.experiment,
+                this.commandBuilder);
+        if(!permutationEngine.isFitSupported())
+        {
+            LOG.info("the Java permutation engine doesn't support the fit " +
+                    "so R/maanova is doing the permutations for: " +
+                    this.testResultName);
+            this.rInterface.evaluateCommand(this.command);
+            return false;
+        }
+        
+        this.permutationEngine = permutationEngine;
+        this.trackProgressOf(permutationEngine);
+        if(this.isCanceled())
+        {
+            permutationEngine.cancel();
+        }
+        
+        // there's no application frame to show progress in when we're
+        // running headless
+        if(!GraphicsEnvironment.isHeadless())
+        {
+            Maanova.getInstance().getApplicationFrame().getTaskProgressPanel().addTaskToTrack(
+                    permutationEngine,
+                    true);
+        }
+        permutationEngine.test();
+        return true;
+    }
+    
+    private void testInWorkerProcess() throws Exception
+    {
+        RWorkerJob workerJob = this.commandBuilder.createWorkerJob();
+        if(this.commandBuilder.isVerbose())
+        {
+            final int permutationCount =
+                this.commandBuilder.getPermutationCount();
+            this.setProgress(0, permutationCount);
+            workerJob.addOutputListener(new RWorkerOutputListener()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public void outputLineRead(RWorkerJob job, String line)
+                {
+                    Matcher matcher = PERMUTATION_PROGRESS_PATTERN.matcher(line);
+                    if(matcher.find())
+                    {
+                        MaanovaTestJob.this.setProgress(
+                                Math.min(
+                                        permutationCount,
+                                        Integer.parseInt(matcher.group(1))),
+                                permutationCount);
+                    }
+                }
+            });
+        }
+        
+        this.workerJob = workerJob;
+        RWorkerPool workerPool = RWorkerPool.getInstance();
+        if(this.isCanceled())
+        {
+            workerPool.cancel(workerJob);
+        }
+        RWorkerPool.waitForJob(workerPool.submit(workerJob));
+    }
+    
+    /**
+     * let everyone know that there's a new or updated test result
+     */
+    private void testResultUpdated()
+    {
+        // if we just overwrote an existing test result any cached values
+        // are stale
+        if(this.experiment != null && this.testResultName != null)
+        {
+            this.experiment.removeTestResultCache(this.testResultName);
+        }
+        
+        MaanovaProjectManager projectManager = MaanovaProjectManager.getInstance();
+        projectManager.notifyActiveProjectModified();
+        projectManager.refreshProjectDataStructures();
+    }
+}
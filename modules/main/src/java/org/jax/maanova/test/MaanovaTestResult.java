@@ -22,9 +22,12 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.madata.ProbesetDictionary;
 import org.jax.maanova.madata.ProbesetRow;
+import org.jax.maanova.project.LazyRObjectRegistry;
+import org.jax.maanova.test.gui.FoldChangeStatisticItem;
+import org.jax.maanova.test.gui.StatisticItem;
 import org.jax.maanova.test.gui.TestStatisticItem;
-import org.jax.r.RCommand;
 import org.jax.r.RCommandParameter;
 import org.jax.r.RMethodInvocationCommand;
 import org.jax.r.RUtilities;
@@ -57,6 +60,8 @@ public class MaanovaTestResult extends RObject
 
     private final MicroarrayExperiment parentExperiment;
     
+    private final MaanovaTestResultCache cache;
+    
     private volatile TestType testType = null;
     
     /**
@@ -73,6 +78,8 @@ public class MaanovaTestResult extends RObject
         super(parentExperiment.getRInterface(), accessorExpressionString);
         
         this.parentExperiment = parentExperiment;
+        this.cache = parentExperiment.getTestResultCache(
+                accessorExpressionString);
     }
     
     /**
@@ -97,7 +104,8 @@ public class MaanovaTestResult extends RObject
     }
     
     /**
-     * Get all of the top-level R objects whose class is {@value #R_CLASS_STRING}
+     * Get all of the top-level R objects whose class is {@value #R_CLASS_STRING}.
+     * This doesn't read objects from a lazily loaded project into R
      * @param rInterface
      *          the R interface to extract the objects from
      * @return
@@ -105,7 +113,7 @@ public class MaanovaTestResult extends RObject
      */
     public static List<RObject> getAllMaanovaTestRObjects(RInterface rInterface)
     {
-        List<RObject> fitIdentifiers = JRIUtilityFunctions.getTopLevelObjectsOfType(
+        List<RObject> fitIdentifiers = LazyRObjectRegistry.getTopLevelObjectsOfType(
                 rInterface,
                 R_CLASS_STRING);
         
@@ -145,11 +153,35 @@ public class MaanovaTestResult extends RObject
      */
     public Double[] getFoldChangeValues(int plotIndex)
     {
+        return this.getFoldChangeColumn(plotIndex).toBoxedValues();
+    }
+    
+    /**
+     * Same as {@link #getFoldChangeValues(int)} except that the values are
+     * returned as a primitive column which is only pulled out of R the first
+     * time it is requested
+     * @param plotIndex
+     *          the index of the plot (t-tests will have one plot per
+     *          contrast row, f-tests will have a single plot)
+     * @return
+     *          the fold change column
+     */
+    public StatisticColumn getFoldChangeColumn(int plotIndex)
+    {
+        StatisticColumn cachedColumn = this.cache.getColumn(
+                null,
+                null,
+                plotIndex);
+        if(cachedColumn != null)
+        {
+            return cachedColumn;
+        }
+        
         RMethodInvocationCommand fcValsMethod = new RMethodInvocationCommand(
                 FOLD_CHANGE_VALS_METHOD,
                 new RCommandParameter(this.getAccessorExpressionString()));
         
-        final RCommand rCmd;
+        final String fcValsExpression;
         switch(this.getTestType())
         {
             case F_TEST:
@@ -160,7 +192,7 @@ public class MaanovaTestResult extends RObject
                 RMethodInvocationCommand vecFcValsMethod = new RMethodInvocationCommand(
                         "as.vector",
                         new RCommandParameter(fcValsMethod.getCommandText()));
-                rCmd = new SilentRCommand(vecFcValsMethod);
+                fcValsExpression = vecFcValsMethod.getCommandText();
             }
             break;
             
@@ -176,7 +208,7 @@ public class MaanovaTestResult extends RObject
                 String indexedFcVals = RUtilities.columnIndexExpression(
                         matFcValsMethod.getCommandText(),
                         plotIndex);
-                rCmd = new SilentRCommand(indexedFcVals);
+                fcValsExpression = indexedFcVals;
             }
             break;
             
@@ -184,9 +216,12 @@ public class MaanovaTestResult extends RObject
                     "Failed to determine if this is a t-test or f-test");
         }
         
-        REXP vals = this.getRInterface().evaluateCommand(rCmd);
+        StatisticColumn column = MaanovaTestStatistics.evaluateColumn(
+                this.getRInterface(),
+                fcValsExpression);
+        this.cache.putColumn(null, null, plotIndex, column);
         
-        return JRIUtilityFunctions.extractDoubleValues(vals);
+        return column;
     }
     
     /**
@@ -201,16 +236,27 @@ public class MaanovaTestResult extends RObject
         String statComponent =
             this.getAccessorExpressionString() +
             statType.getRComponentAccessorString();
-        boolean statComponentIsNull = JRIUtilityFunctions.isNull(
-                this.getRInterface(),
-                statComponent);
-        if(statComponentIsNull)
+        
+        Boolean statComponentIsPresent = this.cache.getComponentPresence(statType);
+        if(statComponentIsPresent == null)
         {
-            return null;
+            statComponentIsPresent = !JRIUtilityFunctions.isNull(
+                    this.getRInterface(),
+                    statComponent);
+            this.cache.putComponentPresence(statType, statComponentIsPresent);
+        }
+        
+        if(statComponentIsPresent.booleanValue())
+        {
+            return new MaanovaTestStatistics(
+                    this.getRInterface(),
+                    statComponent,
+                    statType,
+                    this.cache);
         }
         else
         {
-            return new MaanovaTestStatistics(this.getRInterface(), statComponent);
+            return null;
         }
     }
     
@@ -249,11 +295,31 @@ public class MaanovaTestResult extends RObject
      */
     public String[] getProbesetIds()
     {
-        SilentRCommand probesetIdsCommand = new SilentRCommand(
-                this.probesetIdAcessor());
-        REXP probesetIdsExpr = this.getRInterface().evaluateCommand(
-                probesetIdsCommand);
-        return probesetIdsExpr.asStringArray();
+        return this.getProbesetDictionary().getProbesetIds();
+    }
+    
+    /**
+     * Get the dictionary of this test's probeset IDs from the cache
+     * pulling them out of R if they haven't been cached yet. This is
+     * shared with the parent experiment as long as the IDs are the same
+     * @return
+     *          the dictionary
+     */
+    public ProbesetDictionary getProbesetDictionary()
+    {
+        ProbesetDictionary probesetDictionary = this.cache.getProbesetDictionary();
+        if(probesetDictionary == null)
+        {
+            SilentRCommand probesetIdsCommand = new SilentRCommand(
+                    this.probesetIdAcessor());
+            REXP probesetIdsExpr = this.getRInterface().evaluateCommand(
+                    probesetIdsCommand);
+            probesetDictionary = this.getParentExperiment().internProbesetIds(
+                    probesetIdsExpr.asStringArray());
+            this.cache.setProbesetDictionary(probesetDictionary);
+        }
+        
+        return probesetDictionary;
     }
     
     /**
@@ -264,13 +330,7 @@ public class MaanovaTestResult extends RObject
      */
     public String getProbesetId(int probesetIndex)
     {
-        SilentRCommand probesetIdCommand = new SilentRCommand(
-                RUtilities.indexExpression(
-                        this.probesetIdAcessor(),
-                        probesetIndex));
-        REXP probesetIdsExpr = this.getRInterface().evaluateCommand(
-                probesetIdCommand);
-        return probesetIdsExpr.asString();
+        return this.getProbesetDictionary().getProbesetId(probesetIndex);
     }
     
     private String probesetIdAcessor()
@@ -332,27 +392,137 @@ public class MaanovaTestResult extends RObject
             int contrastIndex,
             TestStatisticItem[] testStatistics)
     {
-        String probesetId = this.getProbesetId(probesetIndex);
-        
-        if(probesetId == null)
+        if(probesetIndex < 0 || probesetIndex >= this.getProbesetDictionary().size())
         {
             return null;
         }
         
-        Double[] values = new Double[testStatistics.length];
-        for(int i = 0; i < values.length; i++)
+        ProbesetRow[] rows = this.getProbesetRows(
+                new int[] {probesetIndex},
+                contrastIndex,
+                testStatistics);
+        return rows == null ? null : rows[0];
+    }
+    
+    /**
+     * Getter for a contiguous block of probeset rows. See
+     * {@link #getProbesetRows(int[], int, StatisticItem[])}
+     * @param startIndex
+     *          the index of the first row (inclusive)
+     * @param endIndex
+     *          the index of the last row (exclusive)
+     * @param contrastIndex
+     *          the contrast index
+     * @param statistics
+     *          the statistics that make up the row values
+     * @return
+     *          the probeset rows or null if any of the statistics aren't
+     *          available in this test result
+     */
+    public ProbesetRow[] getProbesetRows(
+            int startIndex,
+            int endIndex,
+            int contrastIndex,
+            StatisticItem[] statistics)
+    {
+        int[] probesetIndices = new int[endIndex - startIndex];
+        for(int i = 0; i < probesetIndices.length; i++)
+        {
+            probesetIndices[i] = startIndex + i;
+        }
+        
+        return this.getProbesetRows(probesetIndices, contrastIndex, statistics);
+    }
+    
+    /**
+     * Getter for the probeset rows at the given indices. Each statistic
+     * column is pulled out of R as a whole (at most once, after which it
+     * is served from this test result's cache) so the number of R calls
+     * made does not depend on how many rows are requested. Missing values
+     * are null in the returned rows.
+     * @param probesetIndices
+     *          the indices of the rows that we want
+     * @param contrastIndex
+     *          the contrast index
+     * @param statistics
+     *          the statistics that make up the row values. These can be
+     *          {@link TestStatisticItem}s or {@link FoldChangeStatisticItem}s
+     * @return
+     *          the probeset rows (in the same order as the given indices)
+     *          or null if any of the statistics aren't available in this
+     *          test result
+     */
+    public ProbesetRow[] getProbesetRows(
+            int[] probesetIndices,
+            int contrastIndex,
+            StatisticItem[] statistics)
+    {
+        StatisticColumn[] columns = new StatisticColumn[statistics.length];
+        for(int i = 0; i < columns.length; i++)
         {
-            values[i] = this.getStatisticsValue(
-                    probesetIndex,
-                    testStatistics[i],
-                    contrastIndex);
-            if(values[i] == null)
+            columns[i] = this.getStatisticColumn(statistics[i], contrastIndex);
+            if(columns[i] == null)
             {
                 return null;
             }
         }
         
-        return new ProbesetRow(probesetId, values, probesetIndex);
+        ProbesetDictionary probesetDictionary = this.getProbesetDictionary();
+        ProbesetRow[] rows = new ProbesetRow[probesetIndices.length];
+        for(int rowIndex = 0; rowIndex < rows.length; rowIndex++)
+        {
+            int probesetIndex = probesetIndices[rowIndex];
+            Double[] values = new Double[columns.length];
+            for(int colIndex = 0; colIndex < columns.length; colIndex++)
+            {
+                if(!columns[colIndex].isMissing(probesetIndex))
+                {
+                    values[colIndex] = columns[colIndex].getValue(probesetIndex);
+                }
+            }
+            
+            rows[rowIndex] = new ProbesetRow(
+                    probesetDictionary.getProbesetId(probesetIndex),
+                    values,
+                    probesetIndex);
+        }
+        
+        return rows;
+    }
+    
+    /**
+     * Get the column for the given statistic item
+     * @param statisticItem
+     *          the statistic item
+     * @param contrastIndex
+     *          the contrast index
+     * @return
+     *          the column or null if the statistic isn't available
+     */
+    public StatisticColumn getStatisticColumn(
+            StatisticItem statisticItem,
+            int contrastIndex)
+    {
+        if(statisticItem instanceof FoldChangeStatisticItem)
+        {
+            return this.getFoldChangeColumn(contrastIndex);
+        }
+        else
+        {
+            TestStatisticItem testStatisticItem = (TestStatisticItem)statisticItem;
+            MaanovaTestStatistics stats =
+                this.getStatistics(testStatisticItem.getTestStatisticType());
+            if(stats == null)
+            {
+                return null;
+            }
+            else
+            {
+                return stats.getColumn(
+                        testStatisticItem.getTestStatisticSubtype(),
+                        contrastIndex);
+            }
+        }
     }
 
     /**
@@ -364,5 +534,7 @@ public class MaanovaTestResult extends RObject
                 "rm",
                 new RCommandParameter(this.getAccessorExpressionString()));
         this.getRInterface().evaluateCommandNoReturn(rmMethod);
+        this.parentExperiment.removeTestResultCache(
+                this.getAccessorExpressionString());
     }
 }
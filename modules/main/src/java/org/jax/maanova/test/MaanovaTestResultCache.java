@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jax.maanova.madata.ProbesetDictionary;
+
+/**
+ * A columnar cache for the values held in a single R/maanova matest object.
+ * Every statistic/subtype/contrast column is pulled out of R at most once
+ * and then served from here until {@link #clear()} is called (which should
+ * happen whenever the underlying R object is replaced or removed).
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class MaanovaTestResultCache
+{
+    private final Map<ColumnKey, StatisticColumn> columns =
+        new HashMap<ColumnKey, StatisticColumn>();
+    
+    private final Map<Object, Boolean> componentPresence =
+        new HashMap<Object, Boolean>();
+    
+    private ProbesetDictionary probesetDictionary = null;
+    
+    /**
+     * Determine if we already know what the column is (null columns are
+     * cached too so that we don't keep asking R about them)
+     * @param statisticType
+     *          the statistic type (null for fold change)
+     * @param statisticSubtype
+     *          the subtype (null for fold change)
+     * @param contrastIndex
+     *          the contrast index
+     * @return
+     *          true if the column is cached
+     */
+    synchronized boolean containsColumn(
+            MaanovaTestStatisticType statisticType,
+            MaanovaTestStatisticSubtype statisticSubtype,
+            int contrastIndex)
+    {
+        return this.columns.containsKey(new ColumnKey(
+                statisticType,
+                statisticSubtype,
+                contrastIndex));
+    }
+    
+    /**
+     * Get the cached column
+     * @param statisticType
+     *          the statistic type (null for fold change)
+     * @param statisticSubtype
+     *          the subtype (null for fold change)
+     * @param contrastIndex
+     *          the contrast index
+     * @return
+     *          the column or null if it isn't cached or if it is cached
+     *          as missing (see {@link #containsColumn})
+     */
+    synchronized StatisticColumn getColumn(
+            MaanovaTestStatisticType statisticType,
+            MaanovaTestStatisticSubtype statisticSubtype,
+            int contrastIndex)
+    {
+        return this.columns.get(new ColumnKey(
+                statisticType,
+                statisticSubtype,
+                contrastIndex));
+    }
+    
+    /**
+     * Put the given column in the cache
+     * @param statisticType
+     *          the statistic type (null for fold change)
+     * @param statisticSubtype
+     *          the subtype (null for fold change)
+     * @param contrastIndex
+     *          the contrast index
+     * @param column
+     *          the column (null means that the component doesn't exist)
+     */
+    synchronized void putColumn(
+            MaanovaTestStatisticType statisticType,
+            MaanovaTestStatisticSubtype statisticSubtype,
+            int contrastIndex,
+            StatisticColumn column)
+    {
+        this.columns.put(
+                new ColumnKey(statisticType, statisticSubtype, contrastIndex),
+                column);
+    }
+    
+    /**
+     * Get the cached presence for the given component
+     * @param componentKey
+     *          the component key (a statistic type or a type/subtype pair)
+     * @return
+     *          the presence or null if it isn't cached
+     */
+    synchronized Boolean getComponentPresence(Object componentKey)
+    {
+        return this.componentPresence.get(componentKey);
+    }
+    
+    /**
+     * Cache the presence of a component
+     * @param componentKey
+     *          the component key (a statistic type or a type/subtype pair)
+     * @param present
+     *          true if the component is non-null in R
+     */
+    synchronized void putComponentPresence(Object componentKey, boolean present)
+    {
+        this.componentPresence.put(componentKey, present);
+    }
+    
+    /**
+     * Getter for the cached probeset dictionary
+     * @return the dictionary or null if it isn't cached
+     */
+    synchronized ProbesetDictionary getProbesetDictionary()
+    {
+        return this.probesetDictionary;
+    }
+    
+    /**
+     * Setter for the cached probeset dictionary
+     * @param probesetDictionary the dictionary
+     */
+    synchronized void setProbesetDictionary(ProbesetDictionary probesetDictionary)
+    {
+        this.probesetDictionary = probesetDictionary;
+    }
+    
+    /**
+     * Throw away everything that is cached. This should be called any time
+     * that the underlying R object changes.
+     */
+    public synchronized void clear()
+    {
+        this.columns.clear();
+        this.componentPresence.clear();
+        this.probesetDictionary = null;
+    }
+    
+    /**
+     * Key type for our column map
+     */
+    private static final class ColumnKey
+    {
+        private final MaanovaTestStatisticType statisticType;
+        
+        private final MaanovaTestStatisticSubtype statisticSubtype;
+        
+        private final int contrastIndex;
+        
+        /**
+         * Constructor
+         * @param statisticType
+         *          the statistic type (null for fold change)
+         * @param statisticSubtype
+         *          the subtype (null for fold change)
+         * @param contrastIndex
+         *          the contrast index
+         */
+        public ColumnKey(
+                MaanovaTestStatisticType statisticType,
+                MaanovaTestStatisticSubtype statisticSubtype,
+                int contrastIndex)
+        {
+            this.statisticType = statisticType;
+            this.statisticSubtype = statisticSubtype;
+            this.contrastIndex = contrastIndex;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            int hash = this.contrastIndex;
+            if(this.statisticType != null)
+            {
+                hash ^= this.statisticType.hashCode() << 8;
+            }
+            if(this.statisticSubtype != null)
+            {
+                hash ^= this.statisticSubtype.hashCode() << 16;
+            }
+            return hash;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object otherObj)
+        {
+            if(otherObj instanceof ColumnKey)
+            {
+                ColumnKey otherKey = (ColumnKey)otherObj;
+                return
+                    this.statisticType == otherKey.statisticType &&
+                    this.statisticSubtype == otherKey.statisticSubtype &&
+                    this.contrastIndex == otherKey.contrastIndex;
+            }
+            else
+            {
+                return false;
+            }
+        }
+    }
+}
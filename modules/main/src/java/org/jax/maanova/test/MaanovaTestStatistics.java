@@ -17,6 +17,8 @@
 
 package org.jax.maanova.test;
 
+import org.jax.r.RCommandParameter;
+import org.jax.r.RMethodInvocationCommand;
 import org.jax.r.RUtilities;
 import org.jax.r.jriutilities.JRIUtilityFunctions;
 import org.jax.r.jriutilities.RInterface;
@@ -30,6 +32,10 @@ import org.rosuda.JRI.REXP;
  */
 public class MaanovaTestStatistics extends RObject
 {
+    private final MaanovaTestStatisticType statisticType;
+    
+    private final MaanovaTestResultCache cache;
+    
     /**
      * Constructor
      * @param rInterface
@@ -40,8 +46,32 @@ public class MaanovaTestStatistics extends RObject
     public MaanovaTestStatistics(
             RInterface rInterface,
             String accessorExpressionString)
+    {
+        this(rInterface, accessorExpressionString, null, null);
+    }
+    
+    /**
+     * Constructor for statistics whose values should be served from
+     * the given cache
+     * @param rInterface
+     *          the R interface
+     * @param accessorExpressionString
+     *          the accessor
+     * @param statisticType
+     *          the statistic type that this accessor points to
+     * @param cache
+     *          the cache to use (null means don't cache)
+     */
+    MaanovaTestStatistics(
+            RInterface rInterface,
+            String accessorExpressionString,
+            MaanovaTestStatisticType statisticType,
+            MaanovaTestResultCache cache)
     {
         super(rInterface, accessorExpressionString);
+        
+        this.statisticType = statisticType;
+        this.cache = cache;
     }
     
     /**
@@ -72,46 +102,143 @@ public class MaanovaTestStatistics extends RObject
      */
     public boolean hasTestStatistic(MaanovaTestStatisticSubtype testStatistic)
     {
+        String presenceKey = null;
+        if(this.cache != null)
+        {
+            presenceKey = this.statisticType.name() + testStatistic.name();
+            Boolean cachedPresence = this.cache.getComponentPresence(presenceKey);
+            if(cachedPresence != null)
+            {
+                return cachedPresence.booleanValue();
+            }
+        }
+        
         String componentId =
                 this.getAccessorExpressionString() +
                 testStatistic.getRComponentAccessorString();
         
-        return !JRIUtilityFunctions.isNull(this.getRInterface(), componentId);
+        boolean present = !JRIUtilityFunctions.isNull(
+                this.getRInterface(),
+                componentId);
+        if(this.cache != null)
+        {
+            this.cache.putComponentPresence(presenceKey, present);
+        }
+        
+        return present;
     }
     
     /**
-     * Extracts doubles from the given statistic using
-     * {@link JRIUtilityFunctions#extractDoubleValues(REXP)}
+     * Get the column of values for the given statistic. The column is only
+     * pulled out of R the first time that it is requested. After that it
+     * is served from the test result's cache.
      * @param testStatistic
      *          the test statistic to extract
      * @param contrastIndex
      *          for a test that includes a number of contrasts
      * @return
-     *          the double values
+     *          the column or null if the statistic isn't available
      */
-    public Double[] getValues(
+    public StatisticColumn getColumn(
             MaanovaTestStatisticSubtype testStatistic,
             int contrastIndex)
     {
+        if(this.cache != null && this.cache.containsColumn(
+                this.statisticType,
+                testStatistic,
+                contrastIndex))
+        {
+            return this.cache.getColumn(
+                    this.statisticType,
+                    testStatistic,
+                    contrastIndex);
+        }
+        
         String componentId = RUtilities.columnIndexExpression(
                 this.getAccessorExpressionString() + testStatistic.getRComponentAccessorString(),
                 contrastIndex);
+        final StatisticColumn column;
         if(JRIUtilityFunctions.isNull(this.getRInterface(), componentId))
+        {
+            column = null;
+        }
+        else
+        {
+            column = evaluateColumn(this.getRInterface(), componentId);
+        }
+        
+        if(this.cache != null)
+        {
+            this.cache.putColumn(
+                    this.statisticType,
+                    testStatistic,
+                    contrastIndex,
+                    column);
+        }
+        
+        return column;
+    }
+    
+    /**
+     * Evaluate the given R expression as a numeric vector and wrap the result
+     * in a column
+     * @param rInterface
+     *          the R interface to evaluate against
+     * @param expression
+     *          the expression
+     * @return
+     *          the column
+     */
+    static StatisticColumn evaluateColumn(
+            RInterface rInterface,
+            String expression)
+    {
+        // as.numeric makes sure that we get doubles back from JRI (even if
+        // the underlying data is integer) so that NA comes through as NaN
+        REXP columnExpr = rInterface.evaluateCommand(new SilentRCommand(
+                new RMethodInvocationCommand(
+                        "as.numeric",
+                        new RCommandParameter(expression))));
+        double[] values = columnExpr.asDoubleArray();
+        if(values == null)
+        {
+            values = new double[0];
+        }
+        
+        return new StatisticColumn(values);
+    }
+    
+    /**
+     * Extracts doubles from the given statistic. Missing values will be null
+     * just like {@link JRIUtilityFunctions#extractDoubleValues(REXP)}. Use
+     * {@link #getColumn(MaanovaTestStatisticSubtype, int)} if you can work
+     * with primitive values
+     * @param testStatistic
+     *          the test statistic to extract
+     * @param contrastIndex
+     *          for a test that includes a number of contrasts
+     * @return
+     *          the double values
+     */
+    public Double[] getValues(
+            MaanovaTestStatisticSubtype testStatistic,
+            int contrastIndex)
+    {
+        StatisticColumn column = this.getColumn(testStatistic, contrastIndex);
+        if(column == null)
         {
             return null;
         }
         else
         {
-            REXP componentExpr = this.getRInterface().evaluateCommand(new SilentRCommand(
-                    componentId));
-            Double[] values = JRIUtilityFunctions.extractDoubleValues(componentExpr);
-            
-            return values;
+            return column.toBoxedValues();
         }
     }
     
     /**
-     * Extracts double from the given statistic using
+     * Extracts a single double from the given statistic. This goes through
+     * the same column cache as {@link #getColumn(MaanovaTestStatisticSubtype, int)}
+     * so prefer pulling whole columns when you need more than one value
      * @param probesetIndex
      *          the probeset index to use
      * @param testStatistic
@@ -126,20 +253,14 @@ public class MaanovaTestStatistics extends RObject
             MaanovaTestStatisticSubtype testStatistic,
             int contrastIndex)
     {
-        String componentId = RUtilities.columnIndexExpression(
-                this.getAccessorExpressionString() + testStatistic.getRComponentAccessorString(),
-                contrastIndex);
-        if(JRIUtilityFunctions.isNull(this.getRInterface(), componentId))
+        StatisticColumn column = this.getColumn(testStatistic, contrastIndex);
+        if(column == null || column.isMissing(probesetIndex))
         {
             return null;
         }
         else
         {
-            REXP componentExpr = this.getRInterface().evaluateCommand(new SilentRCommand(
-                    RUtilities.indexExpression(componentId, probesetIndex)));
-            double value = componentExpr.asDouble();
-            
-            return value == Double.NaN ? null : value;
+            return column.getValue(probesetIndex);
         }
     }
 }
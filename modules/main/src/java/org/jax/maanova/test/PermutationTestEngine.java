@@ -0,0 +1,2009 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jax.maanova.fit.FitMaanovaResult;
+import org.jax.maanova.fit.InteractivePredictor;
+import org.jax.maanova.fit.LeastSquaresProjector;
+import org.jax.maanova.fit.ModelDesignMatrix;
+import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.madata.MicroarrayExperimentDesign;
+import org.jax.maanova.test.TestModelCommandBuilder.ShuffleMethod;
+import org.jax.r.RUtilities;
+import org.jax.r.jriutilities.RInterface;
+import org.jax.r.jriutilities.SilentRCommand;
+import org.jax.util.concurrent.SimpleLongRunningTask;
+import org.rosuda.JRI.REXP;
+
+/**
+ * A multi-threaded replacement for the permutation part of R/maanova's
+ * matest(...) for fixed effect models. R/maanova is used to calculate the
+ * observed statistics (with permutations turned off) and then this engine
+ * carries out the permutations across all of the available processors
+ * and adds the {@code $Pvalperm} and {@code $Pvalmax} components to the
+ * test result.
+ * <p>
+ * Every permutation gets its own random stream which is derived from the
+ * seed and the permutation's index, so for a given seed the results are
+ * the same no matter how many threads are used or how the permutations
+ * are scheduled. The permuted statistics are always compared against
+ * observed statistics that are calculated the same way in Java.
+ * </p>
+ * <p>
+ * When samples (rather than residuals) are shuffled the engine shuffles
+ * whole data columns. That only matches R/maanova shuffling the tested
+ * term's labels when the tested term is the only term in a one color
+ * model, so other fits have to be left to R (see {@link #isFitSupported()}).
+ * </p>
+ * <p>
+ * In adaptive mode (see
+ * {@link TestModelCommandBuilder#getAdaptivePermutations()}) a probeset
+ * stops being permuted as soon as the confidence interval of its nominal
+ * p-value is entirely above or below the significance level, so only the
+ * borderline probesets get the full permutation count. Pooling is never
+ * used in this mode (see {@link TestModelCommandBuilder#getPoolPValues()})
+ * and the max-statistic ({@code $Pvalmax}) p-values, which need every
+ * probeset in every permutation, come from the initial
+ * {@value #ADAPTIVE_INITIAL_PERMUTATIONS} permutations only. The test result
+ * is labeled with a {@value #PVALMAX_PERMUTATIONS_ATTRIBUTE} attribute
+ * saying how many permutations that was.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class PermutationTestEngine
+extends SimpleLongRunningTask
+{
+    /**
+     * our logger
+     */
+    private static final Logger LOG = Logger.getLogger(
+            PermutationTestEngine.class.getName());
+    
+    /**
+     * the number of probeset rows that we pull out of R at a time
+     */
+    private static final int ROWS_PER_BLOCK = 5000;
+    
+    /**
+     * in adaptive mode this many permutations are run on every probeset
+     * before any of them are allowed to stop. these are also the
+     * permutations that the pooled and max-statistic p-values come from
+     */
+    private static final int ADAPTIVE_INITIAL_PERMUTATIONS = 100;
+    
+    /**
+     * the test result attribute that records how many permutations the
+     * $Pvalmax values came from in adaptive mode
+     */
+    private static final String PVALMAX_PERMUTATIONS_ATTRIBUTE =
+        "Pvalmax.permutations";
+    
+    /**
+     * in adaptive mode we decide which probesets are still undecided after
+     * every batch of this many permutations
+     */
+    private static final int ADAPTIVE_BATCH_PERMUTATIONS = 100;
+    
+    /**
+     * the normal quantile used for the p-value confidence intervals in
+     * adaptive mode. this is a bit wider than a 99% interval since we take
+     * a look after every batch
+     */
+    private static final double ADAPTIVE_CONFIDENCE_Z = 3.0;
+    
+    /**
+     * the statistics that we permute along with the R components that
+     * hold them
+     */
+    private static final MaanovaTestStatisticType[] STATISTIC_TYPES =
+        MaanovaTestStatisticType.values();
+    
+    private final RInterface rInterface;
+    
+    private final MicroarrayExperiment experiment;
+    
+    private final TestModelCommandBuilder commandBuilder;
+    
+    private final int threadCount;
+    
+    private volatile boolean canceled = false;
+    
+    private final AtomicInteger permutationsCompleted = new AtomicInteger();
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the data comes from and that the
+     *          result is assigned in
+     * @param experiment
+     *          the experiment being tested
+     * @param commandBuilder
+     *          the command builder describing the test (see
+     *          {@link #isTestSupported(TestModelCommandBuilder)})
+     */
+    public PermutationTestEngine(
+            RInterface rInterface,
+            MicroarrayExperiment experiment,
+            TestModelCommandBuilder commandBuilder)
+    {
+        this(rInterface,
+             experiment,
+             commandBuilder,
+             Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor
+     * @param rInterface
+     *          the R interface that the data comes from and that the
+     *          result is assigned in
+     * @param experiment
+     *          the experiment being tested
+     * @param commandBuilder
+     *          the command builder describing the test (see
+     *          {@link #isTestSupported(TestModelCommandBuilder)})
+     * @param threadCount
+     *          the number of worker threads to use
+     */
+    public PermutationTestEngine(
+            RInterface rInterface,
+            MicroarrayExperiment experiment,
+            TestModelCommandBuilder commandBuilder,
+            int threadCount)
+    {
+        this.rInterface = rInterface;
+        this.experiment = experiment;
+        this.commandBuilder = commandBuilder;
+        this.threadCount = Math.max(1, threadCount);
+    }
+    
+    /**
+     * Determine if the test described by the given command builder can be
+     * carried out by this engine. Only the parts of the test that are
+     * known before the fit is examined are checked here. The fit itself
+     * is checked by {@link #isFitSupported()}
+     * @param commandBuilder
+     *          the command builder
+     * @return
+     *          true if the test has permutations and terms to test (and
+     *          only one term if the test uses a contrast)
+     */
+    public static boolean isTestSupported(TestModelCommandBuilder commandBuilder)
+    {
+        String[] termsToTest = commandBuilder.getTermsToTest();
+        boolean contrastTest =
+            commandBuilder.getTestType() == TestType.T_TEST ||
+            commandBuilder.getFTestContrastMatrix() != null;
+        return
+            commandBuilder.getPermutationCount() >= 2 &&
+            termsToTest != null && termsToTest.length >= 1 &&
+            !(contrastTest && termsToTest.length != 1);
+    }
+    
+    /**
+     * Determine if the fit that the test is run on can be handled by this
+     * engine. This asks R about the fit so it should be called off of the
+     * AWT thread
+     * @return
+     *          true if {@link #test()} can handle the fit. If not the
+     *          test should be run by R/maanova instead
+     */
+    public boolean isFitSupported()
+    {
+        String fitName = this.commandBuilder.getFitResultParameter();
+        return fitName != null && this.getUnsupportedFitReason(fitName) == null;
+    }
+    
+    /**
+     * Check the fit against what this engine can do
+     * @param fitName
+     *          the fit's identifier
+     * @return
+     *          a message saying why the fit isn't supported or null if
+     *          it is supported
+     */
+    private String getUnsupportedFitReason(String fitName)
+    {
+        REXP s2ColumnsExpr = this.rInterface.evaluateCommand(new SilentRCommand(
+                "as.numeric(NCOL(" + fitName + "$S2))"));
+        if(s2ColumnsExpr.asDouble() > 1.0)
+        {
+            return
+                "The Java permutation engine only supports fits " +
+                "without random terms";
+        }
+        
+        if(this.commandBuilder.getShuffleMethod() == ShuffleMethod.SAMPLE)
+        {
+            // shuffling data columns moves each sample's array and dye
+            // effects along with it, so it's only the same as shuffling the
+            // tested term's labels when nothing else is in the model
+            InteractivePredictor[] predictors = this.evaluateTermLabels(
+                    fitName + "$model$formula");
+            InteractivePredictor[] covariates = this.evaluateTermLabels(
+                    fitName + "$model$covariate");
+            String[] termsToTest = this.commandBuilder.getTermsToTest();
+            boolean onlyTestedTerm =
+                predictors.length == 1 &&
+                covariates.length == 0 &&
+                predictors[0].isSingleTerm() &&
+                termsToTest.length == 1 &&
+                Arrays.asList(predictors[0].getInteractiveTerms()).contains(
+                        termsToTest[0]);
+            if(!onlyTestedTerm || this.experiment.getDyeCount() != 1)
+            {
+                return
+                    "The Java permutation engine can only shuffle samples " +
+                    "for one color fits of the tested term alone";
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Cancel the test. The observed statistics that R/maanova calculated
+     * are left in place but no permutation p-values are added
+     */
+    public void cancel()
+    {
+        this.canceled = true;
+    }
+    
+    /**
+     * Determine if the test has been canceled
+     * @return
+     *          true if {@link #cancel()} has been called
+     */
+    public boolean isCanceled()
+    {
+        return this.canceled;
+    }
+    
+    /**
+     * Carry out the test. This blocks until the test is done
+     * @throws IOException
+     *          if we fail to write the results out for R
+     * @throws IllegalArgumentException
+     *          if the test isn't supported
+     * @throws CancellationException
+     *          if the test is canceled before the permutations finish
+     */
+    public void test()
+    throws IOException, IllegalArgumentException, CancellationException
+    {
+        TestModelCommandBuilder commandBuilder = this.commandBuilder;
+        String testResultName = commandBuilder.getTestResultDataName();
+        String fitName = commandBuilder.getFitResultParameter();
+        if(!isTestSupported(commandBuilder) || testResultName == null ||
+           fitName == null)
+        {
+            throw new IllegalArgumentException(
+                    "The Java permutation engine needs a named test with " +
+                    "terms to test and at least two permutations");
+        }
+        testResultName = testResultName.trim();
+        
+        int permutationCount = commandBuilder.getPermutationCount();
+        this.setTotalWorkUnits(permutationCount);
+        this.setWorkUnitsCompleted(0);
+        this.permutationsCompleted.set(0);
+        
+        // work out the hypotheses before asking R to do anything so that
+        // unsupported models fail fast
+        TestModel model = this.createTestModel(fitName);
+        
+        this.rInterface.insertComment(
+                "the following test is run without permutations. The " +
+                "permutations are carried out by J/maanova's " +
+                commandBuilder.getBackend() + " engine");
+        this.rInterface.evaluateCommand(
+                commandBuilder.getCommandWithoutPermutations());
+        
+        boolean[] statisticPresent = new boolean[STATISTIC_TYPES.length];
+        for(int i = 0; i < STATISTIC_TYPES.length; i++)
+        {
+            REXP presentExpr = this.rInterface.evaluateCommand(new SilentRCommand(
+                    "as.numeric(!is.null(" + testResultName +
+                    STATISTIC_TYPES[i].getRComponentAccessorString() + "))"));
+            statisticPresent[i] = presentExpr.asDouble() != 0.0;
+        }
+        
+        double[][] data = this.loadData(fitName, model.getArrayCount());
+        StatisticsCalculator observedCalculator = new StatisticsCalculator(model);
+        double[][][] observed = observedCalculator.calculate(data, null, null, null);
+        for(int i = 0; i < STATISTIC_TYPES.length; i++)
+        {
+            statisticPresent[i] &= observed[i] != null;
+        }
+        
+        // the reduced model fit is what we shuffle residuals around
+        double[][] reducedFittedValues = null;
+        if(commandBuilder.getShuffleMethod() == ShuffleMethod.RESIDUAL)
+        {
+            reducedFittedValues = observedCalculator.fitReducedModel(data);
+        }
+        
+        ExceedanceCounts counts = this.permute(
+                model,
+                data,
+                reducedFittedValues,
+                observed,
+                permutationCount - 1);
+        
+        File resultFile = File.createTempFile("permutations", ".bin");
+        try
+        {
+            this.writeResultFile(
+                    counts,
+                    observed,
+                    statisticPresent,
+                    resultFile);
+            this.assignResult(
+                    testResultName,
+                    data.length,
+                    model.getHypothesisCount(),
+                    statisticPresent,
+                    resultFile);
+            
+            if(commandBuilder.getAdaptivePermutations())
+            {
+                // +1 because the observed arrangement counts as a permutation
+                int maxStatisticPermutations = 1 + Math.min(
+                        permutationCount - 1,
+                        ADAPTIVE_INITIAL_PERMUTATIONS);
+                this.rInterface.insertComment(
+                        "permutations stopped early so the Pvalmax (FWER) " +
+                        "values are only based on the first " +
+                        maxStatisticPermutations + " permutations");
+                this.rInterface.evaluateCommandNoReturn(
+                        "attr(" + testResultName + ", " +
+                        RUtilities.javaStringToRString(PVALMAX_PERMUTATIONS_ATTRIBUTE) +
+                        ") <- " + maxStatisticPermutations);
+            }
+        }
+        finally
+        {
+            if(!resultFile.delete())
+            {
+                LOG.warning(
+                        "failed to delete temporary permutation file: " +
+                        resultFile.getAbsolutePath());
+            }
+            this.setWorkUnitsCompleted(this.getTotalWorkUnits());
+        }
+    }
+    
+    /**
+     * Build up the design and hypotheses for the fit
+     */
+    private TestModel createTestModel(String fitName)
+    {
+        String unsupportedFitReason = this.getUnsupportedFitReason(fitName);
+        if(unsupportedFitReason != null)
+        {
+            throw new IllegalArgumentException(unsupportedFitReason);
+        }
+        
+        InteractivePredictor[] predictors = this.evaluateTermLabels(
+                fitName + "$model$formula");
+        InteractivePredictor[] covariates = this.evaluateTermLabels(
+                fitName + "$model$covariate");
+        if(predictors.length == 0)
+        {
+            throw new IllegalArgumentException(
+                    "Failed to read the model formula of " + fitName);
+        }
+        
+        MicroarrayExperimentDesign design = this.experiment.getDesign();
+        ModelDesignMatrix designMatrix = ModelDesignMatrix.create(
+                design.getDesignFactors(),
+                design.getDesignData(),
+                predictors,
+                covariates);
+        int[] columnPredictors = designMatrix.getColumnPredictorIndices();
+        String[] columnLevels = designMatrix.getColumnLevels();
+        int colCount = designMatrix.getColumnCount();
+        
+        // find the columns that belong to the tested terms
+        String[] termsToTest = this.commandBuilder.getTermsToTest();
+        int[] testedPredictors = new int[termsToTest.length];
+        List<double[][]> termConstraints = new ArrayList<double[][]>();
+        List<double[]> testedColumnConstraints = new ArrayList<double[]>();
+        for(int i = 0; i < termsToTest.length; i++)
+        {
+            testedPredictors[i] = -1;
+            for(int p = 0; p < predictors.length; p++)
+            {
+                String[] terms = predictors[p].getInteractiveTerms();
+                boolean containsTerm = Arrays.asList(terms).contains(termsToTest[i]);
+                if(predictors[p].isSingleTerm() && containsTerm)
+                {
+                    testedPredictors[i] = p;
+                }
+                else if(containsTerm)
+                {
+                    throw new IllegalArgumentException(
+                            "The Java permutation engine can't test " +
+                            termsToTest[i] + " because it is part of the " +
+                            "interaction " + predictors[p]);
+                }
+            }
+            
+            if(testedPredictors[i] == -1)
+            {
+                throw new IllegalArgumentException(
+                        "The fit does not contain the term " + termsToTest[i]);
+            }
+            
+            List<double[]> constraints = new ArrayList<double[]>();
+            for(int col = 0; col < colCount; col++)
+            {
+                if(columnPredictors[col] == testedPredictors[i])
+                {
+                    double[] constraint = new double[colCount];
+                    constraint[col] = 1.0;
+                    constraints.add(constraint);
+                }
+            }
+            termConstraints.add(constraints.toArray(
+                    new double[constraints.size()][]));
+            testedColumnConstraints.addAll(constraints);
+        }
+        double[][] reducedConstraints = testedColumnConstraints.toArray(
+                new double[testedColumnConstraints.size()][]);
+        
+        // each hypothesis is a set of constraints on the coefficients
+        List<double[][]> hypotheses = new ArrayList<double[][]>();
+        TestType testType = this.commandBuilder.getTestType();
+        Number[][] contrastMatrix = testType == TestType.T_TEST ?
+                this.commandBuilder.getTTestContrastMatrix() :
+                this.commandBuilder.getFTestContrastMatrix();
+        if(testType == TestType.F_TEST && contrastMatrix == null)
+        {
+            // like matest each term gets its own test
+            hypotheses.addAll(termConstraints);
+        }
+        else
+        {
+            // contrast columns go with the levels of the tested term in
+            // the order that the fit lists them
+            String[] fitLevels = new FitMaanovaResult(
+                    this.experiment,
+                    fitName).getFitTermLevels(termsToTest[0]);
+            if(fitLevels == null)
+            {
+                throw new IllegalArgumentException(
+                        "Failed to read the levels of " + termsToTest[0]);
+            }
+            
+            int[] levelColumns = new int[fitLevels.length];
+            for(int level = 0; level < fitLevels.length; level++)
+            {
+                levelColumns[level] = -1;
+                for(int col = 0; col < colCount; col++)
+                {
+                    if(columnPredictors[col] == testedPredictors[0] &&
+                       fitLevels[level].equals(columnLevels[col]))
+                    {
+                        levelColumns[level] = col;
+                    }
+                }
+                
+                if(levelColumns[level] == -1)
+                {
+                    throw new IllegalArgumentException(
+                            "The design does not contain level " +
+                            fitLevels[level] + " of " + termsToTest[0]);
+                }
+            }
+            
+            if(contrastMatrix == null)
+            {
+                contrastMatrix = createPairwiseContrasts(fitLevels.length);
+            }
+            
+            double[][] constraints = new double[contrastMatrix.length][colCount];
+            for(int row = 0; row < contrastMatrix.length; row++)
+            {
+                if(contrastMatrix[row].length != levelColumns.length)
+                {
+                    throw new IllegalArgumentException(
+                            "The contrast matrix should have one column " +
+                            "for each level of " + termsToTest[0]);
+                }
+                
+                for(int level = 0; level < levelColumns.length; level++)
+                {
+                    constraints[row][levelColumns[level]] =
+                        contrastMatrix[row][level].doubleValue();
+                }
+            }
+            
+            if(testType == TestType.T_TEST)
+            {
+                // every contrast row is tested on its own
+                for(double[] constraint: constraints)
+                {
+                    hypotheses.add(new double[][] {constraint});
+                }
+            }
+            else
+            {
+                hypotheses.add(constraints);
+            }
+        }
+        
+        double[][][] nullMatrices = new double[hypotheses.size()][][];
+        for(int i = 0; i < nullMatrices.length; i++)
+        {
+            nullMatrices[i] = designMatrix.getRestrictedMatrix(hypotheses.get(i));
+        }
+        
+        return new TestModel(
+                designMatrix.getMatrix(),
+                nullMatrices,
+                designMatrix.getRestrictedMatrix(reducedConstraints),
+                statisticsRequested(this.commandBuilder));
+    }
+    
+    /**
+     * Determine which of the statistics matest is going to calculate
+     */
+    private static boolean[] statisticsRequested(TestModelCommandBuilder commandBuilder)
+    {
+        TestModelCommandBuilder.FStatisticToCalculate fStatistic =
+            commandBuilder.getFStatisticToCalculate();
+        boolean[] requested = new boolean[STATISTIC_TYPES.length];
+        for(int i = 0; i < STATISTIC_TYPES.length; i++)
+        {
+            if(fStatistic == null ||
+               fStatistic == TestModelCommandBuilder.FStatisticToCalculate.BothFAndFsStatistics)
+            {
+                requested[i] = true;
+            }
+            else if(STATISTIC_TYPES[i] == MaanovaTestStatisticType.F_STAT)
+            {
+                requested[i] =
+                    fStatistic == TestModelCommandBuilder.FStatisticToCalculate.JustStandardFStatistic;
+            }
+            else
+            {
+                requested[i] =
+                    fStatistic == TestModelCommandBuilder.FStatisticToCalculate.JustFSStatistic;
+            }
+        }
+        
+        return requested;
+    }
+    
+    /**
+     * The same all pairs contrast that R/maanova's PairContrast(...) makes
+     */
+    private static Number[][] createPairwiseContrasts(int levelCount)
+    {
+        List<Number[]> rows = new ArrayList<Number[]>();
+        for(int i = 0; i < levelCount - 1; i++)
+        {
+            for(int j = i + 1; j < levelCount; j++)
+            {
+                Number[] row = new Number[levelCount];
+                Arrays.fill(row, Integer.valueOf(0));
+                row[i] = Integer.valueOf(1);
+                row[j] = Integer.valueOf(-1);
+                rows.add(row);
+            }
+        }
+        
+        return rows.toArray(new Number[rows.size()][]);
+    }
+    
+    /**
+     * Evaluate the term labels of the given formula
+     */
+    private InteractivePredictor[] evaluateTermLabels(String formulaExpression)
+    {
+        REXP termLabelsExpr = this.rInterface.evaluateCommand(new SilentRCommand(
+                "tryCatch(attr(terms(as.formula(" + formulaExpression +
+                ")), \"term.labels\"), error=function(e) character(0))"));
+        String[] termLabels =
+            termLabelsExpr == null ? null : termLabelsExpr.asStringArray();
+        if(termLabels == null)
+        {
+            return new InteractivePredictor[0];
+        }
+        
+        InteractivePredictor[] predictors = new InteractivePredictor[termLabels.length];
+        for(int i = 0; i < termLabels.length; i++)
+        {
+            predictors[i] = new InteractivePredictor(termLabels[i].split(":"));
+        }
+        return predictors;
+    }
+    
+    /**
+     * Pull all of the data out of R (one row per probeset) subtracting
+     * the column means if the fit did
+     */
+    private double[][] loadData(String fitName, int colCount)
+    {
+        int geneCount = this.experiment.getGeneCount();
+        REXP subtractMeansExpr = this.rInterface.evaluateCommand(new SilentRCommand(
+                "as.numeric(isTRUE(" + fitName + "$subCol))"));
+        double[] columnMeans = null;
+        if(subtractMeansExpr.asDouble() != 0.0)
+        {
+            REXP columnMeansExpr = this.rInterface.evaluateCommand(new SilentRCommand(
+                    "colMeans(" + this.experiment.getAccessorExpressionString() +
+                    "$data, na.rm=TRUE)"));
+            columnMeans = columnMeansExpr.asDoubleArray();
+        }
+        
+        double[][] data = new double[geneCount][colCount];
+        for(int blockStart = 0; blockStart < geneCount; blockStart += ROWS_PER_BLOCK)
+        {
+            int blockEnd = Math.min(blockStart + ROWS_PER_BLOCK, geneCount);
+            int blockRowCount = blockEnd - blockStart;
+            double[] block = this.experiment.getDataRowBlock(blockStart, blockEnd);
+            if(block.length != blockRowCount * colCount)
+            {
+                throw new IllegalArgumentException(
+                        "The experiment data does not have one column " +
+                        "per row of the design");
+            }
+            
+            for(int blockRow = 0; blockRow < blockRowCount; blockRow++)
+            {
+                double[] row = data[blockStart + blockRow];
+                for(int col = 0; col < colCount; col++)
+                {
+                    row[col] = block[col * blockRowCount + blockRow];
+                    if(columnMeans != null)
+                    {
+                        row[col] -= columnMeans[col];
+                    }
+                }
+            }
+        }
+        
+        return data;
+    }
+    
+    /**
+     * Carry out the permutations on the worker threads
+     */
+    private ExceedanceCounts permute(
+            TestModel model,
+            double[][] data,
+            double[][] reducedFittedValues,
+            double[][][] observed,
+            int shuffleCount) throws IOException
+    {
+        ObservedOrder observedOrder = new ObservedOrder(observed);
+        ExceedanceCounts totalCounts = new ExceedanceCounts(observedOrder);
+        ExecutorService executor = Executors.newFixedThreadPool(this.threadCount);
+        try
+        {
+            if(!this.commandBuilder.getAdaptivePermutations())
+            {
+                this.permuteBatch(
+                        executor,
+                        new PermutationBatch(
+                                model,
+                                data,
+                                reducedFittedValues,
+                                observedOrder,
+                                0,
+                                shuffleCount,
+                                null,
+                                null),
+                        totalCounts);
+                return totalCounts;
+            }
+            
+            // every probeset gets the initial permutations
+            int initialCount = Math.min(shuffleCount, ADAPTIVE_INITIAL_PERMUTATIONS);
+            this.permuteBatch(
+                    executor,
+                    new PermutationBatch(
+                            model,
+                            data,
+                            reducedFittedValues,
+                            observedOrder,
+                            0,
+                            initialCount,
+                            null,
+                            null),
+                    totalCounts);
+            
+            // after that only the undecided probesets are permuted. the Fs
+            // shrinkage is frozen at its average over the initial
+            // permutations since we no longer see every probeset
+            double[] shrinkageParameters = totalCounts.getMeanShrinkageParameters();
+            double significanceLevel =
+                this.commandBuilder.getAdaptiveSignificanceLevel();
+            for(int batchStart = initialCount;
+                batchStart < shuffleCount;
+                batchStart += ADAPTIVE_BATCH_PERMUTATIONS)
+            {
+                int[] undecidedGenes = totalCounts.getUndecidedGenes(
+                        significanceLevel);
+                if(LOG.isLoggable(Level.FINE))
+                {
+                    LOG.fine(undecidedGenes.length + " of " + data.length +
+                             " probesets are undecided after " + batchStart +
+                             " permutations");
+                }
+                
+                if(undecidedGenes.length == 0)
+                {
+                    break;
+                }
+                
+                this.permuteBatch(
+                        executor,
+                        new PermutationBatch(
+                                model,
+                                data,
+                                reducedFittedValues,
+                                observedOrder,
+                                batchStart,
+                                Math.min(shuffleCount, batchStart + ADAPTIVE_BATCH_PERMUTATIONS),
+                                undecidedGenes,
+                                shrinkageParameters),
+                        totalCounts);
+            }
+            
+            return totalCounts;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Run a batch of permutations on the worker threads and add the
+     * results to the given counts
+     */
+    private void permuteBatch(
+            ExecutorService executor,
+            PermutationBatch batch,
+            ExceedanceCounts totalCounts) throws IOException
+    {
+        List<Future<ExceedanceCounts>> workers =
+            new ArrayList<Future<ExceedanceCounts>>();
+        for(int i = 0; i < this.threadCount; i++)
+        {
+            workers.add(executor.submit(new PermutationWorker(batch)));
+        }
+        
+        for(Future<ExceedanceCounts> worker: workers)
+        {
+            try
+            {
+                totalCounts.add(worker.get());
+            }
+            catch(InterruptedException ex)
+            {
+                throw new IOException(
+                        "interrupted while waiting for permutations: " +
+                        ex.getMessage());
+            }
+            catch(ExecutionException ex)
+            {
+                if(ex.getCause() instanceof CancellationException)
+                {
+                    throw (CancellationException)ex.getCause();
+                }
+                
+                LOG.log(Level.SEVERE,
+                        "permutation worker failed",
+                        ex.getCause());
+                throw new IOException(
+                        "permutations failed: " + ex.getCause().getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Write the p-values out in the order that {@link #assignResult} reads
+     * them: for each statistic that R calculated the Pvalperm matrix then
+     * the Pvalmax matrix, both row-major
+     */
+    private void writeResultFile(
+            ExceedanceCounts counts,
+            double[][][] observed,
+            boolean[] statisticPresent,
+            File resultFile) throws IOException
+    {
+        boolean pool = this.commandBuilder.getPoolPValues();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(resultFile)));
+        try
+        {
+            for(int stat = 0; stat < STATISTIC_TYPES.length; stat++)
+            {
+                if(!statisticPresent[stat])
+                {
+                    continue;
+                }
+                
+                int hypothesisCount = observed[stat].length;
+                int geneCount = observed[stat][0].length;
+                double[][] nominal = new double[hypothesisCount][];
+                double[][] familyWise = new double[hypothesisCount][];
+                for(int h = 0; h < hypothesisCount; h++)
+                {
+                    nominal[h] = counts.getNominalPValues(stat, h, pool);
+                    familyWise[h] = counts.getFamilyWisePValues(stat, h);
+                }
+                
+                for(double[][] pValues: new double[][][] {nominal, familyWise})
+                {
+                    for(int gene = 0; gene < geneCount; gene++)
+                    {
+                        for(int h = 0; h < hypothesisCount; h++)
+                        {
+                            out.writeDouble(pValues[h][gene]);
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Read the p-values into the test result in R
+     */
+    private void assignResult(
+            String testResultName,
+            int geneCount,
+            int hypothesisCount,
+            boolean[] statisticPresent,
+            File resultFile)
+    {
+        String fileString = RUtilities.javaStringToRString(
+                resultFile.getAbsolutePath().replace('\\', '/'));
+        String readMatrix =
+            "matrix(readBin(con, \"double\", n=" +
+            ((long)geneCount * hypothesisCount) + ", endian=\"big\"), nrow=" +
+            geneCount + ", ncol=" + hypothesisCount + ", byrow=TRUE)";
+        
+        StringBuilder assignment = new StringBuilder();
+        assignment.append(testResultName);
+        assignment.append(" <- local({");
+        assignment.append("con <- file(" + fileString + ", \"rb\"); ");
+        assignment.append("result <- " + testResultName + "; ");
+        for(int stat = 0; stat < STATISTIC_TYPES.length; stat++)
+        {
+            if(statisticPresent[stat])
+            {
+                String statAccessor =
+                    "result" + STATISTIC_TYPES[stat].getRComponentAccessorString();
+                assignment.append(statAccessor +
+                        MaanovaTestStatisticSubtype.NOMINAL_VALUES.getRComponentAccessorString() +
+                        " <- " + readMatrix + "; ");
+                assignment.append(statAccessor +
+                        MaanovaTestStatisticSubtype.FWER_ADJUSTED.getRComponentAccessorString() +
+                        " <- " + readMatrix + "; ");
+            }
+        }
+        assignment.append("close(con); result})");
+        
+        this.rInterface.evaluateCommandNoReturn(assignment.toString());
+    }
+    
+    /**
+     * Called by the workers every time a permutation finishes
+     */
+    private void permutationCompleted()
+    {
+        // +1 because the observed arrangement counts as a permutation
+        int completed = this.permutationsCompleted.incrementAndGet() + 1;
+        synchronized(this)
+        {
+            if(completed > this.getWorkUnitsCompleted())
+            {
+                this.setWorkUnitsCompleted(completed);
+            }
+        }
+    }
+    
+    /**
+     * Get a well mixed seed for the given permutation so that nearby
+     * indices don't give correlated streams
+     */
+    private static long permutationSeed(long seed, int permutationIndex)
+    {
+        // this is the SplitMix64 finalizer
+        long z = seed + (permutationIndex + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getTaskName()
+    {
+        return "Permuting " + this.commandBuilder.getTestResultDataName();
+    }
+    
+    /**
+     * The design matrices for the full model, for each hypothesis and for
+     * the reduced model that residuals are shuffled under
+     */
+    private static class TestModel
+    {
+        private final double[][] fullMatrix;
+        
+        private final double[][][] nullMatrices;
+        
+        private final double[][] reducedMatrix;
+        
+        private final boolean[] statisticsRequested;
+        
+        /**
+         * Constructor
+         * @param fullMatrix
+         *          the design matrix of the fit
+         * @param nullMatrices
+         *          the design matrix under each null hypothesis
+         * @param reducedMatrix
+         *          the design matrix without the tested terms
+         * @param statisticsRequested
+         *          which of {@link PermutationTestEngine#STATISTIC_TYPES}
+         *          we need
+         */
+        public TestModel(
+                double[][] fullMatrix,
+                double[][][] nullMatrices,
+                double[][] reducedMatrix,
+                boolean[] statisticsRequested)
+        {
+            this.fullMatrix = fullMatrix;
+            this.nullMatrices = nullMatrices;
+            this.reducedMatrix = reducedMatrix;
+            this.statisticsRequested = statisticsRequested;
+        }
+        
+        public int getArrayCount()
+        {
+            return this.fullMatrix.length;
+        }
+        
+        public int getHypothesisCount()
+        {
+            return this.nullMatrices.length;
+        }
+    }
+    
+    /**
+     * The projectors for a single missing value pattern
+     */
+    private static class PatternProjectors
+    {
+        private final LeastSquaresProjector fullProjector;
+        
+        private final LeastSquaresProjector[] nullProjectors;
+        
+        private LeastSquaresProjector reducedProjector = null;
+        
+        /**
+         * Constructor
+         * @param model
+         *          the model
+         * @param observed
+         *          the observed columns or null if they all are
+         */
+        public PatternProjectors(TestModel model, boolean[] observed)
+        {
+            this.fullProjector = new LeastSquaresProjector(
+                    model.fullMatrix,
+                    observed);
+            this.nullProjectors =
+                new LeastSquaresProjector[model.nullMatrices.length];
+            for(int i = 0; i < this.nullProjectors.length; i++)
+            {
+                this.nullProjectors[i] = new LeastSquaresProjector(
+                        model.nullMatrices[i],
+                        observed);
+            }
+        }
+    }
+    
+    /**
+     * Calculates the F and Fs statistics for every probeset. Projectors
+     * are cached by missing value pattern. Instances aren't thread safe
+     */
+    private static class StatisticsCalculator
+    {
+        private final TestModel model;
+        
+        private final Map<BitSet, PatternProjectors> projectorCache =
+            new HashMap<BitSet, PatternProjectors>();
+        
+        private final BitSet noneMissing = new BitSet();
+        
+        private double[] lastShrinkageParameters = null;
+        
+        /**
+         * Constructor
+         * @param model
+         *          the model to calculate statistics for
+         */
+        public StatisticsCalculator(TestModel model)
+        {
+            this.model = model;
+        }
+        
+        private PatternProjectors getProjectors(double[] values)
+        {
+            BitSet missing = this.noneMissing;
+            for(int col = 0; col < values.length; col++)
+            {
+                if(Double.isNaN(values[col]))
+                {
+                    if(missing == this.noneMissing)
+                    {
+                        missing = new BitSet(values.length);
+                    }
+                    missing.set(col);
+                }
+            }
+            
+            PatternProjectors projectors = this.projectorCache.get(missing);
+            if(projectors == null)
+            {
+                boolean[] observed = null;
+                if(!missing.isEmpty())
+                {
+                    observed = new boolean[values.length];
+                    for(int col = 0; col < values.length; col++)
+                    {
+                        observed[col] = !missing.get(col);
+                    }
+                }
+                projectors = new PatternProjectors(this.model, observed);
+                this.projectorCache.put(missing, projectors);
+            }
+            
+            return projectors;
+        }
+        
+        /**
+         * Calculate the statistics
+         * @param data
+         *          the probeset rows
+         * @param permutedValues
+         *          if not null this is used to permute each row (see
+         *          {@link PermutationWorker})
+         * @param genes
+         *          the probesets to calculate statistics for or null for
+         *          all of them. The others come back NaN
+         * @param shrinkageParameters
+         *          the Fs variance shrinkage parameters to use or null to
+         *          estimate them from the data (see
+         *          {@link VarianceShrinkage#estimate(double[], int[])}).
+         *          These must be given if genes is
+         * @return
+         *          the statistics indexed by statistic type, hypothesis
+         *          and probeset. Types that weren't requested are null
+         */
+        public double[][][] calculate(
+                double[][] data,
+                RowPermuter permutedValues,
+                int[] genes,
+                double[] shrinkageParameters)
+        {
+            int geneCount = data.length;
+            int colCount = this.model.getArrayCount();
+            int hypothesisCount = this.model.getHypothesisCount();
+            double[][] numerators = new double[hypothesisCount][geneCount];
+            double[] variances = new double[geneCount];
+            int[] degreesOfFreedom = new int[geneCount];
+            double[] values = new double[colCount];
+            double[] fittedValues = new double[colCount];
+            
+            this.lastShrinkageParameters = null;
+            int calculatedGeneCount = geneCount;
+            if(genes != null)
+            {
+                calculatedGeneCount = genes.length;
+                Arrays.fill(variances, Double.NaN);
+                for(double[] hypothesisNumerators: numerators)
+                {
+                    Arrays.fill(hypothesisNumerators, Double.NaN);
+                }
+            }
+            
+            for(int i = 0; i < calculatedGeneCount; i++)
+            {
+                int gene = genes == null ? i : genes[i];
+                double[] row;
+                if(permutedValues == null)
+                {
+                    row = data[gene];
+                }
+                else
+                {
+                    permutedValues.permuteRow(gene, values);
+                    row = values;
+                }
+                
+                PatternProjectors projectors = this.getProjectors(row);
+                double fullRss = projectors.fullProjector.fit(row, fittedValues);
+                int df = projectors.fullProjector.getResidualDegreesOfFreedom();
+                degreesOfFreedom[gene] = df;
+                variances[gene] = df > 0 ? fullRss / df : Double.NaN;
+                
+                for(int h = 0; h < hypothesisCount; h++)
+                {
+                    LeastSquaresProjector nullProjector = projectors.nullProjectors[h];
+                    int numeratorDf =
+                        projectors.fullProjector.getRank() - nullProjector.getRank();
+                    if(numeratorDf > 0)
+                    {
+                        double nullRss = nullProjector.fit(row, fittedValues);
+                        numerators[h][gene] =
+                            Math.max(0.0, nullRss - fullRss) / numeratorDf;
+                    }
+                    else
+                    {
+                        numerators[h][gene] = Double.NaN;
+                    }
+                }
+            }
+            
+            double[][][] statistics = new double[STATISTIC_TYPES.length][][];
+            for(int stat = 0; stat < STATISTIC_TYPES.length; stat++)
+            {
+                if(!this.model.statisticsRequested[stat])
+                {
+                    continue;
+                }
+                
+                double[] errorVariances = variances;
+                if(STATISTIC_TYPES[stat] == MaanovaTestStatisticType.FS_STAT)
+                {
+                    errorVariances = new double[geneCount];
+                    if(shrinkageParameters == null)
+                    {
+                        this.lastShrinkageParameters = VarianceShrinkage.shrink(
+                                variances,
+                                degreesOfFreedom,
+                                errorVariances);
+                    }
+                    else
+                    {
+                        VarianceShrinkage.apply(
+                                variances,
+                                degreesOfFreedom,
+                                shrinkageParameters[0],
+                                shrinkageParameters[1],
+                                errorVariances);
+                    }
+                }
+                
+                statistics[stat] = new double[hypothesisCount][geneCount];
+                for(int h = 0; h < hypothesisCount; h++)
+                {
+                    for(int gene = 0; gene < geneCount; gene++)
+                    {
+                        statistics[stat][h][gene] =
+                            numerators[h][gene] / errorVariances[gene];
+                    }
+                }
+            }
+            
+            return statistics;
+        }
+        
+        /**
+         * Get the Fs shrinkage parameters that were estimated by the last
+         * call to {@link #calculate}
+         * @return
+         *          the parameters or null if they weren't estimated
+         */
+        public double[] getLastShrinkageParameters()
+        {
+            return this.lastShrinkageParameters;
+        }
+        
+        /**
+         * Fit the reduced model (the model without the tested terms)
+         * @param data
+         *          the probeset rows
+         * @return
+         *          the fitted values for each row
+         */
+        public double[][] fitReducedModel(double[][] data)
+        {
+            double[][] fittedValues = new double[data.length][];
+            for(int gene = 0; gene < data.length; gene++)
+            {
+                PatternProjectors projectors = this.getProjectors(data[gene]);
+                if(projectors.reducedProjector == null)
+                {
+                    boolean[] observed = new boolean[data[gene].length];
+                    for(int col = 0; col < observed.length; col++)
+                    {
+                        observed[col] = !Double.isNaN(data[gene][col]);
+                    }
+                    projectors.reducedProjector = new LeastSquaresProjector(
+                            this.model.reducedMatrix,
+                            observed);
+                }
+                
+                fittedValues[gene] = new double[data[gene].length];
+                projectors.reducedProjector.fit(data[gene], fittedValues[gene]);
+            }
+            
+            return fittedValues;
+        }
+    }
+    
+    /**
+     * Permutes probeset rows. The same permutation applies to every row
+     */
+    private static class RowPermuter
+    {
+        private final double[][] data;
+        
+        private final double[][] reducedFittedValues;
+        
+        private final int[] permutation;
+        
+        /**
+         * Constructor
+         * @param data
+         *          the probeset rows
+         * @param reducedFittedValues
+         *          the reduced model fit or null to shuffle the samples
+         *          rather than the residuals
+         * @param permutation
+         *          the column permutation
+         */
+        public RowPermuter(
+                double[][] data,
+                double[][] reducedFittedValues,
+                int[] permutation)
+        {
+            this.data = data;
+            this.reducedFittedValues = reducedFittedValues;
+            this.permutation = permutation;
+        }
+        
+        /**
+         * Write the permuted row to the given array
+         * @param gene
+         *          the row index
+         * @param values
+         *          the array to write to
+         */
+        public void permuteRow(int gene, double[] values)
+        {
+            double[] row = this.data[gene];
+            int[] permutation = this.permutation;
+            if(this.reducedFittedValues == null)
+            {
+                for(int col = 0; col < values.length; col++)
+                {
+                    values[col] = row[permutation[col]];
+                }
+            }
+            else
+            {
+                // shuffle the reduced model residuals
+                double[] fitted = this.reducedFittedValues[gene];
+                for(int col = 0; col < values.length; col++)
+                {
+                    int source = permutation[col];
+                    values[col] = fitted[col] + (row[source] - fitted[source]);
+                }
+            }
+        }
+    }
+    
+    /**
+     * The observed statistics sorted so that we can quickly count how many
+     * probesets a permuted statistic exceeds
+     */
+    private static class ObservedOrder
+    {
+        private final double[][][] observed;
+        
+        /**
+         * the indices of the probesets with a finite statistic ordered by
+         * increasing statistic
+         */
+        private final int[][][] order;
+        
+        private final double[][][] sortedValues;
+        
+        /**
+         * Constructor
+         * @param observed
+         *          the observed statistics
+         */
+        public ObservedOrder(double[][][] observed)
+        {
+            this.observed = observed;
+            this.order = new int[observed.length][][];
+            this.sortedValues = new double[observed.length][][];
+            for(int stat = 0; stat < observed.length; stat++)
+            {
+                if(observed[stat] == null)
+                {
+                    continue;
+                }
+                
+                this.order[stat] = new int[observed[stat].length][];
+                this.sortedValues[stat] = new double[observed[stat].length][];
+                for(int h = 0; h < observed[stat].length; h++)
+                {
+                    final double[] values = observed[stat][h];
+                    List<Integer> finiteIndices = new ArrayList<Integer>();
+                    for(int gene = 0; gene < values.length; gene++)
+                    {
+                        if(!Double.isNaN(values[gene]) && !Double.isInfinite(values[gene]))
+                        {
+                            finiteIndices.add(gene);
+                        }
+                    }
+                    Integer[] sorted = finiteIndices.toArray(new Integer[finiteIndices.size()]);
+                    Arrays.sort(sorted, new Comparator<Integer>()
+                    {
+                        public int compare(Integer gene1, Integer gene2)
+                        {
+                            return Double.compare(values[gene1], values[gene2]);
+                        }
+                    });
+                    
+                    this.order[stat][h] = new int[sorted.length];
+                    this.sortedValues[stat][h] = new double[sorted.length];
+                    for(int i = 0; i < sorted.length; i++)
+                    {
+                        this.order[stat][h][i] = sorted[i];
+                        this.sortedValues[stat][h][i] = values[sorted[i]];
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Get the number of observed statistics that are less than or
+         * equal to the given value
+         */
+        public int countAtOrBelow(int stat, int hypothesis, double value)
+        {
+            double[] sorted = this.sortedValues[stat][hypothesis];
+            int low = 0;
+            int high = sorted.length;
+            while(low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if(sorted[mid] <= value)
+                {
+                    low = mid + 1;
+                }
+                else
+                {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+    
+    /**
+     * Running counts of how often the permuted statistics reach the
+     * observed ones
+     */
+    private static class ExceedanceCounts
+    {
+        private final double[][][] observed;
+        
+        /**
+         * per probeset counts of permutations where that probeset's
+         * statistic reached the observed value
+         */
+        private final int[][][] geneCounts;
+        
+        /**
+         * per probeset counts of permutations with a finite statistic
+         */
+        private final int[][][] geneTrials;
+        
+        /**
+         * counts in sorted observed order of permuted statistics (from
+         * any probeset) that reached the observed value. these are stored
+         * as differences and summed up when the p-values are calculated
+         */
+        private final long[][][] pooledCounts;
+        
+        private final long[][] pooledTrials;
+        
+        /**
+         * like pooledCounts but for the maximum statistic of each
+         * permutation
+         */
+        private final long[][][] maxCounts;
+        
+        private final long[][] maxTrials;
+        
+        /**
+         * sums of the Fs shrinkage parameters over the permutations that
+         * estimated them
+         */
+        private final double[] shrinkageParameterSums = new double[2];
+        
+        private int shrinkageParameterCount = 0;
+        
+        private ObservedOrder observedOrder = null;
+        
+        /**
+         * Constructor
+         * @param observed
+         *          the observed statistics
+         */
+        public ExceedanceCounts(double[][][] observed)
+        {
+            this.observed = observed;
+            int statCount = observed.length;
+            this.geneCounts = new int[statCount][][];
+            this.geneTrials = new int[statCount][][];
+            this.pooledCounts = new long[statCount][][];
+            this.pooledTrials = new long[statCount][];
+            this.maxCounts = new long[statCount][][];
+            this.maxTrials = new long[statCount][];
+            for(int stat = 0; stat < statCount; stat++)
+            {
+                if(observed[stat] == null)
+                {
+                    continue;
+                }
+                
+                int hypothesisCount = observed[stat].length;
+                int geneCount = observed[stat][0].length;
+                this.geneCounts[stat] = new int[hypothesisCount][geneCount];
+                this.geneTrials[stat] = new int[hypothesisCount][geneCount];
+                this.pooledCounts[stat] = new long[hypothesisCount][geneCount + 1];
+                this.pooledTrials[stat] = new long[hypothesisCount];
+                this.maxCounts[stat] = new long[hypothesisCount][geneCount + 1];
+                this.maxTrials[stat] = new long[hypothesisCount];
+            }
+        }
+        
+        /**
+         * Constructor for counts that will be updated with
+         * {@link #addPermutation(double[][][])}
+         * @param observedOrder
+         *          the sorted observed statistics
+         */
+        public ExceedanceCounts(ObservedOrder observedOrder)
+        {
+            this(observedOrder.observed);
+            this.observedOrder = observedOrder;
+        }
+        
+        /**
+         * Count up a single permutation
+         * @param permuted
+         *          the permuted statistics
+         * @param allGenes
+         *          true if every probeset was permuted. The pooled and
+         *          max-statistic counts only include these permutations
+         * @param shrinkageParameters
+         *          the Fs shrinkage parameters that the permutation
+         *          estimated or null
+         */
+        public void addPermutation(
+                double[][][] permuted,
+                boolean allGenes,
+                double[] shrinkageParameters)
+        {
+            if(shrinkageParameters != null && !Double.isNaN(shrinkageParameters[0]))
+            {
+                this.shrinkageParameterSums[0] += shrinkageParameters[0];
+                this.shrinkageParameterSums[1] += shrinkageParameters[1];
+                this.shrinkageParameterCount++;
+            }
+            
+            for(int stat = 0; stat < permuted.length; stat++)
+            {
+                if(permuted[stat] == null)
+                {
+                    continue;
+                }
+                
+                for(int h = 0; h < permuted[stat].length; h++)
+                {
+                    double[] observedValues = this.observed[stat][h];
+                    double[] permutedValues = permuted[stat][h];
+                    int[] geneCounts = this.geneCounts[stat][h];
+                    int[] geneTrials = this.geneTrials[stat][h];
+                    long[] pooledCounts = this.pooledCounts[stat][h];
+                    double max = Double.NaN;
+                    for(int gene = 0; gene < permutedValues.length; gene++)
+                    {
+                        double value = permutedValues[gene];
+                        if(Double.isNaN(value))
+                        {
+                            continue;
+                        }
+                        
+                        geneTrials[gene]++;
+                        if(value >= observedValues[gene])
+                        {
+                            geneCounts[gene]++;
+                        }
+                        
+                        if(!allGenes)
+                        {
+                            continue;
+                        }
+                        
+                        // every observed value at or below this one gets a
+                        // pooled count
+                        pooledCounts[0]++;
+                        pooledCounts[this.observedOrder.countAtOrBelow(stat, h, value)]--;
+                        this.pooledTrials[stat][h]++;
+                        
+                        if(Double.isNaN(max) || value > max)
+                        {
+                            max = value;
+                        }
+                    }
+                    
+                    if(!Double.isNaN(max))
+                    {
+                        this.maxCounts[stat][h][0]++;
+                        this.maxCounts[stat][h][this.observedOrder.countAtOrBelow(stat, h, max)]--;
+                        this.maxTrials[stat][h]++;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Add the given counts to these counts
+         * @param other
+         *          the counts to add
+         */
+        public void add(ExceedanceCounts other)
+        {
+            for(int stat = 0; stat < this.observed.length; stat++)
+            {
+                if(this.observed[stat] == null)
+                {
+                    continue;
+                }
+                
+                for(int h = 0; h < this.observed[stat].length; h++)
+                {
+                    addTo(this.geneCounts[stat][h], other.geneCounts[stat][h]);
+                    addTo(this.geneTrials[stat][h], other.geneTrials[stat][h]);
+                    addTo(this.pooledCounts[stat][h], other.pooledCounts[stat][h]);
+                    addTo(this.maxCounts[stat][h], other.maxCounts[stat][h]);
+                }
+                addTo(this.pooledTrials[stat], other.pooledTrials[stat]);
+                addTo(this.maxTrials[stat], other.maxTrials[stat]);
+            }
+            
+            this.shrinkageParameterSums[0] += other.shrinkageParameterSums[0];
+            this.shrinkageParameterSums[1] += other.shrinkageParameterSums[1];
+            this.shrinkageParameterCount += other.shrinkageParameterCount;
+            
+            if(this.observedOrder == null)
+            {
+                this.observedOrder = other.observedOrder;
+            }
+        }
+        
+        /**
+         * Get the average of the Fs shrinkage parameters that the
+         * permutations estimated
+         * @return
+         *          the average parameters or null if there are none
+         */
+        public double[] getMeanShrinkageParameters()
+        {
+            if(this.shrinkageParameterCount == 0)
+            {
+                return null;
+            }
+            else
+            {
+                return new double[] {
+                        this.shrinkageParameterSums[0] / this.shrinkageParameterCount,
+                        this.shrinkageParameterSums[1] / this.shrinkageParameterCount};
+            }
+        }
+        
+        /**
+         * Get the probesets that have a nominal p-value whose confidence
+         * interval still contains the significance level
+         * @param significanceLevel
+         *          the significance level
+         * @return
+         *          the undecided probeset indices in increasing order
+         */
+        public int[] getUndecidedGenes(double significanceLevel)
+        {
+            int geneCount = 0;
+            for(double[][] statObserved: this.observed)
+            {
+                if(statObserved != null)
+                {
+                    geneCount = statObserved[0].length;
+                }
+            }
+            
+            int[] undecidedGenes = new int[geneCount];
+            int undecidedCount = 0;
+            for(int gene = 0; gene < geneCount; gene++)
+            {
+                boolean undecided = false;
+                for(int stat = 0; stat < this.observed.length && !undecided; stat++)
+                {
+                    if(this.observed[stat] == null)
+                    {
+                        continue;
+                    }
+                    
+                    for(int h = 0; h < this.observed[stat].length && !undecided; h++)
+                    {
+                        double observedValue = this.observed[stat][h][gene];
+                        if(!Double.isNaN(observedValue) &&
+                           !Double.isInfinite(observedValue))
+                        {
+                            undecided = isUndecided(
+                                    this.geneCounts[stat][h][gene],
+                                    this.geneTrials[stat][h][gene],
+                                    significanceLevel);
+                        }
+                    }
+                }
+                
+                if(undecided)
+                {
+                    undecidedGenes[undecidedCount] = gene;
+                    undecidedCount++;
+                }
+            }
+            
+            int[] trimmedGenes = new int[undecidedCount];
+            System.arraycopy(undecidedGenes, 0, trimmedGenes, 0, undecidedCount);
+            return trimmedGenes;
+        }
+        
+        /**
+         * Use the Wilson score interval to decide if a p-value estimated
+         * from the given counts could still be on either side of the
+         * significance level
+         */
+        private static boolean isUndecided(
+                int count,
+                int trials,
+                double significanceLevel)
+        {
+            if(trials == 0)
+            {
+                return true;
+            }
+            
+            double z2 = ADAPTIVE_CONFIDENCE_Z * ADAPTIVE_CONFIDENCE_Z;
+            double p = count / (double)trials;
+            double denominator = 1.0 + z2 / trials;
+            double center = (p + z2 / (2.0 * trials)) / denominator;
+            double halfWidth =
+                ADAPTIVE_CONFIDENCE_Z *
+                Math.sqrt(p * (1.0 - p) / trials + z2 / (4.0 * trials * (double)trials)) /
+                denominator;
+            
+            return center - halfWidth <= significanceLevel &&
+                   center + halfWidth >= significanceLevel;
+        }
+        
+        private static void addTo(int[] sum, int[] values)
+        {
+            for(int i = 0; i < sum.length; i++)
+            {
+                sum[i] += values[i];
+            }
+        }
+        
+        private static void addTo(long[] sum, long[] values)
+        {
+            for(int i = 0; i < sum.length; i++)
+            {
+                sum[i] += values[i];
+            }
+        }
+        
+        /**
+         * Get the nominal permutation p-values. The observed arrangement
+         * is counted as one of the permutations
+         * @param stat
+         *          the statistic index
+         * @param hypothesis
+         *          the hypothesis index
+         * @param pool
+         *          if true the permuted statistics of all probesets are
+         *          pooled
+         * @return
+         *          the p-values
+         */
+        public double[] getNominalPValues(int stat, int hypothesis, boolean pool)
+        {
+            double[] observedValues = this.observed[stat][hypothesis];
+            double[] pValues = new double[observedValues.length];
+            if(pool)
+            {
+                double[] pooled = this.cumulativeCounts(
+                        stat,
+                        hypothesis,
+                        this.pooledCounts[stat][hypothesis]);
+                double trials = this.pooledTrials[stat][hypothesis];
+                for(int gene = 0; gene < pValues.length; gene++)
+                {
+                    pValues[gene] = (pooled[gene] + 1.0) / (trials + 1.0);
+                }
+            }
+            else
+            {
+                int[] counts = this.geneCounts[stat][hypothesis];
+                int[] trials = this.geneTrials[stat][hypothesis];
+                for(int gene = 0; gene < pValues.length; gene++)
+                {
+                    pValues[gene] = (counts[gene] + 1.0) / (trials[gene] + 1.0);
+                }
+            }
+            
+            return maskUnobserved(observedValues, pValues);
+        }
+        
+        /**
+         * Get the FWER one-step adjusted p-values (based on the maximum
+         * statistic of each permutation)
+         * @param stat
+         *          the statistic index
+         * @param hypothesis
+         *          the hypothesis index
+         * @return
+         *          the p-values
+         */
+        public double[] getFamilyWisePValues(int stat, int hypothesis)
+        {
+            double[] observedValues = this.observed[stat][hypothesis];
+            double[] maxCounts = this.cumulativeCounts(
+                    stat,
+                    hypothesis,
+                    this.maxCounts[stat][hypothesis]);
+            double trials = this.maxTrials[stat][hypothesis];
+            double[] pValues = new double[observedValues.length];
+            for(int gene = 0; gene < pValues.length; gene++)
+            {
+                pValues[gene] = (maxCounts[gene] + 1.0) / (trials + 1.0);
+            }
+            
+            return maskUnobserved(observedValues, pValues);
+        }
+        
+        /**
+         * Turn the difference counts (in sorted order) back into a count
+         * for each probeset
+         */
+        private double[] cumulativeCounts(
+                int stat,
+                int hypothesis,
+                long[] differenceCounts)
+        {
+            int[] order = this.observedOrder.order[stat][hypothesis];
+            double[] counts = new double[this.observed[stat][hypothesis].length];
+            long runningCount = 0;
+            for(int i = 0; i < order.length; i++)
+            {
+                runningCount += differenceCounts[i];
+                counts[order[i]] = runningCount;
+            }
+            
+            return counts;
+        }
+        
+        private static double[] maskUnobserved(double[] observedValues, double[] pValues)
+        {
+            for(int gene = 0; gene < pValues.length; gene++)
+            {
+                if(Double.isNaN(observedValues[gene]) ||
+                   Double.isInfinite(observedValues[gene]))
+                {
+                    pValues[gene] = Double.NaN;
+                }
+            }
+            
+            return pValues;
+        }
+    }
+    
+    /**
+     * A range of permutations to run over a set of probesets. The workers
+     * share the counter for the next permutation
+     */
+    private static class PermutationBatch
+    {
+        private final TestModel model;
+        
+        private final double[][] data;
+        
+        private final double[][] reducedFittedValues;
+        
+        private final ObservedOrder observedOrder;
+        
+        private final AtomicInteger nextPermutation;
+        
+        private final int endPermutation;
+        
+        private final int[] genes;
+        
+        private final double[] shrinkageParameters;
+        
+        /**
+         * Constructor
+         * @param model
+         *          the test model
+         * @param data
+         *          the probeset rows
+         * @param reducedFittedValues
+         *          the reduced model fit if we're shuffling residuals or
+         *          null if we're shuffling samples
+         * @param observedOrder
+         *          the sorted observed statistics
+         * @param startPermutation
+         *          the index of the 1st permutation in the batch
+         * @param endPermutation
+         *          the index after the last permutation in the batch
+         * @param genes
+         *          the probesets to permute or null for all of them
+         * @param shrinkageParameters
+         *          the Fs shrinkage parameters to use. This is ignored if
+         *          all probesets are permuted since the parameters are
+         *          estimated in that case
+         */
+        public PermutationBatch(
+                TestModel model,
+                double[][] data,
+                double[][] reducedFittedValues,
+                ObservedOrder observedOrder,
+                int startPermutation,
+                int endPermutation,
+                int[] genes,
+                double[] shrinkageParameters)
+        {
+            this.model = model;
+            this.data = data;
+            this.reducedFittedValues = reducedFittedValues;
+            this.observedOrder = observedOrder;
+            this.nextPermutation = new AtomicInteger(startPermutation);
+            this.endPermutation = endPermutation;
+            this.genes = genes;
+            this.shrinkageParameters = genes == null ? null : shrinkageParameters;
+        }
+    }
+    
+    /**
+     * Pulls permutation indices off of the batch's counter until they're
+     * all done, keeping its own counts
+     */
+    private class PermutationWorker implements Callable<ExceedanceCounts>
+    {
+        private final PermutationBatch batch;
+        
+        /**
+         * Constructor
+         * @param batch
+         *          the batch of permutations to work on
+         */
+        public PermutationWorker(PermutationBatch batch)
+        {
+            this.batch = batch;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public ExceedanceCounts call()
+        {
+            PermutationTestEngine engine = PermutationTestEngine.this;
+            PermutationBatch batch = this.batch;
+            long seed = engine.commandBuilder.getPermutationSeed();
+            StatisticsCalculator calculator = new StatisticsCalculator(batch.model);
+            ExceedanceCounts counts = new ExceedanceCounts(batch.observedOrder);
+            int colCount = batch.model.getArrayCount();
+            
+            int permutationIndex;
+            while((permutationIndex = batch.nextPermutation.getAndIncrement()) <
+                  batch.endPermutation)
+            {
+                if(engine.canceled)
+                {
+                    throw new CancellationException("permutations canceled");
+                }
+                
+                // Fisher-Yates shuffle using this permutation's own stream
+                Random random = new Random(permutationSeed(seed, permutationIndex));
+                int[] permutation = new int[colCount];
+                for(int i = 0; i < colCount; i++)
+                {
+                    permutation[i] = i;
+                }
+                for(int i = colCount - 1; i > 0; i--)
+                {
+                    int j = random.nextInt(i + 1);
+                    int temp = permutation[i];
+                    permutation[i] = permutation[j];
+                    permutation[j] = temp;
+                }
+                
+                double[][][] permuted = calculator.calculate(
+                        batch.data,
+                        new RowPermuter(batch.data, batch.reducedFittedValues, permutation),
+                        batch.genes,
+                        batch.shrinkageParameters);
+                counts.addPermutation(
+                        permuted,
+                        batch.genes == null,
+                        calculator.getLastShrinkageParameters());
+                engine.permutationCompleted();
+            }
+            
+            return counts;
+        }
+    }
+}
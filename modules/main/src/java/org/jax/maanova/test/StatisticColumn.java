@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.test;
+
+import java.util.BitSet;
+
+/**
+ * A single column of statistic values pulled out of R in one shot and held
+ * as primitive doubles. Missing (NA/NaN) values are tracked in a mask so that
+ * callers don't need to box the values just to find out what's missing.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public class StatisticColumn
+{
+    private final double[] values;
+    
+    private final BitSet missingMask;
+    
+    private final int missingCount;
+    
+    /**
+     * Constructor
+     * @param values
+     *          the column values. NaN is used to mark missing values. This
+     *          array is held onto (not copied) so it should not be modified
+     *          after being passed in
+     */
+    public StatisticColumn(double[] values)
+    {
+        this.values = values;
+        this.missingMask = new BitSet(values.length);
+        
+        int missingCount = 0;
+        for(int i = 0; i < values.length; i++)
+        {
+            if(Double.isNaN(values[i]))
+            {
+                this.missingMask.set(i);
+                missingCount++;
+            }
+        }
+        this.missingCount = missingCount;
+    }
+    
+    /**
+     * Getter for the number of values in this column
+     * @return the size
+     */
+    public int size()
+    {
+        return this.values.length;
+    }
+    
+    /**
+     * Getter for the value at the given index
+     * @param index
+     *          the index
+     * @return
+     *          the value (NaN if it is missing)
+     */
+    public double getValue(int index)
+    {
+        return this.values[index];
+    }
+    
+    /**
+     * Determine if the value at the given index is missing
+     * @param index
+     *          the index
+     * @return
+     *          true if the value is NA/NaN
+     */
+    public boolean isMissing(int index)
+    {
+        return this.missingMask.get(index);
+    }
+    
+    /**
+     * Getter for the number of missing values in this column
+     * @return the missing count
+     */
+    public int getMissingCount()
+    {
+        return this.missingCount;
+    }
+    
+    /**
+     * Getter for the underlying values. The returned array is shared with
+     * this column and with every other user of the cache so it must not be
+     * modified
+     * @return
+     *          the values
+     */
+    public double[] getValues()
+    {
+        return this.values;
+    }
+    
+    /**
+     * Convert this column to boxed values using the same convention as
+     * {@link org.jax.r.jriutilities.JRIUtilityFunctions#extractDoubleValues(org.rosuda.JRI.REXP)}
+     * where missing values come back as null
+     * @return
+     *          the boxed values
+     */
+    public Double[] toBoxedValues()
+    {
+        Double[] boxedValues = new Double[this.values.length];
+        for(int i = 0; i < boxedValues.length; i++)
+        {
+            if(!this.missingMask.get(i))
+            {
+                boxedValues[i] = this.values[i];
+            }
+        }
+        
+        return boxedValues;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.test;
+
+import org.jax.maanova.RWorkerPool;
+
+/**
+ * The different engines that can be used to carry out the permutations
+ * for a test
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+public enum TestExecutionBackend
+{
+    /**
+     * let R/maanova's matest(...) function do the permutations
+     */
+    R_MAANOVA
+    {
+        @Override
+        public boolean supportsTest(TestModelCommandBuilder commandBuilder)
+        {
+            return true;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "R/maanova";
+        }
+    },
+    
+    /**
+     * run R/maanova's matest(...) function in one of the
+     * {@link RWorkerPool} processes so that several tests can run at once
+     */
+    R_WORKER_PROCESS
+    {
+        @Override
+        public boolean supportsTest(TestModelCommandBuilder commandBuilder)
+        {
+            return RWorkerPool.getInstance().isAvailable();
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "R/maanova (Separate R Process)";
+        }
+    },
+    
+    /**
+     * use the multi-threaded {@link PermutationTestEngine}
+     */
+    JAVA_PERMUTATIONS
+    {
+        @Override
+        public boolean supportsTest(TestModelCommandBuilder commandBuilder)
+        {
+            return PermutationTestEngine.isTestSupported(commandBuilder);
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "Multi-Threaded Java";
+        }
+    };
+    
+    /**
+     * Determine if this backend is able to carry out the test described
+     * by the given command builder
+     * @param commandBuilder
+     *          the command builder
+     * @return
+     *          true if the test can be carried out with this backend
+     */
+    public abstract boolean supportsTest(TestModelCommandBuilder commandBuilder);
+}
@@ -21,6 +21,8 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.jax.maanova.RWorkerJob;
+import org.jax.maanova.RWorkerPool;
 import org.jax.maanova.fit.MixedModelSolutionMethod;
 import org.jax.r.RAssignmentCommand;
 import org.jax.r.RCommand;
@@ -182,6 +184,17 @@ public class TestModelCommandBuilder implements RCommandBuilder
      */
     private static final String METHOD_NAME = "matest";
     
+    /**
+     * the seed that the Java permutation engine uses unless told otherwise
+     */
+    public static final long DEFAULT_PERMUTATION_SEED = 1L;
+    
+    /**
+     * the significance level that adaptive permutations stop at unless
+     * told otherwise
+     */
+    public static final double DEFAULT_ADAPTIVE_SIGNIFICANCE_LEVEL = 0.05;
+    
     private volatile String testResultDataName;
     
     private volatile String madataParameter;
@@ -212,6 +225,15 @@ public class TestModelCommandBuilder implements RCommandBuilder
     
     private volatile boolean verbose = true;
     
+    private volatile TestExecutionBackend backend = TestExecutionBackend.R_MAANOVA;
+    
+    private volatile long permutationSeed = DEFAULT_PERMUTATION_SEED;
+    
+    private volatile boolean adaptivePermutations = false;
+    
+    private volatile double adaptiveSignificanceLevel =
+        DEFAULT_ADAPTIVE_SIGNIFICANCE_LEVEL;
+    
     /**
      * getter for the test result data name
      * @return the testResultDataName
@@ -459,12 +481,28 @@ public class TestModelCommandBuilder implements RCommandBuilder
     }
     
     /**
-     * Getter to determine if we're pooling p-values
+     * Getter to determine if we're pooling p-values. Pooling is refused
+     * when the Java engine's adaptive permutations are on because the
+     * pooled counts only come from the permutations that every probeset
+     * gets, so none of the extra adaptive permutations would make it into
+     * the p-values
      * @return true iff we should pool p-values
      */
     public boolean getPoolPValues()
     {
-        return this.poolPValues;
+        return this.poolPValues && !this.isAdaptivePermutationEngineUsed();
+    }
+    
+    /**
+     * Determine if adaptive permutations are going to be used (they're
+     * only supported by the Java permutation engine)
+     * @return
+     *          true if they are
+     */
+    private boolean isAdaptivePermutationEngineUsed()
+    {
+        return this.adaptivePermutations &&
+               this.backend == TestExecutionBackend.JAVA_PERMUTATIONS;
     }
     
     /**
@@ -494,12 +532,139 @@ public class TestModelCommandBuilder implements RCommandBuilder
         this.verbose = verbose;
     }
     
+    /**
+     * Getter for the backend that should carry out the permutations
+     * @return
+     *          the backend
+     */
+    public TestExecutionBackend getBackend()
+    {
+        return this.backend;
+    }
+    
+    /**
+     * Setter for the backend that should carry out the permutations. Note
+     * that the command text is the same no matter which backend is used
+     * so that the command shown to the user is always valid R/maanova
+     * @param backend
+     *          the backend
+     */
+    public void setBackend(TestExecutionBackend backend)
+    {
+        this.backend = backend;
+    }
+    
+    /**
+     * Getter for the seed that the Java permutation engine uses. Using
+     * the same seed gives the same permutations no matter how many
+     * threads there are
+     * @return
+     *          the seed
+     */
+    public long getPermutationSeed()
+    {
+        return this.permutationSeed;
+    }
+    
+    /**
+     * Setter for the permutation seed
+     * @see #getPermutationSeed()
+     * @param permutationSeed
+     *          the seed
+     */
+    public void setPermutationSeed(long permutationSeed)
+    {
+        this.permutationSeed = permutationSeed;
+    }
+    
+    /**
+     * Determine if the Java permutation engine should stop permuting a
+     * probeset once it is clear which side of
+     * {@link #getAdaptiveSignificanceLevel()} its p-value is on. Only the
+     * borderline probesets get the full {@link #getPermutationCount()}
+     * @return
+     *          true if permutations are adaptive
+     */
+    public boolean getAdaptivePermutations()
+    {
+        return this.adaptivePermutations;
+    }
+    
+    /**
+     * Setter for adaptive permutations
+     * @see #getAdaptivePermutations()
+     * @param adaptivePermutations
+     *          true if permutations should be adaptive
+     */
+    public void setAdaptivePermutations(boolean adaptivePermutations)
+    {
+        this.adaptivePermutations = adaptivePermutations;
+    }
+    
+    /**
+     * Getter for the significance level that adaptive permutations
+     * compare p-value confidence intervals against
+     * @return
+     *          the significance level
+     */
+    public double getAdaptiveSignificanceLevel()
+    {
+        return this.adaptiveSignificanceLevel;
+    }
+    
+    /**
+     * Setter for the adaptive significance level
+     * @see #getAdaptiveSignificanceLevel()
+     * @param adaptiveSignificanceLevel
+     *          the significance level
+     */
+    public void setAdaptiveSignificanceLevel(double adaptiveSignificanceLevel)
+    {
+        this.adaptiveSignificanceLevel = adaptiveSignificanceLevel;
+    }
+    
     /**
      * {@inheritDoc}
      */
     public RCommand getCommand()
     {
-        List<RCommandParameter> commandParameters = this.getCommandParameters();
+        return this.getCommand(this.permutationCount);
+    }
+    
+    /**
+     * Get the matest command with permutations turned off. This is what
+     * we evaluate in R when the permutations are carried out by a Java
+     * backend
+     * @return
+     *          the command
+     */
+    public RCommand getCommandWithoutPermutations()
+    {
+        return this.getCommand(1);
+    }
+    
+    /**
+     * Create the job that ships the matest command to an
+     * {@link RWorkerPool} worker process. The test result must be named
+     * for this to work since that's what gets copied back
+     * @return
+     *          the job
+     */
+    public RWorkerJob createWorkerJob()
+    {
+        return new RWorkerJob(
+                this.getCommand(),
+                new String[] {"maanova"},
+                new String[] {
+                        RWorkerJob.getRootIdentifier(this.madataParameter),
+                        RWorkerJob.getRootIdentifier(this.fitResultParameter)},
+                this.testResultDataName.trim());
+    }
+    
+    private RCommand getCommand(int permutationCount)
+    {
+        List<RCommandParameter> commandParameters =
+            this.getCommandParameters(permutationCount, true);
         
         RMethodInvocationCommand readMadataMethodCommand = new RMethodInvocationCommand(
                 METHOD_NAME,
@@ -518,18 +683,64 @@ public class TestModelCommandBuilder implements RCommandBuilder
         }
     }
     
+    /**
+     * Get a canonical description of the test. This leaves out the data,
+     * the fit, the result name and anything else that doesn't change the
+     * result so that two builders with the same specification give the
+     * same result when they're applied to the same data and fit. The
+     * R/maanova backends are treated as one since they run the same code
+     * @return
+     *          the test specification
+     */
+    public String getTestSpecification()
+    {
+        StringBuilder specification = new StringBuilder();
+        specification.append(new RMethodInvocationCommand(
+                METHOD_NAME,
+                this.getCommandParameters(this.permutationCount, false)).getCommandText());
+        
+        TestExecutionBackend backend = this.backend;
+        if(backend == TestExecutionBackend.R_WORKER_PROCESS)
+        {
+            backend = TestExecutionBackend.R_MAANOVA;
+        }
+        specification.append('\n');
+        specification.append(backend.name());
+        
+        // these only matter when the Java engine does the permutations
+        if(backend == TestExecutionBackend.JAVA_PERMUTATIONS)
+        {
+            specification.append('\n');
+            specification.append(this.permutationSeed);
+            if(this.adaptivePermutations)
+            {
+                specification.append('\n');
+                specification.append(this.adaptiveSignificanceLevel);
+            }
+        }
+        
+        return specification.toString();
+    }
+    
     /**
      * Get the command parameters for the matest command
+     * @param permutationCount
+     *          the permutation count to use
+     * @param includeInputs
+     *          if false the data, anovaobj and verbose parameters are left
+     *          out
      * @return
      *          the parameters
      */
-    private List<RCommandParameter> getCommandParameters()
+    private List<RCommandParameter> getCommandParameters(
+            int permutationCount,
+            boolean includeInputs)
     {
         List<RCommandParameter> commandParameters =
             new ArrayList<RCommandParameter>();
         
         String madataParameter = this.madataParameter;
-        if(madataParameter != null)
+        if(includeInputs && madataParameter != null)
         {
             // maybe add the data parameter
             commandParameters.add(new RCommandParameter(
@@ -539,7 +750,7 @@ public class TestModelCommandBuilder implements RCommandBuilder
         
         // maybe add the fit result parameter
         String fitResultParameter = this.fitResultParameter;
-        if(fitResultParameter != null)
+        if(includeInputs && fitResultParameter != null)
         {
             commandParameters.add(new RCommandParameter(
                     "anovaobj",
@@ -626,7 +837,6 @@ public class TestModelCommandBuilder implements RCommandBuilder
                     fStatisticToCalculate.getRParameter()));
         }
         
-        int permutationCount = this.permutationCount;
         commandParameters.add(new RCommandParameter(
                 "n.perm",
                 Integer.toString(permutationCount)));
@@ -651,12 +861,15 @@ public class TestModelCommandBuilder implements RCommandBuilder
             
             commandParameters.add(new RCommandParameter(
                     "pval.pool",
-                    RUtilities.javaBooleanToRBoolean(this.poolPValues)));
+                    RUtilities.javaBooleanToRBoolean(this.getPoolPValues())));
         }
         
-        commandParameters.add(new RCommandParameter(
-                "verbose",
-                RUtilities.javaBooleanToRBoolean(this.verbose)));
+        if(includeInputs)
+        {
+            commandParameters.add(new RCommandParameter(
+                    "verbose",
+                    RUtilities.javaBooleanToRBoolean(this.verbose)));
+        }
         
         return commandParameters;
     }
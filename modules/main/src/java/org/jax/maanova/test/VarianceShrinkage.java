@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.test;
+
+/**
+ * James-Stein shrinkage of per-probeset variance estimates on the log
+ * scale as described by Cui et al. (2005) "Improved statistical tests for
+ * differential gene expression by shrinking variance components
+ * estimates". This is the error variance that the Fs statistic uses.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+final class VarianceShrinkage
+{
+    /**
+     * private constructor. this is a static utility class
+     */
+    private VarianceShrinkage()
+    {
+    }
+    
+    /**
+     * Shrink the given variances toward their (log scale) mean
+     * @param variances
+     *          the variance estimates. Values that aren't finite and
+     *          positive are left out of the shrinkage and come back NaN
+     * @param degreesOfFreedom
+     *          the degrees of freedom for each of the estimates
+     * @param shrunkVariances
+     *          the array that the shrunken variances are written to
+     * @return
+     *          the shrinkage parameters that were used (see
+     *          {@link #estimate(double[], int[])})
+     */
+    static double[] shrink(
+            double[] variances,
+            int[] degreesOfFreedom,
+            double[] shrunkVariances)
+    {
+        double[] parameters = estimate(variances, degreesOfFreedom);
+        apply(variances,
+              degreesOfFreedom,
+              parameters[0],
+              parameters[1],
+              shrunkVariances);
+        return parameters;
+    }
+    
+    /**
+     * Estimate the shrinkage parameters for the given variances
+     * @param variances
+     *          the variance estimates. Values that aren't finite and
+     *          positive are left out
+     * @param degreesOfFreedom
+     *          the degrees of freedom for each of the estimates
+     * @return
+     *          the log scale mean followed by the shrinkage factor (0 means
+     *          everything is shrunk all the way to the mean). The mean is
+     *          NaN if none of the variances are usable
+     */
+    static double[] estimate(double[] variances, int[] degreesOfFreedom)
+    {
+        // Y = ln(s2) - E[ln(chisq(df) / df)] is unbiased for ln(sigma2)
+        // and has variance trigamma(df / 2)
+        int count = 0;
+        double logSum = 0.0;
+        double samplingVarianceSum = 0.0;
+        double[] logVariances = new double[variances.length];
+        for(int i = 0; i < variances.length; i++)
+        {
+            logVariances[i] = adjustedLogVariance(
+                    variances[i],
+                    degreesOfFreedom[i]);
+            if(!Double.isNaN(logVariances[i]))
+            {
+                logSum += logVariances[i];
+                samplingVarianceSum += trigamma(degreesOfFreedom[i] / 2.0);
+                count++;
+            }
+        }
+        
+        if(count == 0)
+        {
+            return new double[] {Double.NaN, 0.0};
+        }
+        
+        double logMean = logSum / count;
+        double samplingVariance = samplingVarianceSum / count;
+        double sumOfSquares = 0.0;
+        for(double logVariance: logVariances)
+        {
+            if(!Double.isNaN(logVariance))
+            {
+                double diff = logVariance - logMean;
+                sumOfSquares += diff * diff;
+            }
+        }
+        
+        double shrinkFactor = 0.0;
+        if(count > 3 && sumOfSquares > 0.0)
+        {
+            shrinkFactor = Math.max(
+                    0.0,
+                    1.0 - (count - 3) * samplingVariance / sumOfSquares);
+        }
+        
+        return new double[] {logMean, shrinkFactor};
+    }
+    
+    /**
+     * Shrink the given variances using parameters that were estimated
+     * ahead of time
+     * @param variances
+     *          the variance estimates. Values that aren't finite and
+     *          positive come back NaN
+     * @param degreesOfFreedom
+     *          the degrees of freedom for each of the estimates
+     * @param logMean
+     *          the log scale mean to shrink toward
+     * @param shrinkFactor
+     *          the shrinkage factor
+     * @param shrunkVariances
+     *          the array that the shrunken variances are written to
+     */
+    static void apply(
+            double[] variances,
+            int[] degreesOfFreedom,
+            double logMean,
+            double shrinkFactor,
+            double[] shrunkVariances)
+    {
+        for(int i = 0; i < variances.length; i++)
+        {
+            double logVariance = adjustedLogVariance(
+                    variances[i],
+                    degreesOfFreedom[i]);
+            if(Double.isNaN(logVariance))
+            {
+                shrunkVariances[i] = Double.NaN;
+            }
+            else
+            {
+                shrunkVariances[i] = Math.exp(
+                        logMean + shrinkFactor * (logVariance - logMean));
+            }
+        }
+    }
+    
+    /**
+     * Get the bias adjusted log variance or NaN if the variance can't be
+     * used
+     */
+    private static double adjustedLogVariance(double variance, int df)
+    {
+        if(df > 0 && variance > 0.0 && !Double.isInfinite(variance))
+        {
+            double halfDf = df / 2.0;
+            return Math.log(variance) - (digamma(halfDf) - Math.log(halfDf));
+        }
+        else
+        {
+            return Double.NaN;
+        }
+    }
+    
+    /**
+     * The digamma function using the recurrence to push x above 6 followed
+     * by the asymptotic series
+     * @param x
+     *          a positive argument
+     * @return
+     *          digamma(x)
+     */
+    static double digamma(double x)
+    {
+        double result = 0.0;
+        while(x < 6.0)
+        {
+            result -= 1.0 / x;
+            x += 1.0;
+        }
+        
+        double inverseSquare = 1.0 / (x * x);
+        result +=
+            Math.log(x) - 0.5 / x -
+            inverseSquare * (1.0 / 12.0 -
+            inverseSquare * (1.0 / 120.0 -
+            inverseSquare * (1.0 / 252.0)));
+        return result;
+    }
+    
+    /**
+     * The trigamma function using the recurrence to push x above 6
+     * followed by the asymptotic series
+     * @param x
+     *          a positive argument
+     * @return
+     *          trigamma(x)
+     */
+    static double trigamma(double x)
+    {
+        double result = 0.0;
+        while(x < 6.0)
+        {
+            result += 1.0 / (x * x);
+            x += 1.0;
+        }
+        
+        double inverseSquare = 1.0 / (x * x);
+        result +=
+            1.0 / x + 0.5 * inverseSquare +
+            (1.0 / x) * inverseSquare * (1.0 / 6.0 -
+            inverseSquare * (1.0 / 30.0 -
+            inverseSquare * (1.0 / 42.0 -
+            inverseSquare * (1.0 / 30.0))));
+        return result;
+    }
+}
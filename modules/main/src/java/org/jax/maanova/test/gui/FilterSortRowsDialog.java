@@ -26,13 +26,17 @@ import java.awt.event.ItemListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JDialog;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import org.jax.maanova.test.MaanovaTestResult;
 import org.jax.maanova.test.gui.StatisticItem.Formatting;
@@ -48,12 +52,27 @@ public class FilterSortRowsDialog extends JDialog
      */
     private static final long serialVersionUID = 1794321535677198447L;
     
+    /**
+     * the default number of rows for the top rows setting
+     */
+    private static final int DEFAULT_TOP_ROW_COUNT = 100;
+    
+    private final ConcurrentLinkedQueue<ChangeListener> topRowsListeners =
+        new ConcurrentLinkedQueue<ChangeListener>();
+    
     private final Map<StatisticItem, SpinnerNumberModel> filterModels =
         new HashMap<StatisticItem, SpinnerNumberModel>();
     
+    private final Map<StatisticItem, SpinnerNumberModel> secondFilterModels =
+        new HashMap<StatisticItem, SpinnerNumberModel>();
+    
     private DefaultComboBoxModel filterStatModel;
     
+    private DefaultComboBoxModel secondFilterStatModel;
+    
     private DefaultComboBoxModel sortStatModel;
+    
+    private DefaultComboBoxModel secondarySortStatModel;
 
     private final MaanovaTestResult testResult;
 
@@ -91,10 +110,14 @@ public class FilterSortRowsDialog extends JDialog
     private void postGuiInit()
     {
         this.filterStatModel = new DefaultComboBoxModel();
+        this.secondFilterStatModel = new DefaultComboBoxModel();
         this.sortStatModel = new DefaultComboBoxModel();
+        this.secondarySortStatModel = new DefaultComboBoxModel();
         
         this.filterStatComboBox.setModel(this.filterStatModel);
+        this.secondFilterStatComboBox.setModel(this.secondFilterStatModel);
         this.sortStatComboBox.setModel(this.sortStatModel);
+        this.secondarySortStatComboBox.setModel(this.secondarySortStatModel);
         
         this.filterStatComboBox.addItemListener(new ItemListener()
         {
@@ -110,6 +133,20 @@ public class FilterSortRowsDialog extends JDialog
             }
         });
         
+        this.secondFilterStatComboBox.addItemListener(new ItemListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void itemStateChanged(ItemEvent e)
+            {
+                if(ItemEvent.SELECTED == e.getStateChange())
+                {
+                    FilterSortRowsDialog.this.refreshSecondFilterSpinnerModel();
+                }
+            }
+        });
+        
         this.filterCheckBox.addItemListener(new ItemListener()
         {
             /**
@@ -121,6 +158,17 @@ public class FilterSortRowsDialog extends JDialog
             }
         });
         
+        this.secondFilterCheckBox.addItemListener(new ItemListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void itemStateChanged(ItemEvent e)
+            {
+                FilterSortRowsDialog.this.refreshGUI();
+            }
+        });
+        
         List<String> geneListNames =
             this.testResult.getParentExperiment().getGeneListNames();
         if(geneListNames.isEmpty())
@@ -148,7 +196,46 @@ public class FilterSortRowsDialog extends JDialog
             }
         });
         
+        this.secondarySortCheckBox.addItemListener(new ItemListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void itemStateChanged(ItemEvent e)
+            {
+                FilterSortRowsDialog.this.refreshGUI();
+            }
+        });
+        
+        this.topRowCountSpinner.setModel(new SpinnerNumberModel(
+                DEFAULT_TOP_ROW_COUNT,  // starting value
+                1,                      // min value
+                Integer.MAX_VALUE,      // max value
+                DEFAULT_TOP_ROW_COUNT)); // step size
+        this.topRowCountSpinner.addChangeListener(new ChangeListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void stateChanged(ChangeEvent e)
+            {
+                FilterSortRowsDialog.this.fireTopRowsChanged();
+            }
+        });
+        this.topRowsCheckBox.addItemListener(new ItemListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void itemStateChanged(ItemEvent e)
+            {
+                FilterSortRowsDialog.this.refreshGUI();
+                FilterSortRowsDialog.this.fireTopRowsChanged();
+            }
+        });
+        
         this.refreshFilterSpinnerModel();
+        this.refreshSecondFilterSpinnerModel();
         this.refreshGUI();
         
         this.closeButton.addActionListener(new ActionListener()
@@ -189,8 +276,54 @@ public class FilterSortRowsDialog extends JDialog
         this.filterStatComboBox.setEnabled(filterSelected);
         this.filterSpinner.setEnabled(filterSelected);
         
+        boolean secondFilterSelected = this.secondFilterCheckBox.isSelected();
+        this.secondFilterStatComboBox.setEnabled(secondFilterSelected);
+        this.secondFilterSpinner.setEnabled(secondFilterSelected);
+        
+        // a secondary sort only makes sense under a primary sort
         boolean sortSelected = this.sortCheckBox.isSelected();
         this.sortStatComboBox.setEnabled(sortSelected);
+        this.secondarySortCheckBox.setEnabled(sortSelected);
+        this.secondarySortStatComboBox.setEnabled(
+                sortSelected && this.secondarySortCheckBox.isSelected());
+        
+        // the top rows are taken from the sort order
+        this.topRowsCheckBox.setEnabled(sortSelected);
+        this.topRowCountSpinner.setEnabled(
+                sortSelected && this.topRowsCheckBox.isSelected());
+    }
+    
+    /**
+     * Add a listener that is notified as soon as the top rows settings
+     * change rather than waiting for this dialog to close. This lets the
+     * table follow along while the user spins through row counts
+     * @param listener
+     *          the listener to add
+     */
+    public void addTopRowsChangeListener(ChangeListener listener)
+    {
+        this.topRowsListeners.add(listener);
+    }
+    
+    /**
+     * Remove a listener that was added with
+     * {@link #addTopRowsChangeListener(ChangeListener)}
+     * @param listener
+     *          the listener to remove
+     */
+    public void removeTopRowsChangeListener(ChangeListener listener)
+    {
+        this.topRowsListeners.remove(listener);
+    }
+    
+    private void fireTopRowsChanged()
+    {
+        ChangeEvent event = new ChangeEvent(this);
+        Iterator<ChangeListener> iter = this.topRowsListeners.iterator();
+        while(iter.hasNext())
+        {
+            iter.next().stateChanged(event);
+        }
     }
     
     /**
@@ -224,6 +357,38 @@ public class FilterSortRowsDialog extends JDialog
         return selectedModel.getNumber().doubleValue();
     }
     
+    /**
+     * Determine if the second row filter is turned on. The second filter
+     * is combined with the first so rows have to pass both of them
+     * @return  true if the second filter is on
+     */
+    public boolean isSecondFilteringOn()
+    {
+        return this.secondFilterCheckBox.isSelected();
+    }
+    
+    /**
+     * Getter for the second filter statistic. Only valid if
+     * {@link #isSecondFilteringOn()} is true
+     * @return  the statistic
+     */
+    public StatisticItem getSelectedSecondFilterStatistic()
+    {
+        return (StatisticItem)this.secondFilterStatComboBox.getSelectedItem();
+    }
+    
+    /**
+     * Getter for the second filter threshold. This is only valid if
+     * {@link #isSecondFilteringOn()} is true
+     * @return  the selected filter threshold
+     */
+    public double getSelectedSecondFilterThreshold()
+    {
+        SpinnerNumberModel selectedModel = this.secondFilterModels.get(
+                this.getSelectedSecondFilterStatistic());
+        return selectedModel.getNumber().doubleValue();
+    }
+    
     /**
      * Get the gene list that we should filter by or null if we should not
      * filter on any gene list
@@ -260,6 +425,47 @@ public class FilterSortRowsDialog extends JDialog
         return (StatisticItem)this.sortStatComboBox.getSelectedItem();
     }
     
+    /**
+     * Determine if secondary sorting is on. The secondary sort only breaks
+     * ties in the primary sort
+     * @return  true if sorting is on and secondary sorting is on
+     */
+    public boolean isSecondarySortingOn()
+    {
+        return this.sortCheckBox.isSelected() &&
+               this.secondarySortCheckBox.isSelected();
+    }
+    
+    /**
+     * Getter for the selected secondary sort statistic. only valid if
+     * {@link #isSecondarySortingOn()} is true
+     * @return  the selected secondary sort statistic
+     */
+    public StatisticItem getSelectedSecondarySortStatistic()
+    {
+        return (StatisticItem)this.secondarySortStatComboBox.getSelectedItem();
+    }
+    
+    /**
+     * Determine if only the top rows of the sort order should be shown
+     * @return  true if sorting is on and the top rows setting is on
+     */
+    public boolean isTopRowsOn()
+    {
+        return this.sortCheckBox.isSelected() &&
+               this.topRowsCheckBox.isSelected();
+    }
+    
+    /**
+     * Getter for the number of top rows to show. Only valid if
+     * {@link #isTopRowsOn()} is true
+     * @return  the number of rows
+     */
+    public int getTopRowCount()
+    {
+        return ((Number)this.topRowCountSpinner.getValue()).intValue();
+    }
+    
     /**
      * Refresh the filter spinner model
      */
@@ -279,6 +485,25 @@ public class FilterSortRowsDialog extends JDialog
         }
     }
     
+    /**
+     * Refresh the second filter spinner model
+     */
+    private void refreshSecondFilterSpinnerModel()
+    {
+        StatisticItem selectedFilterStat = this.getSelectedSecondFilterStatistic();
+        if(selectedFilterStat != null)
+        {
+            SpinnerNumberModel spinnerNumModel = this.secondFilterModels.get(selectedFilterStat);
+            if(spinnerNumModel == null)
+            {
+                spinnerNumModel = this.makeFilterSpinnerModel(selectedFilterStat);
+                this.secondFilterModels.put(selectedFilterStat, spinnerNumModel);
+            }
+            
+            this.secondFilterSpinner.setModel(spinnerNumModel);
+        }
+    }
+    
     /**
      * Create a new filter spinner model
      * @param statisticItem
@@ -350,14 +575,20 @@ public class FilterSortRowsDialog extends JDialog
     public void setStatisticsNow(final List<StatisticItem> statistics)
     {
         this.filterStatModel.removeAllElements();
+        this.secondFilterStatModel.removeAllElements();
         this.sortStatModel.removeAllElements();
+        this.secondarySortStatModel.removeAllElements();
         
         for(StatisticItem currStats: statistics)
         {
             this.filterStatModel.addElement(
                     currStats.copyWithNewFormatting(Formatting.FILTER));
+            this.secondFilterStatModel.addElement(
+                    currStats.copyWithNewFormatting(Formatting.FILTER));
             this.sortStatModel.addElement(
                     currStats.copyWithNewFormatting(Formatting.SORT));
+            this.secondarySortStatModel.addElement(
+                    currStats.copyWithNewFormatting(Formatting.SORT));
         }
         
         this.pack();
@@ -378,10 +609,17 @@ public class FilterSortRowsDialog extends JDialog
         filterCheckBox = new javax.swing.JCheckBox();
         filterStatComboBox = new javax.swing.JComboBox();
         filterSpinner = new javax.swing.JSpinner();
+        secondFilterCheckBox = new javax.swing.JCheckBox();
+        secondFilterStatComboBox = new javax.swing.JComboBox();
+        secondFilterSpinner = new javax.swing.JSpinner();
         filterByGeneListCheckBox = new javax.swing.JCheckBox();
         filterByGeneListComboBox = new javax.swing.JComboBox();
         sortCheckBox = new javax.swing.JCheckBox();
         sortStatComboBox = new javax.swing.JComboBox();
+        secondarySortCheckBox = new javax.swing.JCheckBox();
+        secondarySortStatComboBox = new javax.swing.JComboBox();
+        topRowsCheckBox = new javax.swing.JCheckBox();
+        topRowCountSpinner = new javax.swing.JSpinner();
         javax.swing.JPanel controlPanel = new javax.swing.JPanel();
         closeButton = new javax.swing.JButton();
 
@@ -390,10 +628,16 @@ public class FilterSortRowsDialog extends JDialog
 
         filterCheckBox.setText("Filter Where");
 
+        secondFilterCheckBox.setText("And Where");
+
         filterByGeneListCheckBox.setText("Filter By Gene List");
 
         sortCheckBox.setText("Sort Probesets By");
 
+        secondarySortCheckBox.setText("Then By");
+
+        topRowsCheckBox.setText("Show Only The Top");
+
         org.jdesktop.layout.GroupLayout mainPanelLayout = new org.jdesktop.layout.GroupLayout(mainPanel);
         mainPanel.setLayout(mainPanelLayout);
         mainPanelLayout.setHorizontalGroup(
@@ -402,15 +646,24 @@ public class FilterSortRowsDialog extends JDialog
                 .addContainerGap()
                 .add(mainPanelLayout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
                     .add(filterCheckBox)
+                    .add(secondFilterCheckBox)
                     .add(sortCheckBox)
+                    .add(secondarySortCheckBox)
+                    .add(topRowsCheckBox)
                     .add(filterByGeneListCheckBox))
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(mainPanelLayout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
                     .add(sortStatComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
+                    .add(secondarySortStatComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
+                    .add(topRowCountSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, 86, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                     .add(mainPanelLayout.createSequentialGroup()
                         .add(filterStatComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                         .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                         .add(filterSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, 86, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
+                    .add(mainPanelLayout.createSequentialGroup()
+                        .add(secondFilterStatComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
+                        .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                        .add(secondFilterSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, 86, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
                     .add(filterByGeneListComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
                 .addContainerGap(25, Short.MAX_VALUE))
         );
@@ -423,6 +676,11 @@ public class FilterSortRowsDialog extends JDialog
                     .add(filterStatComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                     .add(filterSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(mainPanelLayout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(secondFilterCheckBox)
+                    .add(secondFilterStatComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
+                    .add(secondFilterSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(mainPanelLayout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
                     .add(filterByGeneListCheckBox)
                     .add(filterByGeneListComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
@@ -430,6 +688,14 @@ public class FilterSortRowsDialog extends JDialog
                 .add(mainPanelLayout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
                     .add(sortCheckBox)
                     .add(sortStatComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(mainPanelLayout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(secondarySortCheckBox)
+                    .add(secondarySortStatComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(mainPanelLayout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(topRowsCheckBox)
+                    .add(topRowCountSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
                 .addContainerGap(org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
 
@@ -458,7 +724,14 @@ public class FilterSortRowsDialog extends JDialog
     private javax.swing.JCheckBox filterCheckBox;
     private javax.swing.JSpinner filterSpinner;
     private javax.swing.JComboBox filterStatComboBox;
+    private javax.swing.JCheckBox secondFilterCheckBox;
+    private javax.swing.JSpinner secondFilterSpinner;
+    private javax.swing.JComboBox secondFilterStatComboBox;
+    private javax.swing.JCheckBox secondarySortCheckBox;
+    private javax.swing.JComboBox secondarySortStatComboBox;
     private javax.swing.JCheckBox sortCheckBox;
     private javax.swing.JComboBox sortStatComboBox;
+    private javax.swing.JSpinner topRowCountSpinner;
+    private javax.swing.JCheckBox topRowsCheckBox;
     // End of variables declaration//GEN-END:variables
 }
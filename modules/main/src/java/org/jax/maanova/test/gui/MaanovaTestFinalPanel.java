@@ -25,6 +25,8 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.DocumentEvent;
 
+import org.jax.maanova.RWorkerPool;
+import org.jax.maanova.test.TestExecutionBackend;
 import org.jax.maanova.test.TestModelCommandBuilder;
 import org.jax.maanova.test.TestModelCommandBuilder.ShuffleMethod;
 import org.jax.r.RCommand;
@@ -63,6 +65,18 @@ implements Validatable
             1.0,                // max value
             0.1);               // step size
     
+    private final SpinnerNumberModel randomSeedSpinnerModel = new SpinnerNumberModel(
+            Long.valueOf(TestModelCommandBuilder.DEFAULT_PERMUTATION_SEED), // initial value
+            Long.valueOf(Long.MIN_VALUE),                                   // min value
+            Long.valueOf(Long.MAX_VALUE),                                   // max value
+            Long.valueOf(1L));                                              // step size
+    
+    private final SpinnerNumberModel adaptiveSignificanceSpinnerModel = new SpinnerNumberModel(
+            TestModelCommandBuilder.DEFAULT_ADAPTIVE_SIGNIFICANCE_LEVEL, // initial value
+            0.0001,                                                      // min value
+            0.5,                                                         // max value
+            0.01);                                                       // step size
+    
     /**
      * Constructor
      * @param commandBuilder
@@ -153,6 +167,67 @@ implements Validatable
         });
         this.shuffleMethodChanged();
         
+        for(TestExecutionBackend backend: TestExecutionBackend.values())
+        {
+            // only offer worker processes if we found an Rscript to run
+            if(backend != TestExecutionBackend.R_WORKER_PROCESS ||
+               RWorkerPool.getInstance().isAvailable())
+            {
+                this.permutationEngineComboBox.addItem(backend);
+            }
+        }
+        this.permutationEngineComboBox.addItemListener(new ItemListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void itemStateChanged(ItemEvent e)
+            {
+                if(e.getStateChange() == ItemEvent.SELECTED)
+                {
+                    MaanovaTestFinalPanel.this.permutationEngineChanged();
+                }
+            }
+        });
+        this.permutationEngineChanged();
+        
+        this.randomSeedSpinner.setModel(this.randomSeedSpinnerModel);
+        this.randomSeedSpinnerModel.addChangeListener(new ChangeListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void stateChanged(ChangeEvent e)
+            {
+                MaanovaTestFinalPanel.this.randomSeedChanged();
+            }
+        });
+        this.randomSeedChanged();
+        
+        this.adaptivePermutationsCheckBox.addItemListener(new ItemListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void itemStateChanged(ItemEvent e)
+            {
+                MaanovaTestFinalPanel.this.adaptivePermutationsChanged();
+            }
+        });
+        this.adaptiveSignificanceSpinner.setModel(
+                this.adaptiveSignificanceSpinnerModel);
+        this.adaptiveSignificanceSpinnerModel.addChangeListener(new ChangeListener()
+        {
+            /**
+             * {@inheritDoc}
+             */
+            public void stateChanged(ChangeEvent e)
+            {
+                MaanovaTestFinalPanel.this.adaptivePermutationsChanged();
+            }
+        });
+        this.adaptivePermutationsChanged();
+        
         this.poolCheckBox.addItemListener(new ItemListener()
         {
             /**
@@ -190,7 +265,9 @@ implements Validatable
         this.criticalThresholdSpinner.setEnabled(performPerms);
         this.shufflingMethodLabel.setEnabled(performPerms);
         this.shufflingMethodComboBox.setEnabled(performPerms);
-        this.poolCheckBox.setEnabled(performPerms);
+        this.permutationEngineLabel.setEnabled(performPerms);
+        this.permutationEngineComboBox.setEnabled(performPerms);
+        this.updateJavaEngineOptionsEnabled();
         
         if(performPerms)
         {
@@ -224,6 +301,70 @@ implements Validatable
         this.fireCommandModified();
     }
 
+    /**
+     * respond to a change in the permutation engine
+     */
+    private void permutationEngineChanged()
+    {
+        TestExecutionBackend backend =
+            (TestExecutionBackend)this.permutationEngineComboBox.getSelectedItem();
+        this.commandBuilder.setBackend(backend);
+        this.updateJavaEngineOptionsEnabled();
+        
+        this.fireCommandModified();
+    }
+    
+    /**
+     * the seed and adaptive permutations only mean something to the Java
+     * engine. Pooling can't be combined with adaptive permutations (see
+     * {@link TestModelCommandBuilder#getPoolPValues()})
+     */
+    private void updateJavaEngineOptionsEnabled()
+    {
+        boolean performPerms = this.performPermutationsCheckBox.isSelected();
+        boolean seedEnabled =
+            performPerms &&
+            this.commandBuilder.getBackend() == TestExecutionBackend.JAVA_PERMUTATIONS;
+        boolean adaptive =
+            seedEnabled && this.adaptivePermutationsCheckBox.isSelected();
+        this.randomSeedLabel.setEnabled(seedEnabled);
+        this.randomSeedSpinner.setEnabled(seedEnabled);
+        this.adaptivePermutationsCheckBox.setEnabled(seedEnabled);
+        this.adaptiveSignificanceSpinner.setEnabled(adaptive);
+        this.adaptiveMaxStatisticLabel.setVisible(adaptive);
+        
+        if(adaptive && this.poolCheckBox.isSelected())
+        {
+            this.poolCheckBox.setSelected(false);
+        }
+        this.poolCheckBox.setEnabled(performPerms && !adaptive);
+    }
+    
+    /**
+     * respond to a change in the adaptive permutation options
+     */
+    private void adaptivePermutationsChanged()
+    {
+        this.commandBuilder.setAdaptivePermutations(
+                this.adaptivePermutationsCheckBox.isSelected());
+        this.commandBuilder.setAdaptiveSignificanceLevel(
+                this.adaptiveSignificanceSpinnerModel.getNumber().doubleValue());
+        this.updateJavaEngineOptionsEnabled();
+        
+        this.fireCommandModified();
+    }
+    
+    /**
+     * respond to a change in the random seed
+     */
+    private void randomSeedChanged()
+    {
+        this.commandBuilder.setPermutationSeed(
+                this.randomSeedSpinnerModel.getNumber().longValue());
+        
+        this.fireCommandModified();
+    }
+    
     /**
      * respond to a change in the data shuffling method
      */
@@ -309,6 +450,16 @@ implements Validatable
             message = RUtilities.getErrorMessageForReadableName(name);
         }
         
+        TestExecutionBackend backend = this.commandBuilder.getBackend();
+        if(message == null &&
+           this.performPermutationsCheckBox.isSelected() &&
+           !backend.supportsTest(this.commandBuilder))
+        {
+            message =
+                "The " + backend + " permutation engine does not support " +
+                "this test. Please choose a different permutation engine.";
+        }
+        
         if(message == null)
         {
             return true;
@@ -328,7 +479,17 @@ implements Validatable
      */
     public RCommand[] getCommands()
     {
-        return new RCommand[] {this.commandBuilder.getCommand()};
+        // the Java engine only asks R for the observed statistics
+        if(this.commandBuilder.getBackend() == TestExecutionBackend.JAVA_PERMUTATIONS &&
+           this.commandBuilder.getPermutationCount() >= 2)
+        {
+            return new RCommand[] {
+                    this.commandBuilder.getCommandWithoutPermutations()};
+        }
+        else
+        {
+            return new RCommand[] {this.commandBuilder.getCommand()};
+        }
     }
 
     /**
@@ -349,6 +510,13 @@ implements Validatable
         criticalThresholdSpinner = new javax.swing.JSpinner();
         shufflingMethodLabel = new javax.swing.JLabel();
         shufflingMethodComboBox = new javax.swing.JComboBox();
+        permutationEngineLabel = new javax.swing.JLabel();
+        permutationEngineComboBox = new javax.swing.JComboBox();
+        randomSeedLabel = new javax.swing.JLabel();
+        randomSeedSpinner = new javax.swing.JSpinner();
+        adaptivePermutationsCheckBox = new javax.swing.JCheckBox();
+        adaptiveSignificanceSpinner = new javax.swing.JSpinner();
+        adaptiveMaxStatisticLabel = new javax.swing.JLabel();
         poolCheckBox = new javax.swing.JCheckBox();
         verboseCheckBox = new javax.swing.JCheckBox();
 
@@ -361,6 +529,15 @@ implements Validatable
 
         shufflingMethodLabel.setText("Data Shuffling Method:");
 
+        permutationEngineLabel.setText("Permutation Engine:");
+
+        randomSeedLabel.setText("Random Seed:");
+
+        adaptivePermutationsCheckBox.setText("Stop Early at Significance Level:");
+        adaptivePermutationsCheckBox.setToolTipText("Stop permuting a probeset once its p-value is clearly above or below this level");
+
+        adaptiveMaxStatisticLabel.setText("(FWER adjusted p-values will only be based on the first 100 permutations)");
+
         poolCheckBox.setSelected(true);
         poolCheckBox.setText("Use Pooled Permutation F statistics");
 
@@ -374,6 +551,7 @@ implements Validatable
             .add(layout.createSequentialGroup()
                 .addContainerGap()
                 .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
+                    .add(adaptiveMaxStatisticLabel)
                     .add(poolCheckBox)
                     .add(verboseCheckBox)
                     .add(layout.createSequentialGroup()
@@ -381,13 +559,19 @@ implements Validatable
                             .add(criticalThresholdLabel)
                             .add(performPermutationsCheckBox)
                             .add(shufflingMethodLabel)
+                            .add(permutationEngineLabel)
+                            .add(randomSeedLabel)
+                            .add(adaptivePermutationsCheckBox)
                             .add(nameLabel))
                         .add(10, 10, 10)
                         .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.LEADING)
                             .add(shufflingMethodComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
+                            .add(permutationEngineComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                             .add(nameTextField, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, 115, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE)
                             .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.TRAILING, false)
                                 .add(org.jdesktop.layout.GroupLayout.LEADING, criticalThresholdSpinner)
+                                .add(org.jdesktop.layout.GroupLayout.LEADING, randomSeedSpinner)
+                                .add(org.jdesktop.layout.GroupLayout.LEADING, adaptiveSignificanceSpinner)
                                 .add(org.jdesktop.layout.GroupLayout.LEADING, permutationCountSpinner, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, 83, Short.MAX_VALUE)))))
                 .addContainerGap(132, Short.MAX_VALUE))
         );
@@ -411,22 +595,43 @@ implements Validatable
                     .add(shufflingMethodLabel)
                     .add(shufflingMethodComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(permutationEngineLabel)
+                    .add(permutationEngineComboBox, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(randomSeedLabel)
+                    .add(randomSeedSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(layout.createParallelGroup(org.jdesktop.layout.GroupLayout.BASELINE)
+                    .add(adaptivePermutationsCheckBox)
+                    .add(adaptiveSignificanceSpinner, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE, org.jdesktop.layout.GroupLayout.DEFAULT_SIZE, org.jdesktop.layout.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
+                .add(adaptiveMaxStatisticLabel)
+                .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(poolCheckBox)
                 .addPreferredGap(org.jdesktop.layout.LayoutStyle.RELATED)
                 .add(verboseCheckBox)
-                .addContainerGap(118, Short.MAX_VALUE))
+                .addContainerGap(28, Short.MAX_VALUE))
         );
     }// </editor-fold>//GEN-END:initComponents
 
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JLabel adaptiveMaxStatisticLabel;
+    private javax.swing.JCheckBox adaptivePermutationsCheckBox;
+    private javax.swing.JSpinner adaptiveSignificanceSpinner;
     private javax.swing.JLabel criticalThresholdLabel;
     private javax.swing.JSpinner criticalThresholdSpinner;
     private javax.swing.JLabel nameLabel;
     private javax.swing.JTextField nameTextField;
     private javax.swing.JCheckBox performPermutationsCheckBox;
     private javax.swing.JSpinner permutationCountSpinner;
+    private javax.swing.JComboBox permutationEngineComboBox;
+    private javax.swing.JLabel permutationEngineLabel;
     private javax.swing.JCheckBox poolCheckBox;
+    private javax.swing.JLabel randomSeedLabel;
+    private javax.swing.JSpinner randomSeedSpinner;
     private javax.swing.JComboBox shufflingMethodComboBox;
     private javax.swing.JLabel shufflingMethodLabel;
     private javax.swing.JCheckBox verboseCheckBox;
@@ -18,23 +18,23 @@
 package org.jax.maanova.test.gui;
 
 import java.awt.CardLayout;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import javax.swing.JPanel;
 
 import org.jax.maanova.Maanova;
+import org.jax.maanova.job.AnalysisJobPriority;
+import org.jax.maanova.job.AnalysisJobScheduler;
+import org.jax.maanova.madata.MicroarrayExperiment;
 import org.jax.maanova.project.MaanovaProject;
 import org.jax.maanova.project.MaanovaProjectManager;
+import org.jax.maanova.test.MaanovaTestJob;
 import org.jax.maanova.test.TestModelCommandBuilder;
 import org.jax.r.RCommand;
 import org.jax.r.gui.RCommandEditor;
 import org.jax.r.gui.RCommandEditorListener;
 import org.jax.r.gui.RCommandEditorPanel;
-import org.jax.r.jriutilities.RInterface;
 import org.jax.r.jriutilities.RInterfaceFactory;
 import org.jax.util.gui.BroadcastingWizardController;
-import org.jax.util.gui.MessageDialogUtilities;
 import org.jax.util.gui.WizardEventSupport;
 import org.jax.util.gui.WizardListener;
 
@@ -51,12 +51,6 @@ implements BroadcastingWizardController
      */
     private static final long serialVersionUID = -1689899688802804670L;
     
-    /**
-     * our logger
-     */
-    private static final Logger LOG = Logger.getLogger(
-            MaanovaTestWizardContentPanel.class.getName());
-
     private final WizardEventSupport wizardEventSupport;
     
     private final TestModelCommandBuilder commandBuilder;
@@ -129,7 +123,7 @@ implements BroadcastingWizardController
      */
     public RCommand[] getCommands()
     {
-        return new RCommand[] {this.commandBuilder.getCommand()};
+        return this.maanovaTestFinalPanel.getCommands();
     }
     
     /**
@@ -166,47 +160,16 @@ implements BroadcastingWizardController
         {
             if(this.maanovaTestFinalPanel.validateData())
             {
-                final RInterface rInterface =
-                    RInterfaceFactory.getRInterfaceInstance();
-                final RCommand command = this.commandBuilder.getCommand();
-                final MaanovaProjectManager projectManager =
+                MaanovaProjectManager projectManager =
                     MaanovaProjectManager.getInstance();
-                
-                // TODO this kind of a hack. i want to use
-                // evaluateCommandNoReturn, but I can't because the
-                // refresh call immediately after will cause swing to block.
-                // there is of course a better solution than what I'm doing
-                // here, but this works ok
-                Runnable evaluateFitRunnable = new Runnable()
-                {
-                    /**
-                     * {@inheritDoc}
-                     */
-                    public void run()
-                    {
-                        try
-                        {
-                            rInterface.evaluateCommand(command);
-                            projectManager.notifyActiveProjectModified();
-                            projectManager.refreshProjectDataStructures();
-                        }
-                        catch(Exception ex)
-                        {
-                            final String errorMsg =
-                                "Error During MAANOVA Test";
-                            LOG.log(Level.SEVERE,
-                                    errorMsg,
-                                    ex);
-                            MessageDialogUtilities.errorLater(
-                                    MaanovaTestWizardContentPanel.this,
-                                    ex.getMessage(),
-                                    errorMsg);
-                        }
-                    }
-                };
-                
-                Thread evaluateFitThread = new Thread(evaluateFitRunnable);
-                evaluateFitThread.start();
+                MicroarrayExperiment experiment =
+                    projectManager.getActiveProject().getDataModel().getMicroarrayExperimentMap().get(
+                            this.commandBuilder.getMadataParameter());
+                AnalysisJobScheduler.getInstance().submit(new MaanovaTestJob(
+                        RInterfaceFactory.getRInterfaceInstance(),
+                        experiment,
+                        this.commandBuilder,
+                        AnalysisJobPriority.NORMAL));
                 
                 return true;
             }
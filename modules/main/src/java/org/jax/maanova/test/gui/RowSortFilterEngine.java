@@ -0,0 +1,551 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.test.gui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Filters and sorts test result rows using nothing but primitive arrays.
+ * Rows are represented by their probeset index and the filter and sort
+ * columns are the raw {@code double[]} values where NaN means missing.
+ * Filters are combined with AND and missing values never pass a filter.
+ * Sort keys are compared in the order that they're added and missing values
+ * always sort last regardless of the sort direction. The sort is stable
+ * so rows that tie on every key stay in probeset order. If a top count is
+ * set only that many of the best rows are kept, which are found with a
+ * bounded heap so that only those rows need to be fully sorted.
+ * <p>
+ * An engine is meant to be set up on the AWT thread and then handed off
+ * to a background thread to do the actual work with
+ * {@link #getSortedFilteredIndices()}. Nothing is done to the columns
+ * other than reading them.
+ * </p>
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+final class RowSortFilterEngine
+{
+    /**
+     * merge sort hands off to insertion sort below this size
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+    
+    private final int[] validIndices;
+    
+    private final int probesetCount;
+    
+    private final List<ThresholdFilter> filters =
+        new ArrayList<ThresholdFilter>();
+    
+    private final List<SortKey> sortKeys = new ArrayList<SortKey>();
+    
+    private int topCount = Integer.MAX_VALUE;
+    
+    /**
+     * Constructor
+     * @param validIndices
+     *          the probeset indices that we start with (eg: from a gene
+     *          list) or null to start with every probeset. This array
+     *          isn't modified
+     * @param probesetCount
+     *          the number of probesets in the test result
+     */
+    public RowSortFilterEngine(int[] validIndices, int probesetCount)
+    {
+        this.validIndices = validIndices;
+        this.probesetCount = probesetCount;
+    }
+    
+    /**
+     * Add a threshold filter
+     * @param values
+     *          the column values indexed by probeset
+     * @param absoluteValue
+     *          if true the threshold is applied to the absolute values
+     * @param keepHighValues
+     *          if true we keep values &gt;= the threshold, otherwise we
+     *          keep values &lt;= the threshold
+     * @param threshold
+     *          the threshold
+     */
+    public void addFilter(
+            double[] values,
+            boolean absoluteValue,
+            boolean keepHighValues,
+            double threshold)
+    {
+        this.filters.add(new ThresholdFilter(
+                values,
+                absoluteValue,
+                keepHighValues,
+                threshold));
+    }
+    
+    /**
+     * Add a sort key. The first key added is the primary key and each key
+     * after that only breaks ties in the keys before it
+     * @param values
+     *          the column values indexed by probeset
+     * @param absoluteValue
+     *          if true we sort on the absolute values
+     * @param descending
+     *          if true we sort from high to low
+     */
+    public void addSortKey(
+            double[] values,
+            boolean absoluteValue,
+            boolean descending)
+    {
+        this.sortKeys.add(new SortKey(values, absoluteValue, descending));
+    }
+    
+    /**
+     * Only keep the given number of rows from the top of the sort order.
+     * This has no effect unless at least one sort key is added
+     * @param topCount
+     *          the number of rows to keep
+     */
+    public void setTopCount(int topCount)
+    {
+        if(topCount < 0)
+        {
+            throw new IllegalArgumentException(
+                    "the top count can't be negative: " + topCount);
+        }
+        this.topCount = topCount;
+    }
+    
+    /**
+     * Apply the filters and then the sort keys
+     * @return
+     *          the probeset index of each row in the order that the rows
+     *          should be shown
+     */
+    public int[] getSortedFilteredIndices()
+    {
+        int[] indices;
+        if(this.validIndices == null)
+        {
+            indices = new int[this.probesetCount];
+            for(int i = 0; i < indices.length; i++)
+            {
+                indices[i] = i;
+            }
+        }
+        else
+        {
+            indices = this.validIndices.clone();
+        }
+        
+        int keptCount = indices.length;
+        for(ThresholdFilter filter: this.filters)
+        {
+            keptCount = filter.compact(indices, keptCount);
+        }
+        if(keptCount < indices.length)
+        {
+            int[] keptIndices = new int[keptCount];
+            System.arraycopy(indices, 0, keptIndices, 0, keptCount);
+            indices = keptIndices;
+        }
+        
+        if(!this.sortKeys.isEmpty())
+        {
+            indices = this.sort(indices);
+        }
+        
+        return indices;
+    }
+    
+    /**
+     * Sort the given probeset indices keeping at most the top count
+     * @param indices
+     *          the probeset indices which are left alone
+     * @return
+     *          the sorted indices
+     */
+    private int[] sort(int[] indices)
+    {
+        int rowCount = indices.length;
+        
+        // gather the keys into row order up front so that the compares are
+        // plain array reads with the abs and direction already applied.
+        // negating the descending keys leaves NaN as NaN so missing values
+        // still sort last
+        double[][] rowKeys = new double[this.sortKeys.size()][];
+        for(int i = 0; i < rowKeys.length; i++)
+        {
+            rowKeys[i] = this.sortKeys.get(i).gather(indices);
+        }
+        
+        int[] rows;
+        if(this.topCount < rowCount)
+        {
+            // the merge sort is only stable with respect to the order that
+            // it's given so put the selected rows back in probeset order
+            rows = selectTopRows(rowKeys, rowCount, this.topCount);
+            Arrays.sort(rows);
+        }
+        else
+        {
+            rows = new int[rowCount];
+            for(int i = 0; i < rowCount; i++)
+            {
+                rows[i] = i;
+            }
+        }
+        
+        int[] buffer = new int[rows.length];
+        mergeSort(rows, buffer, rowKeys, 0, rows.length);
+        
+        for(int i = 0; i < rows.length; i++)
+        {
+            buffer[i] = indices[rows[i]];
+        }
+        return buffer;
+    }
+    
+    /**
+     * Find the best topCount rows in O(N log K) using a heap that holds the
+     * best rows seen so far with the worst of them at the root
+     * @param rowKeys
+     *          the gathered sort keys
+     * @param rowCount
+     *          the number of rows
+     * @param topCount
+     *          the number of rows to select. Must be less than rowCount
+     * @return
+     *          the selected rows in no particular order
+     */
+    private static int[] selectTopRows(
+            double[][] rowKeys,
+            int rowCount,
+            int topCount)
+    {
+        int[] heap = new int[topCount];
+        if(topCount == 0)
+        {
+            return heap;
+        }
+        
+        for(int row = 0; row < topCount; row++)
+        {
+            heap[row] = row;
+        }
+        for(int i = topCount / 2 - 1; i >= 0; i--)
+        {
+            siftDown(heap, topCount, rowKeys, i);
+        }
+        
+        // rows are visited in order so a later row that ties the root is
+        // worse than it which keeps the selection consistent with a full
+        // stable sort
+        for(int row = topCount; row < rowCount; row++)
+        {
+            if(compareRows(rowKeys, row, heap[0]) < 0)
+            {
+                heap[0] = row;
+                siftDown(heap, topCount, rowKeys, 0);
+            }
+        }
+        
+        return heap;
+    }
+    
+    /**
+     * Restore the heap property below the given position. The heap keeps
+     * the worst row at the root, ties going to the later row
+     */
+    private static void siftDown(
+            int[] heap,
+            int heapSize,
+            double[][] rowKeys,
+            int position)
+    {
+        int row = heap[position];
+        while(true)
+        {
+            int child = 2 * position + 1;
+            if(child >= heapSize)
+            {
+                break;
+            }
+            
+            if(child + 1 < heapSize &&
+               compareRowsStable(rowKeys, heap[child + 1], heap[child]) > 0)
+            {
+                child++;
+            }
+            
+            if(compareRowsStable(rowKeys, heap[child], row) > 0)
+            {
+                heap[position] = heap[child];
+                position = child;
+            }
+            else
+            {
+                break;
+            }
+        }
+        heap[position] = row;
+    }
+    
+    /**
+     * A stable merge sort of rows[start, end) using buffer as scratch space
+     */
+    private static void mergeSort(
+            int[] rows,
+            int[] buffer,
+            double[][] rowKeys,
+            int start,
+            int end)
+    {
+        if(end - start <= INSERTION_SORT_THRESHOLD)
+        {
+            insertionSort(rows, rowKeys, start, end);
+            return;
+        }
+        
+        int middle = (start + end) >>> 1;
+        mergeSort(rows, buffer, rowKeys, start, middle);
+        mergeSort(rows, buffer, rowKeys, middle, end);
+        
+        // no need to merge if the halves are already in order
+        if(compareRows(rowKeys, rows[middle - 1], rows[middle]) <= 0)
+        {
+            return;
+        }
+        
+        System.arraycopy(rows, start, buffer, start, end - start);
+        int left = start;
+        int right = middle;
+        int dest = start;
+        while(left < middle && right < end)
+        {
+            if(compareRows(rowKeys, buffer[right], buffer[left]) < 0)
+            {
+                rows[dest++] = buffer[right++];
+            }
+            else
+            {
+                rows[dest++] = buffer[left++];
+            }
+        }
+        
+        // anything left over on the right is already where it belongs
+        while(left < middle)
+        {
+            rows[dest++] = buffer[left++];
+        }
+    }
+    
+    private static void insertionSort(
+            int[] rows,
+            double[][] rowKeys,
+            int start,
+            int end)
+    {
+        for(int i = start + 1; i < end; i++)
+        {
+            int row = rows[i];
+            int j = i - 1;
+            while(j >= start && compareRows(rowKeys, rows[j], row) > 0)
+            {
+                rows[j + 1] = rows[j];
+                j--;
+            }
+            rows[j + 1] = row;
+        }
+    }
+    
+    /**
+     * Like {@link #compareRows(double[][], int, int)} but rows that tie on
+     * every key are ordered by their position
+     */
+    private static int compareRowsStable(double[][] rowKeys, int row1, int row2)
+    {
+        int comp = compareRows(rowKeys, row1, row2);
+        if(comp == 0)
+        {
+            comp = row1 < row2 ? -1 : (row1 == row2 ? 0 : 1);
+        }
+        return comp;
+    }
+    
+    /**
+     * Compare two rows key by key with NaN sorting after everything
+     */
+    private static int compareRows(double[][] rowKeys, int row1, int row2)
+    {
+        for(double[] keys: rowKeys)
+        {
+            double key1 = keys[row1];
+            double key2 = keys[row2];
+            if(key1 < key2)
+            {
+                return -1;
+            }
+            else if(key1 > key2)
+            {
+                return 1;
+            }
+            else if(key1 != key2)
+            {
+                // at least one of them is NaN
+                boolean missing1 = Double.isNaN(key1);
+                boolean missing2 = Double.isNaN(key2);
+                if(missing1 != missing2)
+                {
+                    return missing1 ? 1 : -1;
+                }
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * A threshold filter on a single column
+     */
+    private static final class ThresholdFilter
+    {
+        private final double[] values;
+        
+        private final boolean absoluteValue;
+        
+        private final boolean keepHighValues;
+        
+        private final double threshold;
+        
+        public ThresholdFilter(
+                double[] values,
+                boolean absoluteValue,
+                boolean keepHighValues,
+                double threshold)
+        {
+            this.values = values;
+            this.absoluteValue = absoluteValue;
+            this.keepHighValues = keepHighValues;
+            this.threshold = threshold;
+        }
+        
+        /**
+         * Move the indices in indices[0, count) that pass this filter to
+         * the front of the array keeping their order. Each index is always
+         * written and the kept count only moves forward when it passes, so
+         * the loops don't branch on the data. NaN fails every comparison
+         * so missing values are dropped without a separate check
+         * @return
+         *          the number of indices that passed
+         */
+        public int compact(int[] indices, int count)
+        {
+            final double[] values = this.values;
+            final double threshold = this.threshold;
+            int keptCount = 0;
+            
+            if(this.absoluteValue)
+            {
+                if(this.keepHighValues)
+                {
+                    for(int i = 0; i < count; i++)
+                    {
+                        int index = indices[i];
+                        indices[keptCount] = index;
+                        keptCount += Math.abs(values[index]) >= threshold ? 1 : 0;
+                    }
+                }
+                else
+                {
+                    for(int i = 0; i < count; i++)
+                    {
+                        int index = indices[i];
+                        indices[keptCount] = index;
+                        keptCount += Math.abs(values[index]) <= threshold ? 1 : 0;
+                    }
+                }
+            }
+            else
+            {
+                if(this.keepHighValues)
+                {
+                    for(int i = 0; i < count; i++)
+                    {
+                        int index = indices[i];
+                        indices[keptCount] = index;
+                        keptCount += values[index] >= threshold ? 1 : 0;
+                    }
+                }
+                else
+                {
+                    for(int i = 0; i < count; i++)
+                    {
+                        int index = indices[i];
+                        indices[keptCount] = index;
+                        keptCount += values[index] <= threshold ? 1 : 0;
+                    }
+                }
+            }
+            
+            return keptCount;
+        }
+    }
+    
+    /**
+     * A sort key on a single column
+     */
+    private static final class SortKey
+    {
+        private final double[] values;
+        
+        private final boolean absoluteValue;
+        
+        private final boolean descending;
+        
+        public SortKey(
+                double[] values,
+                boolean absoluteValue,
+                boolean descending)
+        {
+            this.values = values;
+            this.absoluteValue = absoluteValue;
+            this.descending = descending;
+        }
+        
+        /**
+         * Pull out this key's values for the given probeset indices with
+         * the abs and direction applied so that ascending order of the
+         * result is the order that we want
+         */
+        public double[] gather(int[] indices)
+        {
+            double[] keys = new double[indices.length];
+            for(int i = 0; i < keys.length; i++)
+            {
+                double value = this.values[indices[i]];
+                if(this.absoluteValue)
+                {
+                    value = Math.abs(value);
+                }
+                keys[i] = this.descending ? -value : value;
+            }
+            return keys;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.jax.maanova.test.gui;
 
+import java.awt.Cursor;
 import java.awt.Dialog;
 import java.awt.Frame;
 import java.awt.Window;
@@ -32,9 +33,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,22 +43,23 @@ import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
-import javax.swing.table.DefaultTableModel;
 
+import org.jax.maanova.DataFetchListener;
+import org.jax.maanova.DataFetchService;
 import org.jax.maanova.Maanova;
 import org.jax.maanova.configuration.MaanovaApplicationConfigurationManager;
 import org.jax.maanova.madata.MicroarrayExperiment;
-import org.jax.maanova.madata.ProbesetRow;
+import org.jax.maanova.madata.ProbesetDictionary;
 import org.jax.maanova.madata.gui.AddGeneListDialog;
 import org.jax.maanova.test.MaanovaTestResult;
 import org.jax.maanova.test.MaanovaTestStatisticSubtype;
 import org.jax.maanova.test.MaanovaTestStatisticType;
 import org.jax.maanova.test.MaanovaTestStatistics;
-import org.jax.util.Condition;
-import org.jax.util.ObjectUtil;
-import org.jax.util.datastructure.SequenceUtilities;
+import org.jax.maanova.test.StatisticColumn;
 import org.jax.util.gui.MessageDialogUtilities;
 import org.jax.util.io.CommonFlatFileFormat;
 import org.jax.util.io.FileChooserExtensionFilter;
@@ -84,7 +85,17 @@ public class TestResultsPanel extends JPanel
     
     private final MaanovaTestResult testResult;
     
-    private DefaultTableModel resultsTableModel;
+    private TestResultsTableModel resultsTableModel;
+    
+    private List<StatisticItem> displayedStatistics;
+    
+    private StatisticColumn[] displayedColumns;
+    
+    /**
+     * bumped every time that we start a new background row update so that
+     * stale updates can be recognized. Only touched from the AWT thread
+     */
+    private int rowUpdateGeneration = 0;
     
     private FilterSortRowsDialog filterSortDialog;
     
@@ -124,22 +135,7 @@ public class TestResultsPanel extends JPanel
      */
     private void postGuiInit(int initialTestIndex)
     {
-        this.resultsTableModel = new DefaultTableModel()
-        {
-            /**
-             * every Serializable is supposed to have one of these
-             */
-            private static final long serialVersionUID = 2005622745249975240L;
-
-            /**
-             * {@inheritDoc}
-             */
-            @Override
-            public boolean isCellEditable(int row, int column)
-            {
-                return false;
-            }
-        };
+        this.resultsTableModel = new TestResultsTableModel(PROBESET_ID_HEADER_STRING);
         this.resultsTable.setModel(this.resultsTableModel);
         this.resultsTable.getSelectionModel().addListSelectionListener(new ListSelectionListener()
         {
@@ -271,11 +267,6 @@ public class TestResultsPanel extends JPanel
 
     private void saveGeneList()
     {
-        List<StatisticItem> headerItems = this.getSelectedStatistics();
-        ProbesetRow[] matrix = this.getSortedFilteredMatrix(headerItems);
-        
-        List<String> genes = new ArrayList<String>();
-        
         final int[] selectedRowIndices = this.getSelectedRowIndices();
         if(selectedRowIndices.length == 0)
         {
@@ -289,14 +280,10 @@ public class TestResultsPanel extends JPanel
             return;
         }
         
-        int ii = 0;
-        for(int i = 0; i < matrix.length && ii < selectedRowIndices.length; i++)
+        List<String> genes = new ArrayList<String>(selectedRowIndices.length);
+        for(int rowIndex: selectedRowIndices)
         {
-            if(selectedRowIndices[ii] == i)
-            {
-                genes.add(matrix[i].getId());
-                ii++;
-            }
+            genes.add(this.resultsTableModel.getProbesetId(rowIndex));
         }
         
         AddGeneListDialog dialog = new AddGeneListDialog(
@@ -308,13 +295,29 @@ public class TestResultsPanel extends JPanel
     }
     
     /**
-     * Getter for the selected indices
+     * Getter for the selected indices. If nothing is selected and the
+     * table is only showing the top rows then all of the rows count as
+     * selected so that the top rows can be used directly for gene lists
+     * and volcano plots
      * @return  the selected indices
      */
     private int[] getSelectedRowIndices()
     {
         int[] indices = this.resultsTable.getSelectedRows();
-        Arrays.sort(indices);
+        if(indices.length == 0 &&
+           this.filterSortDialog != null &&
+           this.filterSortDialog.isTopRowsOn())
+        {
+            indices = new int[this.resultsTableModel.getRowCount()];
+            for(int i = 0; i < indices.length; i++)
+            {
+                indices[i] = i;
+            }
+        }
+        else
+        {
+            Arrays.sort(indices);
+        }
         return indices;
     }
     
@@ -349,21 +352,23 @@ public class TestResultsPanel extends JPanel
                     FlatFileWriter writer = new FlatFileWriter(
                             new BufferedWriter(new FileWriter(selectedFile)),
                             CommonFlatFileFormat.CSV_UNIX);
-                    List<StatisticItem> headerItems =
-                        this.getSelectedStatistics();
-                    String[] headerStrings = new String[headerItems.size() + 1];
-                    headerStrings[0] = PROBESET_ID_HEADER_STRING;
-                    for(int colIndex = 1; colIndex < headerStrings.length; colIndex++)
+                    
+                    // the export is exactly what the table shows
+                    TestResultsTableModel model = this.resultsTableModel;
+                    String[] tableRow = new String[model.getColumnCount()];
+                    for(int colIndex = 0; colIndex < tableRow.length; colIndex++)
                     {
-                        headerStrings[colIndex] = headerItems.get(colIndex - 1).toString();
+                        tableRow[colIndex] = model.getColumnName(colIndex);
                     }
+                    writer.writeRow(tableRow);
                     
-                    writer.writeRow(headerStrings);
-                    
-                    ProbesetRow[] matrix = this.getSortedFilteredMatrix(headerItems);
-                    for(ProbesetRow row: matrix)
+                    for(int rowIndex = 0; rowIndex < model.getRowCount(); rowIndex++)
                     {
-                        this.writeProbesetRow(writer, row);
+                        for(int colIndex = 0; colIndex < tableRow.length; colIndex++)
+                        {
+                            tableRow[colIndex] = (String)model.getValueAt(rowIndex, colIndex);
+                        }
+                        writer.writeRow(tableRow);
                     }
                     
                     writer.flush();
@@ -384,26 +389,6 @@ public class TestResultsPanel extends JPanel
         }
     }
     
-    /**
-     * Write a probeset row
-     * @param writer        the flat file writer to write to
-     * @param row           the probeset row to write
-     * @throws IOException  the IO exception
-     */
-    private void writeProbesetRow(FlatFileWriter writer, ProbesetRow row) throws IOException
-    {
-        Double[] rowValues = row.getValues();
-        String[] tblRow = new String[rowValues.length + 1];
-        tblRow[0] = row.getId();
-        
-        for(int colIndex = 1; colIndex < tblRow.length; colIndex++)
-        {
-            tblRow[colIndex] = rowValues[colIndex - 1].toString();
-        }
-        
-        writer.writeRow(tblRow);
-    }
-
     /**
      * Show the subset columns dialog
      */
@@ -511,11 +496,25 @@ public class TestResultsPanel extends JPanel
                     TestResultsPanel.this.filterSortDialogClosed();
                 }
             });
+            
+            // the top rows setting is cheap enough to recompute that we
+            // update the table while the dialog is still up
+            this.filterSortDialog.addTopRowsChangeListener(new ChangeListener()
+            {
+                /**
+                 * {@inheritDoc}
+                 */
+                public void stateChanged(ChangeEvent e)
+                {
+                    TestResultsPanel.this.filterSortDialogClosed();
+                }
+            });
         }
     }
 
     /**
-     * for when the filter/sort dialog has been closed
+     * for when the filter/sort dialog has been closed or its top rows
+     * setting has changed
      */
     private void filterSortDialogClosed()
     {
@@ -529,90 +528,267 @@ public class TestResultsPanel extends JPanel
             MicroarrayExperiment experiment = this.testResult.getParentExperiment();
             this.validIndices = experiment.getIndicesForGeneListNamed(geneList);
         }
-        this.refreshTable();
+        this.refreshRows();
+    }
+    
+    /**
+     * Refresh the table rows for new filter/sort settings. The columns
+     * stay the same so this only needs to replace the row indices
+     */
+    private void refreshRows()
+    {
+        // if the columns are still being fetched the new settings will be
+        // picked up once they arrive
+        if(this.displayedColumns != null)
+        {
+            this.updateRowsInBackground(
+                    this.displayedStatistics,
+                    this.displayedColumns);
+        }
     }
 
+    /**
+     * Refresh the table columns and rows. The columns are fetched in the
+     * background with a wait cursor showing in the meantime
+     */
     private void refreshTable()
     {
-        this.resultsTableModel.setRowCount(0);
+        final List<StatisticItem> selectedStats = this.getSelectedStatistics();
+        final int contrastIndex = this.testNumberComboBox.getSelectedIndex();
+        List<Object> columnsKey = Arrays.<Object>asList(
+                TestResultsPanel.class,
+                this.testResult,
+                contrastIndex,
+                new ArrayList<StatisticItem>(selectedStats));
         
-        List<StatisticItem> selectedStats = this.getSelectedStatistics();
-        {
-            Vector<Object> headerStrings = new Vector<Object>(selectedStats.size() + 1);
-            headerStrings.add(PROBESET_ID_HEADER_STRING);
-            headerStrings.addAll(selectedStats);
-            this.resultsTableModel.setColumnIdentifiers(headerStrings);
-        }
-        ProbesetRow[] statsMatrix = this.getSortedFilteredMatrix(selectedStats);
+        this.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        DataFetchService.getInstance().fetch(
+                this,
+                columnsKey,
+                new Callable<StatisticColumn[]>()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    public StatisticColumn[] call()
+                    {
+                        // the columns come whole out of the test result
+                        // cache so we only go to R the first time that a
+                        // column is needed
+                        StatisticColumn[] columns =
+                            new StatisticColumn[selectedStats.size()];
+                        for(int i = 0; i < columns.length; i++)
+                        {
+                            columns[i] = TestResultsPanel.this.testResult.getStatisticColumn(
+                                    selectedStats.get(i),
+                                    contrastIndex);
+                        }
+                        return columns;
+                    }
+                },
+                new DataFetchListener<StatisticColumn[]>()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    public void dataFetched(StatisticColumn[] columns)
+                    {
+                        TestResultsPanel.this.setCursor(null);
+                        TestResultsPanel.this.displayedStatistics = selectedStats;
+                        TestResultsPanel.this.displayedColumns = columns;
+                        TestResultsPanel.this.updateRowsInBackground(
+                                selectedStats,
+                                columns);
+                    }
+                    
+                    /**
+                     * {@inheritDoc}
+                     */
+                    public void dataFetchFailed(Exception cause)
+                    {
+                        TestResultsPanel.this.setCursor(null);
+                        String message = "Failed to read the test results";
+                        LOG.log(Level.SEVERE, message, cause);
+                        MessageDialogUtilities.error(
+                                TestResultsPanel.this,
+                                message + ": " + cause.getMessage(),
+                                "Error Reading Test Results");
+                    }
+                });
+    }
+    
+    /**
+     * Sort and filter the rows on a background thread and then show them.
+     * This should only be called from the AWT thread. If another update
+     * is started before this one finishes the result of this one is
+     * thrown away
+     * @param stats
+     *          the statistics to show
+     * @param columns
+     *          the columns for the statistics
+     */
+    private void updateRowsInBackground(
+            final List<StatisticItem> stats,
+            final StatisticColumn[] columns)
+    {
+        final ProbesetDictionary probesetDictionary =
+            this.testResult.getProbesetDictionary();
+        final RowSortFilterEngine sortFilterEngine = this.createSortFilterEngine(
+                stats,
+                columns,
+                probesetDictionary.size());
+        final int updateGeneration = ++this.rowUpdateGeneration;
         
-        for(ProbesetRow statsRow: statsMatrix)
+        Runnable sortFilterRunnable = new Runnable()
         {
-            Double[] currRowValues = statsRow.getValues();
-            String[] tableRow = new String[currRowValues.length + 1];
-            tableRow[0] = statsRow.getId();
-            
-            for(int tblCol = 1; tblCol < tableRow.length; tblCol++)
+            /**
+             * {@inheritDoc}
+             */
+            public void run()
             {
-                tableRow[tblCol] = currRowValues[tblCol - 1].toString();
+                final int[] rowIndices = sortFilterEngine == null ?
+                        new int[0] :
+                        sortFilterEngine.getSortedFilteredIndices();
+                javax.swing.SwingUtilities.invokeLater(new Runnable()
+                {
+                    /**
+                     * {@inheritDoc}
+                     */
+                    public void run()
+                    {
+                        if(updateGeneration == TestResultsPanel.this.rowUpdateGeneration)
+                        {
+                            TestResultsPanel.this.showRows(
+                                    probesetDictionary,
+                                    stats,
+                                    columns,
+                                    rowIndices);
+                        }
+                    }
+                });
             }
-            
-            this.resultsTableModel.addRow(tableRow);
+        };
+        Thread sortFilterThread = new Thread(sortFilterRunnable);
+        sortFilterThread.start();
+    }
+    
+    private void showRows(
+            ProbesetDictionary probesetDictionary,
+            List<StatisticItem> stats,
+            StatisticColumn[] columns,
+            int[] rowIndices)
+    {
+        if(this.resultsTableModel.getStatisticColumns() == columns)
+        {
+            this.resultsTableModel.setRowIndices(rowIndices);
         }
-        this.totalRowCountTextField.setText(Integer.toString(statsMatrix.length));
+        else
+        {
+            this.resultsTableModel.setColumns(
+                    probesetDictionary,
+                    stats,
+                    columns,
+                    rowIndices);
+        }
+        this.totalRowCountTextField.setText(Integer.toString(rowIndices.length));
         this.selectedRowCountTextField.setText("0");
     }
     
-    private ProbesetRow[] getSortedFilteredMatrix(List<StatisticItem> selectedStats)
+    /**
+     * Set up an engine for the current filter/sort settings
+     * @param selectedStats
+     *          the statistics that are shown
+     * @param columns
+     *          the columns for the statistics
+     * @param probesetCount
+     *          the number of probesets in the test result
+     * @return
+     *          the engine or null if the settings refer to a column that
+     *          has been hidden (in which case no rows should be shown)
+     */
+    private RowSortFilterEngine createSortFilterEngine(
+            List<StatisticItem> selectedStats,
+            StatisticColumn[] columns,
+            int probesetCount)
     {
-        ProbesetRow[] statsMatrix = this.getStatisticsMatrix(selectedStats);
-        if(this.filterSortDialog != null)
+        RowSortFilterEngine sortFilterEngine = new RowSortFilterEngine(
+                this.validIndices,
+                probesetCount);
+        
+        FilterSortRowsDialog dialog = this.filterSortDialog;
+        if(dialog != null)
         {
-            if(this.filterSortDialog.isFilteringOn())
+            if(dialog.isFilteringOn())
             {
-                StatisticItem filterStat =
-                    this.filterSortDialog.getSelectedFilterStatistic();
-                double filterThreshold =
-                    this.filterSortDialog.getSelectedFilterThreshold();
-                
-                statsMatrix = this.filterMatrixByThreshold(
+                boolean added = this.addFilter(
+                        sortFilterEngine,
                         selectedStats,
-                        statsMatrix,
-                        filterStat,
-                        filterThreshold);
+                        columns,
+                        dialog.getSelectedFilterStatistic(),
+                        dialog.getSelectedFilterThreshold());
+                if(!added)
+                {
+                    return null;
+                }
             }
             
-            if(this.filterSortDialog.isSortingOn())
+            if(dialog.isSecondFilteringOn())
             {
-                StatisticItem sortStat =
-                    this.filterSortDialog.getSelectedSortStatistic();
-                statsMatrix = this.sortMatrix(
+                boolean added = this.addFilter(
+                        sortFilterEngine,
                         selectedStats,
-                        statsMatrix,
-                        sortStat);
+                        columns,
+                        dialog.getSelectedSecondFilterStatistic(),
+                        dialog.getSelectedSecondFilterThreshold());
+                if(!added)
+                {
+                    return null;
+                }
+            }
+            
+            if(dialog.isSortingOn())
+            {
+                boolean added = this.addSortKey(
+                        sortFilterEngine,
+                        selectedStats,
+                        columns,
+                        dialog.getSelectedSortStatistic());
+                if(!added)
+                {
+                    return null;
+                }
+                
+                if(dialog.isSecondarySortingOn())
+                {
+                    added = this.addSortKey(
+                            sortFilterEngine,
+                            selectedStats,
+                            columns,
+                            dialog.getSelectedSecondarySortStatistic());
+                    if(!added)
+                    {
+                        return null;
+                    }
+                }
+                
+                if(dialog.isTopRowsOn())
+                {
+                    sortFilterEngine.setTopCount(dialog.getTopRowCount());
+                }
             }
         }
         
-        return statsMatrix;
+        return sortFilterEngine;
     }
     
     private void showVolcanoPlot()
     {
-        List<StatisticItem> testStats = this.getSelectedStatistics();
-        
         final int[] selectedRowIndices = this.getSelectedRowIndices();
         final int[] selectedGeneIndices = new int[selectedRowIndices.length];
-        if(selectedGeneIndices.length > 0)
+        for(int i = 0; i < selectedRowIndices.length; i++)
         {
-            final ProbesetRow[] statsMatrix = this.getSortedFilteredMatrix(testStats);
-            int ii = 0;
-            for(int i = 0; i < statsMatrix.length && ii < selectedRowIndices.length; i++)
-            {
-                if(selectedRowIndices[ii] == i)
-                {
-                    selectedGeneIndices[ii] = statsMatrix[i].getIndex();
-                    ii++;
-                }
-            }
+            selectedGeneIndices[i] =
+                this.resultsTableModel.getProbesetIndex(selectedRowIndices[i]);
         }
         
         Arrays.sort(selectedGeneIndices);
@@ -632,12 +808,26 @@ public class TestResultsPanel extends JPanel
         });
     }
     
-    private ProbesetRow[] sortMatrix(
+    /**
+     * Add a sort key for the given statistic
+     * @param sortFilterEngine
+     *          the engine to add the key to
+     * @param matrixHeader
+     *          the header values for the stats columns
+     * @param columns
+     *          the stats columns
+     * @param sortStat
+     *          the statistic to sort on
+     * @return
+     *          false if the statistic's column has been hidden
+     */
+    private boolean addSortKey(
+            RowSortFilterEngine sortFilterEngine,
             List<StatisticItem> matrixHeader,
-            final ProbesetRow[] statsMatrix,
-            final StatisticItem sortStat)
+            StatisticColumn[] columns,
+            StatisticItem sortStat)
     {
-        final int sortColIndex = matrixHeader.indexOf(sortStat);
+        int sortColIndex = matrixHeader.indexOf(sortStat);
         if(sortColIndex == -1)
         {
             String warningMessage =
@@ -648,39 +838,15 @@ public class TestResultsPanel extends JPanel
                     this,
                     warningMessage,
                     "Cannot Sort");
-            return new ProbesetRow[0];
+            return false;
         }
         else
         {
-            final boolean reverseSort = requiresReverseOrdering(sortStat);
-            final boolean takeAbsValue = sortStat instanceof FoldChangeStatisticItem;
-            Comparator<ProbesetRow> sortComparator = new Comparator<ProbesetRow>()
-            {
-                /**
-                 * {@inheritDoc}
-                 */
-                public int compare(ProbesetRow row1, ProbesetRow row2)
-                {
-                    Double val1 = row1.getValues()[sortColIndex];
-                    if(takeAbsValue && val1 != null && val1.doubleValue() < 0.0)
-                    {
-                        val1 = new Double(-val1.doubleValue());
-                    }
-                    
-                    Double val2 = row2.getValues()[sortColIndex];
-                    if(takeAbsValue && val2 != null && val2.doubleValue() < 0.0)
-                    {
-                        val2 = new Double(-val2.doubleValue());
-                    }
-                    
-                    int comp = ObjectUtil.compare(val1, val2);
-                    return reverseSort ? -comp : comp;
-                }
-            };
-            
-            Arrays.sort(statsMatrix, sortComparator);
-            
-            return statsMatrix;
+            sortFilterEngine.addSortKey(
+                    columns[sortColIndex].getValues(),
+                    sortStat instanceof FoldChangeStatisticItem,
+                    this.requiresReverseOrdering(sortStat));
+            return true;
         }
     }
     
@@ -709,23 +875,26 @@ public class TestResultsPanel extends JPanel
     }
 
     /**
-     * Filter values from the given matrix using the given threshold value
+     * Add a threshold filter for the given statistic
+     * @param sortFilterEngine
+     *          the engine to add the filter to
      * @param matrixHeader
-     *          the header values for the stats matrix
-     * @param statsMatrix
-     *          the stats matrix to filter
+     *          the header values for the stats columns
+     * @param columns
+     *          the stats columns
      * @param filterStat
      *          the statistic to filter on
      * @param filterThreshold
      *          the threshold to use
      * @return
-     *          the filtered array
+     *          false if the statistic's column has been hidden
      */
-    private ProbesetRow[] filterMatrixByThreshold(
+    private boolean addFilter(
+            RowSortFilterEngine sortFilterEngine,
             List<StatisticItem> matrixHeader,
-            final ProbesetRow[] statsMatrix,
-            final StatisticItem filterStat,
-            final double filterThreshold)
+            StatisticColumn[] columns,
+            StatisticItem filterStat,
+            double filterThreshold)
     {
         int filterColIndex = matrixHeader.indexOf(filterStat);
         if(filterColIndex == -1)
@@ -738,103 +907,18 @@ public class TestResultsPanel extends JPanel
                     this,
                     warningMessage,
                     "Cannot Filter");
-            return new ProbesetRow[0];
+            return false;
         }
         else
         {
-            List<ProbesetRow> filteredList = new ArrayList<ProbesetRow>();
-            
-            final boolean takeAbsValue = filterStat instanceof FoldChangeStatisticItem;
-            final boolean reverseOrder = this.requiresReverseOrdering(filterStat);
-            final Condition<Double> filterCond = new Condition<Double>()
-            {
-                public boolean test(Double value)
-                {
-                    if(value == null)
-                    {
-                        return false;
-                    }
-                    else
-                    {
-                        double dblVal = value.doubleValue();
-                        if(takeAbsValue)
-                        {
-                            dblVal = Math.abs(dblVal);
-                        }
-                        
-                        if(reverseOrder)
-                        {
-                            return dblVal >= filterThreshold;
-                        }
-                        else
-                        {
-                            return dblVal <= filterThreshold;
-                        }
-                    }
-                }
-            };
-            
-            // loop through everything only keeping the values that pass
-            // through the filter
-            for(int i = 0; i < statsMatrix.length; i++)
-            {
-                if(filterCond.test(statsMatrix[i].getValues()[filterColIndex]))
-                {
-                    filteredList.add(statsMatrix[i]);
-                }
-            }
-            
-            return filteredList.toArray(new ProbesetRow[filteredList.size()]);
-        }
-    }
-
-    /**
-     * Get the 2D stats matrix. This returns a 2D row x column matrix where
-     * the rows can be given directly to a JTable
-     * @param testStatisticsItems
-     *          the items to extract
-     * @return
-     *          the matrix
-     */
-    private ProbesetRow[] getStatisticsMatrix(List<StatisticItem> testStatisticsItems)
-    {
-        Double[][] matrix = new Double[testStatisticsItems.size()][];
-        
-        for(int i = 0; i < matrix.length; i++)
-        {
-            StatisticItem currStatItem = testStatisticsItems.get(i);
-            if(currStatItem instanceof FoldChangeStatisticItem)
-            {
-                matrix[i] = this.testResult.getFoldChangeValues(
-                        this.testNumberComboBox.getSelectedIndex());
-            }
-            else
-            {
-                TestStatisticItem currTestStatItem = (TestStatisticItem)currStatItem;
-                MaanovaTestStatistics stats = this.testResult.getStatistics(
-                        currTestStatItem.getTestStatisticType());
-                matrix[i] = stats.getValues(
-                        currTestStatItem.getTestStatisticSubtype(),
-                        this.testNumberComboBox.getSelectedIndex());
-            }
-        }
-        
-        // transpose the transpose so that data rows are together
-        matrix = SequenceUtilities.transposeMatrix(matrix);
-        
-        String[] probesetIds = this.testResult.getProbesetIds();
-        
-        assert probesetIds.length == matrix.length;
-        
-        ProbesetRow[] probesetRows = new ProbesetRow[matrix.length];
-        for(int row = 0; row < probesetRows.length; row++)
-        {
-            probesetRows[row] = new ProbesetRow(probesetIds[row], matrix[row], row);
+            // missing values never pass through the filter
+            sortFilterEngine.addFilter(
+                    columns[filterColIndex].getValues(),
+                    filterStat instanceof FoldChangeStatisticItem,
+                    this.requiresReverseOrdering(filterStat),
+                    filterThreshold);
+            return true;
         }
-        
-        return SequenceUtilities.retainIndices(
-                this.validIndices,
-                probesetRows);
     }
     
     /**
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2010 The Jackson Laboratory
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this software.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jax.maanova.test.gui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.table.AbstractTableModel;
+
+import org.jax.maanova.madata.ProbesetDictionary;
+import org.jax.maanova.test.StatisticColumn;
+
+/**
+ * A read only table model for test results that doesn't hold any row
+ * objects. The statistics are held as the primitive columns that come out
+ * of the test result cache and the table rows are just an index array into
+ * those columns, so sorting and filtering only needs to replace the index
+ * array. Cell values are formatted as they're asked for, which means that
+ * only the rows that the table actually paints are ever formatted.
+ * @author <A HREF="mailto:keith.sheppard@jax.org">Keith Sheppard</A>
+ */
+class TestResultsTableModel extends AbstractTableModel
+{
+    /**
+     * every {@link java.io.Serializable} is supposed to have one of these
+     */
+    private static final long serialVersionUID = -4281920536245306154L;
+    
+    /**
+     * what we show for missing values. this is what R shows
+     */
+    private static final String MISSING_VALUE_STRING = "NA";
+    
+    private final String probesetIdHeader;
+    
+    private ProbesetDictionary probesetDictionary = new ProbesetDictionary(new String[0]);
+    
+    private List<StatisticItem> statistics = new ArrayList<StatisticItem>();
+    
+    private StatisticColumn[] columns = new StatisticColumn[0];
+    
+    private int[] rowIndices = new int[0];
+    
+    /**
+     * Constructor
+     * @param probesetIdHeader
+     *          the header for the probeset ID column
+     */
+    public TestResultsTableModel(String probesetIdHeader)
+    {
+        this.probesetIdHeader = probesetIdHeader;
+    }
+    
+    /**
+     * Set the columns that this model shows. This should only be called
+     * from the AWT thread
+     * @param probesetDictionary
+     *          the probeset IDs for every probeset in the test result
+     * @param statistics
+     *          the statistics that make up the table columns (after the
+     *          probeset ID column)
+     * @param columns
+     *          the statistic columns that go with the statistics. These
+     *          hold a value for every probeset in the test result
+     * @param rowIndices
+     *          the probeset index of each table row
+     */
+    public void setColumns(
+            ProbesetDictionary probesetDictionary,
+            List<StatisticItem> statistics,
+            StatisticColumn[] columns,
+            int[] rowIndices)
+    {
+        this.probesetDictionary = probesetDictionary;
+        this.statistics = new ArrayList<StatisticItem>(statistics);
+        this.columns = columns;
+        this.rowIndices = rowIndices;
+        this.fireTableStructureChanged();
+    }
+    
+    /**
+     * Set the rows to show without changing the columns. This should only
+     * be called from the AWT thread
+     * @param rowIndices
+     *          the probeset index of each table row
+     */
+    public void setRowIndices(int[] rowIndices)
+    {
+        this.rowIndices = rowIndices;
+        this.fireTableDataChanged();
+    }
+    
+    /**
+     * Getter for the probeset index of each table row. The returned array
+     * is shared with this model so it must not be modified
+     * @return
+     *          the row indices
+     */
+    public int[] getRowIndices()
+    {
+        return this.rowIndices;
+    }
+    
+    /**
+     * Get the probeset index of the given table row
+     * @param rowIndex
+     *          the table row
+     * @return
+     *          the probeset index
+     */
+    public int getProbesetIndex(int rowIndex)
+    {
+        return this.rowIndices[rowIndex];
+    }
+    
+    /**
+     * Get the probeset ID of the given table row
+     * @param rowIndex
+     *          the table row
+     * @return
+     *          the probeset ID
+     */
+    public String getProbesetId(int rowIndex)
+    {
+        return this.probesetDictionary.getProbesetId(this.rowIndices[rowIndex]);
+    }
+    
+    /**
+     * Getter for the statistics that make up the table columns (after the
+     * probeset ID column)
+     * @return
+     *          the statistics
+     */
+    public List<StatisticItem> getStatistics()
+    {
+        return this.statistics;
+    }
+    
+    /**
+     * Getter for the statistic columns that go with
+     * {@link #getStatistics()}. The returned array is shared with this
+     * model so it must not be modified
+     * @return
+     *          the columns
+     */
+    public StatisticColumn[] getStatisticColumns()
+    {
+        return this.columns;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int getRowCount()
+    {
+        return this.rowIndices.length;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public int getColumnCount()
+    {
+        return this.columns.length + 1;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getColumnName(int column)
+    {
+        if(column == 0)
+        {
+            return this.probesetIdHeader;
+        }
+        else
+        {
+            return this.statistics.get(column - 1).toString();
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Class<?> getColumnClass(int columnIndex)
+    {
+        return String.class;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public Object getValueAt(int rowIndex, int columnIndex)
+    {
+        int probesetIndex = this.rowIndices[rowIndex];
+        if(columnIndex == 0)
+        {
+            return this.probesetDictionary.getProbesetId(probesetIndex);
+        }
+        else
+        {
+            return formatValue(this.columns[columnIndex - 1], probesetIndex);
+        }
+    }
+    
+    /**
+     * Format a single statistic value the way that the table shows it
+     * @param column
+     *          the column
+     * @param probesetIndex
+     *          the probeset index
+     * @return
+     *          the formatted value
+     */
+    public static String formatValue(StatisticColumn column, int probesetIndex)
+    {
+        if(column.isMissing(probesetIndex))
+        {
+            return MISSING_VALUE_STRING;
+        }
+        else
+        {
+            return Double.toString(column.getValue(probesetIndex));
+        }
+    }
+}
@@ -37,6 +37,7 @@ import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,21 +54,28 @@ import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JToolTip;
 
+import org.jax.maanova.DataFetchListener;
+import org.jax.maanova.DataFetchService;
 import org.jax.maanova.Maanova;
 import org.jax.maanova.madata.MicroarrayExperiment;
+import org.jax.maanova.madata.ProbesetDictionary;
 import org.jax.maanova.madata.ProbesetRow;
 import org.jax.maanova.madata.gui.AddGeneListDialog;
 import org.jax.maanova.plot.AreaSelectionListener;
+import org.jax.maanova.plot.DensityScatterPlotRenderer;
 import org.jax.maanova.plot.MaanovaChartPanel;
 import org.jax.maanova.plot.PlotUtil;
 import org.jax.maanova.plot.SaveChartAction;
 import org.jax.maanova.plot.SimpleChartConfigurationDialog;
+import org.jax.maanova.plot.XYProbeData;
 import org.jax.maanova.test.MaanovaTestResult;
 import org.jax.maanova.test.MaanovaTestStatisticSubtype;
 import org.jax.maanova.test.MaanovaTestStatisticType;
 import org.jax.maanova.test.MaanovaTestStatistics;
+import org.jax.maanova.test.StatisticColumn;
 import org.jax.r.RUtilities;
 import org.jax.util.datastructure.SequenceUtilities;
+import org.jax.util.gui.MessageDialogUtilities;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.JFreeChart;
@@ -115,8 +123,17 @@ public class VolcanoPlotPanel extends JPanel
     
     private final JComboBox testNumberComboBox;
     
+    /**
+     * the data behind the chart that is showing. Only touched from the
+     * AWT thread
+     */
     private XYProbeData cachedXYData = null;
     
+    /**
+     * the fetch key that {@link #cachedXYData} was fetched with
+     */
+    private Object cachedXYDataKey = null;
+    
     private volatile int[] selectedIndices = new int[0];
     
     private final SimpleChartConfigurationDialog chartConfigurationDialog;
@@ -353,11 +370,12 @@ public class VolcanoPlotPanel extends JPanel
     private void saveSelectedPoints()
     {
         int[] currSelectedIndices = this.selectedIndices;
-        String[] probeIds = this.maanovaTestResult.getParentExperiment().getProbesetIds();
+        ProbesetDictionary probesetDictionary =
+            this.maanovaTestResult.getProbesetDictionary();
         List<String> selectedGenes = new ArrayList<String>(currSelectedIndices.length);
         for(int i: currSelectedIndices)
         {
-            selectedGenes.add(probeIds[i]);
+            selectedGenes.add(probesetDictionary.getProbesetId(i));
         }
         
         AddGeneListDialog dialog = new AddGeneListDialog(
@@ -596,51 +614,35 @@ public class VolcanoPlotPanel extends JPanel
      */
     private int[] getIndicesInArea(Rectangle2D area)
     {
-        XYProbeData xyData = this.getXYData();
-        double[] xData = xyData.getXData();
-        double[] yData = xyData.getYData();
-        int[] probeIndices = xyData.getProbeIndices();
-        
-        int selectedCount = 0;
-        int[] mySelectedIndices = new int[xData.length];
-        for(int i = 0; i < xData.length; i++)
+        XYProbeData xyData = this.cachedXYData;
+        if(xyData == null)
         {
-            if(area.contains(xData[i], yData[i]))
-            {
-                mySelectedIndices[selectedCount] = probeIndices[i];
-                selectedCount++;
-            }
+            return new int[0];
         }
         
-        // trim the array to size
-        if(selectedCount == mySelectedIndices.length)
-        {
-            return mySelectedIndices;
-        }
-        else
+        int[] probeIndices = xyData.getProbeIndices();
+        
+        int[] mySelectedIndices = xyData.getDataIndicesInArea(area);
+        for(int i = 0; i < mySelectedIndices.length; i++)
         {
-            int[] trimmedArray = new int[selectedCount];
-            for(int i = 0; i < trimmedArray.length; i++)
-            {
-                trimmedArray[i] = mySelectedIndices[i];
-            }
-            return trimmedArray;
+            mySelectedIndices[i] = probeIndices[mySelectedIndices[i]];
         }
+        
+        return mySelectedIndices;
     }
 
     private void mouseMoved(MouseEvent e)
     {
-        if(this.showTooltip)
+        XYProbeData xyProbeData = this.cachedXYData;
+        if(this.showTooltip && xyProbeData != null)
         {
             Point2D chartPoint = this.chartPanel.toChartPoint(e.getPoint());
             
             // find the nearest probe
-            XYProbeData xyProbeData = this.getXYData();
             double[][] xyData = new double[][] {
                     xyProbeData.getXData(),
                     xyProbeData.getYData()};
-            int nearestDotIndex = PlotUtil.getNearestDataIndex(
-                    xyData,
+            int nearestDotIndex = xyProbeData.getNearestDataIndex(
                     chartPoint.getX(),
                     chartPoint.getY());
             
@@ -712,7 +714,8 @@ public class VolcanoPlotPanel extends JPanel
                 tableRowsString.append(this.availableTestStatistics[i].toString());
                 tableRowsString.append(':');
                 tableRowsString.append(cellDelimiter);
-                tableRowsString.append(nearestProbeset.getValues()[i]);
+                Double currValue = nearestProbeset.getValues()[i];
+                tableRowsString.append(currValue == null ? "NA" : currValue.toString());
             }
             tableRowsString.append("</table></html>");
             this.toolTip.setTipText(tableRowsString.toString());
@@ -759,17 +762,6 @@ public class VolcanoPlotPanel extends JPanel
         return PlotUtil.toJava2DCoordinates(plot, renderingInfo, graphX, graphY);
     }
 
-    /**
-     * Getter for the selected test statistics
-     * @return
-     *          the selected test statistics
-     */
-    private MaanovaTestStatistics getSelectedTestStatistics()
-    {
-        return this.maanovaTestResult.getStatistics(
-                this.getSelectedStatisticType());
-    }
-    
     private MaanovaTestStatisticType getSelectedStatisticType()
     {
         return (MaanovaTestStatisticType)this.statisticTypeComboBox.getSelectedItem();
@@ -792,11 +784,83 @@ public class VolcanoPlotPanel extends JPanel
         }
     }
     
+    /**
+     * Update the chart, fetching new data points in the background if the
+     * selected statistics have changed
+     */
     private void updateDataPoints()
     {
-        this.cachedXYData = null;
-        XYProbeData xyData = this.getXYData();
+        final int testNumber = this.getSelectedTestNumber();
+        final MaanovaTestStatisticType statisticType = this.getSelectedStatisticType();
+        final MaanovaTestStatisticSubtype statisticSubtype = this.getSelectedStatisticSubtype();
+        final List<Object> xyDataKey = Arrays.<Object>asList(
+                VolcanoPlotPanel.class,
+                this.maanovaTestResult,
+                testNumber,
+                statisticType,
+                statisticSubtype);
         
+        if(xyDataKey.equals(this.cachedXYDataKey))
+        {
+            this.updateChart(this.cachedXYData);
+        }
+        else
+        {
+            this.chartPanel.setLoading(true);
+            DataFetchService.getInstance().fetch(
+                    this,
+                    xyDataKey,
+                    new Callable<XYProbeData>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public XYProbeData call()
+                        {
+                            return VolcanoPlotPanel.this.createXYData(
+                                    testNumber,
+                                    VolcanoPlotPanel.this.maanovaTestResult.getStatistics(
+                                            statisticType),
+                                    statisticSubtype);
+                        }
+                    },
+                    new DataFetchListener<XYProbeData>()
+                    {
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void dataFetched(XYProbeData data)
+                        {
+                            VolcanoPlotPanel.this.cachedXYData = data;
+                            VolcanoPlotPanel.this.cachedXYDataKey = xyDataKey;
+                            VolcanoPlotPanel.this.chartPanel.setLoading(false);
+                            VolcanoPlotPanel.this.updateChart(data);
+                        }
+                        
+                        /**
+                         * {@inheritDoc}
+                         */
+                        public void dataFetchFailed(Exception cause)
+                        {
+                            VolcanoPlotPanel.this.chartPanel.setLoading(false);
+                            String message = "Failed to read the volcano plot data";
+                            LOG.log(Level.SEVERE, message, cause);
+                            MessageDialogUtilities.error(
+                                    VolcanoPlotPanel.this,
+                                    message + ": " + cause.getMessage(),
+                                    "Error Reading Data");
+                        }
+                    });
+        }
+    }
+    
+    /**
+     * Rebuild the chart from the given data
+     * @param xyData
+     *          the data
+     */
+    private void updateChart(XYProbeData xyData)
+    {
         DefaultXYDataset xyDataSet = new DefaultXYDataset();
         int[] selectedIndices = this.selectedIndices;
         if(selectedIndices.length == 0)
@@ -856,7 +920,18 @@ public class VolcanoPlotPanel extends JPanel
                 false);
         
         XYPlot xyPlot = (XYPlot)scatterPlot.getPlot();
-        xyPlot.setRenderer(PlotUtil.createSimpleScatterPlotRenderer());
+        if(PlotUtil.isDensityRenderingNeeded(xyDataSet))
+        {
+            // keep the selected points visible on top of the density cells
+            DensityScatterPlotRenderer densityRenderer =
+                PlotUtil.createDensityScatterPlotRenderer();
+            densityRenderer.setSeriesDrawnIndividually(1, true);
+            xyPlot.setRenderer(densityRenderer);
+        }
+        else
+        {
+            xyPlot.setRenderer(PlotUtil.createSimpleScatterPlotRenderer());
+        }
         if(this.viewArea != null)
         {
             PlotUtil.rescaleXYPlot(this.viewArea, xyPlot);
@@ -866,19 +941,6 @@ public class VolcanoPlotPanel extends JPanel
         this.chartPanel.setChart(scatterPlot);
     }
     
-    private synchronized XYProbeData getXYData()
-    {
-        if(this.cachedXYData == null)
-        {
-            this.cachedXYData = this.createXYData(
-                    this.getSelectedTestNumber(),
-                    this.getSelectedTestStatistics(),
-                    this.getSelectedStatisticSubtype());
-        }
-        
-        return this.cachedXYData;
-    }
-    
     /**
      * Creates volcano plot data points from a JFreeChart {@link XYDataset}
      * from the given test statistics.
@@ -896,54 +958,54 @@ public class VolcanoPlotPanel extends JPanel
             MaanovaTestStatistics testStatistics,
             MaanovaTestStatisticSubtype testStatisticSubtype)
     {
-        Double[] objXValues =
-            this.maanovaTestResult.getFoldChangeValues(plotIndex);
-        Double[] objYValues =
-            testStatistics.getValues(testStatisticSubtype, plotIndex);
+        StatisticColumn xColumn =
+            this.maanovaTestResult.getFoldChangeColumn(plotIndex);
+        StatisticColumn yColumn =
+            testStatistics.getColumn(testStatisticSubtype, plotIndex);
         
         // check the array lengths which should be the same if everything is OK
-        if(objXValues.length != objYValues.length)
+        if(xColumn.size() != yColumn.size())
         {
             throw new IllegalArgumentException(
                     "There is a missmatch between the number of X (" +
-                    objXValues.length +
-                    ") and Y (" + objYValues.length + ") values");
+                    xColumn.size() +
+                    ") and Y (" + yColumn.size() + ") values");
         }
         
-        // first count all non-null pairings
+        // first count all non-missing pairings
         int nonNullCount = 0;
-        for(int i = 0; i < objXValues.length; i++)
+        for(int i = 0; i < xColumn.size(); i++)
         {
-            if(objXValues[i] != null && objYValues[i] != null)
+            if(!xColumn.isMissing(i) && !yColumn.isMissing(i))
             {
                 nonNullCount++;
             }
         }
         
-        if(nonNullCount != objXValues.length && LOG.isLoggable(Level.WARNING))
+        if(nonNullCount != xColumn.size() && LOG.isLoggable(Level.WARNING))
         {
             LOG.warning(
-                    "Found " + (objXValues.length - nonNullCount) +
+                    "Found " + (xColumn.size() - nonNullCount) +
                     " NaN data points in the volcano plot data");
         }
         
-        // OK, now convert to primitive arrays
+        // OK, now pull out the non-missing values
         double[] primXValues = new double[nonNullCount];
         double[] primYValues = new double[nonNullCount];
         int[] probeIndices = new int[nonNullCount];
         int primitiveArraysIndex = 0;
-        for(int objArraysIndex = 0; objArraysIndex < objXValues.length; objArraysIndex++)
+        for(int columnIndex = 0; columnIndex < xColumn.size(); columnIndex++)
         {
-            if(objXValues[objArraysIndex] != null && objYValues[objArraysIndex] != null)
+            if(!xColumn.isMissing(columnIndex) && !yColumn.isMissing(columnIndex))
             {
-                double yVal = objYValues[objArraysIndex];
+                double yVal = yColumn.getValue(columnIndex);
                 if(yVal < MIN_PVALUE_THRESHOLD)
                 {
                     yVal = MIN_PVALUE_THRESHOLD;
                 }
-                primXValues[primitiveArraysIndex] = objXValues[objArraysIndex];
+                primXValues[primitiveArraysIndex] = xColumn.getValue(columnIndex);
                 primYValues[primitiveArraysIndex] = -Math.log10(yVal);
-                probeIndices[primitiveArraysIndex] = objArraysIndex;
+                probeIndices[primitiveArraysIndex] = columnIndex;
                 
                 primitiveArraysIndex++;
             }
@@ -951,56 +1013,4 @@ public class VolcanoPlotPanel extends JPanel
         
         return new XYProbeData(primXValues, primYValues, probeIndices);
     }
-    
-    private class XYProbeData
-    {
-        private final double[] xData;
-        
-        private final double[] yData;
-        
-        private final int[] probeIndices;
-
-        /**
-         * Constructor
-         * @param xData the x axis data
-         * @param yData the y axis data
-         * @param probeIndices  the indices for the corresponding probes
-         */
-        public XYProbeData(double[] xData, double[] yData, int[] probeIndices)
-        {
-            assert xData.length == yData.length;
-            assert yData.length == probeIndices.length;
-            
-            this.xData = xData;
-            this.yData = yData;
-            this.probeIndices = probeIndices;
-        }
-        
-        /**
-         * Getter for the probe indices
-         * @return the probeIndices
-         */
-        public int[] getProbeIndices()
-        {
-            return this.probeIndices;
-        }
-        
-        /**
-         * Getter for the X data
-         * @return the xData
-         */
-        public double[] getXData()
-        {
-            return this.xData;
-        }
-        
-        /**
-         * Getter for the Y data
-         * @return the yData
-         */
-        public double[] getYData()
-        {
-            return this.yData;
-        }
-    }
 }